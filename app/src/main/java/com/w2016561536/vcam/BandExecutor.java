@@ -0,0 +1,247 @@
+package com.w2016561536.vcam;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Splits per-frame pixel work into horizontal bands and runs them on a small shared pool.
+ * <p>
+ * Band boundaries fall on multiples of {@code alignment} rows, so a 4:2:0 transform passed
+ * an alignment of 2 always keeps a luma row pair and its chroma row in the same band. Each
+ * band must only write its own output rows; then the result does not depend on how many
+ * bands there are or which thread runs them, and is byte-identical to the sequential path.
+ * <p>
+ * The calling thread claims bands too, so a call never waits on a busy pool and nested calls
+ * from a worker cannot deadlock. Work below {@code minBandWork} per band runs inline. Idle
+ * workers time out, so a hooked app that never converts a frame keeps no extra threads.
+ * <p>
+ * Once warm, a call creates no objects of its own: each calling thread reuses one job, and
+ * helpers are queued in a fixed-size array. A helper that finds the queue full is dropped, which only
+ * leaves more bands to the threads already working; drops are counted and listed in the
+ * {@link PipelineMetrics} report, since many of them mean the pool is too small for the load.
+ */
+public final class BandExecutor {
+    /** Does rows {@code [start, end)} of the output. */
+    public interface Band {
+        void run(int start, int end);
+    }
+
+    /** At most this many workers besides the caller; more mostly lands on little cores. */
+    static final int MAX_WORKERS = 3;
+    /** Below this much work (roughly output bytes) per band, splitting costs more than it saves. */
+    static final int DEFAULT_MIN_BAND_WORK = 128 * 1024;
+    // 多切几块，慢核上的带子拖后腿时别的线程能接着领
+    private static final int BANDS_PER_THREAD = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    // 每次调用最多排 workers 个帮手，留几倍余量给还没出队的旧帮手
+    private static final int QUEUE_PER_WORKER = 4;
+
+    private static volatile BandExecutor shared;
+
+    private final int workers;
+    private final int minBandWork;
+    private final ThreadPoolExecutor pool;
+    private final AtomicLong droppedHelpers = new AtomicLong();
+    private final ThreadLocal<Job> jobs = new ThreadLocal<Job>() {
+        @Override
+        protected Job initialValue() {
+            return new Job();
+        }
+    };
+
+    /**
+     * @param workers     threads besides the caller; 0 runs everything inline
+     * @param minBandWork smallest {@code work} worth giving its own band
+     */
+    public BandExecutor(int workers, int minBandWork) {
+        this.workers = Math.max(0, workers);
+        this.minBandWork = Math.max(1, minBandWork);
+        if (this.workers == 0) {
+            pool = null;
+            return;
+        }
+        final AtomicInteger count = new AtomicInteger();
+        pool = new ThreadPoolExecutor(this.workers, this.workers, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(this.workers * QUEUE_PER_WORKER), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "vcam-band-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                // 队列满了：调用方和已在干活的线程会把带子领完，这里只记数
+                droppedHelpers.incrementAndGet();
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /** The process-wide executor, sized to the device. */
+    public static BandExecutor shared() {
+        BandExecutor executor = shared;
+        if (executor == null) {
+            synchronized (BandExecutor.class) {
+                executor = shared;
+                if (executor == null) {
+                    int cores = Runtime.getRuntime().availableProcessors();
+                    executor = new BandExecutor(Math.min(cores - 1, MAX_WORKERS), DEFAULT_MIN_BAND_WORK);
+                    shared = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /** The process-wide executor if something has used it yet, otherwise null; never creates it. */
+    static BandExecutor peekShared() {
+        return shared;
+    }
+
+    /** Helpers not queued because the queue was full; their bands were done by the other threads. */
+    public long getDroppedHelperCount() {
+        return droppedHelpers.get();
+    }
+
+    /** Threads that may work on one call, including the caller. */
+    public int getParallelism() {
+        return workers + 1;
+    }
+
+    /**
+     * Runs {@code band} over rows {@code [0, rows)} and returns when every band is done. An
+     * exception from any band is rethrown here after the others have finished.
+     *
+     * @param alignment band boundaries are multiples of this (2 for 4:2:0 frames)
+     * @param work      total cost of the call, e.g. output bytes; decides the band count
+     */
+    public void run(int rows, int alignment, long work, Band band) {
+        if (rows <= 0) {
+            return;
+        }
+        int bands = bandCount(rows, alignment, work);
+        if (bands <= 1) {
+            band.run(0, rows);
+            return;
+        }
+        Job job = jobs.get();
+        if (job.active) {
+            // 带子里又调了 run：外层的 job 还没做完，另起一个
+            job = new Job();
+        }
+        job.start(band, rows, Math.max(1, alignment), bands);
+        int helpers = Math.min(bands - 1, workers);
+        for (int i = 0; i < helpers; i++) {
+            pool.execute(job);
+        }
+        job.run();
+        job.finish();
+    }
+
+    int bandCount(int rows, int alignment, long work) {
+        if (workers == 0) {
+            return 1;
+        }
+        int units = (rows + Math.max(1, alignment) - 1) / Math.max(1, alignment);
+        long byWork = work / minBandWork;
+        return (int) Math.max(1, Math.min(Math.min(units, byWork), (long) getParallelism() * BANDS_PER_THREAD));
+    }
+
+    /** First row of band {@code index} out of {@code bands}; {@code index == bands} gives {@code rows}. */
+    static int bandStart(int rows, int alignment, int bands, int index) {
+        int units = (rows + alignment - 1) / alignment;
+        return Math.min(rows, (int) ((long) units * index / bands) * alignment);
+    }
+
+    /**
+     * One call's bands. Reused by the thread that owns it, so helpers still queued from an
+     * earlier call may run it later; {@link #ticket} carries a generation next to the band
+     * index, and a helper only works on a band it claimed in the current generation.
+     */
+    private static final class Job implements Runnable {
+        // 高 32 位是第几次调用，低 32 位是下一条带子
+        final AtomicLong ticket = new AtomicLong();
+        final AtomicInteger remaining = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        // 以下字段在 ticket 换代之前写好，领到带子的线程经由 ticket 看到
+        Band band;
+        int rows;
+        int alignment;
+        int bands;
+        volatile Thread owner;
+        // 只有所属线程读写
+        boolean active;
+
+        void start(Band band, int rows, int alignment, int bands) {
+            this.band = band;
+            this.rows = rows;
+            this.alignment = alignment;
+            this.bands = bands;
+            failure.set(null);
+            remaining.set(bands);
+            owner = Thread.currentThread();
+            active = true;
+            ticket.set(((ticket.get() >>> 32) + 1) << 32);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                long t = ticket.get();
+                int i = (int) t;
+                if (i >= bands) {
+                    return;
+                }
+                if (!ticket.compareAndSet(t, t + 1)) {
+                    continue;
+                }
+                try {
+                    if (failure.get() == null) {
+                        band.run(bandStart(rows, alignment, bands, i), bandStart(rows, alignment, bands, i + 1));
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        LockSupport.unpark(owner);
+                    }
+                }
+            }
+        }
+
+        void finish() {
+            boolean interrupted = false;
+            while (remaining.get() > 0) {
+                LockSupport.park(this);
+                // 带子还在写调用方的缓冲区，被中断也必须等完
+                if (Thread.interrupted()) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            band = null;
+            active = false;
+            Throwable t = failure.getAndSet(null);
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            if (t != null) {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.w2016561536.vcam;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * The preview buffers a Camera1 app queues with {@code addCallbackBuffer}, kept in the order
+ * the camera would have used them.
+ * <p>
+ * The camera itself is handed a decoy of the same length instead, one per length and reused for
+ * every buffer, so the real sensor frame lands somewhere nobody reads. When the camera calls
+ * {@code onPreviewFrame} with a decoy, {@link #take} swaps in the app's next own buffer and the
+ * virtual frame is written into it once. Nothing is allocated per frame and the app gets back
+ * exactly the arrays it recycles. If the app has nothing queued the frame is skipped, as the
+ * real camera would, and counted as a starvation.
+ */
+public final class CallbackBufferQueue {
+    private final ArrayDeque<byte[]> queued = new ArrayDeque<>();
+    // 通常只有一两种长度；线性查找避免每帧把长度装箱成 Integer
+    private final ArrayList<byte[]> decoys = new ArrayList<>();
+    private long delivered;
+    private long starved;
+
+    /** Queues the app's {@code buffer} and returns the decoy to hand to the camera instead. */
+    public synchronized byte[] enqueue(byte[] buffer) {
+        queued.addLast(buffer);
+        byte[] decoy = decoyFor(buffer.length);
+        if (decoy == null) {
+            decoy = new byte[buffer.length];
+            decoys.add(decoy);
+        }
+        return decoy;
+    }
+
+    /** True if {@code buffer} is one of the decoys handed out by {@link #enqueue}. */
+    public synchronized boolean isDecoy(byte[] buffer) {
+        return buffer != null && decoyFor(buffer.length) == buffer;
+    }
+
+    private byte[] decoyFor(int length) {
+        for (int i = 0; i < decoys.size(); i++) {
+            byte[] decoy = decoys.get(i);
+            if (decoy.length == length) {
+                return decoy;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The app buffer to deliver in place of {@code decoy}: the oldest queued one. Null if the app
+     * has none queued (a starvation); the frame should then not reach the app.
+     */
+    public synchronized byte[] take(byte[] decoy) {
+        byte[] buffer = queued.pollFirst();
+        if (buffer == null) {
+            starved++;
+            return null;
+        }
+        if (buffer.length < decoy.length) {
+            // 应用换了预览尺寸但还塞着旧缓冲，真相机也会丢掉它
+            starved++;
+            return null;
+        }
+        delivered++;
+        return buffer;
+    }
+
+    /** Drops the queued buffers, as the camera does when buffered callbacks are turned off. */
+    public synchronized void clear() {
+        queued.clear();
+    }
+
+    public synchronized int getQueuedCount() {
+        return queued.size();
+    }
+
+    public synchronized long getDeliveredCount() {
+        return delivered;
+    }
+
+    public synchronized long getStarvationCount() {
+        return starved;
+    }
+}
@@ -0,0 +1,388 @@
+package com.w2016561536.vcam;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Ready-to-deliver still-capture payloads (JPEG or NV21 bytes) built from the replacement image.
+ * <p>
+ * Every {@code onPictureTaken} used to decode {@code 1000.bmp} at full size and re-encode or
+ * convert it, which stalls burst shooting for hundreds of ms per shot. Payloads are now keyed
+ * by (file, mtime, length, target size, format), built once on a background thread when the
+ * camera starts ({@link #prefetch}), and {@link #get} only copies the cached bytes. A shot that
+ * arrives while its payload is still being built waits for that build instead of starting another.
+ * <p>
+ * Entries are kept in LRU order within a byte budget, replaced when the file changes, and
+ * dropped entirely on {@link #trim} (wired to the app's {@code onTrimMemory}).
+ */
+public final class CaptureAssetCache {
+    public static final int FORMAT_JPEG = ImageFormat.JPEG;
+    public static final int FORMAT_NV21 = ImageFormat.NV21;
+    static final long DEFAULT_BUDGET_BYTES = 48L * 1024 * 1024;
+    // 和原来每次拍照重新编码时的质量一致
+    private static final int JPEG_QUALITY = 100;
+    private static final int STRIP_ROWS = 16;
+
+    /** Turns the image file into the payload for a {@code width} x {@code height} shot; null if unreadable. */
+    public interface Builder {
+        byte[] build(File file, int width, int height, int format) throws IOException;
+    }
+
+    /**
+     * A JPEG asset that already has the target size is delivered as it is (see
+     * {@link #jpegPassthrough}). Otherwise the image is decoded with {@code inSampleSize} to the
+     * smallest power-of-two reduction that still covers the target. JPEG is encoded at that size; NV21 is converted and then scaled (center crop)
+     * to exactly the target, since the app reads it as a raw frame of the picture size.
+     */
+    public static final Builder BITMAP_BUILDER = new Builder() {
+        @Override
+        public byte[] build(File file, int width, int height, int format) throws IOException {
+            if (format == FORMAT_JPEG) {
+                byte[] passthrough = jpegPassthrough(file, width, height);
+                if (passthrough != null) {
+                    return passthrough;
+                }
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getPath(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            options.inSampleSize = sampleSize(options.outWidth, options.outHeight, width, height);
+            options.inJustDecodeBounds = false;
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+            if (bitmap == null) {
+                return null;
+            }
+            try {
+                if (format == FORMAT_JPEG) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+                    return out.toByteArray();
+                }
+                return toNv21(bitmap, width, height);
+            } finally {
+                bitmap.recycle();
+            }
+        }
+    };
+
+    static final class Key {
+        final String path;
+        final long lastModified;
+        final long length;
+        final int width;
+        final int height;
+        final int format;
+
+        Key(File file, int width, int height, int format) {
+            this.path = file.getPath();
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.width = width;
+            this.height = height;
+            this.format = format;
+        }
+
+        boolean sameFile(Key other) {
+            return lastModified == other.lastModified && length == other.length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return path.equals(k.path) && lastModified == k.lastModified && length == k.length
+                    && width == k.width && height == k.height && format == k.format;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = path.hashCode();
+            h = h * 31 + (int) (lastModified ^ (lastModified >>> 32));
+            h = h * 31 + (int) (length ^ (length >>> 32));
+            return ((h * 31 + width) * 31 + height) * 31 + format;
+        }
+
+        @Override
+        public String toString() {
+            return path + " " + width + "x" + height + " format " + format;
+        }
+    }
+
+    private final Builder builder;
+    private final long budgetBytes;
+    private final ExecutorService worker;
+    private final LinkedHashMap<Key, byte[]> assets = new LinkedHashMap<>(8, 0.75f, true);
+    private final HashMap<Key, FutureTask<byte[]>> pending = new HashMap<>();
+    private long cachedBytes;
+    private int builds;
+
+    public CaptureAssetCache() {
+        this(BITMAP_BUILDER, DEFAULT_BUDGET_BYTES);
+    }
+
+    CaptureAssetCache(Builder builder, long budgetBytes) {
+        this.builder = builder;
+        this.budgetBytes = budgetBytes;
+        worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "vcam-capture");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** Starts building the payload in the background unless it is cached or already being built. */
+    public void prefetch(File file, int width, int height, int format) {
+        if (!file.exists()) {
+            return;
+        }
+        FutureTask<byte[]> task;
+        synchronized (this) {
+            Key key = new Key(file, width, height, format);
+            if (assets.containsKey(key) || pending.containsKey(key)) {
+                return;
+            }
+            task = newTask(key);
+        }
+        worker.execute(task);
+    }
+
+    /**
+     * Returns a private copy of the payload, building it on the calling thread unless the
+     * background thread is already on it.
+     * Null if the file is missing or cannot be decoded.
+     */
+    public byte[] get(File file, int width, int height, int format) {
+        if (!file.exists()) {
+            return null;
+        }
+        Key key = new Key(file, width, height, format);
+        FutureTask<byte[]> task;
+        synchronized (this) {
+            byte[] cached = assets.get(key);
+            if (cached != null) {
+                // 应用可能会改回调里的数组，不能把缓存本身交出去
+                return cached.clone();
+            }
+            task = pending.get(key);
+            if (task == null) {
+                task = newTask(key);
+            }
+        }
+        // 预取还在排队就直接在这里跑；后台已经在跑时 run() 立即返回，下面等它
+        task.run();
+        try {
+            byte[] payload = task.get();
+            return payload == null ? null : payload.clone();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            VLog.w("[capture]生成 {} 失败", key, e.getCause());
+            return null;
+        }
+    }
+
+    /** Drops every cached payload when the app is asked to release memory. */
+    public void trim(int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return;
+        }
+        synchronized (this) {
+            if (!assets.isEmpty()) {
+                VLog.i("[capture]trim level {}，丢弃 {} 份，{} KiB", level, assets.size(), cachedBytes / 1024);
+            }
+            assets.clear();
+            cachedBytes = 0;
+        }
+    }
+
+    /** For {@code Context.registerComponentCallbacks}. */
+    public ComponentCallbacks2 asComponentCallbacks() {
+        return new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trim(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+                trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        };
+    }
+
+    synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    synchronized int getBuildCount() {
+        return builds;
+    }
+
+    // 调用方持有锁
+    private FutureTask<byte[]> newTask(final Key key) {
+        FutureTask<byte[]> task = new FutureTask<>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return build(key);
+            }
+        });
+        pending.put(key, task);
+        return task;
+    }
+
+    private byte[] build(Key key) throws IOException {
+        byte[] payload = null;
+        try {
+            long start = System.nanoTime();
+            payload = builder.build(new File(key.path), key.width, key.height, key.format);
+            if (payload != null) {
+                VLog.i("[capture]已生成 {}：{} 字节，用时 {} ms", key, payload.length, (System.nanoTime() - start) / 1_000_000);
+            }
+            return payload;
+        } finally {
+            store(key, payload);
+        }
+    }
+
+    private synchronized void store(Key key, byte[] payload) {
+        pending.remove(key);
+        builds++;
+        if (payload == null || payload.length > budgetBytes) {
+            return;
+        }
+        // 同一文件的旧版本不会再被命中
+        Iterator<Map.Entry<Key, byte[]>> it = assets.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, byte[]> e = it.next();
+            if (e.getKey().path.equals(key.path) && !e.getKey().sameFile(key)) {
+                cachedBytes -= e.getValue().length;
+                it.remove();
+            }
+        }
+        assets.put(key, payload);
+        cachedBytes += payload.length;
+        it = assets.entrySet().iterator();
+        while (cachedBytes > budgetBytes && it.hasNext()) {
+            Map.Entry<Key, byte[]> e = it.next();
+            if (e.getKey().equals(key)) {
+                continue;
+            }
+            cachedBytes -= e.getValue().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * The bytes of {@code file} if it is a JPEG (whatever its name says) of exactly
+     * {@code width} x {@code height}, or of any size when the target is unknown; else null.
+     * The file is memory-mapped and only copied once it has sniffed as JPEG.
+     */
+    static byte[] jpegPassthrough(File file, int width, int height) throws IOException {
+        byte[] data;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size < 4 || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] head = new byte[4];
+            map.get(head);
+            if (!JpegInfo.isJpeg(head, head.length)) {
+                return null;
+            }
+            data = new byte[(int) size];
+            map.rewind();
+            map.get(data);
+        }
+        JpegInfo info = JpegInfo.parse(data, data.length);
+        if (info == null) {
+            return null;
+        }
+        if (width > 0 && height > 0 && (info.width != width || info.height != height)) {
+            VLog.i("[capture]JPEG 素材是 {}x{}，需要转码到 {}x{}", info.width, info.height, width, height);
+            return null;
+        }
+        return data;
+    }
+
+    /** Largest power of two that keeps the decoded image at least {@code width} x {@code height}. */
+    static int sampleSize(int srcWidth, int srcHeight, int width, int height) {
+        int sample = 1;
+        if (width <= 0 || height <= 0) {
+            return sample;
+        }
+        while (srcWidth / (sample * 2) >= width && srcHeight / (sample * 2) >= height) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    /**
+     * NV21 (BT.601 limited range) of {@code bitmap}, scaled to {@code width} x {@code height}
+     * when both are positive. Pixels are fetched in strips rather than as one full {@code int[]}.
+     */
+    static byte[] toNv21(final Bitmap bitmap, int width, int height) {
+        final int srcWidth = bitmap.getWidth();
+        // 缩放要求偶数尺寸，奇数时丢掉最后一行/列
+        final int evenWidth = srcWidth & ~1;
+        final int evenHeight = bitmap.getHeight() & ~1;
+        if (evenWidth == 0 || evenHeight == 0) {
+            return null;
+        }
+        final RgbToYuv engine = RgbToYuv.get(RgbToYuv.MATRIX_BT601, false);
+        final byte[] yuv = new byte[YuvFormat.frameSize(evenWidth, evenHeight)];
+        BandExecutor.shared().run(evenHeight, 2, yuv.length, new BandExecutor.Band() {
+            @Override
+            public void run(int start, int end) {
+                int[] strip = new int[srcWidth * Math.min(STRIP_ROWS, end - start)];
+                for (int row = start; row < end; row += STRIP_ROWS) {
+                    int rows = Math.min(STRIP_ROWS, end - row);
+                    bitmap.getPixels(strip, 0, srcWidth, 0, row, srcWidth, rows);
+                    engine.convertRows(strip, 0, srcWidth, evenWidth, evenHeight, row, row + rows, yuv, YuvFormat.NV21);
+                }
+            }
+        });
+        width &= ~1;
+        height &= ~1;
+        if (width <= 0 || height <= 0 || (width == evenWidth && height == evenHeight)) {
+            return yuv;
+        }
+        byte[] scaled = new byte[YuvFormat.frameSize(width, height)];
+        YuvScaler.scale(yuv, YuvFormat.NV21, evenWidth, evenHeight, scaled, YuvFormat.NV21, width, height,
+                YuvScaler.pickMode(evenWidth, evenHeight, width, height));
+        return scaled;
+    }
+}
@@ -3,24 +3,54 @@ package com.w2016561536.vcam;
 import android.content.Context;
 import android.os.Environment;
 import android.os.Build;
-import android.util.Log;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Module settings, kept in {@code vcam_config.properties}.
+ * <p>
+ * Reads are served from an immutable {@link Snapshot} that setters replace with a
+ * compare-and-set, so hook threads never see a half-applied change and never take a lock.
+ * Setters only mark the config dirty; a background thread writes the newest snapshot at most
+ * once per {@link #DEFAULT_SAVE_DELAY_MS}, so dragging the volume SeekBar costs one file write
+ * instead of one per step. The file is written to a temp file and renamed over the old one,
+ * so a reader in another process sees either the old or the new config, never a truncated one.
+ */
 public class ConfigManager {
-    private static final String TAG = "VCAM_Config";
     private static final String CONFIG_FILE = "vcam_config.properties";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String APP_VIDEO_PREFIX = "app_video_";
+    static final long DEFAULT_SAVE_DELAY_MS = 300;
     
     private static ConfigManager instance;
     private final String configDir;
-    private Properties properties;
-    private Map<String, String> perAppVideoMap;
+    private final long saveDelayMs;
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private final AtomicBoolean savePending = new AtomicBoolean();
+    private final Object saveLock = new Object();
+    private long savedVersion;
+    private volatile int saveCount;
+    private final ScheduledExecutorService saver;
+    private final Runnable saveTask = new Runnable() {
+        @Override
+        public void run() {
+            savePending.set(false);
+            flush();
+        }
+    };
     
     public static final String KEY_FPS_OVERRIDE = "fps_override";
     public static final String KEY_SHOW_FPS = "show_fps";
@@ -29,60 +59,200 @@ public class ConfigManager {
     public static final String KEY_SHOW_INFO_OVERLAY = "show_info_overlay";
     public static final String KEY_VIDEO_INDEX = "video_index";
     public static final String KEY_LOOP_DELAY = "loop_delay";
+    public static final String KEY_FRAME_CACHE_BUDGET = "frame_cache_budget_mb";
+    public static final String KEY_ASYNC_DECODER = "async_decoder";
+    public static final String KEY_JPEG_EXIF_ROTATION = "jpeg_exif_rotation";
+    public static final String KEY_AUTO_ORIENTATION = "auto_orientation";
+    public static final String KEY_BUFFER_AWARE_CALLBACKS = "buffer_aware_callbacks";
+    
+    /**
+     * One immutable version of the config. Per-app video paths are stored as
+     * {@code app_video_<package>} keys and also indexed by package name.
+     */
+    public static final class Snapshot {
+        /** Bumped by every change, starting at 0 for an empty config. */
+        public final long version;
+        private final Map<String, String> values;
+        private final Map<String, String> perAppVideos;
+        
+        Snapshot(Map<String, String> values, long version) {
+            this.version = version;
+            this.values = Collections.unmodifiableMap(values);
+            Map<String, String> perApp = new HashMap<>();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (entry.getKey().startsWith(APP_VIDEO_PREFIX)) {
+                    perApp.put(entry.getKey().substring(APP_VIDEO_PREFIX.length()), entry.getValue());
+                }
+            }
+            this.perAppVideos = Collections.unmodifiableMap(perApp);
+        }
+        
+        public String get(String key, String defaultValue) {
+            String value = values.get(key);
+            return value != null ? value : defaultValue;
+        }
+        
+        public int getInt(String key, int defaultValue) {
+            try {
+                String value = values.get(key);
+                return value != null ? Integer.parseInt(value) : defaultValue;
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+        
+        public boolean getBool(String key, boolean defaultValue) {
+            String value = values.get(key);
+            return value != null ? Boolean.parseBoolean(value) : defaultValue;
+        }
+        
+        public String getPerAppVideo(String packageName) {
+            return perAppVideos.get(packageName);
+        }
+        
+        public Map<String, String> getPerAppVideos() {
+            return perAppVideos;
+        }
+        
+        Map<String, String> getValues() {
+            return values;
+        }
+    }
     
-    private ConfigManager(Context context) {
-        String baseDir = getBaseDir(context);
-        configDir = baseDir + "/";
-        properties = new Properties();
-        perAppVideoMap = new HashMap<>();
+    ConfigManager(String configDir, long saveDelayMs) {
+        this.configDir = configDir;
+        this.saveDelayMs = saveDelayMs;
+        this.snapshot.set(new Snapshot(new HashMap<String, String>(), 0));
+        this.saver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "vcam-config");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         loadConfig();
     }
     
-    public static synchronized ConfigManager getInstance(Context context) {
+    /**
+     * The config in {@link #getSharedDir()}. The module's own files directory is not readable
+     * from the hooked apps, so the settings screen and the hooks both use the shared directory.
+     */
+    public static ConfigManager getInstance(Context context) {
+        return getInstance(getSharedDir());
+    }
+    
+    /** The process-wide config, read from {@code configDir} the first time it is asked for. */
+    public static synchronized ConfigManager getInstance(String configDir) {
         if (instance == null) {
-            instance = new ConfigManager(context);
+            instance = new ConfigManager(configDir, DEFAULT_SAVE_DELAY_MS);
         }
         return instance;
     }
     
-    private String getBaseDir(Context context) {
-        if (context != null) {
-            File externalDir = context.getExternalFilesDir(null);
-            if (externalDir != null && externalDir.canWrite()) {
-                return externalDir.getAbsolutePath() + "/VCAM";
-            }
-        }
-        return Environment.getExternalStorageDirectory().getAbsolutePath() + "/DCIM/Camera1";
+    /** Forgets the process-wide config so the next {@link #getInstance(String)} reads its directory again. */
+    static synchronized void resetInstance() {
+        instance = null;
+    }
+    
+    /** {@code DCIM/Camera1/}, next to the control files. */
+    public static String getSharedDir() {
+        return Environment.getExternalStorageDirectory().getAbsolutePath() + "/DCIM/Camera1/";
     }
     
     public String getConfigDir() {
         return configDir;
     }
     
+    /** The current config; never null and never modified afterwards. */
+    public Snapshot getSnapshot() {
+        return snapshot.get();
+    }
+    
+    /**
+     * Re-reads the config file and publishes it as a new snapshot. Changes not yet written are lost.
+     */
     public void loadConfig() {
         File configFile = new File(configDir, CONFIG_FILE);
         if (configFile.exists()) {
+            Properties properties = new Properties();
             try (FileInputStream fis = new FileInputStream(configFile)) {
                 properties.load(fis);
-                loadPerAppVideoMap();
-                Log.d(TAG, "Config loaded from " + configFile.getAbsolutePath());
+                Map<String, String> values = new HashMap<>();
+                for (String key : properties.stringPropertyNames()) {
+                    values.put(key, properties.getProperty(key));
+                }
+                synchronized (saveLock) {
+                    Snapshot current;
+                    Snapshot loaded;
+                    do {
+                        current = snapshot.get();
+                        loaded = new Snapshot(values, current.version + 1);
+                    } while (!snapshot.compareAndSet(current, loaded));
+                    savedVersion = loaded.version;
+                }
+                VLog.d("[config]已从文件加载 {}", configFile);
             } catch (IOException e) {
-                Log.e(TAG, "Failed to load config: " + e.getMessage());
+                VLog.e("[config]读取配置失败：{}", e);
             }
         }
         
         createControlFiles();
     }
     
+    /**
+     * Asks the background thread to write the config now instead of after the save delay.
+     */
     public void saveConfig() {
+        saver.execute(saveTask);
+    }
+    
+    /**
+     * Writes the current snapshot on the calling thread if it has not been written yet.
+     * Returns false if the write failed.
+     */
+    boolean flush() {
+        synchronized (saveLock) {
+            Snapshot current = snapshot.get();
+            if (current.version <= savedVersion) {
+                return true;
+            }
+            if (!writeConfig(current)) {
+                return false;
+            }
+            savedVersion = current.version;
+            saveCount++;
+            return true;
+        }
+    }
+    
+    /** Number of times the config file has actually been written. */
+    int getSaveCount() {
+        return saveCount;
+    }
+    
+    private boolean writeConfig(Snapshot snap) {
+        createControlFiles();
         File configFile = new File(configDir, CONFIG_FILE);
-        try (FileOutputStream fos = new FileOutputStream(configFile)) {
+        File tempFile = new File(configDir, CONFIG_FILE + TEMP_SUFFIX);
+        Properties properties = new Properties();
+        properties.putAll(snap.getValues());
+        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
             properties.store(fos, "VCAM Configuration");
-            savePerAppVideoMap();
-            Log.d(TAG, "Config saved to " + configFile.getAbsolutePath());
+            fos.getFD().sync();
         } catch (IOException e) {
-            Log.e(TAG, "Failed to save config: " + e.getMessage());
+            VLog.e("[config]写入配置失败：{}", e);
+            tempFile.delete();
+            return false;
         }
+        // 同一目录下 rename 是原子的，读的一方要么看到旧文件，要么看到新文件
+        if (!tempFile.renameTo(configFile)) {
+            VLog.e("[config]无法替换 {}", configFile);
+            tempFile.delete();
+            return false;
+        }
+        VLog.d("[config]已保存 {}", configFile);
+        return true;
     }
     
     private void createControlFiles() {
@@ -92,53 +262,58 @@ public class ConfigManager {
         }
     }
     
-    private void loadPerAppVideoMap() {
-        perAppVideoMap.clear();
-        for (String key : properties.stringPropertyNames()) {
-            if (key.startsWith("app_video_")) {
-                String packageName = key.substring("app_video_".length());
-                perAppVideoMap.put(packageName, properties.getProperty(key));
-            }
+    private void scheduleSave() {
+        if (savePending.compareAndSet(false, true)) {
+            saver.schedule(saveTask, saveDelayMs, TimeUnit.MILLISECONDS);
         }
     }
     
-    private void savePerAppVideoMap() {
-        for (Map.Entry<String, String> entry : perAppVideoMap.entrySet()) {
-            properties.setProperty("app_video_" + entry.getKey(), entry.getValue());
-        }
+    /**
+     * Publishes a snapshot with {@code key} set to {@code value} ({@code null} removes it) and
+     * schedules a write. Setting a key to the value it already has is a no-op.
+     */
+    private void update(String key, String value) {
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = snapshot.get();
+            String old = current.getValues().get(key);
+            if (value == null ? old == null : value.equals(old)) {
+                return;
+            }
+            Map<String, String> values = new HashMap<>(current.getValues());
+            if (value == null) {
+                values.remove(key);
+            } else {
+                values.put(key, value);
+            }
+            next = new Snapshot(values, current.version + 1);
+        } while (!snapshot.compareAndSet(current, next));
+        scheduleSave();
     }
     
     public String getProperty(String key, String defaultValue) {
-        return properties.getProperty(key, defaultValue);
+        return snapshot.get().get(key, defaultValue);
     }
     
     public int getIntProperty(String key, int defaultValue) {
-        try {
-            String value = properties.getProperty(key);
-            return value != null ? Integer.parseInt(value) : defaultValue;
-        } catch (NumberFormatException e) {
-            return defaultValue;
-        }
+        return snapshot.get().getInt(key, defaultValue);
     }
     
     public boolean getBoolProperty(String key, boolean defaultValue) {
-        String value = properties.getProperty(key);
-        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+        return snapshot.get().getBool(key, defaultValue);
     }
     
     public void setProperty(String key, String value) {
-        properties.setProperty(key, value);
-        saveConfig();
+        update(key, value);
     }
     
     public void setProperty(String key, int value) {
-        properties.setProperty(key, String.valueOf(value));
-        saveConfig();
+        update(key, String.valueOf(value));
     }
     
     public void setProperty(String key, boolean value) {
-        properties.setProperty(key, String.valueOf(value));
-        saveConfig();
+        update(key, String.valueOf(value));
     }
     
     public int getFpsOverride() {
@@ -197,55 +372,77 @@ public class ConfigManager {
         setProperty(KEY_LOOP_DELAY, delayMs);
     }
     
+    public int getFrameCacheBudgetMb() {
+        return getIntProperty(KEY_FRAME_CACHE_BUDGET, 0);
+    }
+    
+    public void setFrameCacheBudgetMb(int budgetMb) {
+        setProperty(KEY_FRAME_CACHE_BUDGET, Math.max(0, budgetMb));
+    }
+    
+    public boolean isAsyncDecoderEnabled() {
+        return getBoolProperty(KEY_ASYNC_DECODER, false);
+    }
+    
+    public void setAsyncDecoderEnabled(boolean enabled) {
+        setProperty(KEY_ASYNC_DECODER, enabled);
+    }
+    
+    public boolean isJpegExifRotationEnabled() {
+        return getBoolProperty(KEY_JPEG_EXIF_ROTATION, false);
+    }
+    
+    public void setJpegExifRotationEnabled(boolean enabled) {
+        setProperty(KEY_JPEG_EXIF_ROTATION, enabled);
+    }
+    
+    public boolean isAutoOrientationEnabled() {
+        return getBoolProperty(KEY_AUTO_ORIENTATION, false);
+    }
+    
+    public void setAutoOrientationEnabled(boolean enabled) {
+        setProperty(KEY_AUTO_ORIENTATION, enabled);
+    }
+    
+    public boolean isBufferAwareCallbacksEnabled() {
+        return getBoolProperty(KEY_BUFFER_AWARE_CALLBACKS, true);
+    }
+    
+    public void setBufferAwareCallbacksEnabled(boolean enabled) {
+        setProperty(KEY_BUFFER_AWARE_CALLBACKS, enabled);
+    }
+    
     public String getPerAppVideo(String packageName) {
-        return perAppVideoMap.get(packageName);
+        return snapshot.get().getPerAppVideo(packageName);
     }
     
     public void setPerAppVideo(String packageName, String videoPath) {
         if (videoPath == null || videoPath.isEmpty()) {
-            perAppVideoMap.remove(packageName);
-            properties.remove("app_video_" + packageName);
+            update(APP_VIDEO_PREFIX + packageName, null);
         } else {
-            perAppVideoMap.put(packageName, videoPath);
-            properties.setProperty("app_video_" + packageName, videoPath);
+            update(APP_VIDEO_PREFIX + packageName, videoPath);
         }
-        saveConfig();
     }
     
     public boolean hasPerAppVideo(String packageName) {
-        return perAppVideoMap.containsKey(packageName);
+        return snapshot.get().getPerAppVideo(packageName) != null;
     }
     
     public String getVideoPathForApp(String packageName, String defaultPath) {
-        if (perAppVideoMap.containsKey(packageName)) {
-            String videoPath = perAppVideoMap.get(packageName);
-            File videoFile = new File(videoPath);
-            if (videoFile.exists()) {
-                return videoPath;
-            }
+        String videoPath = snapshot.get().getPerAppVideo(packageName);
+        if (videoPath != null && new File(videoPath).exists()) {
+            return videoPath;
         }
         return defaultPath;
     }
     
+    /** The indexed videos in the config directory. */
+    public VideoLibrary getVideoLibrary() {
+        return VideoLibrary.forDirectory(configDir);
+    }
+    
     public String[] getAvailableVideos() {
-        File cameraDir = new File(configDir);
-        if (!cameraDir.exists()) {
-            return new String[0];
-        }
-        
-        File[] mp4Files = cameraDir.listFiles((dir, name) -> 
-            name.toLowerCase().endsWith(".mp4") && !name.startsWith("."));
-        
-        if (mp4Files == null || mp4Files.length == 0) {
-            return new String[0];
-        }
-        
-        String[] videos = new String[mp4Files.length];
-        for (int i = 0; i < mp4Files.length; i++) {
-            videos[i] = mp4Files[i].getName();
-        }
-        java.util.Arrays.sort(videos);
-        return videos;
+        return getVideoLibrary().getNames();
     }
     
     public static String getDeviceInfo() {
@@ -0,0 +1,282 @@
+package com.w2016561536.vcam;
+
+import android.os.Build;
+import android.os.Environment;
+import android.os.FileObserver;
+
+import java.io.File;
+
+/**
+ * Cached state of the control files in {@code DCIM/Camera1} ({@code disable.jpg},
+ * {@code no_toast.jpg}, ...) and of {@code virtual.mp4} in the video directory.
+ * <p>
+ * Hooks used to stat these files on every call, which on FUSE-backed external storage is a
+ * syscall round trip on the camera and binder threads. Now a background thread refreshes an
+ * immutable {@link Snapshot} when a FileObserver reports a change in either directory. Hooks
+ * only read the volatile snapshot.
+ * <p>
+ * While both directories are watched the thread only re-reads every
+ * {@link #WATCHED_POLL_INTERVAL_MS} as a backstop, because FileObserver does not see every change
+ * on emulated storage (e.g. files pushed from another user or over MTP). If a directory cannot be
+ * watched it polls every {@link #DEFAULT_POLL_INTERVAL_MS} instead. So a change normally shows up
+ * at once, one the observers miss within {@link #WATCHED_POLL_INTERVAL_MS}, and without observers
+ * within {@link #DEFAULT_POLL_INTERVAL_MS}.
+ */
+public final class ControlState {
+    public static final long DEFAULT_POLL_INTERVAL_MS = 2000;
+    /** Backstop poll while the FileObservers are running; they catch almost every change sooner. */
+    public static final long WATCHED_POLL_INTERVAL_MS = 30_000;
+
+    private static final int WATCH_MASK = FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM
+            | FileObserver.MOVED_TO | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    /** One consistent reading of all control files. */
+    public static final class Snapshot {
+        public final boolean videoExists;
+        public final boolean disabled;
+        public final boolean noToast;
+        public final boolean forceShow;
+        public final boolean privateDir;
+        public final boolean playSound;
+        /** {@code dump_metrics.jpg}: each time it appears the pipeline metrics are written out. */
+        public final boolean dumpMetrics;
+        /** {@code verbose_log.jpg}: debug lines of {@link VLog} are written too. */
+        public final boolean verboseLog;
+        /** Bumped whenever any flag changes. */
+        public final long version;
+
+        Snapshot(boolean videoExists, boolean disabled, boolean noToast, boolean forceShow, boolean privateDir,
+                 boolean playSound, boolean dumpMetrics, boolean verboseLog, long version) {
+            this.videoExists = videoExists;
+            this.disabled = disabled;
+            this.noToast = noToast;
+            this.forceShow = forceShow;
+            this.privateDir = privateDir;
+            this.playSound = playSound;
+            this.dumpMetrics = dumpMetrics;
+            this.verboseLog = verboseLog;
+            this.version = version;
+        }
+
+        boolean sameFlags(Snapshot other) {
+            return videoExists == other.videoExists && disabled == other.disabled && noToast == other.noToast
+                    && forceShow == other.forceShow && privateDir == other.privateDir && playSound == other.playSound
+                    && dumpMetrics == other.dumpMetrics && verboseLog == other.verboseLog;
+        }
+    }
+
+    private static volatile ControlState instance;
+
+    private final File controlDir;
+    private volatile File videoDir;
+    private final long pollIntervalMs;
+    private final boolean useFileObserver;
+    private final Object lock = new Object();
+    private volatile Snapshot snapshot;
+    // 指标文件名里的包名；不直接读 HookMain，测试里加载不了它
+    private volatile String packageName = "unknown";
+    private boolean refreshRequested;
+    private volatile boolean running;
+    private Thread thread;
+    private FileObserver controlObserver;
+    private FileObserver videoObserver;
+
+    ControlState(File controlDir, File videoDir, long pollIntervalMs, boolean useFileObserver) {
+        this.controlDir = controlDir;
+        this.videoDir = videoDir;
+        this.pollIntervalMs = pollIntervalMs;
+        this.useFileObserver = useFileObserver;
+        this.snapshot = read(0);
+    }
+
+    /**
+     * The process-wide control state, started on first use. Never touches the filesystem on the caller's thread after that.
+     */
+    public static ControlState getInstance() {
+        ControlState state = instance;
+        if (state == null) {
+            synchronized (ControlState.class) {
+                state = instance;
+                if (state == null) {
+                    File controlDir = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/");
+                    state = new ControlState(controlDir, new File(HookMain.video_path), DEFAULT_POLL_INTERVAL_MS, true);
+                    state.setPackageName(HookMain.currentPackageName);
+                    state.start();
+                    instance = state;
+                }
+            }
+        }
+        return state;
+    }
+
+    /** The process-wide control state if something has already started it, otherwise null; never starts it. */
+    public static ControlState peekInstance() {
+        return instance;
+    }
+
+    /** Shortcut for {@code getInstance().snapshot()}. */
+    public static Snapshot current() {
+        return getInstance().snapshot();
+    }
+
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Points the {@code virtual.mp4} check at another directory, e.g. after switching to the app's private directory.
+     */
+    public void setVideoDir(String dir) {
+        File newDir = new File(dir);
+        if (newDir.equals(videoDir)) {
+            return;
+        }
+        videoDir = newDir;
+        synchronized (lock) {
+            if (videoObserver != null) {
+                videoObserver.stopWatching();
+                videoObserver = null;
+            }
+            if (running && !newDir.equals(controlDir)) {
+                videoObserver = watch(newDir);
+            }
+        }
+        requestRefresh();
+    }
+
+    /** The hooked app, used to name the metrics file; {@code null} keeps {@code unknown}. */
+    public void setPackageName(String packageName) {
+        if (packageName != null) {
+            this.packageName = packageName;
+        }
+    }
+
+    void start() {
+        synchronized (lock) {
+            if (running) {
+                return;
+            }
+            running = true;
+            if (snapshot.verboseLog) {
+                VLog.get().setMinLevel(VLog.DEBUG);
+            }
+            controlObserver = watch(controlDir);
+            if (!videoDir.equals(controlDir)) {
+                videoObserver = watch(videoDir);
+            }
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            }, "vcam-control");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    void stop() {
+        synchronized (lock) {
+            running = false;
+            if (controlObserver != null) {
+                controlObserver.stopWatching();
+                controlObserver = null;
+            }
+            if (videoObserver != null) {
+                videoObserver.stopWatching();
+                videoObserver = null;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /** Schedules a re-read on the background thread. */
+    public void requestRefresh() {
+        synchronized (lock) {
+            refreshRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    /** Re-reads every flag on the calling thread. */
+    void refresh() {
+        Snapshot old = snapshot;
+        Snapshot fresh = read(old.version + 1);
+        if (!fresh.sameFlags(old)) {
+            snapshot = fresh;
+            if (fresh.dumpMetrics && !old.dumpMetrics) {
+                dumpMetrics();
+            }
+            if (fresh.verboseLog != old.verboseLog) {
+                VLog.get().setMinLevel(fresh.verboseLog ? VLog.DEBUG : VLog.INFO);
+            }
+        }
+    }
+
+    /** Appends the pipeline metrics to {@code vcam_metrics_<package>.txt} next to the control files. */
+    void dumpMetrics() {
+        String pkg = packageName;
+        String label = pkg + " " + Build.MANUFACTURER + " " + Build.MODEL + " sdk " + Build.VERSION.SDK_INT;
+        File file = new File(controlDir, "vcam_metrics_" + pkg + ".txt");
+        try {
+            PipelineMetrics.get().dump(file, label);
+        } catch (Exception e) {
+            VLog.w("[metrics]{}", e);
+        }
+    }
+
+    private void loop() {
+        while (running) {
+            refresh();
+            synchronized (lock) {
+                if (!refreshRequested && running) {
+                    try {
+                        lock.wait(currentPollIntervalMs());
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                refreshRequested = false;
+            }
+        }
+    }
+
+    /** How long the thread sleeps between re-reads; call with {@code lock} held. */
+    long currentPollIntervalMs() {
+        boolean watching = controlObserver != null && (videoObserver != null || videoDir.equals(controlDir));
+        return watching ? Math.max(pollIntervalMs, WATCHED_POLL_INTERVAL_MS) : pollIntervalMs;
+    }
+
+    private Snapshot read(long version) {
+        return new Snapshot(
+                new File(videoDir, "virtual.mp4").exists(),
+                new File(controlDir, "disable.jpg").exists(),
+                new File(controlDir, "no_toast.jpg").exists(),
+                new File(controlDir, "force_show.jpg").exists(),
+                new File(controlDir, "private_dir.jpg").exists(),
+                new File(controlDir, "no-silent.jpg").exists(),
+                new File(controlDir, "dump_metrics.jpg").exists(),
+                new File(controlDir, "verbose_log.jpg").exists(),
+                version);
+    }
+
+    private FileObserver watch(File dir) {
+        if (!useFileObserver) {
+            return null;
+        }
+        try {
+            FileObserver observer = new FileObserver(dir.getPath(), WATCH_MASK) {
+                @Override
+                public void onEvent(int event, String path) {
+                    requestRefresh();
+                }
+            };
+            observer.startWatching();
+            return observer;
+        } catch (Throwable t) {
+            // 没有 FileObserver 时只靠轮询
+            VLog.w("[control]{}", t);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.w2016561536.vcam;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CPU cost and delivery jitter of one decoder engine, so the polling and callback engines can
+ * be compared on the same clip.
+ * <p>
+ * CPU time is whatever the engine threads report through {@link #addCpuNanos} (any thread).
+ * Jitter is how late each frame was handed out relative to its scheduled slot, recorded by the
+ * presenting thread through {@link #onFrameDelivered}.
+ */
+public class DecodeStats {
+    private final String engine;
+    private final AtomicLong cpuNanos = new AtomicLong();
+    private volatile long frames;
+    private volatile long latenessSumNs;
+    private volatile long maxLatenessNs;
+
+    public DecodeStats(String engine) {
+        this.engine = engine;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public void addCpuNanos(long nanos) {
+        if (nanos > 0) {
+            cpuNanos.addAndGet(nanos);
+        }
+    }
+
+    /**
+     * @param latenessNs wall time between the frame's slot and the moment it was handed out;
+     *                   negative values (woke up early) count as their absolute value
+     */
+    public void onFrameDelivered(long latenessNs) {
+        long jitter = Math.abs(latenessNs);
+        frames++;
+        latenessSumNs += jitter;
+        if (jitter > maxLatenessNs) {
+            maxLatenessNs = jitter;
+        }
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos.get();
+    }
+
+    public long getCpuNanosPerFrame() {
+        long n = frames;
+        return n == 0 ? 0 : cpuNanos.get() / n;
+    }
+
+    public long getMeanJitterUs() {
+        long n = frames;
+        return n == 0 ? 0 : latenessSumNs / n / 1000;
+    }
+
+    public long getMaxJitterUs() {
+        return maxLatenessNs / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return engine + ": " + frames + " frames, cpu " + getCpuNanosPerFrame() / 1000 + " us/frame, jitter mean "
+                + getMeanJitterUs() + " us max " + getMaxJitterUs() + " us";
+    }
+}
@@ -0,0 +1,130 @@
+package com.w2016561536.vcam;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded pool of frame-sized byte arrays, keyed by exact length.
+ * <p>
+ * The decoder, the NV21 converter and the {@link HookMain#preview_exchange} handoff all acquire
+ * from and release to the same pool, so once every size in use has been seen the decode
+ * loop stops allocating. The pool never holds more than {@code maxBuffersPerSize} arrays
+ * of one length nor more than {@code maxTotalBytes} overall; sizes that have not been used
+ * recently are evicted first when the byte budget is exceeded (e.g. after switching video).
+ */
+public class FrameBufferPool {
+    private static final int DEFAULT_MAX_BUFFERS_PER_SIZE = 4;
+    private static final long DEFAULT_MAX_TOTAL_BYTES = 48L * 1024 * 1024;
+
+    private static FrameBufferPool instance;
+
+    private final int maxBuffersPerSize;
+    private final long maxTotalBytes;
+    // access-ordered, so iteration starts at the least recently used size
+    private final LinkedHashMap<Integer, ArrayDeque<byte[]>> buckets = new LinkedHashMap<>(8, 0.75f, true);
+    private long pooledBytes;
+
+    private long allocations;
+    private long hits;
+    private long drops;
+
+    public FrameBufferPool(int maxBuffersPerSize, long maxTotalBytes) {
+        if (maxBuffersPerSize <= 0 || maxTotalBytes <= 0) {
+            throw new IllegalArgumentException("pool bounds must be positive");
+        }
+        this.maxBuffersPerSize = maxBuffersPerSize;
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    public static synchronized FrameBufferPool getInstance() {
+        if (instance == null) {
+            instance = new FrameBufferPool(DEFAULT_MAX_BUFFERS_PER_SIZE, DEFAULT_MAX_TOTAL_BYTES);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns an array of exactly {@code size} bytes. Contents are undefined.
+     */
+    public synchronized byte[] acquire(int size) {
+        ArrayDeque<byte[]> bucket = buckets.get(size);
+        if (bucket != null) {
+            byte[] buf = bucket.pollLast();
+            if (buf != null) {
+                pooledBytes -= buf.length;
+                hits++;
+                return buf;
+            }
+        }
+        allocations++;
+        return new byte[size];
+    }
+
+    /**
+     * Hands an array back to the pool. The caller must not touch it afterwards.
+     * Null and empty arrays are ignored.
+     */
+    public synchronized void release(byte[] buf) {
+        if (buf == null || buf.length == 0) {
+            return;
+        }
+        if (buf.length > maxTotalBytes) {
+            drops++;
+            return;
+        }
+        ArrayDeque<byte[]> bucket = buckets.get(buf.length);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>(maxBuffersPerSize);
+            buckets.put(buf.length, bucket);
+        }
+        if (bucket.size() >= maxBuffersPerSize) {
+            drops++;
+            return;
+        }
+        bucket.addLast(buf);
+        pooledBytes += buf.length;
+        if (pooledBytes > maxTotalBytes) {
+            trimTo(maxTotalBytes);
+        }
+    }
+
+    private void trimTo(long budget) {
+        Iterator<Map.Entry<Integer, ArrayDeque<byte[]>>> it = buckets.entrySet().iterator();
+        while (pooledBytes > budget && it.hasNext()) {
+            ArrayDeque<byte[]> bucket = it.next().getValue();
+            while (pooledBytes > budget && !bucket.isEmpty()) {
+                pooledBytes -= bucket.pollFirst().length;
+                drops++;
+            }
+            if (bucket.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops every pooled array, e.g. when the camera is closed.
+     */
+    public synchronized void clear() {
+        buckets.clear();
+        pooledBytes = 0;
+    }
+
+    public synchronized long getAllocationCount() {
+        return allocations;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getDropCount() {
+        return drops;
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+}
@@ -0,0 +1,183 @@
+package com.w2016561536.vcam;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Converted frames of one pass over a clip, so later loops can be served without the codec.
+ * <p>
+ * Frames are kept on the heap until {@code memoryBudget} is used up and then appended to a
+ * spill file, which is memory-mapped for reading once the pass is {@link #finish() finished}.
+ * If the clip does not fit in {@code memoryBudget + diskBudget}, {@link #add} returns false
+ * and the cache is useless; the caller should close it and keep decoding live.
+ */
+public class FrameCache implements Closeable {
+    private final long memoryBudget;
+    private final long diskBudget;
+    private final File spillFile;
+
+    private final ArrayList<byte[]> memoryFrames = new ArrayList<>();
+    private long[] timestampsUs = new long[64];
+    private long[] spillOffsets = new long[64];
+    private int[] sizes = new int[64];
+    private int frameCount;
+    private long memoryBytes;
+    private long spillBytes;
+
+    private RandomAccessFile spillRaf;
+    private MappedByteBuffer spillMap;
+    private boolean complete;
+    private boolean overBudget;
+
+    /**
+     * @param spillFile where frames beyond {@code memoryBudget} go; null keeps the cache on the heap only
+     */
+    public FrameCache(long memoryBudget, long diskBudget, File spillFile) {
+        this.memoryBudget = memoryBudget;
+        // a single mapping is capped at 2 GB
+        this.diskBudget = spillFile == null ? 0 : Math.min(diskBudget, Integer.MAX_VALUE);
+        this.spillFile = spillFile;
+    }
+
+    /**
+     * Copies {@code frame} into the cache. Returns false once the clip no longer fits.
+     */
+    public boolean add(byte[] frame, long presentationTimeUs) {
+        if (complete || overBudget) {
+            return false;
+        }
+        int length = frame.length;
+        ensureCapacity(frameCount + 1);
+        if (spillRaf == null && memoryBytes + length <= memoryBudget) {
+            memoryFrames.add(frame.clone());
+            memoryBytes += length;
+            spillOffsets[frameCount] = -1;
+        } else if (spillBytes + length <= diskBudget) {
+            try {
+                if (spillRaf == null) {
+                    spillRaf = new RandomAccessFile(spillFile, "rw");
+                    spillRaf.setLength(0);
+                }
+                spillRaf.seek(spillBytes);
+                spillRaf.write(frame, 0, length);
+            } catch (IOException e) {
+                overBudget = true;
+                return false;
+            }
+            spillOffsets[frameCount] = spillBytes;
+            spillBytes += length;
+        } else {
+            overBudget = true;
+            return false;
+        }
+        timestampsUs[frameCount] = presentationTimeUs;
+        sizes[frameCount] = length;
+        frameCount++;
+        return true;
+    }
+
+    private void ensureCapacity(int n) {
+        if (n <= sizes.length) {
+            return;
+        }
+        int capacity = Math.max(n, sizes.length * 2);
+        long[] ts = new long[capacity];
+        long[] offsets = new long[capacity];
+        int[] sz = new int[capacity];
+        System.arraycopy(timestampsUs, 0, ts, 0, frameCount);
+        System.arraycopy(spillOffsets, 0, offsets, 0, frameCount);
+        System.arraycopy(sizes, 0, sz, 0, frameCount);
+        timestampsUs = ts;
+        spillOffsets = offsets;
+        sizes = sz;
+    }
+
+    /**
+     * Marks the pass as complete and makes the cache readable. Returns false if nothing usable was cached.
+     */
+    public boolean finish() {
+        if (overBudget || frameCount == 0) {
+            return false;
+        }
+        if (spillRaf != null) {
+            try {
+                spillMap = spillRaf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, spillBytes);
+            } catch (IOException e) {
+                overBudget = true;
+                return false;
+            }
+        }
+        complete = true;
+        return true;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public boolean isOverBudget() {
+        return overBudget;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public long getPresentationTimeUs(int index) {
+        return timestampsUs[index];
+    }
+
+    public int getFrameSize(int index) {
+        return sizes[index];
+    }
+
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public long getSpillBytes() {
+        return spillBytes;
+    }
+
+    /**
+     * Copies frame {@code index} into {@code dst}, which must hold {@link #getFrameSize(int)} bytes.
+     * Only valid after {@link #finish()}; not thread-safe.
+     */
+    public void read(int index, byte[] dst) {
+        if (!complete) {
+            throw new IllegalStateException("frame cache not finished");
+        }
+        long offset = spillOffsets[index];
+        if (offset < 0) {
+            byte[] frame = memoryFrames.get(index);
+            System.arraycopy(frame, 0, dst, 0, frame.length);
+        } else {
+            ByteBuffer map = spillMap;
+            map.position((int) offset);
+            map.get(dst, 0, sizes[index]);
+        }
+    }
+
+    @Override
+    public void close() {
+        memoryFrames.clear();
+        spillMap = null;
+        complete = false;
+        if (spillRaf != null) {
+            try {
+                spillRaf.close();
+            } catch (IOException ignored) {
+            }
+            spillRaf = null;
+        }
+        if (spillFile != null) {
+            spillFile.delete();
+        }
+    }
+}
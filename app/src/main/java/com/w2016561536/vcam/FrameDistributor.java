@@ -0,0 +1,269 @@
+package com.w2016561536.vcam;
+
+import java.io.Closeable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fans the frames of one decoder out to any number of {@link Sink}s.
+ * <p>
+ * On {@link #publish} the source frame is converted once per distinct (width, height, format)
+ * among the registered sinks, on the caller's thread. Each sink then gets the converted frame
+ * through its own single-slot mailbox served by a dedicated thread: a sink that is still busy
+ * with an older frame simply has it replaced by the newest one, so a slow sink drops frames
+ * instead of holding up the decoder or the other sinks. Converted buffers come from
+ * {@link FrameBufferPool} and go back once every sink sharing them is done.
+ */
+public class FrameDistributor implements Closeable {
+
+    public interface Sink {
+        int getWidth();
+
+        int getHeight();
+
+        /** One of the {@link YuvFormat} constants. */
+        int getFormat();
+
+        /** Called on the sink's own thread. {@code frame} is only valid for the duration of the call. */
+        void deliver(byte[] frame, long presentationTimeUs) throws Exception;
+
+        void close();
+    }
+
+    public interface Converter {
+        /**
+         * Writes {@code src} (NV21, srcWidth x srcHeight) into {@code dst} as {@code dstFormat}
+         * at dstWidth x dstHeight.
+         */
+        void convert(byte[] src, int srcWidth, int srcHeight, byte[] dst, int dstWidth, int dstHeight, int dstFormat);
+    }
+
+    /**
+     * Repacks to the target format; frames of another size are copied as far as they fit.
+     */
+    public static final Converter REPACK_CONVERTER = new Converter() {
+        @Override
+        public void convert(byte[] src, int srcWidth, int srcHeight, byte[] dst, int dstWidth, int dstHeight, int dstFormat) {
+            if (srcWidth == dstWidth && srcHeight == dstHeight) {
+                YuvFormat.repack(src, YuvFormat.NV21, dst, dstFormat, dstWidth, dstHeight);
+            } else {
+                System.arraycopy(src, 0, dst, 0, Math.min(src.length, dst.length));
+            }
+        }
+    };
+
+    /**
+     * Repacks to the target format, scaling with {@link YuvScaler} (center crop) when the size differs.
+     */
+    public static final Converter SCALING_CONVERTER = new Converter() {
+        @Override
+        public void convert(byte[] src, int srcWidth, int srcHeight, byte[] dst, int dstWidth, int dstHeight, int dstFormat) {
+            YuvScaler.scale(src, YuvFormat.NV21, srcWidth, srcHeight, dst, dstFormat, dstWidth, dstHeight,
+                    YuvScaler.pickMode(srcWidth, srcHeight, dstWidth, dstHeight));
+        }
+    };
+
+    private static final class SharedFrame {
+        final byte[] data;
+        final long presentationTimeUs;
+        final AtomicInteger refs;
+
+        SharedFrame(byte[] data, long presentationTimeUs, int refs) {
+            this.data = data;
+            this.presentationTimeUs = presentationTimeUs;
+            this.refs = new AtomicInteger(refs);
+        }
+
+        void release(FrameBufferPool pool) {
+            if (refs.decrementAndGet() == 0) {
+                pool.release(data);
+            }
+        }
+    }
+
+    private final class Outlet implements Runnable {
+        final Sink sink;
+        final int width;
+        final int height;
+        final int format;
+        final AtomicReference<SharedFrame> mailbox = new AtomicReference<>();
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final Thread thread;
+        volatile boolean running = true;
+        long round;
+
+        Outlet(Sink sink, int index) {
+            this.sink = sink;
+            this.width = sink.getWidth();
+            this.height = sink.getHeight();
+            this.format = sink.getFormat();
+            thread = new Thread(this, "vcam-sink-" + index);
+            thread.setDaemon(true);
+        }
+
+        boolean sameTarget(Outlet other) {
+            return width == other.width && height == other.height && format == other.format;
+        }
+
+        void offer(SharedFrame frame) {
+            SharedFrame stale = mailbox.getAndSet(frame);
+            if (stale != null) {
+                stale.release(pool);
+                dropped.incrementAndGet();
+            }
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                SharedFrame frame = mailbox.getAndSet(null);
+                if (frame == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                try {
+                    long deliverStartNs = System.nanoTime();
+                    sink.deliver(frame.data, frame.presentationTimeUs);
+                    PipelineMetrics.get().recordSince(PipelineMetrics.COPY, deliverStartNs);
+                    PipelineMetrics.get().onDelivered();
+                    delivered.incrementAndGet();
+                } catch (Throwable t) {
+                    failed.incrementAndGet();
+                } finally {
+                    frame.release(pool);
+                }
+            }
+            SharedFrame pending = mailbox.getAndSet(null);
+            if (pending != null) {
+                pending.release(pool);
+            }
+            sink.close();
+        }
+
+        void stop() {
+            running = false;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private final FrameBufferPool pool;
+    private volatile Converter converter;
+    private final CopyOnWriteArrayList<Outlet> outlets = new CopyOnWriteArrayList<>();
+    private final AtomicInteger conversions = new AtomicInteger();
+    private long round;
+    private int sinkIndex;
+    private volatile boolean closed;
+
+    public FrameDistributor(FrameBufferPool pool, Converter converter) {
+        this.pool = pool;
+        this.converter = converter;
+    }
+
+    public void setConverter(Converter converter) {
+        this.converter = converter;
+    }
+
+    public synchronized void addSink(Sink sink) {
+        if (closed) {
+            sink.close();
+            return;
+        }
+        if (!YuvFormat.isSupported(sink.getFormat())) {
+            throw new IllegalArgumentException("unsupported sink format " + sink.getFormat());
+        }
+        Outlet outlet = new Outlet(sink, sinkIndex++);
+        outlets.add(outlet);
+        outlet.thread.start();
+    }
+
+    public synchronized void removeSink(Sink sink) {
+        for (Outlet outlet : outlets) {
+            if (outlet.sink == sink) {
+                outlets.remove(outlet);
+                outlet.stop();
+            }
+        }
+    }
+
+    public int getSinkCount() {
+        return outlets.size();
+    }
+
+    /**
+     * Hands one decoded NV21 frame to every sink. {@code nv21} is not retained.
+     * Must be called from a single producer thread.
+     */
+    public void publish(byte[] nv21, int width, int height, long presentationTimeUs) {
+        if (closed) {
+            return;
+        }
+        Object[] snapshot = outlets.toArray();
+        long current = ++round;
+        Converter conv = converter;
+        for (int i = 0; i < snapshot.length; i++) {
+            Outlet outlet = (Outlet) snapshot[i];
+            if (outlet.round == current) {
+                continue;
+            }
+            int sharers = 0;
+            for (int j = i; j < snapshot.length; j++) {
+                Outlet other = (Outlet) snapshot[j];
+                if (other.round != current && other.sameTarget(outlet)) {
+                    sharers++;
+                }
+            }
+            byte[] converted = pool.acquire(YuvFormat.frameSize(outlet.width, outlet.height));
+            conv.convert(nv21, width, height, converted, outlet.width, outlet.height, outlet.format);
+            conversions.incrementAndGet();
+            SharedFrame frame = new SharedFrame(converted, presentationTimeUs, sharers);
+            for (int j = i; j < snapshot.length; j++) {
+                Outlet other = (Outlet) snapshot[j];
+                if (other.round != current && other.sameTarget(outlet)) {
+                    other.round = current;
+                    other.offer(frame);
+                }
+            }
+        }
+    }
+
+    public int getConversionCount() {
+        return conversions.get();
+    }
+
+    public long getDeliveredCount(Sink sink) {
+        Outlet outlet = find(sink);
+        return outlet == null ? 0 : outlet.delivered.get();
+    }
+
+    public long getDroppedCount(Sink sink) {
+        Outlet outlet = find(sink);
+        return outlet == null ? 0 : outlet.dropped.get();
+    }
+
+    private Outlet find(Sink sink) {
+        for (Outlet outlet : outlets) {
+            if (outlet.sink == sink) {
+                return outlet;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops every sink thread and closes the sinks. Frames still queued are discarded.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Outlet outlet : outlets) {
+            outlet.stop();
+        }
+        outlets.clear();
+    }
+}
@@ -0,0 +1,236 @@
+package com.w2016561536.vcam;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free handoff of decoded frames from one producer to any number of consumers.
+ * <p>
+ * A small ring of slots (three by default) holds frames by reference. The producer moves each
+ * new frame into a slot that is neither the latest nor pinned by a reader and makes it the
+ * latest; the array it displaces goes back to the caller for recycling, so nothing is copied or
+ * allocated on the producer side. A consumer pins the latest slot for as long as it reads it.
+ * The producer never writes a pinned slot, so a pinned frame cannot tear, and it never waits:
+ * if every other slot is pinned it drops the new frame instead.
+ * <p>
+ * Every frame carries a sequence number. {@link Cursor}s use it to count repeats (the same
+ * frame seen twice) and skips (frames published between two reads that the reader never saw).
+ */
+public final class FrameExchange {
+    public static final int DEFAULT_SLOTS = 3;
+    private static final int CLAIMED = -1;
+
+    /** A published frame; only valid between {@link #acquire} and {@link #release}. */
+    public static final class Frame {
+        // >0 读者数，0 空闲，CLAIMED 生产者正在换帧
+        private final AtomicInteger pins = new AtomicInteger();
+        private byte[] data;
+        private int width;
+        private int height;
+        private long sequence;
+        private long publishedNs;
+        private long originNs;
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /** 1 for the first frame ever published, then increasing by one per frame. */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /** {@code System.nanoTime()} when the frame was published. */
+        public long getPublishedNs() {
+            return publishedNs;
+        }
+
+        /** {@code System.nanoTime()} the producer gave as the frame's origin (e.g. when its sample was read). */
+        public long getOriginNs() {
+            return originNs;
+        }
+
+        private boolean pin() {
+            while (true) {
+                int n = pins.get();
+                if (n < 0) {
+                    return false;
+                }
+                if (pins.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /** One consumer's view of the sequence. Not thread-safe; use one per consuming thread. */
+    public static final class Cursor {
+        private long last;
+        private long reads;
+        private long repeated;
+        private long skipped;
+
+        public long getLastSequence() {
+            return last;
+        }
+
+        public long getReadCount() {
+            return reads;
+        }
+
+        public long getRepeatedCount() {
+            return repeated;
+        }
+
+        public long getSkippedCount() {
+            return skipped;
+        }
+
+        public void reset() {
+            last = 0;
+            reads = 0;
+            repeated = 0;
+            skipped = 0;
+        }
+    }
+
+    private final Frame[] slots;
+    private final AtomicReference<Frame> latest = new AtomicReference<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong repeated = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    public FrameExchange() {
+        this(DEFAULT_SLOTS);
+    }
+
+    public FrameExchange(int slotCount) {
+        if (slotCount < 2) {
+            throw new IllegalArgumentException("need at least 2 slots");
+        }
+        slots = new Frame[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new Frame();
+        }
+    }
+
+    /**
+     * Makes {@code data} (width x height) the latest frame. Returns the array the caller now
+     * owns again: the one displaced from the reused slot, null while the ring is still filling,
+     * or {@code data} itself if every other slot was pinned and the frame was dropped.
+     * <p>
+     * Meant for one producer thread. A second one overlapping briefly (a decoder being
+     * replaced) never shares a slot with it, but the two may publish out of order.
+     */
+    public byte[] publish(byte[] data, int width, int height) {
+        return publish(data, width, height, System.nanoTime());
+    }
+
+    /** As above, stamping the frame with {@code originNs} for frame-age measurements. */
+    public byte[] publish(byte[] data, int width, int height, long originNs) {
+        Frame current = latest.get();
+        for (Frame slot : slots) {
+            if (slot == current || !slot.pins.compareAndSet(0, CLAIMED)) {
+                continue;
+            }
+            byte[] displaced = slot.data;
+            slot.data = data;
+            slot.width = width;
+            slot.height = height;
+            slot.sequence = sequence.incrementAndGet();
+            slot.originNs = originNs;
+            slot.publishedNs = System.nanoTime();
+            // 写完再放开，读者 pin 成功时一定看到完整的一帧
+            slot.pins.set(0);
+            latest.set(slot);
+            return displaced;
+        }
+        dropped.incrementAndGet();
+        return data;
+    }
+
+    /**
+     * Pins and returns the newest frame, or null if nothing was published yet. Must be paired
+     * with {@link #release}. {@code cursor} (may be null) is advanced and counts repeats/skips.
+     */
+    public Frame acquire(Cursor cursor) {
+        while (true) {
+            Frame frame = latest.get();
+            if (frame == null) {
+                return null;
+            }
+            if (!frame.pin()) {
+                // 生产者刚把它拿去换帧，latest 已经是更新的一帧
+                continue;
+            }
+            if (cursor != null) {
+                observe(cursor, frame.sequence);
+            }
+            return frame;
+        }
+    }
+
+    public void release(Frame frame) {
+        frame.pins.decrementAndGet();
+    }
+
+    /**
+     * Copies the newest frame into {@code dst} (as far as it fits). Returns its sequence number,
+     * 0 if nothing was published yet.
+     */
+    public long read(byte[] dst, Cursor cursor) {
+        Frame frame = acquire(cursor);
+        if (frame == null) {
+            return 0;
+        }
+        try {
+            System.arraycopy(frame.data, 0, dst, 0, Math.min(frame.data.length, dst.length));
+            return frame.sequence;
+        } finally {
+            release(frame);
+        }
+    }
+
+    private void observe(Cursor cursor, long seq) {
+        cursor.reads++;
+        if (seq == cursor.last) {
+            cursor.repeated++;
+            repeated.incrementAndGet();
+        } else if (seq > cursor.last + 1 && cursor.last > 0) {
+            cursor.skipped += seq - cursor.last - 1;
+            skipped.addAndGet(seq - cursor.last - 1);
+        }
+        cursor.last = seq;
+    }
+
+    /** Sequence number of the latest published frame, 0 before the first. */
+    public long getSequence() {
+        Frame frame = latest.get();
+        return frame != null ? frame.sequence : 0;
+    }
+
+    /** Frames the producer had to drop because every free slot was pinned. */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /** Reads, over all cursors, that returned a frame the same cursor had already seen. */
+    public long getRepeatedCount() {
+        return repeated.get();
+    }
+
+    /** Frames, over all cursors, published between two reads and never seen by that cursor. */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+}
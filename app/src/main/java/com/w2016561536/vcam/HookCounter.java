@@ -0,0 +1,61 @@
+package com.w2016561536.vcam;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Invocation count and time spent inside one hooked method's body, for the hooks that run on
+ * every frame. Recording is two atomic adds; every counter ever registered is listed in the
+ * {@link PipelineMetrics} report.
+ */
+public final class HookCounter {
+    private static final List<HookCounter> registered = new CopyOnWriteArrayList<>();
+
+    private final String name;
+    private final AtomicLong invocations = new AtomicLong();
+    private final AtomicLong totalNs = new AtomicLong();
+
+    private HookCounter(String name) {
+        this.name = name;
+    }
+
+    /** Creates a counter for the hook on {@code name} (e.g. {@code "ImageReader.acquireNextImage"}). */
+    public static HookCounter register(String name) {
+        HookCounter counter = new HookCounter(name);
+        registered.add(counter);
+        return counter;
+    }
+
+    static List<HookCounter> getRegistered() {
+        return registered;
+    }
+
+    /** Counts one invocation that started at {@code startNs} ({@code System.nanoTime()}) and ends now. */
+    public void record(long startNs) {
+        invocations.incrementAndGet();
+        totalNs.addAndGet(System.nanoTime() - startNs);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getInvocationCount() {
+        return invocations.get();
+    }
+
+    public long getTotalNs() {
+        return totalNs.get();
+    }
+
+    public long getMeanNs() {
+        long n = invocations.get();
+        return n == 0 ? 0 : totalNs.get() / n;
+    }
+
+    public void reset() {
+        invocations.set(0);
+        totalNs.set(0);
+    }
+}
@@ -7,13 +7,14 @@ import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.params.InputConfiguration;
@@ -25,19 +26,17 @@ import android.media.MediaPlayer;
 import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
+import android.util.Range;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.widget.Toast;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Executor;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 
 import de.robv.android.xposed.IXposedHookLoadPackage;
 import de.robv.android.xposed.XC_MethodHook;
@@ -54,8 +53,20 @@ public class HookMain implements IXposedHookLoadPackage {
 
     public static Camera camera_onPreviewFrame;
     public static Camera start_preview_camera;
-    public static AtomicReference<byte[]> data_buffer = new AtomicReference<>(new byte[0]);
+    // 解码线程把 FrameBufferPool 里的帧交换进来，换出的帧由解码线程回收；回调读时 pin 住，不会读到一半被改写
+    public static final FrameExchange preview_exchange = new FrameExchange();
+    // onPreviewFrame 每帧要做的事（读控制状态、取帧、拷贝、记指标）都在这里，便于在 JVM 上测试
+    static final PreviewFrameDelivery preview_delivery = new PreviewFrameDelivery(preview_exchange);
+    // 按 Camera 记应用排队的预览缓冲
+    private static final java.util.Map<Camera, CallbackBufferQueue> c1_callback_buffers = java.util.Collections.synchronizedMap(new java.util.WeakHashMap<Camera, CallbackBufferQueue>());
+    // 每帧都会走的钩子，调用次数和耗时进 PipelineMetrics 报告
+    private static final HookCounter on_preview_frame_hook = HookCounter.register("PreviewCallback.onPreviewFrame");
+    private static final HookCounter add_callback_buffer_hook = HookCounter.register("Camera.addCallbackBuffer");
+    // 每个进程启动都会走，报告里看它还剩多少开销
+    private static final HookCounter application_create_hook = HookCounter.register("Instrumentation.callApplicationOnCreate");
     public static byte[] input;
+    // Camera1 目录下预转换好的 .vcraw，存在时预览回调直接从映射文件取帧，不再解码
+    public static RawFrameStore raw_frame_store;
     public static int mhight;
     public static int mwidth;
     public static boolean is_someone_playing;
@@ -88,6 +99,8 @@ public class HookMain implements IXposedHookLoadPackage {
     public boolean need_recreate;
     public static CameraDevice.StateCallback c2_state_cb;
     public static CaptureRequest.Builder c2_builder;
+    // 应用在请求里要的帧率（AE 目标帧率范围上限），0 表示未知
+    public static int c2_requested_fps;
     public static SessionConfiguration fake_sessionConfiguration;
     public static SessionConfiguration sessionConfiguration;
     public static OutputConfiguration outputConfiguration;
@@ -100,6 +113,19 @@ public class HookMain implements IXposedHookLoadPackage {
     
     // Track ImageReader instances and their expected formats to handle format mismatches
     public static java.util.Map<ImageReader, Integer> imageReaderFormats = new java.util.concurrent.ConcurrentHashMap<>();
+    // addTarget 拿到的是 ImageReader.getSurface() 的同一个对象，用它反查渲染器的尺寸和格式
+    public static java.util.Map<Surface, ImageReader> imageReaderSurfaces = new java.util.concurrent.ConcurrentHashMap<>();
+    // 自动方向用：Camera1 对象对应的相机 id，Camera2 当前打开的相机
+    private static final java.util.Map<Camera, Integer> c1_camera_ids = java.util.Collections.synchronizedMap(new java.util.WeakHashMap<Camera, Integer>());
+    public static CameraManager c2_camera_manager;
+    public static String c2_camera_id;
+    // JPEG 渲染器的拍照由它按请求编码当前帧
+    public static JpegStage c2_jpeg_stage;
+    // addTarget 被换成虚拟 Surface 后，记下每个请求原本要送去的渲染器，拍照时据此找 JPEG 渲染器
+    private static final java.util.Map<CaptureRequest.Builder, java.util.Set<Surface>> c2_builder_targets = java.util.Collections.synchronizedMap(new java.util.WeakHashMap<CaptureRequest.Builder, java.util.Set<Surface>>());
+    private static final java.util.Map<CaptureRequest, java.util.Set<Surface>> c2_request_targets = java.util.Collections.synchronizedMap(new java.util.WeakHashMap<CaptureRequest, java.util.Set<Surface>>());
+    // 只有 JPEG 渲染器时解码器只为拍照保留最新帧，不必跑满帧率
+    private static final double STILL_ONLY_FPS = 10;
     public static java.util.Set<Class<?>> hookedPreviewCallbackClasses = java.util.concurrent.ConcurrentHashMap.newKeySet();
     public static java.util.Set<Class<?>> hookedCamera2StateCallbackClasses = java.util.concurrent.ConcurrentHashMap.newKeySet();
     public static java.util.Set<Class<?>> hookedCamera2DeviceClasses = java.util.concurrent.ConcurrentHashMap.newKeySet();
@@ -107,71 +133,57 @@ public class HookMain implements IXposedHookLoadPackage {
     public Context toast_content;
     
     // New feature support
-    public static ConfigManager configManager;
+    // 1000.bmp 转好的拍照数据，按 (文件, 尺寸, 格式) 缓存
+    public static final CaptureAssetCache capture_cache = new CaptureAssetCache();
+    // 应用注册过 YUV 拍照回调后才预取 NV21，免得白占内存
+    private static volatile boolean yuv_picture_requested;
+    // 共享配置；读取之前各项都是默认值
+    static final HookSettings hook_settings = new HookSettings();
     public static String currentPackageName;
-    public static AtomicInteger frameCounter = new AtomicInteger(0);
-    public static long lastFpsUpdate = 0;
-    public static int currentFps = 0;
+    // 每个 (包名, 尺寸, 格式) 选一次片源，结果缓存到视频库变化为止
+    public static final SourceSelector source_selector = new SourceSelector();
+    static {
+        source_selector.setListener(new SourceSelector.Listener() {
+            @Override
+            public void onSelected(String key, SourceSelector.Match match) {
+                VLog.i("[source]{} -> {}", key, match);
+            }
+        });
+    }
 
     public void handleLoadPackage(final XC_LoadPackage.LoadPackageParam lpparam) throws Exception {
-        if (configManager == null && toast_content != null) {
-            configManager = ConfigManager.getInstance(toast_content);
-        }
         currentPackageName = lpparam.packageName;
-        
-        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader, "setPreviewTexture", SurfaceTexture.class, new XC_MethodHook() {
-            @Override
-            protected void beforeHookedMethod(MethodHookParam param) {
-                File file = new File(video_path + "virtual.mp4");
-                if (file.exists()) {
-                    File control_file = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "disable.jpg");
-                    if (control_file.exists()){
-                        return;
-                    }
-                    if (is_hooked) {
-                        is_hooked = false;
-                        return;
-                    }
-                    if (param.args[0] == null) {
-                        return;
-                    }
-                    if (param.args[0].equals(c1_fake_texture)) {
-                        return;
-                    }
-                    if (origin_preview_camera != null && origin_preview_camera.equals(param.thisObject)) {
-                        param.args[0] = fake_SurfaceTexture;
-                        XposedBridge.log("【VCAM】发现重复" + origin_preview_camera.toString());
-                        return;
-                    } else {
-                        XposedBridge.log("【VCAM】创建预览");
-                    }
 
-                    origin_preview_camera = (Camera) param.thisObject;
-                    mSurfacetexture = (SurfaceTexture) param.args[0];
-                    if (fake_SurfaceTexture == null) {
-                        fake_SurfaceTexture = new SurfaceTexture(10);
-                    } else {
-                        fake_SurfaceTexture.release();
-                        fake_SurfaceTexture = new SurfaceTexture(10);
-                    }
-                    param.args[0] = fake_SurfaceTexture;
-                } else {
-                    File toast_control = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "no_toast.jpg");
-                    need_to_show_toast = !toast_control.exists();
-                    if (toast_content != null && need_to_show_toast) {
-                        try {
-                            Toast.makeText(toast_content, "不存在替换视频\n" + lpparam.packageName + "当前路径：" + video_path, Toast.LENGTH_SHORT).show();
-                        } catch (Exception ee) {
-                            XposedBridge.log("【VCAM】[toast]" + ee.toString());
-                        }
-                    }
-                }
+        // 启动时只装哨兵（openCamera、Camera 构造、ImageReader.newInstance、Application 创建），
+        // 其余钩子在应用第一次用相机时才装，不用相机的进程不再为它们付出启动时间
+        final HookStage camera1_stage = new HookStage("camera1", new Runnable() {
+            @Override
+            public void run() {
+                prepare_camera_state();
+                install_camera1_hooks(lpparam);
             }
         });
+        final HookStage camera2_stage = new HookStage("camera2", new Runnable() {
+            @Override
+            public void run() {
+                prepare_camera_state();
+                install_camera2_hooks(lpparam);
+            }
+        });
+        new HookStage("sentinels", new Runnable() {
+            @Override
+            public void run() {
+                install_sentinel_hooks(lpparam, camera1_stage, camera2_stage);
+            }
+        }).ensureInstalled(lpparam.packageName);
+    }
 
+    private void install_sentinel_hooks(final XC_LoadPackage.LoadPackageParam lpparam, final HookStage camera1_stage,
+                                        final HookStage camera2_stage) {
         XposedHelpers.findAndHookMethod("android.hardware.camera2.CameraManager", lpparam.classLoader, "openCamera", String.class, CameraDevice.StateCallback.class, Handler.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                camera2_stage.ensureInstalled("openCamera");
                 if (param.args[1] == null) {
                     return;
                 }
@@ -180,24 +192,23 @@ public class HookMain implements IXposedHookLoadPackage {
                 }
                 c2_state_cb = (CameraDevice.StateCallback) param.args[1];
                 c2_state_callback = param.args[1].getClass();
-                File control_file = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "disable.jpg");
-                if (control_file.exists()) {
+                c2_camera_manager = (CameraManager) param.thisObject;
+                c2_camera_id = (String) param.args[0];
+                if (ControlState.current().disabled) {
                     return;
                 }
-                File file = new File(video_path + "virtual.mp4");
-                File toast_control = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "no_toast.jpg");
-                need_to_show_toast = !toast_control.exists();
-                if (!file.exists()) {
+                need_to_show_toast = !ControlState.current().noToast;
+                if (!ControlState.current().videoExists) {
                     if (toast_content != null && need_to_show_toast) {
                         try {
                             Toast.makeText(toast_content, "不存在替换视频\n" + lpparam.packageName + "当前路径：" + video_path, Toast.LENGTH_SHORT).show();
                         } catch (Exception ee) {
-                            XposedBridge.log("【VCAM】[toast]" + ee.toString());
+                            VLog.w("[toast]openCamera(Handler) 无视频提示失败：{}", ee);
                         }
                     }
                     return;
                 }
-                XposedBridge.log("【VCAM】1位参数初始化相机，类：" + c2_state_callback.toString());
+                VLog.i("1位参数初始化相机，类：{}", c2_state_callback);
                 is_first_hook_build = true;
                 process_camera2_init(c2_state_callback);
             }
@@ -206,6 +217,12 @@ public class HookMain implements IXposedHookLoadPackage {
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
             XposedHelpers.findAndHookMethod("android.hardware.camera2.CameraManager", lpparam.classLoader, "openCamera", String.class, Executor.class, CameraDevice.StateCallback.class, new XC_MethodHook() {
+                @Override
+                protected void beforeHookedMethod(MethodHookParam param) {
+                    // onOpened 可能在本方法返回前就在 executor 上回调，钩子要先装好
+                    camera2_stage.ensureInstalled("openCamera");
+                }
+
                 @Override
                 protected void afterHookedMethod(MethodHookParam param) throws Throwable {
                     if (param.args[2] == null) {
@@ -215,25 +232,24 @@ public class HookMain implements IXposedHookLoadPackage {
                         return;
                     }
                     c2_state_cb = (CameraDevice.StateCallback) param.args[2];
-                    File control_file = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "disable.jpg");
-                    if (control_file.exists()) {
+                    c2_camera_manager = (CameraManager) param.thisObject;
+                    c2_camera_id = (String) param.args[0];
+                    if (ControlState.current().disabled) {
                         return;
                     }
-                    File file = new File(video_path + "virtual.mp4");
-                    File toast_control = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "no_toast.jpg");
-                    need_to_show_toast = !toast_control.exists();
-                    if (!file.exists()) {
+                    need_to_show_toast = !ControlState.current().noToast;
+                    if (!ControlState.current().videoExists) {
                         if (toast_content != null && need_to_show_toast) {
                             try {
                                 Toast.makeText(toast_content, "不存在替换视频\n" + lpparam.packageName + "当前路径：" + video_path, Toast.LENGTH_SHORT).show();
                             } catch (Exception ee) {
-                                XposedBridge.log("【VCAM】[toast]" + ee.toString());
+                                VLog.w("[toast]openCamera(Executor) 无视频提示失败：{}", ee);
                             }
                         }
                         return;
                     }
                     c2_state_callback = param.args[2].getClass();
-                    XposedBridge.log("【VCAM】2位参数初始化相机，类：" + c2_state_callback.toString());
+                    VLog.i("2位参数初始化相机，类：{}", c2_state_callback);
                     is_first_hook_build = true;
                     process_camera2_init(c2_state_callback);
                 }
@@ -241,69 +257,17 @@ public class HookMain implements IXposedHookLoadPackage {
         }
 
 
-        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader, "setPreviewCallbackWithBuffer", Camera.PreviewCallback.class, new XC_MethodHook() {
-            @Override
-            protected void beforeHookedMethod(MethodHookParam param) {
-                if (param.args[0] != null) {
-                    process_callback(param);
-                }
-            }
-        });
-
-        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader, "addCallbackBuffer", byte[].class, new XC_MethodHook() {
-            @Override
-            protected void beforeHookedMethod(MethodHookParam param) {
-                if (param.args[0] != null) {
-                    param.args[0] = new byte[((byte[]) param.args[0]).length];
-                }
-            }
-        });
-
-        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader, "setPreviewCallback", Camera.PreviewCallback.class, new XC_MethodHook() {
-            @Override
-            protected void beforeHookedMethod(MethodHookParam param) {
-                if (param.args[0] != null) {
-                    process_callback(param);
-                }
-            }
-        });
-
-        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader, "setOneShotPreviewCallback", Camera.PreviewCallback.class, new XC_MethodHook() {
+        // open() 与 open(int) 最终都走 Camera(int cameraId, ...) 构造
+        XposedBridge.hookAllConstructors(XposedHelpers.findClass("android.hardware.Camera", lpparam.classLoader), new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) {
-                if (param.args[0] != null) {
-                    process_callback(param);
-                }
+                camera1_stage.ensureInstalled("Camera.open");
             }
-        });
 
-        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader, "takePicture", Camera.ShutterCallback.class, Camera.PictureCallback.class, Camera.PictureCallback.class, Camera.PictureCallback.class, new XC_MethodHook() {
             @Override
             protected void afterHookedMethod(MethodHookParam param) {
-                XposedBridge.log("【VCAM】4参数拍照");
-                if (param.args[1] != null) {
-                    process_a_shot_YUV(param);
-                }
-
-                if (param.args[3] != null) {
-                    process_a_shot_jpeg(param, 3);
-                }
-            }
-        });
-
-        XposedHelpers.findAndHookMethod("android.media.MediaRecorder", lpparam.classLoader, "setCamera", Camera.class, new XC_MethodHook() {
-            @Override
-            protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                super.beforeHookedMethod(param);
-                File toast_control = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "no_toast.jpg");
-                need_to_show_toast = !toast_control.exists();
-                XposedBridge.log("【VCAM】[record]" + lpparam.packageName);
-                if (toast_content != null && need_to_show_toast) {
-                    try {
-                        Toast.makeText(toast_content, "应用：" + lpparam.appInfo.name + "(" + lpparam.packageName + ")" + "触发了录像，但目前无法拦截", Toast.LENGTH_SHORT).show();
-                    }catch (Exception ee){
-                        XposedBridge.log("【VCAM】[toast]" + Arrays.toString(ee.getStackTrace()));
-                    }
+                if (param.args.length > 0 && param.args[0] instanceof Integer) {
+                    c1_camera_ids.put((Camera) param.thisObject, (Integer) param.args[0]);
                 }
             }
         });
@@ -312,11 +276,21 @@ public class HookMain implements IXposedHookLoadPackage {
             @Override
             protected void afterHookedMethod(MethodHookParam param) throws Throwable {
                 super.afterHookedMethod(param);
+                long start_ns = System.nanoTime();
+                try {
+                    on_application_create(param);
+                } finally {
+                    application_create_hook.record(start_ns);
+                }
+            }
+
+            private void on_application_create(MethodHookParam param) {
                 if (param.args[0] instanceof Application) {
                     try {
                         toast_content = ((Application) param.args[0]).getApplicationContext();
+                        toast_content.registerComponentCallbacks(capture_cache.asComponentCallbacks());
                     } catch (Exception ee) {
-                        XposedBridge.log("【VCAM】" + ee.toString());
+                        VLog.w("[app]注册内存回调失败：{}", ee);
                     }
                     File force_private = new File(Environment.getExternalStorageDirectory().getAbsolutePath() + "/DCIM/Camera1/private_dir.jpg");
                     if (toast_content != null) {//后半段用于强制私有目录
@@ -325,14 +299,14 @@ public class HookMain implements IXposedHookLoadPackage {
                             try {
                                 auth_statue += (toast_content.checkSelfPermission(Manifest.permission.READ_EXTERNAL_STORAGE) + 1);
                             } catch (Exception ee) {
-                                XposedBridge.log("【VCAM】[permission-check]" + ee.toString());
+                                VLog.w("[permission-check]READ_EXTERNAL_STORAGE 检查失败：{}", ee);
                             }
                             try {
                                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
                                     auth_statue += (toast_content.checkSelfPermission(Manifest.permission.MANAGE_EXTERNAL_STORAGE) + 1);
                                 }
                             } catch (Exception ee) {
-                                XposedBridge.log("【VCAM】[permission-check]" + ee.toString());
+                                VLog.w("[permission-check]MANAGE_EXTERNAL_STORAGE 检查失败：{}", ee);
                             }
                         }else {
                             if (toast_content.checkCallingPermission(Manifest.permission.READ_EXTERNAL_STORAGE) == PackageManager.PERMISSION_GRANTED ){
@@ -359,7 +333,7 @@ public class HookMain implements IXposedHookLoadPackage {
                                     fos.flush();
                                     fos.close();
                                 } catch (Exception e) {
-                                    XposedBridge.log("【VCAM】[switch-dir]" + e.toString());
+                                    VLog.w("[switch-dir]{}", e);
                                 }
                             }
                             video_path = toast_content.getExternalFilesDir(null).getAbsolutePath() + "/Camera1/";
@@ -376,6 +350,186 @@ public class HookMain implements IXposedHookLoadPackage {
                             }
                         }
                     }
+                    // 控制文件监视、配置和视频库等第一次开相机时才建（prepare_camera_state），
+                    // 这里只在它们已经建好时把目录改过去
+                    ControlState control = ControlState.peekInstance();
+                    if (control != null) {
+                        control.setVideoDir(video_path);
+                    }
+                }
+            }
+        });
+
+        XposedHelpers.findAndHookMethod("android.media.ImageReader", lpparam.classLoader, "newInstance", int.class, int.class, int.class, int.class, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) {
+                VLog.i("应用创建了渲染器：宽：{} 高：{}格式{}", param.args[0], param.args[1], param.args[2]);
+                c2_ori_width = (int) param.args[0];
+                c2_ori_height = (int) param.args[1];
+                imageReaderFormat = (int) param.args[2];
+                need_to_show_toast = !ControlState.current().noToast;
+                if (toast_content != null && need_to_show_toast) {
+                    try {
+                        Toast.makeText(toast_content, "应用创建了渲染器：\n宽：" + param.args[0] + "\n高：" + param.args[1] + "\n一般只需要宽高比与视频相同", Toast.LENGTH_SHORT).show();
+                    } catch (Exception e) {
+                        VLog.w("[toast]渲染器尺寸提示失败：{}", e);
+                    }
+                }
+            }
+            
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) {
+                // Track the ImageReader and its configured format for later use
+                if (param.getResult() != null) {
+                    ImageReader reader = (ImageReader) param.getResult();
+                    int format = (int) param.args[2];
+                    imageReaderFormats.put(reader, format);
+                    try {
+                        imageReaderSurfaces.put(reader.getSurface(), reader);
+                    } catch (Exception e) {
+                        VLog.w("[fanout]{}", e);
+                    }
+                    VLog.d("Tracking ImageReader format: {} (0x{})", format, Integer.toHexString(format));
+                }
+            }
+        });
+    }
+
+    /**
+     * 第一次用相机时才启动控制文件监视（线程、FileObserver、轮询），读配置，给视频目录建索引；
+     * 不用相机的进程启动时不再付出这些开销。camera1/camera2 两个阶段都会调用，重复调用无副作用。
+     */
+    private static void prepare_camera_state() {
+        ControlState.getInstance().setVideoDir(video_path);
+        load_config(ConfigManager.getSharedDir());
+        VideoLibrary.forDirectory(video_path);
+    }
+
+    /** Camera1 的钩子，第一次构造 Camera 时才装。 */
+    private void install_camera1_hooks(final XC_LoadPackage.LoadPackageParam lpparam) {
+        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader, "setPreviewTexture", SurfaceTexture.class, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) {
+                if (ControlState.current().videoExists) {
+                    if (ControlState.current().disabled){
+                        return;
+                    }
+                    if (is_hooked) {
+                        is_hooked = false;
+                        return;
+                    }
+                    if (param.args[0] == null) {
+                        return;
+                    }
+                    if (param.args[0].equals(c1_fake_texture)) {
+                        return;
+                    }
+                    if (origin_preview_camera != null && origin_preview_camera.equals(param.thisObject)) {
+                        param.args[0] = fake_SurfaceTexture;
+                        VLog.i("发现重复{}", origin_preview_camera);
+                        return;
+                    } else {
+                        VLog.i("创建预览");
+                    }
+
+                    origin_preview_camera = (Camera) param.thisObject;
+                    mSurfacetexture = (SurfaceTexture) param.args[0];
+                    if (fake_SurfaceTexture == null) {
+                        fake_SurfaceTexture = new SurfaceTexture(10);
+                    } else {
+                        fake_SurfaceTexture.release();
+                        fake_SurfaceTexture = new SurfaceTexture(10);
+                    }
+                    param.args[0] = fake_SurfaceTexture;
+                } else {
+                    need_to_show_toast = !ControlState.current().noToast;
+                    if (toast_content != null && need_to_show_toast) {
+                        try {
+                            Toast.makeText(toast_content, "不存在替换视频\n" + lpparam.packageName + "当前路径：" + video_path, Toast.LENGTH_SHORT).show();
+                        } catch (Exception ee) {
+                            VLog.w("[toast]setPreviewTexture 无视频提示失败：{}", ee);
+                        }
+                    }
+                }
+            }
+        });
+
+        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader, "setPreviewCallbackWithBuffer", Camera.PreviewCallback.class, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) {
+                if (param.args[0] != null) {
+                    process_callback(param);
+                } else {
+                    clear_callback_buffers((Camera) param.thisObject);
+                }
+            }
+        });
+
+        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader, "addCallbackBuffer", byte[].class, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) {
+                if (param.args[0] == null) {
+                    return;
+                }
+                long start_ns = System.nanoTime();
+                if (!hook_settings.isBufferAwareCallbacksEnabled()) {
+                    param.args[0] = new byte[((byte[]) param.args[0]).length];
+                } else if (PreviewFrameDelivery.isReplacing(ControlState.current())) {
+                    // 应用的缓冲留给我们写虚拟帧，相机只拿到同尺寸的诱饵
+                    param.args[0] = callback_buffers_for((Camera) param.thisObject).enqueue((byte[]) param.args[0]);
+                }
+                // 停用或没有视频时应用的缓冲原样交给相机，照常收到真实画面
+                add_callback_buffer_hook.record(start_ns);
+            }
+        });
+
+        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader, "setPreviewCallback", Camera.PreviewCallback.class, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) {
+                // 与系统一致：切到非缓冲回调时丢掉已排队的缓冲
+                clear_callback_buffers((Camera) param.thisObject);
+                if (param.args[0] != null) {
+                    process_callback(param);
+                }
+            }
+        });
+
+        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader, "setOneShotPreviewCallback", Camera.PreviewCallback.class, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) {
+                clear_callback_buffers((Camera) param.thisObject);
+                if (param.args[0] != null) {
+                    process_callback(param);
+                }
+            }
+        });
+
+        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader, "takePicture", Camera.ShutterCallback.class, Camera.PictureCallback.class, Camera.PictureCallback.class, Camera.PictureCallback.class, new XC_MethodHook() {
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) {
+                VLog.i("4参数拍照");
+                if (param.args[1] != null) {
+                    process_a_shot_YUV(param);
+                }
+
+                if (param.args[3] != null) {
+                    process_a_shot_jpeg(param, 3);
+                }
+            }
+        });
+
+        XposedHelpers.findAndHookMethod("android.media.MediaRecorder", lpparam.classLoader, "setCamera", Camera.class, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                super.beforeHookedMethod(param);
+                need_to_show_toast = !ControlState.current().noToast;
+                VLog.i("[record]{}", lpparam.packageName);
+                if (toast_content != null && need_to_show_toast) {
+                    try {
+                        Toast.makeText(toast_content, "应用：" + lpparam.appInfo.name + "(" + lpparam.packageName + ")" + "触发了录像，但目前无法拦截", Toast.LENGTH_SHORT).show();
+                    }catch (Exception ee){
+                        VLog.w("[toast]录像提示失败：{}", ee);
+                    }
                 }
             }
         });
@@ -383,26 +537,24 @@ public class HookMain implements IXposedHookLoadPackage {
         XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader, "startPreview", new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                File file = new File(video_path + "virtual.mp4");
-                File toast_control = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "no_toast.jpg");
-                need_to_show_toast = !toast_control.exists();
-                if (!file.exists()) {
+                need_to_show_toast = !ControlState.current().noToast;
+                if (!ControlState.current().videoExists) {
                     if (toast_content != null && need_to_show_toast) {
                         try {
                             Toast.makeText(toast_content, "不存在替换视频\n" + lpparam.packageName + "当前路径：" + video_path, Toast.LENGTH_SHORT).show();
                         } catch (Exception ee) {
-                            XposedBridge.log("【VCAM】[toast]" + ee.toString());
+                            VLog.w("[toast]startPreview 无视频提示失败：{}", ee);
                         }
                     }
                     return;
                 }
-                File control_file = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "disable.jpg");
-                if (control_file.exists()) {
+                if (ControlState.current().disabled) {
                     return;
                 }
                 is_someone_playing = false;
-                XposedBridge.log("【VCAM】开始预览");
+                VLog.i("开始预览");
                 start_preview_camera = (Camera) param.thisObject;
+                prefetch_capture_assets(start_preview_camera);
                 if (ori_holder != null) {
 
                     if (mplayer1 != null) {
@@ -434,7 +586,7 @@ public class HookMain implements IXposedHookLoadPackage {
                         mplayer1.setDataSource(getEffectiveVideoPath());
                         mplayer1.prepare();
                     } catch (IOException e) {
-                        XposedBridge.log("【VCAM】" + e.toString());
+                        VLog.w("[preview]mplayer1 加载视频失败：{}", e);
                     }
                 }
 
@@ -474,7 +626,7 @@ public class HookMain implements IXposedHookLoadPackage {
                         mMediaPlayer.setDataSource(getEffectiveVideoPath());
                         mMediaPlayer.prepare();
                     } catch (IOException e) {
-                        XposedBridge.log("【VCAM】" + e.toString());
+                        VLog.w("[preview]mMediaPlayer 加载视频失败：{}", e);
                     }
                 }
             }
@@ -483,22 +635,19 @@ public class HookMain implements IXposedHookLoadPackage {
         XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader, "setPreviewDisplay", SurfaceHolder.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                XposedBridge.log("【VCAM】添加Surfaceview预览");
-                File file = new File(video_path + "virtual.mp4");
-                File toast_control = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "no_toast.jpg");
-                need_to_show_toast = !toast_control.exists();
-                if (!file.exists()) {
+                VLog.i("添加Surfaceview预览");
+                need_to_show_toast = !ControlState.current().noToast;
+                if (!ControlState.current().videoExists) {
                     if (toast_content != null && need_to_show_toast) {
                         try {
                             Toast.makeText(toast_content, "不存在替换视频\n" + lpparam.packageName + "当前路径：" + video_path, Toast.LENGTH_SHORT).show();
                         } catch (Exception ee) {
-                            XposedBridge.log("【VCAM】[toast]" + ee.toString());
+                            VLog.w("[toast]setPreviewDisplay 无视频提示失败：{}", ee);
                         }
                     }
                     return;
                 }
-                File control_file = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "disable.jpg");
-                if (control_file.exists()) {
+                if (ControlState.current().disabled) {
                     return;
                 }
                 mcamera1 = (Camera) param.thisObject;
@@ -518,12 +667,37 @@ public class HookMain implements IXposedHookLoadPackage {
                     c1_fake_surface = null;
                     c1_fake_surface = new Surface(c1_fake_texture);
                 }
-                is_hooked = true;
-                mcamera1.setPreviewTexture(c1_fake_texture);
-                param.setResult(null);
+                is_hooked = true;
+                mcamera1.setPreviewTexture(c1_fake_texture);
+                param.setResult(null);
+            }
+        });
+
+/*        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader, "stopPreview", new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) {
+                if (param.thisObject.equals(HookMain.origin_preview_camera) || param.thisObject.equals(HookMain.camera_onPreviewFrame) || param.thisObject.equals(HookMain.mcamera1)) {
+                    if (hw_decode_obj != null) {
+                        hw_decode_obj.stopDecode();
+                    }
+                    if (mplayer1 != null) {
+                        mplayer1.release();
+                        mplayer1 = null;
+                    }
+                    if (mMediaPlayer != null) {
+                        mMediaPlayer.release();
+                        mMediaPlayer = null;
+                    }
+                    is_someone_playing = false;
+
+                    VLog.i("停止预览");
+                }
             }
-        });
+        });*/
+    }
 
+    /** Camera2 的钩子，第一次 openCamera 时才装。 */
+    private void install_camera2_hooks(final XC_LoadPackage.LoadPackageParam lpparam) {
         XposedHelpers.findAndHookMethod("android.hardware.camera2.CaptureRequest.Builder", lpparam.classLoader, "addTarget", Surface.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) {
@@ -534,15 +708,13 @@ public class HookMain implements IXposedHookLoadPackage {
                 if (param.thisObject == null) {
                     return;
                 }
-                File file = new File(video_path + "virtual.mp4");
-                File toast_control = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "no_toast.jpg");
-                need_to_show_toast = !toast_control.exists();
-                if (!file.exists()) {
+                need_to_show_toast = !ControlState.current().noToast;
+                if (!ControlState.current().videoExists) {
                     if (toast_content != null && need_to_show_toast) {
                         try {
                             Toast.makeText(toast_content, "不存在替换视频\n" + lpparam.packageName + "当前路径：" + video_path, Toast.LENGTH_SHORT).show();
                         } catch (Exception ee) {
-                            XposedBridge.log("【VCAM】[toast]" + ee.toString());
+                            VLog.w("[toast]addTarget 无视频提示失败：{}", ee);
                         }
                     }
                     return;
@@ -550,8 +722,7 @@ public class HookMain implements IXposedHookLoadPackage {
                 if (param.args[0].equals(c2_virtual_surface)) {
                     return;
                 }
-                File control_file = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "disable.jpg");
-                if (control_file.exists()) {
+                if (ControlState.current().disabled) {
                     return;
                 }
                 String surfaceInfo = param.args[0].toString();
@@ -572,7 +743,8 @@ public class HookMain implements IXposedHookLoadPackage {
                         }
                     }
                 }
-                XposedBridge.log("【VCAM】添加目标：" + param.args[0].toString());
+                VLog.d("添加目标：{}", param.args[0]);
+                track_builder_target((CaptureRequest.Builder) param.thisObject, (Surface) param.args[0], true);
                 param.args[0] = c2_virtual_surface;
 
             }
@@ -588,21 +760,18 @@ public class HookMain implements IXposedHookLoadPackage {
                 if (param.thisObject == null) {
                     return;
                 }
-                File file = new File(video_path + "virtual.mp4");
-                File toast_control = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "no_toast.jpg");
-                need_to_show_toast = !toast_control.exists();
-                if (!file.exists()) {
+                need_to_show_toast = !ControlState.current().noToast;
+                if (!ControlState.current().videoExists) {
                     if (toast_content != null && need_to_show_toast) {
                         try {
                             Toast.makeText(toast_content, "不存在替换视频\n" + lpparam.packageName + "当前路径：" + video_path, Toast.LENGTH_SHORT).show();
                         } catch (Exception ee) {
-                            XposedBridge.log("【VCAM】[toast]" + ee.toString());
+                            VLog.w("[toast]removeTarget 无视频提示失败：{}", ee);
                         }
                     }
                     return;
                 }
-                File control_file = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "disable.jpg");
-                if (control_file.exists()) {
+                if (ControlState.current().disabled) {
                     return;
                 }
                 Surface rm_surf = (Surface) param.args[0];
@@ -618,8 +787,9 @@ public class HookMain implements IXposedHookLoadPackage {
                 if (rm_surf.equals(c2_reader_Surfcae)) {
                     c2_reader_Surfcae = null;
                 }
+                track_builder_target((CaptureRequest.Builder) param.thisObject, rm_surf, false);
 
-                XposedBridge.log("【VCAM】移除目标：" + param.args[0].toString());
+                VLog.d("移除目标：{}", param.args[0]);
             }
         });
 
@@ -633,215 +803,98 @@ public class HookMain implements IXposedHookLoadPackage {
                     return;
                 }
                 c2_builder = (CaptureRequest.Builder) param.thisObject;
-                File file = new File(video_path + "virtual.mp4");
-                File toast_control = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "no_toast.jpg");
-                need_to_show_toast = !toast_control.exists();
-                if (!file.exists() && need_to_show_toast) {
+                try {
+                    Range<Integer> fps_range = c2_builder.get(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE);
+                    c2_requested_fps = fps_range != null ? fps_range.getUpper() : 0;
+                } catch (Exception e) {
+                    c2_requested_fps = 0;
+                }
+                need_to_show_toast = !ControlState.current().noToast;
+                if (!ControlState.current().videoExists && need_to_show_toast) {
                     if (toast_content != null) {
                         try {
                             Toast.makeText(toast_content, "不存在替换视频\n" + lpparam.packageName + "当前路径：" + video_path, Toast.LENGTH_SHORT).show();
                         } catch (Exception ee) {
-                            XposedBridge.log("【VCAM】[toast]" + ee.toString());
+                            VLog.w("[toast]build 无视频提示失败：{}", ee);
                         }
                     }
                     return;
                 }
 
-                File control_file = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "disable.jpg");
-                if (control_file.exists()) {
+                if (ControlState.current().disabled) {
                     return;
                 }
-                XposedBridge.log("【VCAM】开始build请求");
+                VLog.d("开始build请求");
                 process_camera2_play();
             }
-        });
-
-/*        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader, "stopPreview", new XC_MethodHook() {
-            @Override
-            protected void beforeHookedMethod(MethodHookParam param) {
-                if (param.thisObject.equals(HookMain.origin_preview_camera) || param.thisObject.equals(HookMain.camera_onPreviewFrame) || param.thisObject.equals(HookMain.mcamera1)) {
-                    if (hw_decode_obj != null) {
-                        hw_decode_obj.stopDecode();
-                    }
-                    if (mplayer1 != null) {
-                        mplayer1.release();
-                        mplayer1 = null;
-                    }
-                    if (mMediaPlayer != null) {
-                        mMediaPlayer.release();
-                        mMediaPlayer = null;
-                    }
-                    is_someone_playing = false;
-
-                    XposedBridge.log("停止预览");
-                }
-            }
-        });*/
-
-        XposedHelpers.findAndHookMethod("android.media.ImageReader", lpparam.classLoader, "newInstance", int.class, int.class, int.class, int.class, new XC_MethodHook() {
-            @Override
-            protected void beforeHookedMethod(MethodHookParam param) {
-                XposedBridge.log("【VCAM】应用创建了渲染器：宽：" + param.args[0] + " 高：" + param.args[1] + "格式" + param.args[2]);
-                c2_ori_width = (int) param.args[0];
-                c2_ori_height = (int) param.args[1];
-                imageReaderFormat = (int) param.args[2];
-                File toast_control = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "no_toast.jpg");
-                need_to_show_toast = !toast_control.exists();
-                if (toast_content != null && need_to_show_toast) {
-                    try {
-                        Toast.makeText(toast_content, "应用创建了渲染器：\n宽：" + param.args[0] + "\n高：" + param.args[1] + "\n一般只需要宽高比与视频相同", Toast.LENGTH_SHORT).show();
-                    } catch (Exception e) {
-                        XposedBridge.log("【VCAM】[toast]" + e.toString());
-                    }
-                }
-            }
-            
-            @Override
-            protected void afterHookedMethod(MethodHookParam param) {
-                // Track the ImageReader and its configured format for later use
-                if (param.getResult() != null) {
-                    ImageReader reader = (ImageReader) param.getResult();
-                    int format = (int) param.args[2];
-                    imageReaderFormats.put(reader, format);
-                    XposedBridge.log("【VCAM】Tracking ImageReader format: " + format + " (0x" + Integer.toHexString(format) + ")");
-                }
-            }
-        });
-
-        // Hook ImageReader.acquireNextImage to catch format mismatch errors
-        // This prevents crashes when the producer (MediaCodec) outputs a different format
-        XposedHelpers.findAndHookMethod("android.media.ImageReader", lpparam.classLoader, "acquireNextImage", new XC_MethodHook() {
-            @Override
-            protected void beforeHookedMethod(MethodHookParam param) {
-                // Check if virtual camera is active
-                File file = new File(video_path + "virtual.mp4");
-                File control_file = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "disable.jpg");
-                if (!file.exists() || control_file.exists()) {
-                    return; // Virtual camera not active, let it proceed normally
-                }
-            }
-            
-            @Override
-            protected void afterHookedMethod(MethodHookParam param) {
-                // If an exception was thrown, we catch it here
-                if (param.getThrowable() != null) {
-                    Throwable t = param.getThrowable();
-                    if (t instanceof UnsupportedOperationException && 
-                        t.getMessage() != null && 
-                        t.getMessage().contains("doesn't match")) {
-                        XposedBridge.log("【VCAM】Caught ImageReader format mismatch: " + t.getMessage());
-                        // Return null instead of crashing - the app should handle null gracefully
-                        param.setResult(null);
-                        param.setThrowable(null);
-                    }
-                }
-            }
-        });
 
-        // Hook ImageReader.acquireLatestImage as well (similar to acquireNextImage)
-        XposedHelpers.findAndHookMethod("android.media.ImageReader", lpparam.classLoader, "acquireLatestImage", new XC_MethodHook() {
-            @Override
-            protected void beforeHookedMethod(MethodHookParam param) {
-                // Check if virtual camera is active
-                File file = new File(video_path + "virtual.mp4");
-                File control_file = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "disable.jpg");
-                if (!file.exists() || control_file.exists()) {
-                    return; // Virtual camera not active, let it proceed normally
-                }
-            }
-            
             @Override
             protected void afterHookedMethod(MethodHookParam param) {
-                // If an exception was thrown, we catch it here
-                if (param.getThrowable() != null) {
-                    Throwable t = param.getThrowable();
-                    if (t instanceof UnsupportedOperationException && 
-                        t.getMessage() != null && 
-                        t.getMessage().contains("doesn't match")) {
-                        XposedBridge.log("【VCAM】Caught ImageReader format mismatch in acquireLatestImage: " + t.getMessage());
-                        // Return null instead of crashing - the app should handle null gracefully
-                        param.setResult(null);
-                        param.setThrowable(null);
+                java.util.Set<Surface> targets = c2_builder_targets.get(param.thisObject);
+                if (targets != null && param.getResult() != null) {
+                    synchronized (targets) {
+                        c2_request_targets.put((CaptureRequest) param.getResult(), new java.util.HashSet<>(targets));
                     }
                 }
             }
         });
 
-        // Hook the native nativeImageSetup method which is where the actual crash occurs
-        // This is a more aggressive approach to prevent the crash at its source
-        try {
-            XposedHelpers.findAndHookMethod("android.media.ImageReader", lpparam.classLoader, "acquireNextSurfaceImage", int.class, new XC_MethodHook() {
-                @Override
-                protected void afterHookedMethod(MethodHookParam param) {
-                    if (param.getThrowable() != null) {
-                        Throwable t = param.getThrowable();
-                        if (t instanceof UnsupportedOperationException && 
-                            t.getMessage() != null && 
-                            t.getMessage().contains("doesn't match")) {
-                            XposedBridge.log("【VCAM】Caught format mismatch in acquireNextSurfaceImage: " + t.getMessage());
-                            // Return error code instead of throwing
-                            param.setResult(-1);
-                            param.setThrowable(null);
-                        }
-                    }
-                }
-            });
-        } catch (Exception e) {
-            XposedBridge.log("【VCAM】Could not hook acquireNextSurfaceImage: " + e.getMessage());
-        }
+        hook_camera2_still_capture(lpparam.classLoader);
+        install_image_reader_hooks(lpparam);
 
         XposedHelpers.findAndHookMethod("android.hardware.camera2.CameraCaptureSession.CaptureCallback", lpparam.classLoader, "onCaptureFailed", CameraCaptureSession.class, CaptureRequest.class, CaptureFailure.class,
                 new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
-                        XposedBridge.log("【VCAM】onCaptureFailed" + "原因：" + ((CaptureFailure) param.args[2]).getReason());
+                        VLog.w("onCaptureFailed原因：{}", ((CaptureFailure) param.args[2]).getReason());
 
                     }
                 });
     }
 
-    private void process_camera2_play() {
+    /** ImageReader 取图的钩子；解码器只在 Camera2 打开后才往 ImageReader 送帧，随 Camera2 一起装。 */
+    private void install_image_reader_hooks(final XC_LoadPackage.LoadPackageParam lpparam) {
+        // acquireNextImage / acquireLatestImage 每帧都会调用：解码器输出格式与 ImageReader 不符时会抛
+        // "doesn't match"，改为返回 null，应用按没有新图处理而不是崩溃。正常路径只有一次判空
+        XposedHelpers.findAndHookMethod("android.media.ImageReader", lpparam.classLoader, "acquireNextImage", image_acquire_hook("acquireNextImage", null));
+        XposedHelpers.findAndHookMethod("android.media.ImageReader", lpparam.classLoader, "acquireLatestImage", image_acquire_hook("acquireLatestImage", null));
 
-        if (c2_reader_Surfcae != null) {
-            if (c2_hw_decode_obj != null) {
-                c2_hw_decode_obj.stopDecode();
-                c2_hw_decode_obj = null;
-            }
+        // 真正抛异常的地方，返回错误码代替
+        try {
+            XposedHelpers.findAndHookMethod("android.media.ImageReader", lpparam.classLoader, "acquireNextSurfaceImage", int.class, image_acquire_hook("acquireNextSurfaceImage", -1));
+        } catch (Exception e) {
+            VLog.w("Could not hook acquireNextSurfaceImage: {}", e.getMessage());
+        }
+    }
 
-            c2_hw_decode_obj = new VideoToFrames();
-            try {
-                if (imageReaderFormat == 256) {
-                    c2_hw_decode_obj.setSaveFrames("null", OutputImageFormat.JPEG);
-                } else {
-                    c2_hw_decode_obj.setSaveFrames("null", OutputImageFormat.NV21);
+    private static XC_MethodHook image_acquire_hook(String method, final Object fallback) {
+        final ImageAcquireGuard guard = new ImageAcquireGuard(method);
+        return new XC_MethodHook() {
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) {
+                if (guard.swallow(param.getThrowable())) {
+                    // setResult 同时清掉异常；之前再调 setThrowable(null) 会把结果也清成 null
+                    param.setResult(fallback);
                 }
-                c2_hw_decode_obj.set_surfcae(c2_reader_Surfcae);
-                c2_hw_decode_obj.decode(getEffectiveVideoPath());
-            } catch (Throwable throwable) {
-                XposedBridge.log("【VCAM】" + throwable);
             }
-        }
+        };
+    }
 
-        if (c2_reader_Surfcae_1 != null) {
-            if (c2_hw_decode_obj_1 != null) {
-                c2_hw_decode_obj_1.stopDecode();
-                c2_hw_decode_obj_1 = null;
-            }
+    private void process_camera2_play() {
+        c2_jpeg_stage = null;
 
-            c2_hw_decode_obj_1 = new VideoToFrames();
-            try {
-                if (imageReaderFormat == 256) {
-                    c2_hw_decode_obj_1.setSaveFrames("null", OutputImageFormat.JPEG);
-                } else {
-                    c2_hw_decode_obj_1.setSaveFrames("null", OutputImageFormat.NV21);
-                }
-                c2_hw_decode_obj_1.set_surfcae(c2_reader_Surfcae_1);
-                c2_hw_decode_obj_1.decode(getEffectiveVideoPath());
-            } catch (Throwable throwable) {
-                XposedBridge.log("【VCAM】" + throwable);
-            }
+        if (c2_hw_decode_obj != null) {
+            c2_hw_decode_obj.stopDecode();
+            c2_hw_decode_obj = null;
+        }
+        if (c2_hw_decode_obj_1 != null) {
+            c2_hw_decode_obj_1.stopDecode();
+            c2_hw_decode_obj_1 = null;
         }
 
+        if (!process_camera2_fanout()) {
+            process_camera2_reader_decoders();
+        }
 
         if (c2_preview_Surfcae != null) {
             if (c2_player != null) {
@@ -866,7 +919,7 @@ public class HookMain implements IXposedHookLoadPackage {
                 c2_player.setDataSource(getEffectiveVideoPath());
                 c2_player.prepare();
             } catch (Exception e) {
-                XposedBridge.log("【VCAM】[c2player][" + c2_preview_Surfcae.toString() + "]" + e);
+                VLog.w("[c2player][{}]{}", c2_preview_Surfcae, e);
             }
         }
 
@@ -893,10 +946,237 @@ public class HookMain implements IXposedHookLoadPackage {
                 c2_player_1.setDataSource(getEffectiveVideoPath());
                 c2_player_1.prepare();
             } catch (Exception e) {
-                XposedBridge.log("【VCAM】[c2player1]" + "[ " + c2_preview_Surfcae_1.toString() + "]" + e);
+                VLog.w("[c2player1][ {}]{}", c2_preview_Surfcae_1, e);
+            }
+        }
+        VLog.i("Camera2处理过程完全执行");
+    }
+
+    // 每个渲染器一个解码器直接渲染到其 Surface，用于无法走 ImageWriter 分发的情况
+    private void process_camera2_reader_decoders() {
+        if (c2_reader_Surfcae != null) {
+            c2_hw_decode_obj = new VideoToFrames();
+            c2_hw_decode_obj.setLoopDelay(getEffectiveLoopDelay());
+            c2_hw_decode_obj.setEngine(getEffectiveDecoderEngine());
+            c2_hw_decode_obj.setTargetFps(getEffectiveTargetFps(c2_requested_fps));
+            try {
+                if (imageReaderFormat == 256) {
+                    c2_hw_decode_obj.setSaveFrames("null", OutputImageFormat.JPEG);
+                } else {
+                    c2_hw_decode_obj.setSaveFrames("null", OutputImageFormat.NV21);
+                }
+                c2_hw_decode_obj.set_surfcae(c2_reader_Surfcae);
+                c2_hw_decode_obj.decode(getReaderVideoPath(c2_reader_Surfcae));
+            } catch (Throwable throwable) {
+                VLog.w("[decoder]第一个渲染器的解码器启动失败：{}", throwable);
+            }
+        }
+
+        if (c2_reader_Surfcae_1 != null) {
+
+            c2_hw_decode_obj_1 = new VideoToFrames();
+            c2_hw_decode_obj_1.setLoopDelay(getEffectiveLoopDelay());
+            c2_hw_decode_obj_1.setEngine(getEffectiveDecoderEngine());
+            c2_hw_decode_obj_1.setTargetFps(getEffectiveTargetFps(c2_requested_fps));
+            try {
+                if (imageReaderFormat == 256) {
+                    c2_hw_decode_obj_1.setSaveFrames("null", OutputImageFormat.JPEG);
+                } else {
+                    c2_hw_decode_obj_1.setSaveFrames("null", OutputImageFormat.NV21);
+                }
+                c2_hw_decode_obj_1.set_surfcae(c2_reader_Surfcae_1);
+                c2_hw_decode_obj_1.decode(getReaderVideoPath(c2_reader_Surfcae_1));
+            } catch (Throwable throwable) {
+                VLog.w("[decoder]第二个渲染器的解码器启动失败：{}", throwable);
+            }
+        }
+    }
+
+    /**
+     * 一个解码器 + 分发器喂给所有 YUV 渲染器，每种尺寸/格式只转换一次；JPEG 渲染器交给
+     * JpegStage，只在拍照请求到来时编码当前帧。
+     * 系统低于 6.0 或 ImageWriter 创建失败时返回 false，退回每个渲染器一个解码器。
+     */
+    private boolean process_camera2_fanout() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return false;
+        }
+        Surface[] reader_surfaces = {c2_reader_Surfcae, c2_reader_Surfcae_1};
+        int decode_width = 0;
+        int decode_height = 0;
+        FrameDistributor distributor = new FrameDistributor(FrameBufferPool.getInstance(), FrameDistributor.SCALING_CONVERTER);
+        JpegStage stage = new JpegStage(FrameBufferPool.getInstance(), JpegStage.YUV_IMAGE_ENCODER);
+        for (Surface surface : reader_surfaces) {
+            if (surface == null) {
+                continue;
+            }
+            ImageReader reader = imageReaderSurfaces.get(surface);
+            int width = reader != null ? reader.getWidth() : c2_ori_width;
+            int height = reader != null ? reader.getHeight() : c2_ori_height;
+            int format = reader != null ? reader.getImageFormat() : imageReaderFormat;
+            if (format == ImageFormat.JPEG) {
+                JpegStage.ImageWriterOutput output = JpegStage.ImageWriterOutput.create(surface, width, height);
+                if (output == null) {
+                    distributor.close();
+                    stage.close();
+                    return false;
+                }
+                stage.addOutput(surface, output);
+            } else {
+                ImageWriterSink sink = ImageWriterSink.create(surface, width, height);
+                if (sink == null) {
+                    distributor.close();
+                    stage.close();
+                    return false;
+                }
+                distributor.addSink(sink);
+            }
+            if ((long) width * height > (long) decode_width * decode_height) {
+                decode_width = width;
+                decode_height = height;
+            }
+        }
+        if (distributor.getSinkCount() == 0 && stage.getOutputCount() == 0) {
+            distributor.close();
+            stage.close();
+            return false;
+        }
+        c2_hw_decode_obj = new VideoToFrames();
+        c2_hw_decode_obj.setLoopDelay(getEffectiveLoopDelay());
+        c2_hw_decode_obj.setEngine(getEffectiveDecoderEngine());
+        try {
+            c2_hw_decode_obj.setSaveFrames("null", OutputImageFormat.NV21);
+            int source_format = ImageFormat.YUV_420_888;
+            if (distributor.getSinkCount() > 0) {
+                c2_hw_decode_obj.setTargetFps(getEffectiveTargetFps(c2_requested_fps));
+                c2_hw_decode_obj.setFrameDistributor(distributor);
+            } else {
+                distributor.close();
+                c2_hw_decode_obj.setTargetFps(STILL_ONLY_FPS);
+                source_format = ImageFormat.JPEG;
+            }
+            apply_camera2_orientation(c2_hw_decode_obj);
+            if (stage.getOutputCount() > 0) {
+                c2_hw_decode_obj.setStillStage(stage);
+                c2_jpeg_stage = stage;
+            } else {
+                stage.close();
+            }
+            // 按最大的渲染器选片源，小的由分发器缩
+            c2_hw_decode_obj.decode(getEffectiveVideoPath(decode_width, decode_height, source_format));
+        } catch (Throwable throwable) {
+            VLog.w("[fanout]分发解码器启动失败：{}", throwable);
+        }
+        VLog.i("[fanout]单解码器分发到 {} 个渲染器，{} 个 JPEG 渲染器", distributor.getSinkCount(), stage.getOutputCount());
+        return true;
+    }
+
+    // 模块界面把配置写在共享的 DCIM/Camera1 下；handleLoadPackage 时应用还没有 Context，
+    // 所以等第一次开相机（prepare_camera_state）时再读
+    static void load_config(String dir) {
+        hook_settings.load(dir);
+    }
+
+    static boolean is_auto_orientation_enabled() {
+        return hook_settings.isAutoOrientationEnabled();
+    }
+
+    private static void apply_camera1_orientation(VideoToFrames decoder, Camera camera) {
+        Integer id = c1_camera_ids.get(camera);
+        if (!is_auto_orientation_enabled() || id == null) {
+            return;
+        }
+        try {
+            Camera.CameraInfo info = new Camera.CameraInfo();
+            Camera.getCameraInfo(id, info);
+            decoder.setCameraOrientation(info.orientation, info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT);
+        } catch (Exception e) {
+            VLog.w("[orientation]读取 Camera1 方向失败：{}", e);
+        }
+    }
+
+    private static void apply_camera2_orientation(VideoToFrames decoder) {
+        if (!is_auto_orientation_enabled() || c2_camera_manager == null || c2_camera_id == null) {
+            return;
+        }
+        try {
+            CameraCharacteristics characteristics = c2_camera_manager.getCameraCharacteristics(c2_camera_id);
+            Integer sensor_orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            decoder.setCameraOrientation(sensor_orientation != null ? sensor_orientation : 0,
+                    facing != null && facing == CameraMetadata.LENS_FACING_FRONT);
+        } catch (Exception e) {
+            VLog.w("[orientation]读取 Camera2 方向失败：{}", e);
+        }
+    }
+
+    private static void track_builder_target(CaptureRequest.Builder builder, Surface surface, boolean add) {
+        java.util.Set<Surface> targets = c2_builder_targets.get(builder);
+        if (targets == null) {
+            if (!add) {
+                return;
+            }
+            targets = java.util.Collections.synchronizedSet(new java.util.HashSet<Surface>());
+            c2_builder_targets.put(builder, targets);
+        }
+        if (add) {
+            targets.add(surface);
+        } else {
+            targets.remove(surface);
+        }
+    }
+
+    /**
+     * 应用 capture/captureBurst 时，请求里原本指向 JPEG 渲染器的目标由 JpegStage 编码当前帧写入。
+     * 会话实现类因系统而异，找不到就只记日志，JPEG 渲染器照旧收不到图。
+     */
+    private static void hook_camera2_still_capture(ClassLoader classLoader) {
+        XC_MethodHook capture_hook = new XC_MethodHook() {
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) {
+                if (param.getThrowable() != null || param.args.length == 0) {
+                    return;
+                }
+                if (param.args[0] instanceof CaptureRequest) {
+                    dispatch_still_capture((CaptureRequest) param.args[0]);
+                } else if (param.args[0] instanceof List) {
+                    for (Object request : (List<?>) param.args[0]) {
+                        if (request instanceof CaptureRequest) {
+                            dispatch_still_capture((CaptureRequest) request);
+                        }
+                    }
+                }
+            }
+        };
+        try {
+            Class<?> session_class = XposedHelpers.findClass("android.hardware.camera2.impl.CameraCaptureSessionImpl", classLoader);
+            XposedBridge.hookAllMethods(session_class, "capture", capture_hook);
+            XposedBridge.hookAllMethods(session_class, "captureBurst", capture_hook);
+            XposedBridge.hookAllMethods(session_class, "captureSingleRequest", capture_hook);
+            XposedBridge.hookAllMethods(session_class, "captureBurstRequests", capture_hook);
+        } catch (Throwable t) {
+            VLog.w("[jpeg]无法挂钩拍照请求：{}", t);
+        }
+    }
+
+    private static void dispatch_still_capture(CaptureRequest request) {
+        JpegStage stage = c2_jpeg_stage;
+        java.util.Set<Surface> targets = c2_request_targets.get(request);
+        if (stage == null || targets == null) {
+            return;
+        }
+        int quality = JpegStage.DEFAULT_QUALITY;
+        try {
+            Byte requested = request.get(CaptureRequest.JPEG_QUALITY);
+            if (requested != null && requested > 0) {
+                quality = requested;
+            }
+        } catch (Exception ignored) {}
+        for (Surface surface : targets) {
+            if (stage.capture(surface, quality, System.nanoTime()) != null) {
+                VLog.d("[jpeg]拍照请求，质量 {}", quality);
             }
         }
-        XposedBridge.log("【VCAM】Camera2处理过程完全执行");
     }
 
     private Surface create_virtual_surface() {
@@ -918,7 +1198,7 @@ public class HookMain implements IXposedHookLoadPackage {
                 c2_virtual_surface = create_virtual_surface();
             }
         }
-        XposedBridge.log("【VCAM】【重建垃圾场】" + c2_virtual_surface.toString());
+        VLog.i("【重建垃圾场】{}", c2_virtual_surface);
         return c2_virtual_surface;
     }
 
@@ -960,17 +1240,15 @@ public class HookMain implements IXposedHookLoadPackage {
                 c2_reader_Surfcae = null;
                 c2_preview_Surfcae = null;
                 is_first_hook_build = true;
-                XposedBridge.log("【VCAM】打开相机C2");
+                VLog.i("打开相机C2");
 
-                File file = new File(video_path + "virtual.mp4");
-                File toast_control = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "no_toast.jpg");
-                need_to_show_toast = !toast_control.exists();
-                if (!file.exists()) {
+                need_to_show_toast = !ControlState.current().noToast;
+                if (!ControlState.current().videoExists) {
                     if (toast_content != null && need_to_show_toast) {
                         try {
                             Toast.makeText(toast_content, "不存在替换视频\n" + toast_content.getPackageName() + "当前路径：" + video_path, Toast.LENGTH_SHORT).show();
                         } catch (Exception ee) {
-                            XposedBridge.log("【VCAM】[toast]" + ee.toString());
+                            VLog.w("[toast]onOpened 无视频提示失败：{}", ee);
                         }
                     }
                     return;
@@ -983,7 +1261,7 @@ public class HookMain implements IXposedHookLoadPackage {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam paramd) throws Throwable {
                         if (paramd.args[0] != null) {
-                            XposedBridge.log("【VCAM】createCaptureSession创捷捕获，原始:" + paramd.args[0].toString() + "虚拟：" + c2_virtual_surface.toString());
+                            VLog.i("createCaptureSession创捷捕获，原始:{}虚拟：{}", paramd.args[0], c2_virtual_surface);
                             paramd.args[0] = Arrays.asList(c2_virtual_surface);
                             if (paramd.args[1] != null) {
                                 process_camera2Session_callback((CameraCaptureSession.StateCallback) paramd.args[1]);
@@ -995,7 +1273,7 @@ public class HookMain implements IXposedHookLoadPackage {
 /*                XposedHelpers.findAndHookMethod(param.args[0].getClass(), "close", new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam paramd) throws Throwable {
-                        XposedBridge.log("C2终止预览");
+                        VLog.i("C2终止预览");
                         if (c2_hw_decode_obj != null) {
                             c2_hw_decode_obj.stopDecode();
                             c2_hw_decode_obj = null;
@@ -1030,7 +1308,7 @@ public class HookMain implements IXposedHookLoadPackage {
                                 outputConfiguration = new OutputConfiguration(c2_virtual_surface);
                                 param.args[0] = Arrays.asList(outputConfiguration);
 
-                                XposedBridge.log("【VCAM】执行了createCaptureSessionByOutputConfigurations-144777");
+                                VLog.i("执行了createCaptureSessionByOutputConfigurations-144777");
                                 if (param.args[1] != null) {
                                     process_camera2Session_callback((CameraCaptureSession.StateCallback) param.args[1]);
                                 }
@@ -1046,7 +1324,7 @@ public class HookMain implements IXposedHookLoadPackage {
                             super.beforeHookedMethod(param);
                             if (param.args[0] != null) {
                                 param.args[0] = Arrays.asList(c2_virtual_surface);
-                                XposedBridge.log("【VCAM】执行了 createConstrainedHighSpeedCaptureSession -5484987");
+                                VLog.i("执行了 createConstrainedHighSpeedCaptureSession -5484987");
                                 if (param.args[1] != null) {
                                     process_camera2Session_callback((CameraCaptureSession.StateCallback) param.args[1]);
                                 }
@@ -1062,7 +1340,7 @@ public class HookMain implements IXposedHookLoadPackage {
                             super.beforeHookedMethod(param);
                             if (param.args[1] != null) {
                                 param.args[1] = Arrays.asList(c2_virtual_surface);
-                                XposedBridge.log("【VCAM】执行了 createReprocessableCaptureSession ");
+                                VLog.i("执行了 createReprocessableCaptureSession ");
                                 if (param.args[2] != null) {
                                     process_camera2Session_callback((CameraCaptureSession.StateCallback) param.args[2]);
                                 }
@@ -1080,7 +1358,7 @@ public class HookMain implements IXposedHookLoadPackage {
                             if (param.args[1] != null) {
                                 outputConfiguration = new OutputConfiguration(c2_virtual_surface);
                                 param.args[1] = Arrays.asList(outputConfiguration);
-                                XposedBridge.log("【VCAM】执行了 createReprocessableCaptureSessionByConfigurations");
+                                VLog.i("执行了 createReprocessableCaptureSessionByConfigurations");
                                 if (param.args[2] != null) {
                                     process_camera2Session_callback((CameraCaptureSession.StateCallback) param.args[2]);
                                 }
@@ -1095,7 +1373,7 @@ public class HookMain implements IXposedHookLoadPackage {
                         protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
                             super.beforeHookedMethod(param);
                             if (param.args[0] != null) {
-                                XposedBridge.log("【VCAM】执行了 createCaptureSession -5484987");
+                                VLog.i("执行了 createCaptureSession -5484987");
                                 sessionConfiguration = (SessionConfiguration) param.args[0];
                                 outputConfiguration = new OutputConfiguration(c2_virtual_surface);
                                 fake_sessionConfiguration = new SessionConfiguration(sessionConfiguration.getSessionType(),
@@ -1115,7 +1393,7 @@ public class HookMain implements IXposedHookLoadPackage {
         XposedHelpers.findAndHookMethod(hooked_class, "onError", CameraDevice.class, int.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                XposedBridge.log("【VCAM】相机错误onerror：" + (int) param.args[1]);
+                VLog.w("相机错误onerror：{}", param.args[1]);
             }
 
         });
@@ -1124,7 +1402,7 @@ public class HookMain implements IXposedHookLoadPackage {
         XposedHelpers.findAndHookMethod(hooked_class, "onDisconnected", CameraDevice.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                XposedBridge.log("【VCAM】相机断开onDisconnected ：");
+                VLog.w("相机断开onDisconnected ：");
             }
 
         });
@@ -1134,9 +1412,9 @@ public class HookMain implements IXposedHookLoadPackage {
 
     private void process_a_shot_jpeg(XC_MethodHook.MethodHookParam param, int index) {
         try {
-            XposedBridge.log("【VCAM】第二个jpeg:" + param.args[index].toString());
+            VLog.i("第二个jpeg:{}", param.args[index]);
         } catch (Exception eee) {
-            XposedBridge.log("【VCAM】" + eee);
+            VLog.w("[jpeg]记录 JPEG 拍照参数失败：{}", eee);
 
         }
         Class callback = param.args[index].getClass();
@@ -1148,31 +1426,29 @@ public class HookMain implements IXposedHookLoadPackage {
                     Camera loaclcam = (Camera) paramd.args[1];
                     onemwidth = loaclcam.getParameters().getPreviewSize().width;
                     onemhight = loaclcam.getParameters().getPreviewSize().height;
-                    XposedBridge.log("【VCAM】JPEG拍照回调初始化：宽：" + onemwidth + "高：" + onemhight + "对应的类：" + loaclcam.toString());
-                    File toast_control = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "no_toast.jpg");
-                    need_to_show_toast = !toast_control.exists();
+                    VLog.i("JPEG拍照回调初始化：宽：{}高：{}对应的类：{}", onemwidth, onemhight, loaclcam);
+                    need_to_show_toast = !ControlState.current().noToast;
                     if (toast_content != null && need_to_show_toast) {
                         try {
                             Toast.makeText(toast_content, "发现拍照\n宽：" + onemwidth + "\n高：" + onemhight + "\n格式：JPEG", Toast.LENGTH_SHORT).show();
                         } catch (Exception e) {
-                            XposedBridge.log("【VCAM】[toast]" + e.toString());
+                            VLog.w("[toast]JPEG 拍照提示失败：{}", e);
                         }
                     }
-                    File control_file = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "disable.jpg");
-                    if (control_file.exists()) {
+                    if (ControlState.current().disabled) {
                         return;
                     }
 
-                    Bitmap pict = getBMP(video_path + "1000.bmp");
-                    if (pict != null) {
-                        ByteArrayOutputStream temp_array = new ByteArrayOutputStream();
-                        pict.compress(Bitmap.CompressFormat.JPEG, 100, temp_array);
-                        byte[] jpeg_data = temp_array.toByteArray();
+                    Camera.Parameters picture_params = loaclcam.getParameters();
+                    Camera.Size picture_size = picture_params.getPictureSize();
+                    byte[] jpeg_data = capture_cache.get(capture_asset_file(), picture_size.width, picture_size.height,
+                            CaptureAssetCache.FORMAT_JPEG);
+                    if (jpeg_data != null) {
+                        apply_picture_rotation(jpeg_data, picture_params);
                         paramd.args[0] = jpeg_data;
-                        pict.recycle();
                     }
                 } catch (Exception ee) {
-                    XposedBridge.log("【VCAM】" + ee.toString());
+                    VLog.w("[jpeg]替换拍照 JPEG 失败：{}", ee);
                 }
             }
         });
@@ -1180,10 +1456,11 @@ public class HookMain implements IXposedHookLoadPackage {
 
     private void process_a_shot_YUV(XC_MethodHook.MethodHookParam param) {
         try {
-            XposedBridge.log("【VCAM】发现拍照YUV:" + param.args[1].toString());
+            VLog.i("发现拍照YUV:{}", param.args[1]);
         } catch (Exception eee) {
-            XposedBridge.log("【VCAM】" + eee);
+            VLog.w("[yuv-shot]记录 YUV 拍照参数失败：{}", eee);
         }
+        yuv_picture_requested = true;
         Class callback = param.args[1].getClass();
         XposedHelpers.findAndHookMethod(callback, "onPictureTaken", byte[].class, android.hardware.Camera.class, new XC_MethodHook() {
             @Override
@@ -1192,27 +1469,27 @@ public class HookMain implements IXposedHookLoadPackage {
                     Camera loaclcam = (Camera) paramd.args[1];
                     onemwidth = loaclcam.getParameters().getPreviewSize().width;
                     onemhight = loaclcam.getParameters().getPreviewSize().height;
-                    XposedBridge.log("【VCAM】YUV拍照回调初始化：宽：" + onemwidth + "高：" + onemhight + "对应的类：" + loaclcam.toString());
-                    File toast_control = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "no_toast.jpg");
-                    need_to_show_toast = !toast_control.exists();
+                    VLog.i("YUV拍照回调初始化：宽：{}高：{}对应的类：{}", onemwidth, onemhight, loaclcam);
+                    need_to_show_toast = !ControlState.current().noToast;
                     if (toast_content != null && need_to_show_toast) {
                         try {
                             Toast.makeText(toast_content, "发现拍照\n宽：" + onemwidth + "\n高：" + onemhight + "\n格式：YUV_420_888", Toast.LENGTH_SHORT).show();
                         } catch (Exception ee) {
-                            XposedBridge.log("【VCAM】[toast]" + ee.toString());
+                            VLog.w("[toast]YUV 拍照提示失败：{}", ee);
                         }
                     }
-                    File control_file = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "disable.jpg");
-                    if (control_file.exists()) {
+                    if (ControlState.current().disabled) {
                         return;
                     }
-                    Bitmap bmp = getBMP(video_path + "1000.bmp");
-                    if (bmp != null) {
-                        input = getYUVByBitmap(bmp);
+                    Camera.Size picture_size = loaclcam.getParameters().getPictureSize();
+                    byte[] yuv_data = capture_cache.get(capture_asset_file(), picture_size.width, picture_size.height,
+                            CaptureAssetCache.FORMAT_NV21);
+                    if (yuv_data != null) {
+                        input = yuv_data;
                         paramd.args[0] = input;
                     }
                 } catch (Exception ee) {
-                    XposedBridge.log("【VCAM】" + ee.toString());
+                    VLog.w("[yuv-shot]替换拍照 YUV 失败：{}", ee);
                 }
             }
         });
@@ -1224,19 +1501,16 @@ public class HookMain implements IXposedHookLoadPackage {
             return;
         }
         int need_stop = 0;
-        File control_file = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "disable.jpg");
-        if (control_file.exists()) {
+        if (ControlState.current().disabled) {
             need_stop = 1;
         }
-        File file = new File(video_path + "virtual.mp4");
-        File toast_control = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "no_toast.jpg");
-        need_to_show_toast = !toast_control.exists();
-        if (!file.exists()) {
+        need_to_show_toast = !ControlState.current().noToast;
+        if (!ControlState.current().videoExists) {
             if (toast_content != null && need_to_show_toast) {
                 try {
                     Toast.makeText(toast_content, "不存在替换视频\n" + toast_content.getPackageName() + "当前路径：" + video_path, Toast.LENGTH_SHORT).show();
                 } catch (Exception ee) {
-                    XposedBridge.log("【VCAM】[toast]" + ee);
+                    VLog.w("[toast]预览回调无视频提示失败：{}", ee);
                 }
             }
             need_stop = 1;
@@ -1245,41 +1519,65 @@ public class HookMain implements IXposedHookLoadPackage {
         XposedHelpers.findAndHookMethod(preview_cb_class, "onPreviewFrame", byte[].class, android.hardware.Camera.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam paramd) throws Throwable {
+                long start_ns = System.nanoTime();
+                try {
+                    on_preview_frame(paramd);
+                } finally {
+                    on_preview_frame_hook.record(start_ns);
+                }
+            }
+
+            private void on_preview_frame(MethodHookParam paramd) throws Throwable {
                 Camera localcam = (android.hardware.Camera) paramd.args[1];
-                if (localcam.equals(camera_onPreviewFrame)) {
-                    byte[] buf = data_buffer.get();
-                    if (buf != null && buf.length > 0) {
-                        System.arraycopy(buf, 0, paramd.args[0], 0, Math.min(buf.length, ((byte[]) paramd.args[0]).length));
-                    }
+                byte[] camera_buffer = (byte[]) paramd.args[0];
+                byte[] app_buffer = swap_in_app_buffer(localcam, camera_buffer);
+                if (app_buffer == null) {
+                    // 应用没有排队的缓冲，真相机也会丢掉这一帧
+                    paramd.setResult(null);
+                    return;
+                }
+                paramd.args[0] = app_buffer;
+                // 同一台相机时只做引用比较就直接填帧，初始化只在第一帧走
+                if (localcam == camera_onPreviewFrame) {
+                    preview_delivery.onPreviewFrame(camera_buffer, app_buffer, ControlState.getInstance(), finalNeed_stop == 1);
                 } else {
                     camera_callback_calss = preview_cb_class;
                     camera_onPreviewFrame = (android.hardware.Camera) paramd.args[1];
                     mwidth = camera_onPreviewFrame.getParameters().getPreviewSize().width;
                     mhight = camera_onPreviewFrame.getParameters().getPreviewSize().height;
                     int frame_Rate = camera_onPreviewFrame.getParameters().getPreviewFrameRate();
-                    XposedBridge.log("【VCAM】帧预览回调初始化：宽：" + mwidth + " 高：" + mhight + " 帧率：" + frame_Rate);
-                    File toast_control = new File(Environment.getExternalStorageDirectory().getPath() + "/DCIM/Camera1/" + "no_toast.jpg");
-                    need_to_show_toast = !toast_control.exists();
+                    VLog.i("帧预览回调初始化：宽：{} 高：{} 帧率：{}", mwidth, mhight, frame_Rate);
+                    preview_delivery.setPreviewSize(mwidth, mhight);
+                    need_to_show_toast = !ControlState.current().noToast;
                     if (toast_content != null && need_to_show_toast) {
                         try {
                             Toast.makeText(toast_content, "发现预览\n宽：" + mwidth + "\n高：" + mhight + "\n" + "需要视频分辨率与其完全相同", Toast.LENGTH_SHORT).show();
                         } catch (Exception ee) {
-                            XposedBridge.log("【VCAM】[toast]" + ee.toString());
+                            VLog.w("[toast]预览尺寸提示失败：{}", ee);
                         }
                     }
                     if (finalNeed_stop == 1) {
+                        preview_delivery.deliver(camera_buffer, app_buffer, false);
                         return;
                     }
                     if (hw_decode_obj != null) {
                         hw_decode_obj.stopDecode();
+                        hw_decode_obj = null;
                     }
-                    hw_decode_obj = new VideoToFrames();
-                    hw_decode_obj.setSaveFrames("", OutputImageFormat.NV21);
-                    hw_decode_obj.decode(getEffectiveVideoPath());
-                    byte[] buf = data_buffer.get();
-                    if (buf != null && buf.length > 0) {
-                        System.arraycopy(buf, 0, paramd.args[0], 0, Math.min(buf.length, ((byte[]) paramd.args[0]).length));
+                    String videoPath = getEffectiveVideoPath(mwidth, mhight, ImageFormat.NV21);
+                    open_raw_frame_store(videoPath);
+                    preview_delivery.setRawFrames(raw_frame_store, getEffectiveLoopDelay() * 1000);
+                    if (raw_frame_store == null) {
+                        hw_decode_obj = new VideoToFrames();
+                        hw_decode_obj.setLoopDelay(getEffectiveLoopDelay());
+                        hw_decode_obj.setEngine(getEffectiveDecoderEngine());
+                        hw_decode_obj.setTargetFps(getEffectiveTargetFps(frame_Rate));
+                        hw_decode_obj.setSaveFrames("", OutputImageFormat.NV21);
+                        hw_decode_obj.setFrameCache(getEffectiveFrameCacheBudget(), toast_content != null ? toast_content.getCacheDir() : null);
+                        apply_camera1_orientation(hw_decode_obj, camera_onPreviewFrame);
+                        hw_decode_obj.decode(videoPath);
                     }
+                    preview_delivery.deliver(camera_buffer, app_buffer, true);
                 }
 
             }
@@ -1287,6 +1585,51 @@ public class HookMain implements IXposedHookLoadPackage {
 
     }
 
+    private static CallbackBufferQueue callback_buffers_for(Camera camera) {
+        synchronized (c1_callback_buffers) {
+            CallbackBufferQueue queue = c1_callback_buffers.get(camera);
+            if (queue == null) {
+                queue = new CallbackBufferQueue();
+                c1_callback_buffers.put(camera, queue);
+            }
+            return queue;
+        }
+    }
+
+    private static void clear_callback_buffers(Camera camera) {
+        CallbackBufferQueue queue = c1_callback_buffers.get(camera);
+        if (queue != null) {
+            queue.clear();
+        }
+    }
+
+    private static byte[] swap_in_app_buffer(Camera camera, byte[] camera_buffer) {
+        return PreviewFrameDelivery.takeAppBuffer(c1_callback_buffers.get(camera), camera_buffer);
+    }
+
+    private static void open_raw_frame_store(String videoPath) {
+        if (raw_frame_store != null) {
+            preview_delivery.setRawFrames(null, 0);
+            try {
+                raw_frame_store.close();
+            } catch (IOException e) {
+                VLog.w("[vcraw]关闭预转换帧失败：{}", e);
+            }
+            raw_frame_store = null;
+        }
+        File raw_file = new File(RawFrameStore.pathFor(videoPath));
+        if (!raw_file.exists()) {
+            return;
+        }
+        try {
+            raw_frame_store = RawFrameStore.open(raw_file);
+            VLog.i("[vcraw]使用预转换帧：{} {}x{} 帧数：{}",
+                    raw_file.getName(), raw_frame_store.getWidth(), raw_frame_store.getHeight(), raw_frame_store.getFrameCount());
+        } catch (IOException e) {
+            VLog.w("[vcraw]打开预转换帧失败：{}", e);
+        }
+    }
+
     private void process_camera2Session_callback(CameraCaptureSession.StateCallback callback_calss){
         if (callback_calss == null){
             return;
@@ -1297,7 +1640,7 @@ public class HookMain implements IXposedHookLoadPackage {
         XposedHelpers.findAndHookMethod(callback_calss.getClass(), "onConfigureFailed", CameraCaptureSession.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                XposedBridge.log("【VCAM】onConfigureFailed ：" + param.args[0].toString());
+                VLog.w("onConfigureFailed ：{}", param.args[0]);
             }
 
         });
@@ -1305,121 +1648,107 @@ public class HookMain implements IXposedHookLoadPackage {
         XposedHelpers.findAndHookMethod(callback_calss.getClass(), "onConfigured", CameraCaptureSession.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                XposedBridge.log("【VCAM】onConfigured ：" + param.args[0].toString());
+                VLog.d("onConfigured ：{}", param.args[0]);
             }
         });
 
         XposedHelpers.findAndHookMethod( callback_calss.getClass(), "onClosed", CameraCaptureSession.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                XposedBridge.log("【VCAM】onClosed ："+ param.args[0].toString());
+                VLog.d("onClosed ：{}", param.args[0]);
             }
         });
     }
 
-    private String getEffectiveVideoPath() {
-        String basePath = video_path;
-        
-        if (configManager != null && currentPackageName != null) {
-            if (configManager.hasPerAppVideo(currentPackageName)) {
-                String perAppVideo = configManager.getPerAppVideo(currentPackageName);
-                if (perAppVideo != null && !perAppVideo.isEmpty()) {
-                    return perAppVideo;
-                }
-            }
-            
-            int videoIndex = configManager.getVideoIndex();
-            String[] videos = configManager.getAvailableVideos();
-            if (videos != null && videos.length > 0 && videoIndex < videos.length) {
-                return basePath + videos[videoIndex];
-            }
+    /**
+     * 按流的尺寸和格式从同名变体（如 virtual_1280x720.mp4）里挑最省事的一个，没有合适的就用
+     * {@link #getEffectiveVideoPath()} 的结果。
+     */
+    private String getEffectiveVideoPath(int width, int height, int format) {
+        String path = getEffectiveVideoPath();
+        File file = new File(path);
+        if (file.getParentFile() == null) {
+            return path;
         }
-        
-        return basePath + "virtual.mp4";
+        VideoLibrary library = VideoLibrary.forDirectory(file.getParent());
+        SourceSelector.Match match = source_selector.select(library, file.getName(), currentPackageName, width, height, format);
+        return match != null ? new File(file.getParentFile(), match.entry.name).getPath() : path;
     }
 
-    private int getEffectiveFpsOverride() {
-        if (configManager != null) {
-            return configManager.getFpsOverride();
+    private String getReaderVideoPath(Surface surface) {
+        ImageReader reader = imageReaderSurfaces.get(surface);
+        if (reader == null) {
+            return getEffectiveVideoPath(c2_ori_width, c2_ori_height, imageReaderFormat);
         }
-        return 0;
+        return getEffectiveVideoPath(reader.getWidth(), reader.getHeight(), reader.getImageFormat());
+    }
+
+    private String getEffectiveVideoPath() {
+        return hook_settings.getVideoPath(video_path, currentPackageName);
+    }
+
+    private double getEffectiveTargetFps(int requestedFps) {
+        return hook_settings.getTargetFps(requestedFps);
+    }
+
+    private int getEffectiveDecoderEngine() {
+        return hook_settings.getDecoderEngine();
+    }
+
+    static long getEffectiveLoopDelay() {
+        return hook_settings.getLoopDelayMs();
+    }
+
+    private long getEffectiveFrameCacheBudget() {
+        return hook_settings.getFrameCacheBudgetBytes();
     }
 
     private float getEffectiveVolume() {
-        if (configManager != null) {
-            if (configManager.isMuted()) {
-                return 0f;
-            }
-            return configManager.getAudioVolume();
-        }
-        return 1f;
+        return hook_settings.getVolume();
     }
 
     private boolean shouldShowFpsOverlay() {
-        if (configManager != null) {
-            return configManager.isShowFpsEnabled();
-        }
-        return false;
+        return hook_settings.isShowFpsEnabled();
     }
 
     private boolean shouldShowInfoOverlay() {
-        if (configManager != null) {
-            return configManager.isShowInfoOverlay();
-        }
-        return false;
-    }
-
-    public static void updateFrameCount() {
-        long now = System.currentTimeMillis();
-        frameCounter.incrementAndGet();
-        
-        if (now - lastFpsUpdate >= 1000) {
-            currentFps = frameCounter.getAndSet(0);
-            lastFpsUpdate = now;
-        }
+        return hook_settings.isShowInfoOverlay();
     }
 
-    //以下代码来源：https://blog.csdn.net/jacke121/article/details/73888732
-    private Bitmap getBMP(String file) throws Throwable {
-        return BitmapFactory.decodeFile(file);
+    private static File capture_asset_file() {
+        return new File(video_path + "1000.bmp");
     }
 
-    private static byte[] rgb2YCbCr420(int[] pixels, int width, int height) {
-        int len = width * height;
-        // yuv格式数组大小，y亮度占len长度，u,v各占len/4长度。
-        byte[] yuv = new byte[len * 3 / 2];
-        int y, u, v;
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
-                int rgb = (pixels[i * width + j]) & 0x00FFFFFF;
-                int r = rgb & 0xFF;
-                int g = (rgb >> 8) & 0xFF;
-                int b = (rgb >> 16) & 0xFF;
-                // 套用公式
-                y = ((66 * r + 129 * g + 25 * b + 128) >> 8) + 16;
-                u = ((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128;
-                v = ((112 * r - 94 * g - 18 * b + 128) >> 8) + 128;
-                y = y < 16 ? 16 : (Math.min(y, 255));
-                u = u < 0 ? 0 : (Math.min(u, 255));
-                v = v < 0 ? 0 : (Math.min(v, 255));
-                // 赋值
-                yuv[i * width + j] = (byte) y;
-                yuv[len + (i >> 1) * width + (j & ~1)] = (byte) u;
-                yuv[len + +(i >> 1) * width + (j & ~1) + 1] = (byte) v;
+    // 可选：把应用 setRotation 设的角度写进原图自带的 EXIF 方向，不重新编码
+    private static void apply_picture_rotation(byte[] jpeg, Camera.Parameters params) {
+        if (!hook_settings.isJpegExifRotationEnabled()) {
+            return;
+        }
+        String rotation = params.get("rotation");
+        if (rotation == null) {
+            return;
+        }
+        try {
+            int orientation = JpegInfo.orientationForRotation(Integer.parseInt(rotation.trim()));
+            if (!JpegInfo.setOrientation(jpeg, orientation)) {
+                VLog.w("[capture-cache]1000.bmp 没有 EXIF 方向，无法写入旋转 {}", rotation);
             }
+        } catch (NumberFormatException e) {
+            VLog.d("[capture-cache]rotation={}", rotation);
         }
-        return yuv;
     }
 
-    private static byte[] getYUVByBitmap(Bitmap bitmap) {
-        if (bitmap == null) {
-            return null;
+    // 相机一开始预览就在后台把拍照要用的数据准备好
+    private static void prefetch_capture_assets(Camera camera) {
+        try {
+            Camera.Size size = camera.getParameters().getPictureSize();
+            File file = capture_asset_file();
+            capture_cache.prefetch(file, size.width, size.height, CaptureAssetCache.FORMAT_JPEG);
+            if (yuv_picture_requested) {
+                capture_cache.prefetch(file, size.width, size.height, CaptureAssetCache.FORMAT_NV21);
+            }
+        } catch (Exception e) {
+            VLog.w("[capture-cache]{}", e);
         }
-        int width = bitmap.getWidth();
-        int height = bitmap.getHeight();
-        int size = width * height;
-        int[] pixels = new int[size];
-        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
-        return rgb2YCbCr420(pixels, width, height);
     }
 }
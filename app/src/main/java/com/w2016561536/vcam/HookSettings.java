@@ -0,0 +1,121 @@
+package com.w2016561536.vcam;
+
+/**
+ * The settings the hooks apply, read from the shared {@link ConfigManager} once the hooked app
+ * is far enough along to read external storage.
+ * <p>
+ * Until {@link #load} has run every getter returns the built-in default, so a hook that fires
+ * early behaves as it did before the config existed. Kept free of Xposed types so the effective
+ * values can be checked on a plain JVM.
+ */
+public final class HookSettings {
+    private volatile ConfigManager config;
+
+    /**
+     * Reads the config in {@code dir} the first time it is called; later calls keep the config
+     * already loaded. Returns it either way.
+     */
+    public ConfigManager load(String dir) {
+        ConfigManager loaded = config;
+        if (loaded == null) {
+            synchronized (this) {
+                loaded = config;
+                if (loaded == null) {
+                    loaded = ConfigManager.getInstance(dir);
+                    config = loaded;
+                    VLog.i("[config]已读取 {}", loaded.getConfigDir());
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /** The loaded config, or null before {@link #load}. */
+    public ConfigManager getConfig() {
+        return config;
+    }
+
+    /**
+     * The per-app video if one is set, otherwise the selected library entry in {@code basePath},
+     * otherwise {@code basePath/virtual.mp4}.
+     */
+    public String getVideoPath(String basePath, String packageName) {
+        ConfigManager c = config;
+        if (c != null && packageName != null) {
+            if (c.hasPerAppVideo(packageName)) {
+                String perAppVideo = c.getPerAppVideo(packageName);
+                if (perAppVideo != null && !perAppVideo.isEmpty()) {
+                    return perAppVideo;
+                }
+            }
+            VideoLibrary.Entry video = c.getVideoLibrary().get(c.getVideoIndex());
+            if (video != null) {
+                return basePath + video.name;
+            }
+        }
+        return basePath + "virtual.mp4";
+    }
+
+    public int getFpsOverride() {
+        ConfigManager c = config;
+        return c != null ? c.getFpsOverride() : 0;
+    }
+
+    /** {@code fps_override} if set, otherwise the frame rate the app asked for. */
+    public double getTargetFps(int requestedFps) {
+        int override = getFpsOverride();
+        if (override > 0) {
+            return override;
+        }
+        return Math.max(requestedFps, 0);
+    }
+
+    public int getDecoderEngine() {
+        ConfigManager c = config;
+        return c != null && c.isAsyncDecoderEnabled() ? VideoToFrames.ENGINE_ASYNC : VideoToFrames.ENGINE_POLLING;
+    }
+
+    public long getLoopDelayMs() {
+        ConfigManager c = config;
+        return c != null ? Math.max(0, c.getLoopDelay()) : 0;
+    }
+
+    public long getFrameCacheBudgetBytes() {
+        ConfigManager c = config;
+        return c != null ? c.getFrameCacheBudgetMb() * 1024L * 1024L : 0;
+    }
+
+    public float getVolume() {
+        ConfigManager c = config;
+        if (c == null) {
+            return 1f;
+        }
+        return c.isMuted() ? 0f : c.getAudioVolume();
+    }
+
+    public boolean isShowFpsEnabled() {
+        ConfigManager c = config;
+        return c != null && c.isShowFpsEnabled();
+    }
+
+    public boolean isShowInfoOverlay() {
+        ConfigManager c = config;
+        return c != null && c.isShowInfoOverlay();
+    }
+
+    public boolean isAutoOrientationEnabled() {
+        ConfigManager c = config;
+        return c != null && c.isAutoOrientationEnabled();
+    }
+
+    public boolean isJpegExifRotationEnabled() {
+        ConfigManager c = config;
+        return c != null && c.isJpegExifRotationEnabled();
+    }
+
+    /** On unless the config turns it off. */
+    public boolean isBufferAwareCallbacksEnabled() {
+        ConfigManager c = config;
+        return c == null || c.isBufferAwareCallbacksEnabled();
+    }
+}
@@ -0,0 +1,74 @@
+package com.w2016561536.vcam;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A group of hooks installed exactly once, the first time the app reaches one of its sentinels
+ * (e.g. the first {@code openCamera}) instead of in {@code handleLoadPackage}. Most processes in
+ * scope never open a camera, so they never pay for these.
+ * <p>
+ * The first caller installs the group on its own thread; a caller on another thread arriving
+ * meanwhile waits for it, so no thread goes on to use the camera before the hooks are in.
+ * Later calls are one volatile read. A group that fails halfway is not retried.
+ */
+public final class HookStage {
+    private static final List<HookStage> registered = new CopyOnWriteArrayList<>();
+
+    private final String name;
+    private final Runnable installer;
+    private volatile boolean installed;
+    private volatile long installNs;
+    private volatile String trigger;
+
+    public HookStage(String name, Runnable installer) {
+        this.name = name;
+        this.installer = installer;
+        registered.add(this);
+    }
+
+    static List<HookStage> getRegistered() {
+        return registered;
+    }
+
+    /** Installs the group unless that already happened. Returns true if this call installed it. */
+    public boolean ensureInstalled(String trigger) {
+        if (installed) {
+            return false;
+        }
+        synchronized (this) {
+            if (installed) {
+                return false;
+            }
+            long start = System.nanoTime();
+            try {
+                installer.run();
+            } catch (Throwable t) {
+                VLog.w("[hooks]{} 安装失败", name, t);
+            }
+            installNs = System.nanoTime() - start;
+            this.trigger = trigger;
+            installed = true;
+        }
+        VLog.i("[hooks]{} 由 {} 触发安装，用时 {} us", name, trigger, installNs / 1000);
+        return true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isInstalled() {
+        return installed;
+    }
+
+    /** Time the installation took, 0 until it happened. */
+    public long getInstallNs() {
+        return installNs;
+    }
+
+    /** What caused the installation, null until it happened. */
+    public String getTrigger() {
+        return trigger;
+    }
+}
@@ -0,0 +1,43 @@
+package com.w2016561536.vcam;
+
+/**
+ * Body of the after-hooks on the {@code ImageReader.acquire*} methods: when the decoder feeds a
+ * reader a format it was not created with, ImageReader throws "format ... doesn't match"; the
+ * hook swallows that and returns a fallback instead, so the app sees no image rather than a
+ * crash.
+ * <p>
+ * These run for every frame the app takes, so the common path (nothing thrown) is one null
+ * check: no file access, no allocation and no string building.
+ */
+public final class ImageAcquireGuard {
+    private final String method;
+    private final HookCounter counter;
+
+    public ImageAcquireGuard(String method) {
+        this.method = method;
+        this.counter = HookCounter.register("ImageReader." + method);
+    }
+
+    /** True if {@code t} (null if nothing was thrown) should be replaced by the hook's fallback result. */
+    public boolean swallow(Throwable t) {
+        long start_ns = System.nanoTime();
+        boolean mismatch = t != null && isFormatMismatch(t);
+        if (mismatch) {
+            VLog.w("Caught ImageReader format mismatch in {}: {}", method, t.getMessage());
+        }
+        counter.record(start_ns);
+        return mismatch;
+    }
+
+    static boolean isFormatMismatch(Throwable t) {
+        if (!(t instanceof UnsupportedOperationException)) {
+            return false;
+        }
+        String message = t.getMessage();
+        return message != null && message.contains("doesn't match");
+    }
+
+    HookCounter getCounter() {
+        return counter;
+    }
+}
@@ -0,0 +1,87 @@
+package com.w2016561536.vcam;
+
+import android.annotation.TargetApi;
+import android.media.Image;
+import android.media.ImageWriter;
+import android.os.Build;
+import android.view.Surface;
+
+/**
+ * {@link FrameDistributor.Sink} that feeds an app's ImageReader surface through an ImageWriter,
+ * so several reader surfaces can share one decoder.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class ImageWriterSink implements FrameDistributor.Sink {
+    private static final int MAX_IMAGES = 2;
+
+    private final ImageWriter writer;
+    private final int width;
+    private final int height;
+    private final byte[] scratch;
+    private int chromaLayout = Yuv420Converter.LAYOUT_UNKNOWN;
+
+    private ImageWriterSink(ImageWriter writer, int width, int height) {
+        this.writer = writer;
+        this.width = width;
+        this.height = height;
+        this.scratch = new byte[width];
+    }
+
+    /**
+     * Returns null if the surface cannot take CPU-written frames (e.g. it is not a YUV consumer).
+     */
+    public static ImageWriterSink create(Surface surface, int width, int height) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M || surface == null || width <= 0 || height <= 0) {
+            return null;
+        }
+        try {
+            return new ImageWriterSink(ImageWriter.newInstance(surface, MAX_IMAGES), width, height);
+        } catch (Exception e) {
+            VLog.w("[fanout]ImageWriter 创建失败：{}", e);
+            return null;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getFormat() {
+        return YuvFormat.NV21;
+    }
+
+    @Override
+    public void deliver(byte[] frame, long presentationTimeUs) {
+        Image image = writer.dequeueInputImage();
+        try {
+            Image.Plane[] planes = image.getPlanes();
+            if (chromaLayout == Yuv420Converter.LAYOUT_UNKNOWN) {
+                chromaLayout = Yuv420Converter.detectChromaLayout(planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getPixelStride());
+            }
+            Yuv420Converter.fromNv21(frame, width, height,
+                    planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                    chromaLayout, scratch);
+            image.setTimestamp(presentationTimeUs * 1000);
+            writer.queueInputImage(image);
+        } catch (RuntimeException e) {
+            image.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            writer.close();
+        } catch (Exception ignored) {
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.w2016561536.vcam;
+
+/**
+ * Header facts of a JPEG byte stream, read by walking its markers up to the first scan.
+ * <p>
+ * Only what still capture needs: the frame size from the SOFn segment and, if the APP1 Exif
+ * block has one, where the IFD0 orientation value sits, so it can be rewritten in place
+ * without re-encoding or restructuring the file.
+ */
+public final class JpegInfo {
+    /** Exif orientation values for 0, 90, 180 and 270 degrees clockwise. */
+    public static final int ORIENTATION_NORMAL = 1;
+    public static final int ORIENTATION_ROTATE_90 = 6;
+    public static final int ORIENTATION_ROTATE_180 = 3;
+    public static final int ORIENTATION_ROTATE_270 = 8;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TYPE_SHORT = 3;
+
+    public final int width;
+    public final int height;
+    /** Exif orientation, 0 if there is none. */
+    public final int orientation;
+    /** Offset of the 2-byte orientation value in the stream, -1 if there is none. */
+    final int orientationOffset;
+    final boolean littleEndian;
+
+    private JpegInfo(int width, int height, int orientation, int orientationOffset, boolean littleEndian) {
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+        this.orientationOffset = orientationOffset;
+        this.littleEndian = littleEndian;
+    }
+
+    /** True if {@code data} starts with a JPEG SOI followed by a marker. */
+    public static boolean isJpeg(byte[] data, int length) {
+        return length >= 4 && (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8 && (data[2] & 0xff) == 0xff;
+    }
+
+    /** Parses the header of {@code data[0, length)}; null if it is not a JPEG or has no frame header. */
+    public static JpegInfo parse(byte[] data, int length) {
+        if (!isJpeg(data, length)) {
+            return null;
+        }
+        int orientation = 0;
+        int orientationOffset = -1;
+        boolean littleEndian = false;
+        int pos = 2;
+        while (pos + 4 <= length) {
+            if ((data[pos] & 0xff) != 0xff) {
+                return null;
+            }
+            int marker = data[pos + 1] & 0xff;
+            if (marker == 0xff) {
+                // 填充字节
+                pos++;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                pos += 2;
+                continue;
+            }
+            if (marker == 0xd9 || marker == 0xda) {
+                return null;
+            }
+            int segment = u16(data, pos + 2, false);
+            int body = pos + 4;
+            int end = pos + 2 + segment;
+            if (segment < 2 || end > length) {
+                return null;
+            }
+            if (marker == 0xe1 && orientationOffset < 0 && isExif(data, body, end)) {
+                int tiff = body + 6;
+                littleEndian = data[tiff] == 'I';
+                orientationOffset = findOrientation(data, tiff, end, littleEndian);
+                if (orientationOffset >= 0) {
+                    orientation = u16(data, orientationOffset, littleEndian);
+                }
+            }
+            // SOF0..SOF15，除去 DHT(C4)、JPG(C8)、DAC(CC)
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                if (body + 5 > end) {
+                    return null;
+                }
+                int height = u16(data, body + 1, false);
+                int width = u16(data, body + 3, false);
+                return new JpegInfo(width, height, orientation, orientationOffset, littleEndian);
+            }
+            pos = end;
+        }
+        return null;
+    }
+
+    /**
+     * Sets the Exif orientation of {@code jpeg} in place. Returns false, leaving the data as
+     * it is, if the stream carries no orientation tag to rewrite.
+     */
+    public static boolean setOrientation(byte[] jpeg, int orientation) {
+        JpegInfo info = parse(jpeg, jpeg.length);
+        if (info == null || info.orientationOffset < 0) {
+            return false;
+        }
+        int p = info.orientationOffset;
+        if (info.littleEndian) {
+            jpeg[p] = (byte) orientation;
+            jpeg[p + 1] = 0;
+        } else {
+            jpeg[p] = 0;
+            jpeg[p + 1] = (byte) orientation;
+        }
+        return true;
+    }
+
+    /** Exif orientation for a clockwise rotation as passed to {@code Camera.Parameters.setRotation}. */
+    public static int orientationForRotation(int degrees) {
+        switch (((degrees % 360) + 360) % 360) {
+            case 90:
+                return ORIENTATION_ROTATE_90;
+            case 180:
+                return ORIENTATION_ROTATE_180;
+            case 270:
+                return ORIENTATION_ROTATE_270;
+            default:
+                return ORIENTATION_NORMAL;
+        }
+    }
+
+    private static boolean isExif(byte[] data, int body, int end) {
+        return end - body >= 14 && data[body] == 'E' && data[body + 1] == 'x' && data[body + 2] == 'i'
+                && data[body + 3] == 'f' && data[body + 4] == 0 && data[body + 5] == 0
+                && data[body + 6] == data[body + 7] && (data[body + 6] == 'I' || data[body + 6] == 'M');
+    }
+
+    private static int findOrientation(byte[] data, int tiff, int end, boolean littleEndian) {
+        long ifd = u32(data, tiff + 4, littleEndian);
+        if (ifd < 8 || tiff + ifd + 2 > end) {
+            return -1;
+        }
+        int entries = tiff + (int) ifd;
+        int count = u16(data, entries, littleEndian);
+        for (int i = 0; i < count; i++) {
+            int entry = entries + 2 + i * 12;
+            if (entry + 12 > end) {
+                return -1;
+            }
+            if (u16(data, entry, littleEndian) == TAG_ORIENTATION
+                    && u16(data, entry + 2, littleEndian) == TYPE_SHORT
+                    && u32(data, entry + 4, littleEndian) == 1) {
+                // 单个 SHORT 直接放在值字段的前两个字节
+                return entry + 8;
+            }
+        }
+        return -1;
+    }
+
+    private static int u16(byte[] data, int pos, boolean littleEndian) {
+        int a = data[pos] & 0xff;
+        int b = data[pos + 1] & 0xff;
+        return littleEndian ? a | (b << 8) : (a << 8) | b;
+    }
+
+    private static long u32(byte[] data, int pos, boolean littleEndian) {
+        long hi = u16(data, littleEndian ? pos + 2 : pos, littleEndian);
+        long lo = u16(data, littleEndian ? pos : pos + 2, littleEndian);
+        return (hi << 16) | lo;
+    }
+}
@@ -0,0 +1,309 @@
+package com.w2016561536.vcam;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+import android.media.ImageWriter;
+import android.os.Build;
+import android.view.Surface;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Still capture for JPEG ImageReaders (format 256) fed by a decoder.
+ * <p>
+ * The decoder hands over each NV21 frame it would otherwise recycle ({@link #offer}); the stage
+ * only keeps a reference to the newest one, so preview frames cost no copy and no encode. When a
+ * capture request targets one of the registered readers ({@link #capture}), the current frame is
+ * scaled to that reader's size, encoded and written to it on the stage's own thread. The last
+ * encode is kept per (frame, size, quality), so repeated captures of the same frame cost nothing.
+ */
+public class JpegStage {
+    public static final int DEFAULT_QUALITY = 95;
+
+    /** Compresses an NV21 frame. */
+    public interface Encoder {
+        byte[] encode(byte[] nv21, int width, int height, int quality);
+    }
+
+    /** Where the JPEG of one reader goes. */
+    public interface Output {
+        int getWidth();
+
+        int getHeight();
+
+        void write(byte[] jpeg, long timestampNs) throws Exception;
+
+        void close();
+    }
+
+    public static final Encoder YUV_IMAGE_ENCODER = new Encoder() {
+        @Override
+        public byte[] encode(byte[] nv21, int width, int height, int quality) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(width * height / 4);
+            new YuvImage(nv21, ImageFormat.NV21, width, height, null)
+                    .compressToJpeg(new Rect(0, 0, width, height), quality, out);
+            return out.toByteArray();
+        }
+    };
+
+    private final FrameBufferPool pool;
+    private final Encoder encoder;
+    private final ConcurrentHashMap<Object, Output> outputs = new ConcurrentHashMap<>();
+    private final ExecutorService worker;
+
+    // 以下由 this 保护
+    private byte[] latest;
+    private int latestWidth;
+    private int latestHeight;
+    private long latestSeq;
+    private byte[] borrowed;
+    private boolean borrowedRetired;
+    private long cachedSeq = -1;
+    private int cachedWidth;
+    private int cachedHeight;
+    private int cachedQuality;
+    private byte[] cachedJpeg;
+    private int encodes;
+    private boolean closed;
+
+    public JpegStage(FrameBufferPool pool, Encoder encoder) {
+        this.pool = pool;
+        this.encoder = encoder;
+        worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "vcam-jpeg");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** Registers the reader behind {@code key} (its Surface). */
+    public void addOutput(Object key, Output output) {
+        Output old = outputs.put(key, output);
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    public boolean hasOutput(Object key) {
+        return outputs.containsKey(key);
+    }
+
+    public int getOutputCount() {
+        return outputs.size();
+    }
+
+    /**
+     * Takes ownership of a pooled NV21 frame; the one it replaces goes back to the pool unless a
+     * capture is still encoding it.
+     */
+    public void offer(byte[] nv21, int width, int height) {
+        byte[] old;
+        synchronized (this) {
+            if (closed) {
+                old = nv21;
+            } else {
+                old = latest;
+                latest = nv21;
+                latestWidth = width;
+                latestHeight = height;
+                latestSeq++;
+                if (old != null && old == borrowed) {
+                    borrowedRetired = true;
+                    old = null;
+                }
+            }
+        }
+        if (old != null) {
+            pool.release(old);
+        }
+    }
+
+    /**
+     * Encodes the current frame for the reader behind {@code key} and writes it there, off the
+     * caller's thread. Returns null if {@code key} is not a registered reader.
+     */
+    public Future<?> capture(final Object key, final int quality, final long timestampNs) {
+        final Output output = outputs.get(key);
+        if (output == null) {
+            return null;
+        }
+        return worker.submit(new Runnable() {
+            @Override
+            public void run() {
+                byte[] jpeg = encodeCurrent(output.getWidth(), output.getHeight(), quality);
+                if (jpeg == null) {
+                    VLog.w("[jpeg-stage]拍照时还没有解码出的帧");
+                    return;
+                }
+                try {
+                    output.write(jpeg, timestampNs);
+                } catch (Exception e) {
+                    VLog.w("[jpeg-stage]写出拍照结果失败：{}", e);
+                }
+            }
+        });
+    }
+
+    /** JPEG of the current frame at {@code width} x {@code height}; null before the first frame. */
+    byte[] encodeCurrent(int width, int height, int quality) {
+        byte[] frame;
+        int frameWidth;
+        int frameHeight;
+        long seq;
+        synchronized (this) {
+            if (latest == null) {
+                return null;
+            }
+            if (cachedJpeg != null && cachedSeq == latestSeq && cachedWidth == width && cachedHeight == height
+                    && cachedQuality == quality) {
+                return cachedJpeg;
+            }
+            frame = latest;
+            frameWidth = latestWidth;
+            frameHeight = latestHeight;
+            seq = latestSeq;
+            borrowed = frame;
+        }
+        byte[] jpeg;
+        byte[] scaled = null;
+        try {
+            byte[] source = frame;
+            if (frameWidth != width || frameHeight != height) {
+                scaled = pool.acquire(YuvFormat.frameSize(width, height));
+                YuvScaler.scale(frame, YuvFormat.NV21, frameWidth, frameHeight, scaled, YuvFormat.NV21, width, height,
+                        YuvScaler.pickMode(frameWidth, frameHeight, width, height));
+                source = scaled;
+            }
+            jpeg = encoder.encode(source, width, height, quality);
+        } finally {
+            if (scaled != null) {
+                pool.release(scaled);
+            }
+            boolean release;
+            synchronized (this) {
+                borrowed = null;
+                release = borrowedRetired || closed;
+                borrowedRetired = false;
+            }
+            if (release) {
+                pool.release(frame);
+            }
+        }
+        synchronized (this) {
+            encodes++;
+            cachedSeq = seq;
+            cachedWidth = width;
+            cachedHeight = height;
+            cachedQuality = quality;
+            cachedJpeg = jpeg;
+        }
+        return jpeg;
+    }
+
+    synchronized int getEncodeCount() {
+        return encodes;
+    }
+
+    /** Drops the frame and closes every output. Captures already queued still run and find no frame. */
+    public void close() {
+        byte[] frame;
+        synchronized (this) {
+            closed = true;
+            frame = latest == borrowed ? null : latest;
+            latest = null;
+            cachedJpeg = null;
+        }
+        if (frame != null) {
+            pool.release(frame);
+        }
+        worker.shutdown();
+        for (Output output : outputs.values()) {
+            output.close();
+        }
+        outputs.clear();
+    }
+
+    /**
+     * Writes JPEGs into a JPEG ImageReader's surface through an ImageWriter, ending each buffer
+     * with the camera3_jpeg_blob trailer the reader uses to find the JPEG size.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    public static final class ImageWriterOutput implements Output {
+        // struct camera3_jpeg_blob { uint16 jpeg_blob_id = 0x00FF; uint32 jpeg_size; }，按 4 字节对齐共 8 字节
+        private static final int BLOB_TRAILER_SIZE = 8;
+        private static final short BLOB_ID = 0x00FF;
+
+        private final ImageWriter writer;
+        private final int width;
+        private final int height;
+
+        private ImageWriterOutput(ImageWriter writer, int width, int height) {
+            this.writer = writer;
+            this.width = width;
+            this.height = height;
+        }
+
+        /** Null below 6.0 or if the surface does not accept an ImageWriter. */
+        public static ImageWriterOutput create(Surface surface, int width, int height) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M || surface == null || width <= 0 || height <= 0) {
+                return null;
+            }
+            try {
+                return new ImageWriterOutput(ImageWriter.newInstance(surface, 1), width, height);
+            } catch (Exception e) {
+                VLog.w("[jpeg-stage]无法为 JPEG 渲染器创建 ImageWriter：{}", e);
+                return null;
+            }
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void write(byte[] jpeg, long timestampNs) {
+            Image image = writer.dequeueInputImage();
+            try {
+                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                int capacity = buffer.capacity();
+                if (jpeg.length + BLOB_TRAILER_SIZE > capacity) {
+                    throw new IllegalStateException("JPEG of " + jpeg.length + " bytes exceeds buffer of " + capacity);
+                }
+                buffer.clear();
+                buffer.put(jpeg);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putShort(capacity - BLOB_TRAILER_SIZE, BLOB_ID);
+                buffer.putInt(capacity - BLOB_TRAILER_SIZE + 4, jpeg.length);
+                image.setTimestamp(timestampNs);
+                writer.queueInputImage(image);
+            } catch (RuntimeException e) {
+                image.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            writer.close();
+        }
+    }
+}
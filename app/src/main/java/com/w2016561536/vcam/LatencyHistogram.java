@@ -0,0 +1,126 @@
+package com.w2016561536.vcam;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed log-scale histogram of durations in nanoseconds, safe to record into from any number
+ * of threads without locks or allocation.
+ * <p>
+ * Each power of two is split into {@code 1 << SUB_BITS} linear sub-buckets, so a bucket is at
+ * most 25% wide and percentiles read from it are within that of the true value. Values below
+ * 1 us share the first bucket and values above ~2^40 ns (about 18 minutes) the last.
+ */
+public final class LatencyHistogram {
+    static final int SUB_BITS = 2;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MIN_SHIFT = 10;
+    private static final int MAX_SHIFT = 40;
+    static final int BUCKETS = (MAX_SHIFT - MIN_SHIFT + 1) * SUB + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNs = new AtomicLong();
+    private final AtomicLong maxNs = new AtomicLong();
+
+    public void record(long ns) {
+        if (ns < 0) {
+            ns = 0;
+        }
+        counts.incrementAndGet(bucketOf(ns));
+        count.incrementAndGet();
+        sumNs.addAndGet(ns);
+        long max = maxNs.get();
+        while (ns > max && !maxNs.compareAndSet(max, ns)) {
+            max = maxNs.get();
+        }
+    }
+
+    /** Index of the bucket holding {@code ns}. */
+    static int bucketOf(long ns) {
+        if (ns < (1L << MIN_SHIFT)) {
+            return 0;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(ns);
+        if (msb > MAX_SHIFT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (ns >>> (msb - SUB_BITS)) & (SUB - 1);
+        return 1 + (msb - MIN_SHIFT) * SUB + sub;
+    }
+
+    /** Largest value that falls into {@code bucket}. */
+    static long upperBound(int bucket) {
+        if (bucket == 0) {
+            return (1L << MIN_SHIFT) - 1;
+        }
+        if (bucket >= BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        int msb = (bucket - 1) / SUB + MIN_SHIFT;
+        int sub = (bucket - 1) % SUB;
+        long width = 1L << (msb - SUB_BITS);
+        return (1L << msb) + (sub + 1) * width - 1;
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sumNs.get(), maxNs.get());
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sumNs.set(0);
+        maxNs.set(0);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /** A copy taken at one moment; counts recorded while it was taken may be partly included. */
+    public static final class Snapshot {
+        private final long[] counts;
+        public final long count;
+        public final long sumNs;
+        public final long maxNs;
+
+        Snapshot(long[] counts, long count, long sumNs, long maxNs) {
+            this.counts = counts;
+            this.count = count;
+            this.sumNs = sumNs;
+            this.maxNs = maxNs;
+        }
+
+        public long getMeanNs() {
+            return count == 0 ? 0 : sumNs / count;
+        }
+
+        /** Upper bound of the bucket holding the {@code p}-th percentile (0..100), 0 if empty. */
+        public long getPercentileNs(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, p)) / 100);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), maxNs);
+                }
+            }
+            return maxNs;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.w2016561536.vcam;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps presentation timestamps increasing while a clip loops.
+ * <p>
+ * Samples of the first pass are passed through {@link #onInputSample} to learn the clip length.
+ * When the input runs out, {@link #wrap()} moves the timeline on by one clip length plus the
+ * configured loop delay, so the next pass can be fed to the same codec instance without a
+ * timestamp reset. Output frames go through {@link #onOutputFrame} / {@link #onPresented}, which
+ * spot the first frame of each new loop and measure the loop-boundary latency: how much later
+ * than its timestamp asked for that frame was shown after the last frame of the previous loop.
+ * <p>
+ * The input side ({@link #onInputSample}, {@link #wrap()}) and the output side
+ * ({@link #onOutputFrame}, {@link #onPresented}) may each be driven by its own thread, as the
+ * callback decode engine does; each side must stay on one thread.
+ */
+public class LoopTimeline {
+    static final long DEFAULT_FRAME_INTERVAL_US = 33_333;
+
+    private final long loopDelayUs;
+
+    private boolean firstPass = true;
+    private long firstSampleUs = Long.MAX_VALUE;
+    private long lastSampleUs = Long.MIN_VALUE;
+    private int sampleCount;
+    private long offsetUs;
+    private final ConcurrentLinkedQueue<Long> pendingLoopStarts = new ConcurrentLinkedQueue<>();
+
+    private boolean boundaryPending;
+    private long lastPresentedPtsUs = Long.MIN_VALUE;
+    private long lastPresentedWallNs;
+
+    private volatile long loopCount;
+    private volatile long lastBoundaryLatencyUs;
+    private volatile long maxBoundaryLatencyUs;
+
+    public LoopTimeline(long loopDelayMs) {
+        this.loopDelayUs = Math.max(0, loopDelayMs) * 1000;
+    }
+
+    /**
+     * Returns the timestamp to queue for a sample read from the clip at {@code samplePtsUs}.
+     */
+    public long onInputSample(long samplePtsUs) {
+        if (firstPass) {
+            firstSampleUs = Math.min(firstSampleUs, samplePtsUs);
+            lastSampleUs = Math.max(lastSampleUs, samplePtsUs);
+            sampleCount++;
+        }
+        return samplePtsUs + offsetUs;
+    }
+
+    /**
+     * Length of one pass, including the display time of the last frame. Samples may arrive in
+     * decode order, so the frame interval is averaged over the whole pass.
+     */
+    public long getLoopDurationUs() {
+        if (sampleCount == 0) {
+            return DEFAULT_FRAME_INTERVAL_US;
+        }
+        long span = lastSampleUs - firstSampleUs;
+        long interval = sampleCount > 1 ? Math.max(span / (sampleCount - 1), 1) : DEFAULT_FRAME_INTERVAL_US;
+        return span + interval;
+    }
+
+    /**
+     * Called when the input has reached the end of the clip. Returns the new offset that
+     * {@link #onInputSample} adds from now on.
+     */
+    public long wrap() {
+        offsetUs += getLoopDurationUs() + loopDelayUs;
+        firstPass = false;
+        pendingLoopStarts.add(offsetUs + (sampleCount == 0 ? 0 : firstSampleUs));
+        return offsetUs;
+    }
+
+    public long getOffsetUs() {
+        return offsetUs;
+    }
+
+    public long getLoopDelayUs() {
+        return loopDelayUs;
+    }
+
+    /**
+     * Returns true if the frame with timestamp {@code ptsUs} is the first one of a new loop.
+     */
+    public boolean onOutputFrame(long ptsUs) {
+        boolean boundary = false;
+        while (!pendingLoopStarts.isEmpty() && ptsUs >= pendingLoopStarts.peek()) {
+            pendingLoopStarts.poll();
+            boundary = true;
+        }
+        if (boundary) {
+            boundaryPending = true;
+        }
+        return boundary;
+    }
+
+    /**
+     * Records that the frame with timestamp {@code ptsUs} was shown at {@code wallNs} (monotonic clock).
+     */
+    public void onPresented(long ptsUs, long wallNs) {
+        if (boundaryPending) {
+            boundaryPending = false;
+            loopCount++;
+            if (lastPresentedPtsUs != Long.MIN_VALUE) {
+                long latencyUs = (wallNs - lastPresentedWallNs) / 1000 - (ptsUs - lastPresentedPtsUs);
+                lastBoundaryLatencyUs = latencyUs;
+                if (latencyUs > maxBoundaryLatencyUs) {
+                    maxBoundaryLatencyUs = latencyUs;
+                }
+            }
+        }
+        lastPresentedPtsUs = ptsUs;
+        lastPresentedWallNs = wallNs;
+    }
+
+    /** Number of loop boundaries crossed so far. */
+    public long getLoopCount() {
+        return loopCount;
+    }
+
+    /** Extra delay of the most recent loop boundary beyond the intended gap, in microseconds. */
+    public long getLastBoundaryLatencyUs() {
+        return lastBoundaryLatencyUs;
+    }
+
+    public long getMaxBoundaryLatencyUs() {
+        return maxBoundaryLatencyUs;
+    }
+}
@@ -23,6 +23,7 @@ import android.widget.Toast;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 public class MainActivity extends Activity {
 
@@ -34,6 +35,7 @@ public class MainActivity extends Activity {
     private Switch show_fps_switch;
     private Switch show_info_switch;
     private Switch mute_audio_switch;
+    private Switch async_decoder_switch;
     private Button btn_select_video;
     private TextView tv_current_video;
     private EditText et_fps_override;
@@ -71,6 +73,13 @@ public class MainActivity extends Activity {
         sync_statue_with_files();
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // 离开界面时不等防抖，立即把改动写盘
+        configManager.saveConfig();
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -85,7 +94,6 @@ public class MainActivity extends Activity {
     }
 
     private void initViews() {
-        Button repo_button = findViewById(R.id.button);
         force_show_switch = findViewById(R.id.switch1);
         disable_switch = findViewById(R.id.switch2);
         play_sound_switch = findViewById(R.id.switch3);
@@ -94,6 +102,7 @@ public class MainActivity extends Activity {
         show_fps_switch = findViewById(R.id.switch6);
         show_info_switch = findViewById(R.id.switch7);
         mute_audio_switch = findViewById(R.id.switch8);
+        async_decoder_switch = findViewById(R.id.switch9);
         btn_select_video = findViewById(R.id.btn_select_video);
         tv_current_video = findViewById(R.id.tv_current_video);
         et_fps_override = findViewById(R.id.et_fps_override);
@@ -103,6 +112,7 @@ public class MainActivity extends Activity {
     }
 
     private void setupListeners() {
+        Button repo_button = findViewById(R.id.button);
         repo_button.setOnClickListener(v -> {
             Uri uri = Uri.parse("https://github.com/w2016561536/android_virtual_cam");
             Intent intent = new Intent(Intent.ACTION_VIEW, uri);
@@ -179,6 +189,12 @@ public class MainActivity extends Activity {
                 configManager.setMuted(b);
             }
         });
+
+        async_decoder_switch.setOnCheckedChangeListener((compoundButton, b) -> {
+            if (compoundButton.isPressed()) {
+                configManager.setAsyncDecoderEnabled(b);
+            }
+        });
     }
 
     private void setupSwitchListener(Switch switchControl, String fileName) {
@@ -206,13 +222,20 @@ public class MainActivity extends Activity {
     }
 
     private void showVideoSelectionDialog() {
-        String[] videos = configManager.getAvailableVideos();
+        List<VideoLibrary.Entry> entries = configManager.getVideoLibrary().getEntries();
         
-        if (videos == null || videos.length == 0) {
+        if (entries.isEmpty()) {
             Toast.makeText(this, R.string.no_videos_found, Toast.LENGTH_SHORT).show();
             return;
         }
 
+        // 元数据来自索引，不在这里重新探测
+        String[] videos = new String[entries.size()];
+        for (int i = 0; i < videos.length; i++) {
+            VideoLibrary.Entry entry = entries.get(i);
+            videos[i] = entry.name + "  (" + entry.describe() + ")";
+        }
+
         int currentIndex = configManager.getVideoIndex();
         if (currentIndex >= videos.length) {
             currentIndex = 0;
@@ -230,11 +253,10 @@ public class MainActivity extends Activity {
     }
 
     private void updateVideoDisplay() {
-        String[] videos = configManager.getAvailableVideos();
-        int currentIndex = configManager.getVideoIndex();
+        VideoLibrary.Entry video = configManager.getVideoLibrary().get(configManager.getVideoIndex());
         
-        if (videos != null && videos.length > 0 && currentIndex < videos.length) {
-            tv_current_video.setText(getString(R.string.current_video, videos[currentIndex]));
+        if (video != null) {
+            tv_current_video.setText(getString(R.string.current_video, video.name));
         } else {
             tv_current_video.setText("Current: virtual.mp4");
         }
@@ -295,6 +317,7 @@ public class MainActivity extends Activity {
         show_fps_switch.setChecked(configManager.isShowFpsEnabled());
         show_info_switch.setChecked(configManager.isShowInfoOverlay());
         mute_audio_switch.setChecked(configManager.isMuted());
+        async_decoder_switch.setChecked(configManager.isAsyncDecoderEnabled());
 
         et_fps_override.setText(String.valueOf(configManager.getFpsOverride()));
         et_loop_delay.setText(String.valueOf(configManager.getLoopDelay()));
@@ -0,0 +1,139 @@
+package com.w2016561536.vcam;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where time goes between the video file and the app: one {@link LatencyHistogram} per pipeline
+ * stage plus frame counters, followed in the report by the {@link HookCounter}s of the per-frame
+ * hooks and how long each {@link HookStage} took to install. Recording is lock-free and allocation-free, so the decoder and the camera threads can
+ * call it on every frame; a text report is only built when asked for ({@link #dump}), e.g. when
+ * {@code dump_metrics.jpg} shows up in {@code DCIM/Camera1}.
+ */
+public final class PipelineMetrics {
+    /** MediaExtractor.readSampleData of one sample. */
+    public static final int EXTRACT = 0;
+    /** From queueing a sample to the codec until its output buffer is available. */
+    public static final int DECODE = 1;
+    /** Decoder output Image to NV21. */
+    public static final int CONVERT = 2;
+    /** Time a frame sat in the preview hand-off before a callback took it. */
+    public static final int HANDOFF = 3;
+    /** Writing a frame into the app's buffer or output surface. */
+    public static final int COPY = 4;
+    /** From reading the sample to the frame reaching the app. */
+    public static final int FRAME_AGE = 5;
+
+    private static final String[] STAGE_NAMES = {"extract", "decode", "convert", "handoff", "copy", "frame_age"};
+    private static final PipelineMetrics instance = new PipelineMetrics();
+
+    private final LatencyHistogram[] stages = new LatencyHistogram[STAGE_NAMES.length];
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong repeated = new AtomicLong();
+    private volatile long startNs = System.nanoTime();
+
+    PipelineMetrics() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    /** The process-wide recorder. */
+    public static PipelineMetrics get() {
+        return instance;
+    }
+
+    public void record(int stage, long ns) {
+        stages[stage].record(ns);
+    }
+
+    /** Records {@code System.nanoTime() - startNs} and returns the current time for chaining. */
+    public long recordSince(int stage, long startNs) {
+        long now = System.nanoTime();
+        stages[stage].record(now - startNs);
+        return now;
+    }
+
+    public LatencyHistogram getStage(int stage) {
+        return stages[stage];
+    }
+
+    public void onDelivered() {
+        delivered.incrementAndGet();
+    }
+
+    public void onDropped(long frames) {
+        dropped.addAndGet(frames);
+    }
+
+    public void onRepeated() {
+        repeated.incrementAndGet();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getRepeatedCount() {
+        return repeated.get();
+    }
+
+    public void reset() {
+        for (LatencyHistogram stage : stages) {
+            stage.reset();
+        }
+        delivered.set(0);
+        dropped.set(0);
+        repeated.set(0);
+        startNs = System.nanoTime();
+    }
+
+    /** Human-readable report, one line per stage, times in microseconds. */
+    public String report(String label) {
+        StringBuilder sb = new StringBuilder();
+        long elapsedMs = (System.nanoTime() - startNs) / 1000000;
+        long frames = delivered.get();
+        sb.append("# vcam pipeline metrics ").append(label).append('\n');
+        sb.append(String.format(Locale.US, "elapsed_ms %d delivered %d dropped %d repeated %d fps %.2f%n",
+                elapsedMs, frames, dropped.get(), repeated.get(), elapsedMs > 0 ? frames * 1000.0 / elapsedMs : 0));
+        BandExecutor bands = BandExecutor.peekShared();
+        sb.append("band_helpers_dropped ").append(bands != null ? bands.getDroppedHelperCount() : 0).append('\n');
+        sb.append("stage count mean_us p50_us p90_us p99_us max_us\n");
+        for (int i = 0; i < stages.length; i++) {
+            LatencyHistogram.Snapshot s = stages[i].snapshot();
+            sb.append(String.format(Locale.US, "%s %d %d %d %d %d %d%n", STAGE_NAMES[i], s.count,
+                    s.getMeanNs() / 1000, s.getPercentileNs(50) / 1000, s.getPercentileNs(90) / 1000,
+                    s.getPercentileNs(99) / 1000, s.maxNs / 1000));
+        }
+        sb.append("hook calls mean_ns total_us\n");
+        for (HookCounter hook : HookCounter.getRegistered()) {
+            sb.append(String.format(Locale.US, "%s %d %d %d%n", hook.getName(), hook.getInvocationCount(),
+                    hook.getMeanNs(), hook.getTotalNs() / 1000));
+        }
+        sb.append("install trigger install_us\n");
+        for (HookStage stage : HookStage.getRegistered()) {
+            sb.append(String.format(Locale.US, "%s %s %d%n", stage.getName(),
+                    stage.isInstalled() ? stage.getTrigger() : "-", stage.getInstallNs() / 1000));
+        }
+        return sb.toString();
+    }
+
+    /** Appends {@link #report} to {@code file}, so successive dumps of one session can be compared. */
+    public void dump(File file, String label) throws IOException {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file, true), Charset.forName("UTF-8"))) {
+            out.write(report(label));
+            out.write('\n');
+        }
+    }
+}
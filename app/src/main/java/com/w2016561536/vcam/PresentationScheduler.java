@@ -0,0 +1,230 @@
+package com.w2016561536.vcam;
+
+/**
+ * Paces decoded frames on the monotonic clock and converts the clip's frame rate to a target rate.
+ * <p>
+ * With a target rate the output runs on fixed ticks of {@code 1 / targetFps}. Each source frame
+ * covers the ticks that fall inside its display interval {@code [pts, pts + frame interval)}:
+ * none means it is dropped, more than one means it is shown again on the later ticks. Without a
+ * target rate every frame gets one slot at its own timestamp. Either way, slots that are already
+ * behind the clock are skipped instead of being slept through, and if playback falls more than
+ * {@link #MAX_LAG_NS} behind (a stall, a paused process) the schedule is re-anchored at the
+ * current frame rather than dropping everything in between.
+ * <p>
+ * Drop and duplicate counts are kept per second and in total. Only the decode thread should call
+ * {@link #schedule} / {@link #awaitSlot}; the counters can be read from anywhere.
+ */
+public class PresentationScheduler {
+    public interface Clock {
+        long nanoTime();
+
+        void sleepNanos(long nanos) throws InterruptedException;
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepNanos(long nanos) throws InterruptedException {
+            Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+        }
+    };
+
+    static final long MAX_LAG_NS = 500_000_000L;
+    private static final long SECOND_NS = 1_000_000_000L;
+
+    private final Clock clock;
+    private volatile long periodNs;
+
+    private boolean started;
+    private long anchorNs;
+    private long anchorPtsUs;
+    private long lastPtsUs;
+    private long intervalUs;
+    private boolean intervalMeasured;
+    private long nextTick;
+    private long firstSlot;
+    private int slotCount;
+    // 无目标帧率时唯一一个槽的时刻
+    private long slotNs;
+
+    private long windowStartNs;
+    private int windowPresented;
+    private int windowDropped;
+    private int windowDuplicated;
+    private volatile int presentedPerSecond;
+    private volatile int droppedPerSecond;
+    private volatile int duplicatedPerSecond;
+    private volatile long totalDropped;
+    private volatile long totalDuplicated;
+
+    public PresentationScheduler(Clock clock, double targetFps) {
+        this.clock = clock;
+        setTargetFps(targetFps);
+    }
+
+    /**
+     * Changes the output rate; 0 or less paces frames at their own timestamps.
+     */
+    public void setTargetFps(double targetFps) {
+        periodNs = targetFps > 0 ? Math.round(SECOND_NS / targetFps) : 0;
+        started = false;
+    }
+
+    public double getTargetFps() {
+        long period = periodNs;
+        return period > 0 ? (double) SECOND_NS / period : 0;
+    }
+
+    /**
+     * Plans the source frame with timestamp {@code ptsUs}. Returns the number of output slots it
+     * fills; 0 means the frame should be dropped. Call {@link #awaitSlot} for each slot in turn.
+     */
+    public int schedule(long ptsUs) {
+        long now = clock.nanoTime();
+        rollWindow(now);
+        updateInterval(ptsUs);
+        long period = periodNs;
+        if (!started || ptsUs < anchorPtsUs || now - mediaToWall(ptsUs) > MAX_LAG_NS) {
+            anchor(now, ptsUs);
+        }
+        lastPtsUs = ptsUs;
+
+        if (period <= 0) {
+            slotNs = mediaToWall(ptsUs);
+            long tolerance = intervalUs * 1000;
+            if (now > slotNs + tolerance) {
+                slotCount = 0;
+            } else {
+                slotCount = 1;
+            }
+        } else {
+            // 时间戳只精确到微秒，提前 1us 归属，避免刚好压在整点上的帧错过那个槽
+            long startOffset = (ptsUs - anchorPtsUs) * 1000 - 1000;
+            long endOffset = startOffset + intervalUs * 1000;
+            long first = Math.max(ceilDiv(startOffset, period), nextTick);
+            long end = Math.max(ceilDiv(endOffset, period), first);
+            nextTick = end;
+            // 已经过了的槽直接跳过，不再补
+            long lateTick = ceilDiv(now - anchorNs - period / 2, period);
+            if (lateTick > first) {
+                first = Math.min(lateTick, end);
+            }
+            firstSlot = first;
+            slotCount = (int) (end - first);
+        }
+
+        if (slotCount == 0) {
+            windowDropped++;
+            totalDropped++;
+        } else {
+            windowPresented += slotCount;
+            if (slotCount > 1) {
+                windowDuplicated += slotCount - 1;
+                totalDuplicated += slotCount - 1;
+            }
+        }
+        return slotCount;
+    }
+
+    /**
+     * Sleeps until slot {@code index} of the frame last passed to {@link #schedule} is due.
+     * Returns false if interrupted.
+     */
+    public boolean awaitSlot(int index) {
+        long wait = getSlotTimeNs(index) - clock.nanoTime();
+        if (wait <= 0) {
+            return true;
+        }
+        try {
+            clock.sleepNanos(wait);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Wall time (monotonic clock) at which slot {@code index} of the current frame is due. */
+    public long getSlotTimeNs(int index) {
+        return periodNs <= 0 ? slotNs : anchorNs + (firstSlot + index) * periodNs;
+    }
+
+    private void anchor(long now, long ptsUs) {
+        started = true;
+        anchorNs = now;
+        anchorPtsUs = ptsUs;
+        nextTick = 0;
+        if (windowStartNs == 0) {
+            windowStartNs = now;
+        }
+    }
+
+    private long mediaToWall(long ptsUs) {
+        return anchorNs + (ptsUs - anchorPtsUs) * 1000;
+    }
+
+    private void updateInterval(long ptsUs) {
+        long delta = ptsUs - lastPtsUs;
+        if (!started || delta <= 0) {
+            if (intervalUs == 0) {
+                intervalUs = LoopTimeline.DEFAULT_FRAME_INTERVAL_US;
+            }
+            return;
+        }
+        if (!intervalMeasured) {
+            intervalMeasured = true;
+            intervalUs = delta;
+            return;
+        }
+        // 循环间隔（loop_delay）之类的大跳变不算进帧间隔
+        if (delta > intervalUs * 3) {
+            return;
+        }
+        intervalUs = (intervalUs * 7 + delta) / 8;
+    }
+
+    private void rollWindow(long now) {
+        if (windowStartNs != 0 && now - windowStartNs >= SECOND_NS) {
+            presentedPerSecond = windowPresented;
+            droppedPerSecond = windowDropped;
+            duplicatedPerSecond = windowDuplicated;
+            windowPresented = 0;
+            windowDropped = 0;
+            windowDuplicated = 0;
+            windowStartNs = now;
+        }
+    }
+
+    // b > 0；Math.floorDiv 要 API 24
+    private static long ceilDiv(long a, long b) {
+        long q = a / b;
+        return (a % b > 0) ? q + 1 : q;
+    }
+
+    /** Output frames (including repeats) in the last full second. */
+    public int getPresentedPerSecond() {
+        return presentedPerSecond;
+    }
+
+    /** Source frames dropped in the last full second. */
+    public int getDroppedPerSecond() {
+        return droppedPerSecond;
+    }
+
+    /** Extra output frames produced by repeating source frames in the last full second. */
+    public int getDuplicatedPerSecond() {
+        return duplicatedPerSecond;
+    }
+
+    public long getTotalDropped() {
+        return totalDropped;
+    }
+
+    public long getTotalDuplicated() {
+        return totalDuplicated;
+    }
+}
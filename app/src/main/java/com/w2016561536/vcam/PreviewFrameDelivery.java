@@ -0,0 +1,162 @@
+package com.w2016561536.vcam;
+
+/**
+ * What the Camera1 {@code onPreviewFrame} hook writes into the app's buffer for each frame.
+ * <p>
+ * While replacing, the app gets the newest virtual frame, read from a pre-converted
+ * {@link RawFrameStore} if one was opened, otherwise taken from the decoder's
+ * {@link FrameExchange} and scaled to the preview size when the two differ. When replacement is
+ * disabled, there is no video, or the decoder has not published its first frame yet, the camera's
+ * real frame is copied into the app's buffer instead, because with swapped callback buffers the
+ * camera wrote into a decoy. Kept free of Xposed types so it can be exercised on a plain JVM.
+ */
+public final class PreviewFrameDelivery {
+    private static final long STATS_FRAMES = 300;
+    private static final long STARVATION_LOG_EVERY = 100;
+
+    private final FrameExchange exchange;
+    // 预览回调线程自己的读取位置，统计重复/跳过的帧
+    private final FrameExchange.Cursor cursor = new FrameExchange.Cursor();
+    private volatile int previewWidth;
+    private volatile int previewHeight;
+    private volatile RawFrameStore rawStore;
+    private volatile long rawStartNs;
+    private volatile long rawLoopDelayUs;
+
+    public PreviewFrameDelivery(FrameExchange exchange) {
+        this.exchange = exchange;
+    }
+
+    public FrameExchange getExchange() {
+        return exchange;
+    }
+
+    /** The size the app asked the camera for; frames of another size are scaled to it. */
+    public void setPreviewSize(int width, int height) {
+        previewWidth = width;
+        previewHeight = height;
+    }
+
+    /**
+     * Reads frames from {@code store} instead of the exchange, starting from its first frame now;
+     * {@code null} switches back to the exchange. The caller owns and closes the store.
+     */
+    public void setRawFrames(RawFrameStore store, long loopDelayUs) {
+        rawLoopDelayUs = loopDelayUs;
+        rawStartNs = System.nanoTime();
+        rawStore = store;
+    }
+
+    /**
+     * When the camera called back with a decoy, the app's next own queued buffer to fill instead;
+     * {@code cameraBuffer} itself if it is not a decoy (plain callbacks, or buffer swapping off);
+     * null if the app has no buffer queued, in which case the frame is dropped.
+     */
+    public static byte[] takeAppBuffer(CallbackBufferQueue queue, byte[] cameraBuffer) {
+        if (queue == null || !queue.isDecoy(cameraBuffer)) {
+            return cameraBuffer;
+        }
+        byte[] appBuffer = queue.take(cameraBuffer);
+        if (appBuffer == null && queue.getStarvationCount() % STARVATION_LOG_EVERY == 1) {
+            VLog.i("[buffer]应用没有可用的预览缓冲，已丢 {} 帧，送出 {} 帧", queue.getStarvationCount(), queue.getDeliveredCount());
+        }
+        return appBuffer;
+    }
+
+    public static boolean isReplacing(ControlState.Snapshot control) {
+        return !control.disabled && control.videoExists;
+    }
+
+    /**
+     * The whole per-frame body of the hook after the buffer swap: reads the cached control state
+     * and delivers a virtual frame unless {@code stopped} or replacement is off.
+     */
+    public void onPreviewFrame(byte[] cameraBuffer, byte[] appBuffer, ControlState control, boolean stopped) {
+        deliver(cameraBuffer, appBuffer, !stopped && isReplacing(control.snapshot()));
+    }
+
+    /**
+     * Hands this frame to the app: a virtual one if {@code replacing} and one is available,
+     * otherwise the camera's real frame copied into the app's own buffer (after a buffer swap the
+     * camera wrote into a decoy, so without the copy the app would see stale contents).
+     */
+    public void deliver(byte[] cameraBuffer, byte[] appBuffer, boolean replacing) {
+        if (replacing && fill(appBuffer)) {
+            return;
+        }
+        if (appBuffer != cameraBuffer) {
+            System.arraycopy(cameraBuffer, 0, appBuffer, 0, Math.min(cameraBuffer.length, appBuffer.length));
+        }
+    }
+
+    /** Writes one virtual frame; returns false and leaves {@code dst} untouched if there is none yet. */
+    private boolean fill(byte[] dst) {
+        RawFrameStore store = rawStore;
+        if (store != null) {
+            long copyStartNs = System.nanoTime();
+            int index = store.indexAt((copyStartNs - rawStartNs) / 1000, rawLoopDelayUs);
+            if (needsScaling(store.getWidth(), store.getHeight(), dst)) {
+                byte[] frame = FrameBufferPool.getInstance().acquire(YuvFormat.frameSize(store.getWidth(), store.getHeight()));
+                store.readAsNv21(index, frame);
+                scaleToPreview(frame, store.getWidth(), store.getHeight(), dst);
+                FrameBufferPool.getInstance().release(frame);
+            } else {
+                store.readAsNv21(index, dst);
+            }
+            PipelineMetrics.get().recordSince(PipelineMetrics.COPY, copyStartNs);
+            PipelineMetrics.get().onDelivered();
+            return true;
+        }
+        PipelineMetrics metrics = PipelineMetrics.get();
+        long lastSequence = cursor.getLastSequence();
+        FrameExchange.Frame frame = exchange.acquire(cursor);
+        if (frame == null) {
+            return false;
+        }
+        boolean fresh = frame.getSequence() != lastSequence;
+        long copyStartNs = System.nanoTime();
+        if (fresh) {
+            metrics.record(PipelineMetrics.HANDOFF, copyStartNs - frame.getPublishedNs());
+        } else {
+            metrics.onRepeated();
+        }
+        try {
+            byte[] buf = frame.getData();
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            if (needsScaling(width, height, dst) && buf.length >= YuvFormat.frameSize(width, height)) {
+                scaleToPreview(buf, width, height, dst);
+            } else {
+                System.arraycopy(buf, 0, dst, 0, Math.min(buf.length, dst.length));
+            }
+            long doneNs = metrics.recordSince(PipelineMetrics.COPY, copyStartNs);
+            if (fresh) {
+                metrics.record(PipelineMetrics.FRAME_AGE, doneNs - frame.getOriginNs());
+            }
+            metrics.onDelivered();
+        } finally {
+            exchange.release(frame);
+        }
+        if (cursor.getReadCount() % STATS_FRAMES == 0) {
+            VLog.i("[preview]第 {} 帧，回调 {} 次，重复 {}，跳过 {}，解码端丢弃 {}",
+                    cursor.getLastSequence(), cursor.getReadCount(), cursor.getRepeatedCount(),
+                    cursor.getSkippedCount(), exchange.getDroppedCount());
+        }
+        return true;
+    }
+
+    // 视频和预览尺寸不同时缩放（比例不同就居中裁切），不再只拷贝放得下的部分
+    private boolean needsScaling(int width, int height, byte[] dst) {
+        int dstWidth = previewWidth;
+        int dstHeight = previewHeight;
+        return width > 0 && height > 0 && dstWidth > 0 && dstHeight > 0 && (width != dstWidth || height != dstHeight)
+                && dst.length >= YuvFormat.frameSize(dstWidth, dstHeight);
+    }
+
+    private void scaleToPreview(byte[] frame, int width, int height, byte[] dst) {
+        int dstWidth = previewWidth;
+        int dstHeight = previewHeight;
+        YuvScaler.scale(frame, YuvFormat.NV21, width, height, dst, YuvFormat.NV21, dstWidth, dstHeight,
+                YuvScaler.pickMode(width, height, dstWidth, dstHeight));
+    }
+}
@@ -0,0 +1,217 @@
+package com.w2016561536.vcam;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read side of the pre-converted raw clip container ({@code .vcraw}).
+ * <p>
+ * Layout, all integers big-endian:
+ * <pre>
+ *   0  int   magic 'VCRF'
+ *   4  int   version (1)
+ *   8  int   width
+ *  12  int   height
+ *  16  int   format ({@link #FORMAT_I420} or {@link #FORMAT_NV21})
+ *  20  int   frame count
+ *  24  long  offset of the index table
+ * 4096 ...   frame payloads, width * height * 3 / 2 bytes each
+ * index      frame count * (long payload offset, long presentation time in us)
+ * </pre>
+ * The whole file is memory-mapped, so serving a frame is one bulk copy out of the page cache.
+ * Written by {@link RawFrameStoreWriter}.
+ */
+public class RawFrameStore implements Closeable {
+    public static final int MAGIC = 0x56435246;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int PAYLOAD_START = 4096;
+    public static final int INDEX_ENTRY_SIZE = 16;
+
+    public static final int FORMAT_I420 = YuvFormat.I420;
+    public static final int FORMAT_NV21 = YuvFormat.NV21;
+
+    public static final String FILE_EXTENSION = ".vcraw";
+
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+    private final int width;
+    private final int height;
+    private final int format;
+    private final int frameCount;
+    private final int frameSize;
+    private final long[] offsets;
+    private final long[] timestampsUs;
+    private final long durationUs;
+
+    private RawFrameStore(RandomAccessFile raf, MappedByteBuffer map) throws IOException {
+        this.raf = raf;
+        this.map = map;
+        if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC) {
+            throw new IOException("not a vcraw file");
+        }
+        if (map.getInt(4) != VERSION) {
+            throw new IOException("unsupported vcraw version " + map.getInt(4));
+        }
+        width = map.getInt(8);
+        height = map.getInt(12);
+        format = map.getInt(16);
+        frameCount = map.getInt(20);
+        long indexOffset = map.getLong(24);
+        if (width <= 0 || height <= 0 || (format != FORMAT_I420 && format != FORMAT_NV21) || frameCount <= 0) {
+            throw new IOException("bad vcraw header " + width + "x" + height + " format " + format + " frames " + frameCount);
+        }
+        frameSize = frameSize(width, height);
+        if (indexOffset < HEADER_SIZE || indexOffset + (long) frameCount * INDEX_ENTRY_SIZE > map.capacity()) {
+            throw new IOException("vcraw index out of range");
+        }
+        offsets = new long[frameCount];
+        timestampsUs = new long[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            int entry = (int) indexOffset + i * INDEX_ENTRY_SIZE;
+            offsets[i] = map.getLong(entry);
+            timestampsUs[i] = map.getLong(entry + 8);
+            if (offsets[i] < HEADER_SIZE || offsets[i] + frameSize > map.capacity()) {
+                throw new IOException("vcraw frame " + i + " out of range");
+            }
+            if (i > 0 && timestampsUs[i] < timestampsUs[i - 1]) {
+                throw new IOException("vcraw timestamps not monotonic at frame " + i);
+            }
+        }
+        long lastInterval = frameCount > 1 ? timestampsUs[frameCount - 1] - timestampsUs[frameCount - 2] : 33_333;
+        durationUs = timestampsUs[frameCount - 1] - timestampsUs[0] + Math.max(lastInterval, 1);
+    }
+
+    public static RawFrameStore open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("vcraw file larger than 2 GB");
+            }
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            return new RawFrameStore(raf, map);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Where a raw store for {@code videoPath} is looked for: same directory and name, {@code .vcraw} extension.
+     */
+    public static String pathFor(String videoPath) {
+        int slash = videoPath.lastIndexOf('/');
+        int dot = videoPath.lastIndexOf('.');
+        String base = dot > slash ? videoPath.substring(0, dot) : videoPath;
+        return base + FILE_EXTENSION;
+    }
+
+    public static int frameSize(int width, int height) {
+        return YuvFormat.frameSize(width, height);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    public long getPresentationTimeUs(int index) {
+        return timestampsUs[index];
+    }
+
+    /**
+     * Length of one loop, including the display time of the last frame.
+     */
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    /**
+     * Frame to show {@code elapsedUs} after playback started, looping over the clip.
+     */
+    public int indexAt(long elapsedUs) {
+        return indexAt(elapsedUs, 0);
+    }
+
+    /**
+     * Like {@link #indexAt(long)}, but holds the last frame for {@code loopDelayUs} before each restart.
+     */
+    public int indexAt(long elapsedUs, long loopDelayUs) {
+        long period = durationUs + Math.max(loopDelayUs, 0);
+        long inLoop = elapsedUs < 0 ? 0 : elapsedUs % period;
+        if (inLoop >= durationUs) {
+            return frameCount - 1;
+        }
+        long t = timestampsUs[0] + inLoop;
+        int lo = 0;
+        int hi = frameCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (timestampsUs[mid] <= t) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Copies the stored payload of frame {@code index} as-is, up to {@code dst.length} bytes.
+     * Returns the number of bytes copied.
+     */
+    public synchronized int read(int index, byte[] dst) {
+        int length = Math.min(frameSize, dst.length);
+        map.position((int) offsets[index]);
+        map.get(dst, 0, length);
+        return length;
+    }
+
+    /**
+     * Copies frame {@code index} into {@code dst} as NV21. NV21 stores are a single bulk copy;
+     * I420 stores copy the luma in bulk and interleave the chroma planes.
+     */
+    public synchronized int readAsNv21(int index, byte[] dst) {
+        if (format == FORMAT_NV21 || dst.length < frameSize) {
+            return read(index, dst);
+        }
+        int lumaSize = width * height;
+        int chromaSize = lumaSize / 4;
+        int base = (int) offsets[index];
+        map.position(base);
+        map.get(dst, 0, lumaSize);
+        int uBase = base + lumaSize;
+        int vBase = uBase + chromaSize;
+        int out = lumaSize;
+        for (int i = 0; i < chromaSize; i++) {
+            dst[out++] = map.get(vBase + i);
+            dst[out++] = map.get(uBase + i);
+        }
+        return frameSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
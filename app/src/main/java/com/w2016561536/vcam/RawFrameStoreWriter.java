@@ -0,0 +1,139 @@
+package com.w2016561536.vcam;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Packs raw frames into a {@link RawFrameStore} file. Frames are streamed to disk as they come,
+ * the index and header are written on {@link #close()}.
+ * <p>
+ * Can also be run on a desktop to pack a raw YUV dump, e.g. one made with
+ * {@code ffmpeg -i virtual.mp4 -pix_fmt nv21 -f rawvideo virtual.yuv}:
+ * <pre>
+ * java com.w2016561536.vcam.RawFrameStoreWriter virtual.yuv 1280 720 30 nv21 virtual.vcraw
+ * </pre>
+ */
+public class RawFrameStoreWriter implements Closeable {
+    private final RandomAccessFile raf;
+    private final int width;
+    private final int height;
+    private final int format;
+    private final int frameSize;
+    private long[] offsets = new long[256];
+    private long[] timestampsUs = new long[256];
+    private int frameCount;
+    private long writePosition = RawFrameStore.PAYLOAD_START;
+    private boolean closed;
+
+    public RawFrameStoreWriter(File file, int width, int height, int format) throws IOException {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("width and height must be positive and even: " + width + "x" + height);
+        }
+        if (format != RawFrameStore.FORMAT_I420 && format != RawFrameStore.FORMAT_NV21) {
+            throw new IllegalArgumentException("unsupported format " + format);
+        }
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.frameSize = RawFrameStore.frameSize(width, height);
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+    }
+
+    /**
+     * Appends one frame of {@code width * height * 3 / 2} bytes. Timestamps must not decrease.
+     */
+    public void addFrame(byte[] frame, long presentationTimeUs) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("writer closed");
+        }
+        if (frame.length < frameSize) {
+            throw new IllegalArgumentException("frame has " + frame.length + " bytes, need " + frameSize);
+        }
+        if (frameCount > 0 && presentationTimeUs < timestampsUs[frameCount - 1]) {
+            throw new IllegalArgumentException("timestamps must not decrease");
+        }
+        if (writePosition + frameSize > Integer.MAX_VALUE) {
+            throw new IOException("vcraw file would exceed 2 GB");
+        }
+        if (frameCount == offsets.length) {
+            long[] o = new long[frameCount * 2];
+            long[] t = new long[frameCount * 2];
+            System.arraycopy(offsets, 0, o, 0, frameCount);
+            System.arraycopy(timestampsUs, 0, t, 0, frameCount);
+            offsets = o;
+            timestampsUs = t;
+        }
+        raf.seek(writePosition);
+        raf.write(frame, 0, frameSize);
+        offsets[frameCount] = writePosition;
+        timestampsUs[frameCount] = presentationTimeUs;
+        frameCount++;
+        writePosition += frameSize;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            ByteBuffer index = ByteBuffer.allocate(frameCount * RawFrameStore.INDEX_ENTRY_SIZE);
+            for (int i = 0; i < frameCount; i++) {
+                index.putLong(offsets[i]);
+                index.putLong(timestampsUs[i]);
+            }
+            raf.seek(writePosition);
+            raf.write(index.array());
+
+            ByteBuffer header = ByteBuffer.allocate(RawFrameStore.HEADER_SIZE);
+            header.putInt(RawFrameStore.MAGIC);
+            header.putInt(RawFrameStore.VERSION);
+            header.putInt(width);
+            header.putInt(height);
+            header.putInt(format);
+            header.putInt(frameCount);
+            header.putLong(writePosition);
+            raf.seek(0);
+            raf.write(header.array());
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 6) {
+            System.err.println("usage: RawFrameStoreWriter <input.yuv> <width> <height> <fps> <nv21|i420> <output.vcraw>");
+            System.exit(2);
+        }
+        int width = Integer.parseInt(args[1]);
+        int height = Integer.parseInt(args[2]);
+        double fps = Double.parseDouble(args[3]);
+        int format = "i420".equalsIgnoreCase(args[4]) ? RawFrameStore.FORMAT_I420 : RawFrameStore.FORMAT_NV21;
+        byte[] frame = new byte[RawFrameStore.frameSize(width, height)];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0]), 1 << 20));
+             RawFrameStoreWriter writer = new RawFrameStoreWriter(new File(args[5]), width, height, format)) {
+            while (true) {
+                try {
+                    in.readFully(frame);
+                } catch (EOFException e) {
+                    break;
+                }
+                writer.addFrame(frame, Math.round(writer.getFrameCount() * 1_000_000d / fps));
+            }
+            System.out.println("packed " + writer.getFrameCount() + " frames");
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.w2016561536.vcam;
+
+/**
+ * Table-driven conversion of packed ARGB pixels ({@code Bitmap.getPixels} order) to 4:2:0
+ * frames in any {@link YuvFormat}.
+ * <p>
+ * Each (matrix, range) pair gets one set of 16.16 fixed-point tables with the rounding and
+ * offsets folded in, so a luma sample costs three lookups and two adds. Chroma is computed
+ * once per 2x2 block from the block's summed R, G and B; the chroma tables are indexed by
+ * those sums (0..1020), which averages the block without an intermediate rounding. An odd
+ * last row or column only contributes luma, matching the {@code (width / 2) x (height / 2)}
+ * chroma planes of {@link YuvFormat}.
+ */
+public final class RgbToYuv {
+    /** ITU-R BT.601, what Camera1 and most JPEGs use. */
+    public static final int MATRIX_BT601 = 0;
+    /** ITU-R BT.709, HD video. */
+    public static final int MATRIX_BT709 = 1;
+
+    private static final int SHIFT = 16;
+    private static final int HALF = 1 << (SHIFT - 1);
+    private static final int SUM_LEVELS = 4 * 255 + 1;
+
+    private static final RgbToYuv[] engines = new RgbToYuv[4];
+
+    private final int matrix;
+    private final boolean fullRange;
+    private final int[] yR = new int[256];
+    private final int[] yG = new int[256];
+    private final int[] yB = new int[256];
+    private final int[] uR = new int[SUM_LEVELS];
+    private final int[] uG = new int[SUM_LEVELS];
+    private final int[] uB = new int[SUM_LEVELS];
+    private final int[] vR = new int[SUM_LEVELS];
+    private final int[] vG = new int[SUM_LEVELS];
+    private final int[] vB = new int[SUM_LEVELS];
+
+    private RgbToYuv(int matrix, boolean fullRange) {
+        this.matrix = matrix;
+        this.fullRange = fullRange;
+        double[] c = coefficients(matrix, fullRange);
+        double yOffset = fullRange ? 0 : 16;
+        for (int i = 0; i < 256; i++) {
+            yR[i] = fixed(c[0] * i) + fixed(yOffset) + HALF;
+            yG[i] = fixed(c[1] * i);
+            yB[i] = fixed(c[2] * i);
+        }
+        for (int s = 0; s < SUM_LEVELS; s++) {
+            double avg = s / 4.0;
+            uR[s] = fixed(c[3] * avg) + fixed(128) + HALF;
+            uG[s] = fixed(c[4] * avg);
+            uB[s] = fixed(c[5] * avg);
+            vR[s] = fixed(c[6] * avg) + fixed(128) + HALF;
+            vG[s] = fixed(c[7] * avg);
+            vB[s] = fixed(c[8] * avg);
+        }
+    }
+
+    /** The shared engine for {@code matrix} ({@link #MATRIX_BT601} or {@link #MATRIX_BT709}) and range. */
+    public static RgbToYuv get(int matrix, boolean fullRange) {
+        int index = (matrix == MATRIX_BT709 ? 2 : 0) + (fullRange ? 1 : 0);
+        synchronized (engines) {
+            RgbToYuv engine = engines[index];
+            if (engine == null) {
+                engine = new RgbToYuv(matrix == MATRIX_BT709 ? MATRIX_BT709 : MATRIX_BT601, fullRange);
+                engines[index] = engine;
+            }
+            return engine;
+        }
+    }
+
+    /**
+     * Row-major multipliers {Y: r, g, b; U: r, g, b; V: r, g, b} including the range scaling,
+     * without offsets. Also used by the tests as the floating-point reference.
+     */
+    static double[] coefficients(int matrix, boolean fullRange) {
+        double kr = matrix == MATRIX_BT709 ? 0.2126 : 0.299;
+        double kb = matrix == MATRIX_BT709 ? 0.0722 : 0.114;
+        double kg = 1 - kr - kb;
+        double ys = fullRange ? 1 : 219.0 / 255;
+        double cs = fullRange ? 1 : 224.0 / 255;
+        double cb = 2 * (1 - kb);
+        double cr = 2 * (1 - kr);
+        return new double[]{
+                kr * ys, kg * ys, kb * ys,
+                -kr / cb * cs, -kg / cb * cs, 0.5 * cs,
+                0.5 * cs, -kg / cr * cs, -kb / cr * cs,
+        };
+    }
+
+    private static int fixed(double value) {
+        return (int) Math.round(value * (1 << SHIFT));
+    }
+
+    public int getMatrix() {
+        return matrix;
+    }
+
+    public boolean isFullRange() {
+        return fullRange;
+    }
+
+    /**
+     * Converts a {@code width} x {@code height} ARGB image, pixel (x, y) at
+     * {@code argb[offset + y * stride + x]}, into {@code out} in {@code format}. {@code out}
+     * must hold {@link YuvFormat#frameSize} bytes.
+     */
+    public void convert(int[] argb, int offset, int stride, int width, int height, byte[] out, int format) {
+        convert(argb, offset, stride, width, height, out, format, BandExecutor.shared());
+    }
+
+    /** As above, in bands of row pairs on {@code executor}. */
+    public void convert(final int[] argb, final int offset, final int stride, final int width, final int height,
+                        final byte[] out, final int format, BandExecutor executor) {
+        executor.run(height, 2, YuvFormat.frameSize(width, height), new BandExecutor.Band() {
+            @Override
+            public void run(int start, int end) {
+                convertRows(argb, offset + start * stride, stride, width, height, start, end, out, format);
+            }
+        });
+    }
+
+    /**
+     * Converts output rows {@code [rowStart, rowEnd)} of a {@code width} x {@code height}
+     * frame, for callers that fetch the pixels strip by strip. Here pixel (x, y) is at
+     * {@code argb[offset + (y - rowStart) * stride + x]}. {@code rowStart} must be even.
+     */
+    public void convertRows(int[] argb, int offset, int stride, int width, int height,
+                            int rowStart, int rowEnd, byte[] out, int format) {
+        int lumaSize = width * height;
+        int chromaWidth = width / 2;
+        int chromaSize = chromaWidth * (height / 2);
+        int uBase;
+        int vBase;
+        int step;
+        if (format == YuvFormat.I420) {
+            uBase = lumaSize;
+            vBase = lumaSize + chromaSize;
+            step = 1;
+        } else if (format == YuvFormat.NV21) {
+            uBase = lumaSize + 1;
+            vBase = lumaSize;
+            step = 2;
+        } else {
+            uBase = lumaSize;
+            vBase = lumaSize + 1;
+            step = 2;
+        }
+        int chromaStride = chromaWidth * step;
+        int[] yR = this.yR;
+        int[] yG = this.yG;
+        int[] yB = this.yB;
+        for (int row = rowStart; row < rowEnd; row += 2) {
+            int p0 = offset + (row - rowStart) * stride;
+            int d0 = row * width;
+            if (row + 1 >= rowEnd || row + 1 >= height) {
+                // 落单的最后一行只有亮度
+                lumaRow(argb, p0, out, d0, width);
+                continue;
+            }
+            int p1 = p0 + stride;
+            int d1 = d0 + width;
+            int c = (row >> 1) * chromaStride;
+            for (int x = 0; x + 1 < width; x += 2) {
+                int a = argb[p0 + x];
+                int b = argb[p0 + x + 1];
+                int e = argb[p1 + x];
+                int f = argb[p1 + x + 1];
+                int ar = (a >> 16) & 0xff, ag = (a >> 8) & 0xff, ab = a & 0xff;
+                int br = (b >> 16) & 0xff, bg = (b >> 8) & 0xff, bb = b & 0xff;
+                int er = (e >> 16) & 0xff, eg = (e >> 8) & 0xff, eb = e & 0xff;
+                int fr = (f >> 16) & 0xff, fg = (f >> 8) & 0xff, fb = f & 0xff;
+                out[d0 + x] = (byte) ((yR[ar] + yG[ag] + yB[ab]) >> SHIFT);
+                out[d0 + x + 1] = (byte) ((yR[br] + yG[bg] + yB[bb]) >> SHIFT);
+                out[d1 + x] = (byte) ((yR[er] + yG[eg] + yB[eb]) >> SHIFT);
+                out[d1 + x + 1] = (byte) ((yR[fr] + yG[fg] + yB[fb]) >> SHIFT);
+                int sr = ar + br + er + fr;
+                int sg = ag + bg + eg + fg;
+                int sb = ab + bb + eb + fb;
+                int u = (uR[sr] + uG[sg] + uB[sb]) >> SHIFT;
+                int v = (vR[sr] + vG[sg] + vB[sb]) >> SHIFT;
+                // 全范围下纯蓝/纯红会算出 256
+                out[uBase + c] = (byte) (u > 255 ? 255 : u);
+                out[vBase + c] = (byte) (v > 255 ? 255 : v);
+                c += step;
+            }
+            if ((width & 1) != 0) {
+                int x = width - 1;
+                out[d0 + x] = luma(argb[p0 + x]);
+                out[d1 + x] = luma(argb[p1 + x]);
+            }
+        }
+    }
+
+    private void lumaRow(int[] argb, int p, byte[] out, int d, int width) {
+        for (int x = 0; x < width; x++) {
+            out[d + x] = luma(argb[p + x]);
+        }
+    }
+
+    private byte luma(int pixel) {
+        return (byte) ((yR[(pixel >> 16) & 0xff] + yG[(pixel >> 8) & 0xff] + yB[pixel & 0xff]) >> SHIFT);
+    }
+}
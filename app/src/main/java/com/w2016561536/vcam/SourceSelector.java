@@ -0,0 +1,183 @@
+package com.w2016561536.vcam;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks, for one camera stream, the variant of the configured video that needs the least work.
+ * <p>
+ * Variants of {@code foo.mp4} are the files in the same directory named {@code foo.mp4} or
+ * {@code foo_<anything>.mp4}, e.g. {@code virtual_1280x720.mp4} and {@code virtual_640x480.mp4}
+ * next to {@code virtual.mp4}. Candidates are ranked by the coded size the decoder will produce:
+ * an exact match first, then the same aspect ratio with the smallest downscale, then the
+ * variant that crops the fewest pixels after scaling, and upscaling only as a last resort.
+ * <p>
+ * Decisions are cached per (directory, video, package, size, format) and dropped when the
+ * library changes. While some variant is still waiting to be probed the base video is
+ * returned and nothing is cached, so the next stream tries again.
+ */
+public class SourceSelector {
+    public static final int KIND_EXACT = 0;
+    public static final int KIND_SCALE = 1;
+    public static final int KIND_CROP = 2;
+    public static final int KIND_UPSCALE = 3;
+
+    /** Receives each new (uncached) decision, e.g. for logging. */
+    public interface Listener {
+        void onSelected(String key, Match match);
+    }
+
+    /** The chosen variant and how it has to be adapted to the stream. */
+    public static final class Match {
+        public final VideoLibrary.Entry entry;
+        public final int kind;
+        /**
+         * Lower is better within a kind: source pixels per target pixel for {@link #KIND_SCALE},
+         * the fraction of scaled pixels cropped away for {@link #KIND_CROP}, the scale factor for
+         * {@link #KIND_UPSCALE}.
+         */
+        public final double cost;
+
+        Match(VideoLibrary.Entry entry, int kind, double cost) {
+            this.entry = entry;
+            this.kind = kind;
+            this.cost = cost;
+        }
+
+        boolean betterThan(Match other) {
+            if (other == null) {
+                return true;
+            }
+            if (kind != other.kind) {
+                return kind < other.kind;
+            }
+            if (cost != other.cost) {
+                return cost < other.cost;
+            }
+            return entry.name.compareTo(other.entry.name) < 0;
+        }
+
+        public static String kindName(int kind) {
+            switch (kind) {
+                case KIND_EXACT:
+                    return "exact";
+                case KIND_SCALE:
+                    return "scale";
+                case KIND_CROP:
+                    return "crop";
+                default:
+                    return "upscale";
+            }
+        }
+
+        @Override
+        public String toString() {
+            return entry.name + " " + entry.width + "x" + entry.height + " (" + kindName(kind)
+                    + (kind == KIND_EXACT ? "" : String.format(java.util.Locale.US, " %.2f", cost)) + ")";
+        }
+    }
+
+    private static final class Cached {
+        final long libraryVersion;
+        final Match match;
+
+        Cached(long libraryVersion, Match match) {
+            this.libraryVersion = libraryVersion;
+            this.match = match;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Cached> cache = new ConcurrentHashMap<>();
+    private volatile Listener listener;
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the variant of {@code baseName} in {@code library} to decode for a stream of
+     * {@code width}x{@code height} in {@code format}, or null to keep using {@code baseName}.
+     */
+    public Match select(VideoLibrary library, String baseName, String packageName, int width, int height, int format) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        String key = library.getDirectory().getPath() + "/" + baseName + "|" + packageName + "|" + width + "x"
+                + height + "|" + format;
+        long version = library.getVersion();
+        Cached cached = cache.get(key);
+        if (cached != null && cached.libraryVersion == version) {
+            return cached.match;
+        }
+        boolean pending = false;
+        Match best = null;
+        for (VideoLibrary.Entry entry : library.getEntries()) {
+            if (!isVariant(baseName, entry.name)) {
+                continue;
+            }
+            if (!entry.probed) {
+                pending = true;
+                continue;
+            }
+            Match match = rate(entry, width, height);
+            if (match != null && match.betterThan(best)) {
+                best = match;
+            }
+        }
+        if (pending) {
+            return null;
+        }
+        cache.put(key, new Cached(version, best));
+        Listener l = listener;
+        if (l != null && best != null) {
+            l.onSelected(key, best);
+        }
+        return best;
+    }
+
+    /** Picks the best of {@code candidates} for a {@code width}x{@code height} stream; null if none is usable. */
+    public static Match choose(List<VideoLibrary.Entry> candidates, int width, int height) {
+        Match best = null;
+        for (VideoLibrary.Entry entry : candidates) {
+            Match match = rate(entry, width, height);
+            if (match != null && match.betterThan(best)) {
+                best = match;
+            }
+        }
+        return best;
+    }
+
+    static boolean isVariant(String baseName, String name) {
+        if (name.equals(baseName)) {
+            return true;
+        }
+        int dot = baseName.lastIndexOf('.');
+        String stem = dot > 0 ? baseName.substring(0, dot) : baseName;
+        return name.length() > stem.length() + 1 && name.startsWith(stem + "_")
+                && name.toLowerCase().endsWith(".mp4");
+    }
+
+    static Match rate(VideoLibrary.Entry entry, int width, int height) {
+        if (!entry.isValid()) {
+            return null;
+        }
+        long w = entry.width;
+        long h = entry.height;
+        if (w == width && h == height) {
+            return new Match(entry, KIND_EXACT, 0);
+        }
+        // 宽高比差 1% 以内算同比例，编码器常把 1080 对齐成 1088
+        long a = w * height;
+        long b = h * width;
+        if (Math.abs(a - b) * 100 <= Math.max(a, b) && w >= width && h >= height) {
+            return new Match(entry, KIND_SCALE, (double) (w * h) / ((long) width * height));
+        }
+        // 先等比缩放到刚好盖住目标，再裁掉多出的部分
+        double scale = Math.max((double) width / w, (double) height / h);
+        double cropped = 1 - (double) width * height / (w * scale * h * scale);
+        if (scale <= 1) {
+            return new Match(entry, KIND_CROP, cropped);
+        }
+        return new Match(entry, KIND_UPSCALE, scale + cropped);
+    }
+}
@@ -0,0 +1,413 @@
+package com.w2016561536.vcam;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import de.robv.android.xposed.XposedBridge;
+
+/**
+ * Logging for the hooks and the decoder without log I/O on their threads.
+ * <p>
+ * {@code XposedBridge.log} writes the module log file synchronously, and the call sites used to
+ * build their message (often including {@code Surface.toString()} or a whole stack trace) even
+ * on per-request paths such as {@code addTarget} and {@code build}. Here a call only checks the
+ * level and the call site's rate, then stores the template and its arguments in a slot of a
+ * fixed lock-free ring; a daemon thread formats ({@code {}} placeholders, SLF4J style) and
+ * writes them out. A full ring drops the line instead of waiting, and the drops are reported.
+ * The log thread sleeps until a line arrives in an empty ring, so an idle process pays nothing.
+ * <p>
+ * Call sites are told apart by their exact template, so each call site needs a template of its
+ * own that says what happened; a bare {@code "{}"} would share its limit with every other one.
+ * Each may log {@link #DEFAULT_PER_SITE_PER_SECOND} lines per second, the rest are counted and
+ * the count is appended to the next line of the same site that gets through. Arguments are
+ * turned into strings on the log thread, so pass objects, not their {@code toString()}. A
+ * {@link Throwable} left over after the placeholders is printed with its stack trace.
+ * <p>
+ * Debug lines are off unless {@code verbose_log.jpg} is present in {@code DCIM/Camera1}.
+ */
+public final class VLog {
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+
+    static final int DEFAULT_CAPACITY = 512;
+    static final int DEFAULT_PER_SITE_PER_SECOND = 20;
+    // 模板都是字面量，数量有限；超出的（拼出来的模板）共用一个限额
+    private static final int MAX_SITES = 1024;
+    private static final long WINDOW_NS = 1000000000L;
+    private static final String TAG = "VCAM";
+
+    /** Where formatted lines end up. Called on the log thread only. */
+    public interface Sink {
+        void write(int level, String message);
+    }
+
+    /** The module log via XposedBridge, or logcat where XposedBridge is not available. */
+    static final Sink XPOSED_SINK = new Sink() {
+        @Override
+        public void write(int level, String message) {
+            try {
+                XposedBridge.log("【VCAM】" + message);
+            } catch (Throwable t) {
+                switch (level) {
+                    case DEBUG:
+                        Log.d(TAG, message);
+                        break;
+                    case INFO:
+                        Log.i(TAG, message);
+                        break;
+                    case WARN:
+                        Log.w(TAG, message);
+                        break;
+                    default:
+                        Log.e(TAG, message);
+                        break;
+                }
+            }
+        }
+    };
+
+    private static final VLog instance = new VLog(DEFAULT_CAPACITY, DEFAULT_PER_SITE_PER_SECOND, XPOSED_SINK, true);
+
+    private static final class Entry {
+        int level;
+        String template;
+        int argc;
+        Object a0;
+        Object a1;
+        Object a2;
+        Object[] more;
+        long suppressed;
+    }
+
+    /** Rate limit of one call site. */
+    private static final class Site {
+        final AtomicLong window = new AtomicLong();
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicLong suppressed = new AtomicLong();
+    }
+
+    private final Entry[] ring;
+    // 槽位序号（Vyukov 有界队列）：== pos 可写，== pos + 1 可读
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    private final AtomicLong dropped = new AtomicLong();
+    private long reportedDropped;
+
+    private final int perSitePerSecond;
+    private final ConcurrentHashMap<String, Site> sites = new ConcurrentHashMap<>();
+    private final Site overflowSite = new Site();
+
+    private final Sink sink;
+    private final boolean background;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile Thread consumer;
+    // 日志线程睡下之前置位；生产者只在它为真时 unpark，忙的时候不多付一次系统调用
+    private volatile boolean sleeping;
+    private volatile int minLevel = INFO;
+
+    VLog(int capacity, int perSitePerSecond, Sink sink, boolean background) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        ring = new Entry[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Entry();
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+        this.perSitePerSecond = perSitePerSecond;
+        this.sink = sink;
+        this.background = background;
+    }
+
+    /** The process-wide log. */
+    public static VLog get() {
+        return instance;
+    }
+
+    public void setMinLevel(int level) {
+        minLevel = level;
+    }
+
+    public boolean isEnabled(int level) {
+        return level >= minLevel;
+    }
+
+    /** Lines lost because the ring was full. */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public static void d(String template) {
+        instance.log(DEBUG, template, 0, null, null, null, null);
+    }
+
+    public static void d(String template, Object a0) {
+        instance.log(DEBUG, template, 1, a0, null, null, null);
+    }
+
+    public static void d(String template, Object a0, Object a1) {
+        instance.log(DEBUG, template, 2, a0, a1, null, null);
+    }
+
+    public static void d(String template, Object a0, Object a1, Object a2) {
+        instance.log(DEBUG, template, 3, a0, a1, a2, null);
+    }
+
+    public static void d(String template, Object... args) {
+        instance.log(DEBUG, template, args.length, null, null, null, args);
+    }
+
+    public static void i(String template) {
+        instance.log(INFO, template, 0, null, null, null, null);
+    }
+
+    public static void i(String template, Object a0) {
+        instance.log(INFO, template, 1, a0, null, null, null);
+    }
+
+    public static void i(String template, Object a0, Object a1) {
+        instance.log(INFO, template, 2, a0, a1, null, null);
+    }
+
+    public static void i(String template, Object a0, Object a1, Object a2) {
+        instance.log(INFO, template, 3, a0, a1, a2, null);
+    }
+
+    public static void i(String template, Object... args) {
+        instance.log(INFO, template, args.length, null, null, null, args);
+    }
+
+    public static void w(String template) {
+        instance.log(WARN, template, 0, null, null, null, null);
+    }
+
+    public static void w(String template, Object a0) {
+        instance.log(WARN, template, 1, a0, null, null, null);
+    }
+
+    public static void w(String template, Object a0, Object a1) {
+        instance.log(WARN, template, 2, a0, a1, null, null);
+    }
+
+    public static void w(String template, Object a0, Object a1, Object a2) {
+        instance.log(WARN, template, 3, a0, a1, a2, null);
+    }
+
+    public static void w(String template, Object... args) {
+        instance.log(WARN, template, args.length, null, null, null, args);
+    }
+
+    public static void e(String template) {
+        instance.log(ERROR, template, 0, null, null, null, null);
+    }
+
+    public static void e(String template, Object a0) {
+        instance.log(ERROR, template, 1, a0, null, null, null);
+    }
+
+    public static void e(String template, Object a0, Object a1) {
+        instance.log(ERROR, template, 2, a0, a1, null, null);
+    }
+
+    public static void e(String template, Object a0, Object a1, Object a2) {
+        instance.log(ERROR, template, 3, a0, a1, a2, null);
+    }
+
+    public static void e(String template, Object... args) {
+        instance.log(ERROR, template, args.length, null, null, null, args);
+    }
+
+    /**
+     * Queues one line. {@code more}, if not null, holds all {@code argc} arguments and the
+     * {@code a*} are ignored. Never blocks and never formats.
+     */
+    void log(int level, String template, int argc, Object a0, Object a1, Object a2, Object[] more) {
+        if (level < minLevel) {
+            return;
+        }
+        Site site = site(template);
+        if (!admit(site)) {
+            return;
+        }
+        while (true) {
+            long pos = tail.get();
+            int index = (int) pos & mask;
+            long seq = sequences.get(index);
+            if (seq < pos) {
+                // 满了：丢掉这一行，不等日志线程
+                dropped.incrementAndGet();
+                return;
+            }
+            if (seq == pos && tail.compareAndSet(pos, pos + 1)) {
+                Entry entry = ring[index];
+                entry.level = level;
+                entry.template = template;
+                entry.argc = argc;
+                entry.a0 = a0;
+                entry.a1 = a1;
+                entry.a2 = a2;
+                entry.more = more;
+                entry.suppressed = site.suppressed.getAndSet(0);
+                sequences.set(index, pos + 1);
+                break;
+            }
+        }
+        if (!background) {
+            return;
+        }
+        if (!started.get() && started.compareAndSet(false, true)) {
+            startThread();
+        } else if (sleeping) {
+            sleeping = false;
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private Site site(String template) {
+        Site site = sites.get(template);
+        if (site == null) {
+            if (sites.size() >= MAX_SITES) {
+                return overflowSite;
+            }
+            site = new Site();
+            Site raced = sites.putIfAbsent(template, site);
+            if (raced != null) {
+                site = raced;
+            }
+        }
+        return site;
+    }
+
+    private boolean admit(Site site) {
+        long now = System.nanoTime();
+        long window = site.window.get();
+        if (now - window >= WINDOW_NS && site.window.compareAndSet(window, now)) {
+            site.count.set(0);
+        }
+        if (site.count.incrementAndGet() > perSitePerSecond) {
+            site.suppressed.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void startThread() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    if (drain() > 0) {
+                        continue;
+                    }
+                    sleeping = true;
+                    // 置位之后再看一眼，置位前刚发布的那一行不会被睡过去
+                    if (drain() == 0) {
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                }
+            }
+        }, "vcam-log");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        consumer = thread;
+        thread.start();
+    }
+
+    /** Writes out everything queued so far; returns the number of lines. Single consumer only. */
+    int drain() {
+        int written = 0;
+        while (true) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            Entry entry = ring[index];
+            int level = entry.level;
+            String message = format(entry);
+            entry.template = null;
+            entry.a0 = null;
+            entry.a1 = null;
+            entry.a2 = null;
+            entry.more = null;
+            sequences.set(index, head + ring.length);
+            head++;
+            write(level, message);
+            written++;
+        }
+        long lost = dropped.get();
+        if (lost != reportedDropped) {
+            write(WARN, "[log]日志队列已满，丢弃 " + (lost - reportedDropped) + " 行");
+            reportedDropped = lost;
+        }
+        return written;
+    }
+
+    private void write(int level, String message) {
+        try {
+            sink.write(level, message);
+        } catch (Throwable ignored) {
+            // 写日志失败不能把日志线程带走
+        }
+    }
+
+    private static String format(Entry entry) {
+        StringBuilder sb = new StringBuilder(entry.template.length() + 32);
+        String template = entry.template;
+        int used = 0;
+        int from = 0;
+        while (true) {
+            int at = template.indexOf("{}", from);
+            if (at < 0 || used >= entry.argc) {
+                sb.append(template, from, template.length());
+                break;
+            }
+            sb.append(template, from, at);
+            sb.append(toString(arg(entry, used++)));
+            from = at + 2;
+        }
+        for (; used < entry.argc; used++) {
+            Object extra = arg(entry, used);
+            if (extra instanceof Throwable && used == entry.argc - 1) {
+                StringWriter trace = new StringWriter();
+                ((Throwable) extra).printStackTrace(new PrintWriter(trace));
+                sb.append('\n').append(trace);
+            } else {
+                sb.append(' ').append(toString(extra));
+            }
+        }
+        if (entry.suppressed > 0) {
+            sb.append(" (+").append(entry.suppressed).append(" suppressed)");
+        }
+        return sb.toString();
+    }
+
+    private static Object arg(Entry entry, int i) {
+        if (entry.more != null) {
+            return entry.more[i];
+        }
+        return i == 0 ? entry.a0 : i == 1 ? entry.a1 : entry.a2;
+    }
+
+    private static String toString(Object value) {
+        try {
+            return String.valueOf(value);
+        } catch (Throwable t) {
+            return "<" + t + ">";
+        }
+    }
+}
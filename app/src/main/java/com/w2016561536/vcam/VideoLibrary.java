@@ -0,0 +1,476 @@
+package com.w2016561536.vcam;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.FileObserver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the {@code .mp4} files in one video directory, with metadata probed once per file.
+ * <p>
+ * Hooks used to list and sort the directory every time a player or decoder started. The library
+ * keeps an immutable index instead, so {@link #get(int)} and {@link #find(String)} are plain
+ * lookups. Each entry is keyed by file name, size and modification time; a background thread
+ * re-lists the directory when a FileObserver reports a change (and every
+ * {@link #DEFAULT_POLL_INTERVAL_MS}, as FileObserver misses some changes on emulated storage)
+ * and only probes files that are new or changed. Probed metadata is kept in {@link #INDEX_FILE}
+ * next to the videos, so other processes and later starts skip probing too.
+ * <p>
+ * Used from both the hooked app and MainActivity, so it logs through {@link VLog} rather than XposedBridge.
+ */
+public final class VideoLibrary {
+    public static final String INDEX_FILE = ".vcam_library";
+    static final long DEFAULT_POLL_INTERVAL_MS = 10_000;
+
+    private static final String INDEX_HEADER = "# vcam library 1";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int WATCH_MASK = FileObserver.CLOSE_WRITE | FileObserver.DELETE | FileObserver.MOVED_FROM
+            | FileObserver.MOVED_TO | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    /** Reads the metadata of one video file. */
+    public interface Prober {
+        Entry probe(File file, long size, long lastModified) throws IOException;
+    }
+
+    /** Probes with MediaExtractor, walking the sample table once for frame rate and sync samples. */
+    public static final Prober MEDIA_PROBER = new Prober() {
+        @Override
+        public Entry probe(File file, long size, long lastModified) throws IOException {
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                extractor.setDataSource(file.getPath());
+                int track = VideoToFrames.selectTrack(extractor);
+                if (track < 0) {
+                    throw new IOException("no video track in " + file.getName());
+                }
+                MediaFormat format = extractor.getTrackFormat(track);
+                int width = format.getInteger(MediaFormat.KEY_WIDTH);
+                int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                long durationUs = format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+                // KEY_ROTATION 是 API 23 才有的常量，但 extractor 从 5.0 起就会填这个 key
+                int rotation = format.containsKey("rotation-degrees") ? format.getInteger("rotation-degrees") : 0;
+                float frameRate = 0;
+                if (format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+                    try {
+                        frameRate = format.getInteger(MediaFormat.KEY_FRAME_RATE);
+                    } catch (ClassCastException e) {
+                        // 部分机型存的是 float
+                        frameRate = format.getFloat(MediaFormat.KEY_FRAME_RATE);
+                    }
+                }
+
+                extractor.selectTrack(track);
+                int samples = 0;
+                int syncSamples = 0;
+                long firstUs = Long.MAX_VALUE;
+                long lastUs = Long.MIN_VALUE;
+                do {
+                    long sampleUs = extractor.getSampleTime();
+                    if (sampleUs < 0) {
+                        break;
+                    }
+                    samples++;
+                    if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                        syncSamples++;
+                    }
+                    firstUs = Math.min(firstUs, sampleUs);
+                    lastUs = Math.max(lastUs, sampleUs);
+                } while (extractor.advance());
+                if (samples > 1 && lastUs > firstUs) {
+                    long span = lastUs - firstUs;
+                    if (frameRate <= 0) {
+                        frameRate = (samples - 1) * 1_000_000f / span;
+                    }
+                    if (durationUs <= 0) {
+                        durationUs = span + span / (samples - 1);
+                    }
+                }
+                return new Entry(file.getName(), size, lastModified, width, height, frameRate, durationUs, mime,
+                        rotation, syncSamples);
+            } finally {
+                extractor.release();
+            }
+        }
+    };
+
+    /** One video file and what was learned about it. */
+    public static final class Entry {
+        public final String name;
+        public final long size;
+        public final long lastModified;
+        public final int width;
+        public final int height;
+        public final float frameRate;
+        public final long durationUs;
+        /** Track MIME type, e.g. {@code video/avc}; null if not probed. */
+        public final String mime;
+        public final int rotation;
+        public final int syncSamples;
+        /** False until a probe has been attempted; a failed probe leaves {@link #isValid()} false. */
+        public final boolean probed;
+
+        public Entry(String name, long size, long lastModified, int width, int height, float frameRate,
+                     long durationUs, String mime, int rotation, int syncSamples) {
+            this(name, size, lastModified, width, height, frameRate, durationUs, mime, rotation, syncSamples, true);
+        }
+
+        private Entry(String name, long size, long lastModified, int width, int height, float frameRate,
+                      long durationUs, String mime, int rotation, int syncSamples, boolean probed) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.durationUs = durationUs;
+            this.mime = mime;
+            this.rotation = rotation;
+            this.syncSamples = syncSamples;
+            this.probed = probed;
+        }
+
+        static Entry unprobed(String name, long size, long lastModified) {
+            return new Entry(name, size, lastModified, 0, 0, 0, 0, null, 0, 0, false);
+        }
+
+        static Entry failed(String name, long size, long lastModified) {
+            return new Entry(name, size, lastModified, 0, 0, 0, 0, null, 0, 0, true);
+        }
+
+        /** True if the file was probed and has a decodable video track. */
+        public boolean isValid() {
+            return probed && width > 0 && height > 0;
+        }
+
+        /** Width as displayed, i.e. after applying {@link #rotation}. */
+        public int getDisplayWidth() {
+            return rotation % 180 == 0 ? width : height;
+        }
+
+        public int getDisplayHeight() {
+            return rotation % 180 == 0 ? height : width;
+        }
+
+        boolean sameFile(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+
+        /** Short description for the selection dialog, e.g. {@code 1280x720 30fps 0:12 avc}. */
+        public String describe() {
+            if (!probed) {
+                return "…";
+            }
+            if (!isValid()) {
+                return "?";
+            }
+            long seconds = durationUs / 1_000_000;
+            StringBuilder sb = new StringBuilder();
+            sb.append(getDisplayWidth()).append('x').append(getDisplayHeight());
+            sb.append(' ').append(Math.round(frameRate)).append("fps");
+            sb.append(' ').append(seconds / 60).append(':').append(String.format(Locale.US, "%02d", seconds % 60));
+            if (mime != null) {
+                sb.append(' ').append(mime.startsWith("video/") ? mime.substring("video/".length()) : mime);
+            }
+            return sb.toString();
+        }
+
+        String toIndexLine() {
+            return name + '\t' + size + '\t' + lastModified + '\t' + width + '\t' + height + '\t' + frameRate + '\t'
+                    + durationUs + '\t' + (mime == null ? "" : mime) + '\t' + rotation + '\t' + syncSamples;
+        }
+
+        static Entry fromIndexLine(String line) {
+            String[] f = line.split("\t", -1);
+            if (f.length != 10) {
+                return null;
+            }
+            try {
+                return new Entry(f[0], Long.parseLong(f[1]), Long.parseLong(f[2]), Integer.parseInt(f[3]),
+                        Integer.parseInt(f[4]), Float.parseFloat(f[5]), Long.parseLong(f[6]),
+                        f[7].isEmpty() ? null : f[7], Integer.parseInt(f[8]), Integer.parseInt(f[9]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /** Immutable view of the directory, swapped as a whole. */
+    private static final class Index {
+        final List<Entry> entries;
+        final Map<String, Entry> byName;
+        final String[] names;
+        final long version;
+
+        Index(List<Entry> sorted, long version) {
+            this.version = version;
+            entries = Collections.unmodifiableList(sorted);
+            Map<String, Entry> map = new HashMap<>();
+            names = new String[sorted.size()];
+            for (int i = 0; i < sorted.size(); i++) {
+                Entry entry = sorted.get(i);
+                map.put(entry.name, entry);
+                names[i] = entry.name;
+            }
+            byName = map;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, VideoLibrary> libraries = new ConcurrentHashMap<>();
+
+    private final File dir;
+    private final Prober prober;
+    private final long pollIntervalMs;
+    private final boolean useFileObserver;
+    private final Object lock = new Object();
+    private volatile Index index;
+    private boolean refreshRequested;
+    private volatile boolean running;
+    private FileObserver observer;
+
+    VideoLibrary(File dir, Prober prober, long pollIntervalMs, boolean useFileObserver) {
+        this.dir = dir;
+        this.prober = prober;
+        this.pollIntervalMs = pollIntervalMs;
+        this.useFileObserver = useFileObserver;
+        this.index = new Index(loadIndex(), 0);
+        // 先只列目录，探测放到后台线程
+        refresh(false);
+    }
+
+    /**
+     * The library for {@code dir}, shared by all callers in this process and refreshed in the background.
+     */
+    public static VideoLibrary forDirectory(String dir) {
+        String key = new File(dir).getAbsolutePath();
+        VideoLibrary library = libraries.get(key);
+        if (library == null) {
+            VideoLibrary created = new VideoLibrary(new File(key), MEDIA_PROBER, DEFAULT_POLL_INTERVAL_MS, true);
+            library = libraries.putIfAbsent(key, created);
+            if (library == null) {
+                library = created;
+                library.start();
+            }
+        }
+        return library;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /** Bumped whenever an entry is added, removed or re-probed. */
+    public long getVersion() {
+        return index.version;
+    }
+
+    /** All videos, sorted by name. */
+    public List<Entry> getEntries() {
+        return index.entries;
+    }
+
+    /** File names, sorted; the returned array is a copy. */
+    public String[] getNames() {
+        return index.names.clone();
+    }
+
+    public int size() {
+        return index.entries.size();
+    }
+
+    /** The video at {@code position} in name order, or null if out of range. */
+    public Entry get(int position) {
+        List<Entry> entries = index.entries;
+        return position >= 0 && position < entries.size() ? entries.get(position) : null;
+    }
+
+    public Entry find(String name) {
+        return index.byName.get(name);
+    }
+
+    void start() {
+        synchronized (lock) {
+            if (running) {
+                return;
+            }
+            running = true;
+            observer = watch();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            }, "vcam-library");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    void stop() {
+        synchronized (lock) {
+            running = false;
+            if (observer != null) {
+                observer.stopWatching();
+                observer = null;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /** Schedules a re-scan on the background thread. */
+    public void requestRefresh() {
+        synchronized (lock) {
+            refreshRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Re-lists the directory on the calling thread. Unchanged files keep their entry; new or
+     * changed ones are probed if {@code probe} is set and left unprobed otherwise.
+     */
+    void refresh(boolean probe) {
+        File[] files = dir.listFiles((d, name) -> name.toLowerCase().endsWith(".mp4") && !name.startsWith("."));
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files);
+        Index old = index;
+        List<Entry> fresh = new ArrayList<>(files.length);
+        boolean changed = files.length != old.entries.size();
+        boolean probedAny = false;
+        for (File file : files) {
+            long size = file.length();
+            long lastModified = file.lastModified();
+            Entry previous = old.byName.get(file.getName());
+            Entry entry;
+            if (previous != null && previous.sameFile(size, lastModified) && (previous.probed || !probe)) {
+                entry = previous;
+            } else if (probe) {
+                entry = probe(file, size, lastModified);
+                probedAny = true;
+            } else {
+                entry = Entry.unprobed(file.getName(), size, lastModified);
+            }
+            changed |= entry != previous;
+            fresh.add(entry);
+        }
+        if (changed) {
+            index = new Index(fresh, old.version + 1);
+        }
+        if (probedAny || (changed && probe)) {
+            saveIndex(fresh);
+        }
+    }
+
+    private Entry probe(File file, long size, long lastModified) {
+        try {
+            Entry entry = prober.probe(file, size, lastModified);
+            VLog.d("[library]已探测 {} {}", file.getName(), entry.describe());
+            return entry;
+        } catch (Exception e) {
+            VLog.w("[library]探测视频失败 {}: {}", file.getName(), e);
+            return Entry.failed(file.getName(), size, lastModified);
+        }
+    }
+
+    private void loop() {
+        while (running) {
+            refresh(true);
+            synchronized (lock) {
+                if (!refreshRequested && running) {
+                    try {
+                        lock.wait(pollIntervalMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                refreshRequested = false;
+            }
+        }
+    }
+
+    private List<Entry> loadIndex() {
+        List<Entry> entries = new ArrayList<>();
+        File file = new File(dir, INDEX_FILE);
+        if (!file.exists()) {
+            return entries;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+            if (!INDEX_HEADER.equals(reader.readLine())) {
+                return entries;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Entry entry = Entry.fromIndexLine(line);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        } catch (IOException e) {
+            VLog.w("[library]读取索引失败: {}", e.getMessage());
+        }
+        Collections.sort(entries, (a, b) -> a.name.compareTo(b.name));
+        return entries;
+    }
+
+    private void saveIndex(List<Entry> entries) {
+        File file = new File(dir, INDEX_FILE);
+        File temp = new File(dir, INDEX_FILE + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), UTF_8)) {
+            writer.write(INDEX_HEADER);
+            writer.write('\n');
+            for (Entry entry : entries) {
+                if (entry.probed) {
+                    writer.write(entry.toIndexLine());
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException e) {
+            // 目录不可写时只在内存里保留
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+
+    private FileObserver watch() {
+        if (!useFileObserver) {
+            return null;
+        }
+        try {
+            FileObserver fileObserver = new FileObserver(dir.getPath(), WATCH_MASK) {
+                @Override
+                public void onEvent(int event, String path) {
+                    if (path == null || !path.startsWith(".")) {
+                        requestRefresh();
+                    }
+                }
+            };
+            fileObserver.startWatching();
+            return fileObserver;
+        } catch (Throwable t) {
+            VLog.w("[library]FileObserver 不可用: {}", t);
+            return null;
+        }
+    }
+}
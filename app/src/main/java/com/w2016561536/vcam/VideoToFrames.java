@@ -8,6 +8,10 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Surface;
 
@@ -15,8 +19,8 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.LinkedBlockingQueue;
-
-import de.robv.android.xposed.XposedBridge;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 //以下代码修改自 https://github.com/zhantong/Android-VideoToImages
 public class VideoToFrames implements Runnable {
@@ -32,12 +36,68 @@ public class VideoToFrames implements Runnable {
 
     private LinkedBlockingQueue<byte[]> mQueue;
     private OutputImageFormat outputImageFormat;
-    private boolean stopDecode = false;
+    private volatile boolean stopDecode = false;
+
+    private final FrameBufferPool framePool = FrameBufferPool.getInstance();
+    // 解码器输出的色度平面布局只探测一次
+    private int chromaLayout = Yuv420Converter.LAYOUT_UNKNOWN;
+
+    // 解码一次后循环直接读缓存，0 表示关闭
+    private long frameCacheBudget;
+    private File frameCacheDir;
+    private volatile FrameCache frameCache;
+
+    // 设置后解码帧交给分发器，由它转换并送往多个输出，不再写 preview_exchange
+    private FrameDistributor frameDistributor;
+    // 设置后最新一帧交给它保管，拍照请求来时才编码 JPEG
+    private JpegStage stillStage;
+    private int frameWidth;
+    private int frameHeight;
+
+    // 按相机安装方向和片源旋转把帧转成传感器方向；-1 表示不转
+    private int sensorOrientation = -1;
+    private boolean frontFacing;
+    private int outputRotation;
+    private boolean outputMirror;
+    // 旋转后送出的尺寸
+    private int presentWidth;
+    private int presentHeight;
+
+    private final PipelineMetrics metrics = PipelineMetrics.get();
+    // 送进解码器的样本：时间戳 -> 读取样本的时刻，输出时据此算解码耗时和帧龄；异步引擎下跨线程读写
+    private static final int SAMPLE_CLOCK_SIZE = 32;
+    private final AtomicLongArray samplePts = new AtomicLongArray(SAMPLE_CLOCK_SIZE);
+    private final AtomicLongArray sampleReadNs = new AtomicLongArray(SAMPLE_CLOCK_SIZE);
+    private int sampleClockNext;
+    // 正在送出的帧读取样本的时刻
+    private long frameOriginNs;
+
+    // 循环时时间戳接着往后走，不再每轮从 0 开始
+    private long loopDelayMs;
+    private LoopTimeline timeline;
+
+    // 按单调时钟出帧，并把片源帧率换算成目标帧率；0 表示按片源时间戳
+    private double targetFps;
+    private PresentationScheduler scheduler;
+
+    /** Polls the codec with dequeueInputBuffer/dequeueOutputBuffer every {@link #DEFAULT_TIMEOUT_US}. */
+    public static final int ENGINE_POLLING = 0;
+    /** Event-driven through MediaCodec.setCallback on a dedicated handler thread (API 23+). */
+    public static final int ENGINE_ASYNC = 1;
+    private static final long STOP_POLL_MS = 100;
+    private static final long STATS_LOG_FRAMES = 300;
+
+    private int engine = ENGINE_POLLING;
+    private DecodeStats decodeStats = new DecodeStats("polling");
+    private long lastCpuSampleNs = -1;
+    private long lastStatsLogFrames;
+    private int loopFrameCount;
 
     private String videoFilePath;
     private Throwable throwable;
     private Thread childThread;
     private Surface play_surf;
+    private HandlerThread codecThread;
 
     private Callback callback;
 
@@ -51,6 +111,10 @@ public class VideoToFrames implements Runnable {
         this.callback = callback;
     }
 
+    /**
+     * Frames put on the queue are drawn from {@link FrameBufferPool#getInstance()}; the consumer
+     * should hand them back with {@link FrameBufferPool#release(byte[])} once done.
+     */
     public void setEnqueue(LinkedBlockingQueue<byte[]> queue) {
         mQueue = queue;
     }
@@ -67,6 +131,92 @@ public class VideoToFrames implements Runnable {
         }
     }
 
+    /**
+     * Enables decode-once playback: the first pass is kept as converted NV21 frames (heap first,
+     * then a spill file in {@code spillDir}) and later loops are served from it without the codec.
+     * Only applies to byte output (no surface); clips larger than {@code budgetBytes} keep
+     * decoding live.
+     */
+    public void setFrameCache(long budgetBytes, File spillDir) {
+        frameCacheBudget = budgetBytes;
+        frameCacheDir = spillDir;
+    }
+
+    /**
+     * Sends every decoded frame to {@code distributor} instead of {@link HookMain#preview_exchange}.
+     * The distributor is closed when decoding stops.
+     */
+    public void setFrameDistributor(FrameDistributor distributor) {
+        frameDistributor = distributor;
+    }
+
+    /**
+     * Hands each presented frame to {@code stage} instead of recycling it, so JPEG readers can be
+     * served the current frame on demand. Without a distributor this is the only output. The
+     * stage is closed when decoding stops.
+     */
+    public void setStillStage(JpegStage stage) {
+        stillStage = stage;
+    }
+
+    /**
+     * Turns byte-mode frames into what a camera mounted at {@code sensorOrientation} degrees
+     * would deliver, taking the clip's rotation metadata into account, so an upright clip shows
+     * upright in the app. Front cameras are also mirrored. Not applied in surface mode.
+     */
+    public void setCameraOrientation(int sensorOrientation, boolean frontFacing) {
+        this.sensorOrientation = sensorOrientation;
+        this.frontFacing = frontFacing;
+    }
+
+    /**
+     * Pause between the last frame of one loop and the first frame of the next, in milliseconds.
+     */
+    public void setLoopDelay(long delayMs) {
+        loopDelayMs = delayMs;
+    }
+
+    /**
+     * Loop bookkeeping of the running decode, or null before it started.
+     * {@link LoopTimeline#getLastBoundaryLatencyUs()} is the stall seen at the last loop boundary.
+     */
+    public LoopTimeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Output frame rate; frames are dropped or repeated to match it. 0 keeps the clip's own rate.
+     */
+    public void setTargetFps(double fps) {
+        targetFps = fps;
+        PresentationScheduler running = scheduler;
+        if (running != null) {
+            running.setTargetFps(fps);
+        }
+    }
+
+    /**
+     * Pacing of the running decode, or null before it started. Holds the dropped / repeated frame counters.
+     */
+    public PresentationScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Picks the decode engine, {@link #ENGINE_POLLING} or {@link #ENGINE_ASYNC}. The callback
+     * engine needs API 23; on older systems the polling engine is used regardless.
+     */
+    public void setEngine(int engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * CPU time per frame and delivery jitter of the engine in use.
+     */
+    public DecodeStats getDecodeStats() {
+        return decodeStats;
+    }
+
     public void stopDecode() {
         stopDecode = true;
     }
@@ -92,7 +242,7 @@ public class VideoToFrames implements Runnable {
 
     @SuppressLint("WrongConstant")
     public void videoDecode(String videoFilePath) throws IOException {
-        XposedBridge.log("【VCAM】【decoder】开始解码");
+        VLog.i("【decoder】开始解码");
         MediaExtractor extractor = null;
         MediaCodec decoder = null;
         try {
@@ -101,52 +251,245 @@ public class VideoToFrames implements Runnable {
             extractor.setDataSource(videoFilePath);
             int trackIndex = selectTrack(extractor);
             if (trackIndex < 0) {
-                XposedBridge.log("【VCAM】【decoder】No video track found in " + videoFilePath);
+                VLog.w("【decoder】No video track found in {}", videoFilePath);
                 return;
             }
             extractor.selectTrack(trackIndex);
             MediaFormat mediaFormat = extractor.getTrackFormat(trackIndex);
             String mime = mediaFormat.getString(MediaFormat.KEY_MIME);
+            if (sensorOrientation >= 0) {
+                // MediaFormat.KEY_ROTATION 是 API 23 才有的常量，旧系统的提取器也可能给出
+                int sourceRotation = mediaFormat.containsKey("rotation-degrees") ? mediaFormat.getInteger("rotation-degrees") : 0;
+                outputRotation = YuvRotator.rotationForCamera(sensorOrientation, frontFacing, sourceRotation);
+                outputMirror = frontFacing;
+                VLog.i("【decoder】片源旋转 {} 传感器 {}{} -> 旋转 {}{}",
+                        sourceRotation, sensorOrientation, frontFacing ? " 前置" : " 后置", outputRotation, outputMirror ? " 镜像" : "");
+            }
             decoder = MediaCodec.createDecoderByType(mime);
             showSupportedColorFormat(decoder.getCodecInfo().getCapabilitiesForType(mime));
             if (play_surf == null) {
                 int targetFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420888;
                 if (isColorFormatSupported(targetFormat, decoder.getCodecInfo().getCapabilitiesForType(mime))) {
                     mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, targetFormat);
-                    XposedBridge.log("【VCAM】【decoder】set decode color format to YUV_420_888 (0x21)");
+                    VLog.i("【decoder】set decode color format to YUV_420_888 (0x21)");
                 } else if (isColorFormatSupported(decodeColorFormat, decoder.getCodecInfo().getCapabilitiesForType(mime))) {
                     mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, decodeColorFormat);
-                    XposedBridge.log("【VCAM】【decoder】set decode color format to type " + decodeColorFormat);
+                    VLog.i("【decoder】set decode color format to type {}", decodeColorFormat);
                 } else {
                     Log.i(TAG, "unable to set decode color format, color format type " + decodeColorFormat + " not supported");
-                    XposedBridge.log("【VCAM】【decoder】unable to set decode color format, color format type " + decodeColorFormat + " not supported");
+                    VLog.w("【decoder】unable to set decode color format, color format type {} not supported",
+                            decodeColorFormat);
                 }
             } else {
                 if (HookMain.c2_ori_width > 0 && HookMain.c2_ori_height > 0) {
                     mediaFormat.setInteger(MediaFormat.KEY_WIDTH, HookMain.c2_ori_width);
                     mediaFormat.setInteger(MediaFormat.KEY_HEIGHT, HookMain.c2_ori_height);
-                    XposedBridge.log("【VCAM】【decoder】Overriding decode resolution to " + HookMain.c2_ori_width + "x" + HookMain.c2_ori_height);
+                    VLog.i("【decoder】Overriding decode resolution to {}x{}",
+                            HookMain.c2_ori_width, HookMain.c2_ori_height);
                 }
             }
-            decodeFramesToImage(decoder, extractor, mediaFormat);
-            decoder.stop();
+            if (play_surf == null && outputImageFormat != null && frameCacheBudget > 0) {
+                frameCache = createFrameCache();
+            }
+            timeline = new LoopTimeline(loopDelayMs);
+            scheduler = new PresentationScheduler(PresentationScheduler.SYSTEM_CLOCK, targetFps);
+            AsyncDecodeCallback codecCallback = null;
+            if (engine == ENGINE_ASYNC && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                codecThread = new HandlerThread("vcam-codec");
+                codecThread.start();
+                codecCallback = new AsyncDecodeCallback(extractor);
+                decoder.setCallback(codecCallback, new Handler(codecThread.getLooper()));
+                decodeStats = new DecodeStats("async");
+            } else {
+                decodeStats = new DecodeStats("polling");
+            }
+            // 只 configure/start 一次，循环靠 seek 接着送样本，不再每轮重建解码器
+            decoder.configure(mediaFormat, play_surf, null, 0);
+            decoder.start();
+            decodePass(decoder, extractor, codecCallback);
+            if (frameCache != null && !stopDecode && frameCache.finish()) {
+                VLog.i("【decoder】frame cache ready: {} frames, heap {} B, disk {} B",
+                        frameCache.getFrameCount(), frameCache.getMemoryBytes(), frameCache.getSpillBytes());
+                decoder.release();
+                decoder = null;
+                extractor.release();
+                extractor = null;
+                playFromCache();
+                return;
+            }
+            closeFrameCache();
             while (!stopDecode) {
-                extractor.seekTo(0, 0);
-                decodeFramesToImage(decoder, extractor, mediaFormat);
-                decoder.stop();
+                // 为建缓存送过 EOS，flush 之后接着解，不用重新 configure
+                timeline.wrap();
+                extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                decoder.flush();
+                if (codecCallback != null) {
+                    // 回调模式下 flush 后要重新 start 才会再给输入缓冲
+                    codecCallback.outputs.clear();
+                    codecCallback.inputDone = false;
+                    decoder.start();
+                }
+                decodePass(decoder, extractor, codecCallback);
             }
         }catch (Exception e){
-            XposedBridge.log("【VCAM】[videofile]"+ e.toString());
+            VLog.w("[videofile]{}", e);
         } finally {
             if (decoder != null) {
                 decoder.stop();
                 decoder.release();
                 decoder = null;
             }
+            if (codecThread != null) {
+                codecThread.quitSafely();
+                codecThread = null;
+            }
+            if (decodeStats.getFrames() > 0) {
+                VLog.i("【decoder】停止时统计：{}", decodeStats);
+            }
             if (extractor != null) {
                 extractor.release();
                 extractor = null;
             }
+            closeFrameCache();
+            if (frameDistributor != null) {
+                frameDistributor.close();
+            }
+            if (stillStage != null) {
+                stillStage.close();
+            }
+        }
+    }
+
+    private void decodePass(MediaCodec decoder, MediaExtractor extractor, AsyncDecodeCallback codecCallback) throws InterruptedException {
+        lastCpuSampleNs = Debug.threadCpuTimeNanos();
+        if (codecCallback != null) {
+            decodeFramesAsync(decoder, codecCallback);
+        } else {
+            decodeFramesToImage(decoder, extractor);
+        }
+    }
+
+    private FrameCache createFrameCache() {
+        long memoryBudget = Math.min(frameCacheBudget, Runtime.getRuntime().maxMemory() / 8);
+        File spillFile = null;
+        if (frameCacheDir != null && (frameCacheDir.isDirectory() || frameCacheDir.mkdirs())) {
+            spillFile = new File(frameCacheDir, "vcam_frames_" + Integer.toHexString(System.identityHashCode(this)) + ".cache");
+        }
+        return new FrameCache(memoryBudget, frameCacheBudget - memoryBudget, spillFile);
+    }
+
+    private void closeFrameCache() {
+        if (frameCache != null) {
+            frameCache.close();
+            frameCache = null;
+        }
+    }
+
+    private void playFromCache() {
+        FrameCache cache = frameCache;
+        int frameCount = cache.getFrameCount();
+        while (!stopDecode) {
+            long offsetUs = timeline.wrap();
+            for (int i = 0; i < frameCount && !stopDecode; i++) {
+                if (callback != null) {
+                    callback.onDecodeFrame(i + 1);
+                }
+                long ptsUs = cache.getPresentationTimeUs(i) + offsetUs;
+                onLoopFrame(ptsUs);
+                int slots = scheduler.schedule(ptsUs);
+                if (slots == 0) {
+                    metrics.onDropped(1);
+                    continue;
+                }
+                frameOriginNs = System.nanoTime();
+                byte[] frame = framePool.acquire(cache.getFrameSize(i));
+                cache.read(i, frame);
+                presentFrame(frame, ptsUs, slots);
+            }
+        }
+    }
+
+    private void onLoopFrame(long ptsUs) {
+        if (timeline.onOutputFrame(ptsUs) && callback != null) {
+            callback.onFinishDecode();
+        }
+    }
+
+    /**
+     * Shows {@code frame} (pooled, ownership passes here; null in surface mode) in the slots the
+     * scheduler gave it. The preview buffer keeps showing the last frame by itself, so repeats only
+     * wait; distributor outputs get the frame again for every extra slot.
+     */
+    private void presentFrame(byte[] frame, long ptsUs, int slots) {
+        if (slots == 0) {
+            framePool.release(frame);
+            metrics.onDropped(1);
+            return;
+        }
+        scheduler.awaitSlot(0);
+        onPresented(ptsUs);
+        if (frame != null) {
+            frame = orient(frame);
+        }
+        if (frame != null && frameDistributor != null) {
+            long firstSlotNs = scheduler.getSlotTimeNs(0);
+            for (int i = 0; i < slots && !stopDecode; i++) {
+                if (i > 0) {
+                    scheduler.awaitSlot(i);
+                }
+                frameDistributor.publish(frame, presentWidth, presentHeight, ptsUs + (scheduler.getSlotTimeNs(i) - firstSlotNs) / 1000);
+            }
+            retireFrame(frame);
+            return;
+        }
+        if (frame != null && stillStage != null) {
+            stillStage.offer(frame, presentWidth, presentHeight);
+            holdRepeats(slots);
+            return;
+        }
+        if (frame != null) {
+            publishPreviewFrame(frame);
+        }
+        holdRepeats(slots);
+    }
+
+    /** {@code frame} turned to the output orientation; the input goes back to the pool if a copy was made. */
+    private byte[] orient(byte[] frame) {
+        presentWidth = frameWidth;
+        presentHeight = frameHeight;
+        if (YuvRotator.isIdentity(outputRotation, outputMirror) || ((frameWidth | frameHeight) & 1) != 0) {
+            return frame;
+        }
+        presentWidth = YuvRotator.outputWidth(frameWidth, frameHeight, outputRotation);
+        presentHeight = YuvRotator.outputHeight(frameWidth, frameHeight, outputRotation);
+        byte[] turned = framePool.acquire(YuvFormat.frameSize(frameWidth, frameHeight));
+        YuvRotator.transform(frame, YuvFormat.NV21, frameWidth, frameHeight, turned, outputRotation, outputMirror);
+        framePool.release(frame);
+        return turned;
+    }
+
+    private void retireFrame(byte[] frame) {
+        if (stillStage != null) {
+            stillStage.offer(frame, presentWidth, presentHeight);
+        } else {
+            framePool.release(frame);
+        }
+    }
+
+    private void holdRepeats(int slots) {
+        if (slots > 1) {
+            scheduler.awaitSlot(slots - 1);
+        }
+    }
+
+    // 记录实际显示时间供循环衔接统计
+    private void onPresented(long ptsUs) {
+        decodeStats.onFrameDelivered(System.nanoTime() - scheduler.getSlotTimeNs(0));
+        long loops = timeline.getLoopCount();
+        timeline.onPresented(ptsUs, System.nanoTime());
+        if (timeline.getLoopCount() != loops) {
+            VLog.i("【decoder】loop {} boundary latency {} us",
+                    timeline.getLoopCount(), timeline.getLastBoundaryLatencyUs());
         }
     }
 
@@ -167,31 +510,22 @@ public class VideoToFrames implements Runnable {
         return false;
     }
 
-    private void decodeFramesToImage(MediaCodec decoder, MediaExtractor extractor, MediaFormat mediaFormat) {
-        boolean is_first = false;
-        long startWhen = 0;
+    /**
+     * Feeds the clip to the already started {@code decoder} and presents its output. When the
+     * input runs out the extractor seeks back to the start and keeps feeding the same codec with
+     * timestamps moved on by {@link LoopTimeline#wrap()}, so loops need neither a codec restart
+     * nor a clock reset. Only while a frame cache is being filled is the pass ended with EOS.
+     */
+    private void decodeFramesToImage(MediaCodec decoder, MediaExtractor extractor) {
         MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        decoder.configure(mediaFormat, play_surf, null, 0);
         boolean sawInputEOS = false;
         boolean sawOutputEOS = false;
-        decoder.start();
-        final int width = mediaFormat.getInteger(MediaFormat.KEY_WIDTH);
-        final int height = mediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
-        int outputFrameCount = 0;
+        loopFrameCount = 0;
         while (!sawOutputEOS && !stopDecode) {
             if (!sawInputEOS) {
                 int inputBufferId = decoder.dequeueInputBuffer(DEFAULT_TIMEOUT_US);
                 if (inputBufferId >= 0) {
-                    ByteBuffer inputBuffer = decoder.getInputBuffer(inputBufferId);
-                    int sampleSize = extractor.readSampleData(inputBuffer, 0);
-                    if (sampleSize < 0) {
-                        decoder.queueInputBuffer(inputBufferId, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                        sawInputEOS = true;
-                    } else {
-                        long presentationTimeUs = extractor.getSampleTime();
-                        decoder.queueInputBuffer(inputBufferId, 0, sampleSize, presentationTimeUs, 0);
-                        extractor.advance();
-                    }
+                    sawInputEOS = queueSample(decoder, extractor, inputBufferId);
                 }
             }
             int outputBufferId = decoder.dequeueOutputBuffer(info, DEFAULT_TIMEOUT_US);
@@ -199,58 +533,235 @@ public class VideoToFrames implements Runnable {
                 if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                     sawOutputEOS = true;
                 }
-                boolean doRender = (info.size != 0);
-                if (doRender) {
-                    outputFrameCount++;
-                    if (callback != null) {
-                        callback.onDecodeFrame(outputFrameCount);
-                    }
-                    if (!is_first) {
-                        startWhen = System.currentTimeMillis();
-                        is_first = true;
-                    }
-                    if (play_surf == null) {
-                        Image image = decoder.getOutputImage(outputBufferId);
-                        if (image == null) {
-                            decoder.releaseOutputBuffer(outputBufferId, false);
-                            continue;
-                        }
-                        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-                        byte[] arr = new byte[buffer.remaining()];
-                        buffer.get(arr);
-                        if (mQueue != null) {
-                            try {
-                                mQueue.put(arr);
-                            } catch (InterruptedException e) {
-                                XposedBridge.log("【VCAM】" + e.toString());
-                            }
-                        }
-                        if (outputImageFormat != null) {
-                            HookMain.data_buffer.set(getDataFromImage(image, COLOR_FormatNV21));
-                        }
-                        image.close();
-                    }
-                    long sleepTime = info.presentationTimeUs / 1000 - (System.currentTimeMillis() - startWhen);
-                    if (sleepTime > 0) {
-                        try {
-                            Thread.sleep(sleepTime);
-                        } catch (InterruptedException e) {
-                            XposedBridge.log("【VCAM】" + e.toString());
-                            XposedBridge.log("【VCAM】线程延迟出错");
-                        }
-                    }
-                    decoder.releaseOutputBuffer(outputBufferId, play_surf != null);
+                if (info.size != 0) {
+                    renderOutput(decoder, outputBufferId, info.presentationTimeUs);
                 } else {
                     decoder.releaseOutputBuffer(outputBufferId, false);
                 }
             }
+            sampleCpuTime();
         }
         if (callback != null) {
             callback.onFinishDecode();
         }
     }
 
-    private static int selectTrack(MediaExtractor extractor) {
+    /**
+     * Callback-engine counterpart of {@link #decodeFramesToImage}: input is fed from
+     * {@link AsyncDecodeCallback} on the codec thread as buffers free up, and this (decode)
+     * thread only wakes for output buffers, which it presents against the scheduler's clock.
+     */
+    private void decodeFramesAsync(MediaCodec decoder, AsyncDecodeCallback codecCallback) throws InterruptedException {
+        loopFrameCount = 0;
+        while (!stopDecode) {
+            AsyncOutput output = codecCallback.outputs.poll(STOP_POLL_MS, TimeUnit.MILLISECONDS);
+            if (output == null) {
+                continue;
+            }
+            if (output == AsyncOutput.ERROR) {
+                throw new IllegalStateException("codec error", codecCallback.error);
+            }
+            if (output.size != 0) {
+                renderOutput(decoder, output.index, output.presentationTimeUs);
+            } else {
+                decoder.releaseOutputBuffer(output.index, false);
+            }
+            sampleCpuTime();
+            if ((output.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                break;
+            }
+        }
+        if (callback != null) {
+            callback.onFinishDecode();
+        }
+    }
+
+    /**
+     * Reads the next sample into input buffer {@code inputBufferId}, seeking back to the start
+     * at the end of the clip unless a frame cache is being filled. Returns true if EOS was queued.
+     */
+    private boolean queueSample(MediaCodec decoder, MediaExtractor extractor, int inputBufferId) {
+        ByteBuffer inputBuffer = decoder.getInputBuffer(inputBufferId);
+        long readStartNs = System.nanoTime();
+        int sampleSize = extractor.readSampleData(inputBuffer, 0);
+        if (sampleSize < 0 && frameCache == null) {
+            timeline.wrap();
+            extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            sampleSize = extractor.readSampleData(inputBuffer, 0);
+        }
+        if (sampleSize < 0) {
+            decoder.queueInputBuffer(inputBufferId, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return true;
+        }
+        long presentationTimeUs = timeline.onInputSample(extractor.getSampleTime());
+        metrics.recordSince(PipelineMetrics.EXTRACT, readStartNs);
+        int slot = sampleClockNext;
+        sampleClockNext = (slot + 1) % SAMPLE_CLOCK_SIZE;
+        sampleReadNs.set(slot, readStartNs);
+        samplePts.set(slot, presentationTimeUs);
+        decoder.queueInputBuffer(inputBufferId, 0, sampleSize, presentationTimeUs, 0);
+        extractor.advance();
+        return false;
+    }
+
+    /** When the sample with {@code ptsUs} was read, or now if it is no longer in the ring. */
+    private long sampleReadTime(long ptsUs) {
+        for (int i = 0; i < SAMPLE_CLOCK_SIZE; i++) {
+            if (samplePts.get(i) == ptsUs) {
+                long readNs = sampleReadNs.get(i);
+                if (readNs != 0) {
+                    return readNs;
+                }
+            }
+        }
+        return System.nanoTime();
+    }
+
+    // 一帧解码输出：按调度决定丢弃/显示/重复，转换后送出并归还输出缓冲
+    private void renderOutput(MediaCodec decoder, int outputBufferId, long presentationTimeUs) {
+        frameOriginNs = sampleReadTime(presentationTimeUs);
+        metrics.recordSince(PipelineMetrics.DECODE, frameOriginNs);
+        if (timeline.onOutputFrame(presentationTimeUs)) {
+            loopFrameCount = 0;
+            if (callback != null) {
+                callback.onFinishDecode();
+            }
+        }
+        loopFrameCount++;
+        if (callback != null) {
+            callback.onDecodeFrame(loopFrameCount);
+        }
+        int slots = scheduler.schedule(presentationTimeUs);
+        if (play_surf == null) {
+            Image image = decoder.getOutputImage(outputBufferId);
+            if (image == null) {
+                decoder.releaseOutputBuffer(outputBufferId, false);
+                return;
+            }
+            if (mQueue != null) {
+                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                byte[] arr = framePool.acquire(buffer.remaining());
+                buffer.get(arr);
+                try {
+                    mQueue.put(arr);
+                } catch (InterruptedException e) {
+                    framePool.release(arr);
+                    VLog.w("【decoder】帧入队被中断：{}", e);
+                }
+            }
+            byte[] nv21 = null;
+            // 要丢的帧不做转换，除非缓存还需要它
+            if (outputImageFormat != null && (slots > 0 || frameCache != null)) {
+                long convertStartNs = System.nanoTime();
+                nv21 = getDataFromImage(image, COLOR_FormatNV21);
+                metrics.recordSince(PipelineMetrics.CONVERT, convertStartNs);
+                if (frameCache != null && !frameCache.add(nv21, presentationTimeUs)) {
+                    VLog.i("【decoder】clip exceeds frame cache budget, decoding live");
+                    closeFrameCache();
+                }
+            }
+            image.close();
+            decoder.releaseOutputBuffer(outputBufferId, false);
+            presentFrame(nv21, presentationTimeUs, slots);
+        } else if (slots > 0) {
+            scheduler.awaitSlot(0);
+            decoder.releaseOutputBuffer(outputBufferId, true);
+            onPresented(presentationTimeUs);
+            holdRepeats(slots);
+        } else {
+            decoder.releaseOutputBuffer(outputBufferId, false);
+            metrics.onDropped(1);
+        }
+    }
+
+    // 把本线程自上次采样以来用掉的 CPU 时间记到统计里，每 STATS_LOG_FRAMES 帧打一次日志
+    private void sampleCpuTime() {
+        long now = Debug.threadCpuTimeNanos();
+        if (lastCpuSampleNs >= 0) {
+            decodeStats.addCpuNanos(now - lastCpuSampleNs);
+        }
+        lastCpuSampleNs = now;
+        long frames = decodeStats.getFrames();
+        if (frames - lastStatsLogFrames >= STATS_LOG_FRAMES) {
+            lastStatsLogFrames = frames;
+            VLog.i("【decoder】解码统计：{}", decodeStats);
+        }
+    }
+
+    private static final class AsyncOutput {
+        static final AsyncOutput ERROR = new AsyncOutput(-1, 0, 0, 0);
+
+        final int index;
+        final long presentationTimeUs;
+        final int size;
+        final int flags;
+
+        AsyncOutput(int index, long presentationTimeUs, int size, int flags) {
+            this.index = index;
+            this.presentationTimeUs = presentationTimeUs;
+            this.size = size;
+            this.flags = flags;
+        }
+    }
+
+    /**
+     * Runs on the codec handler thread. Input buffers are filled as soon as the codec hands them
+     * out; output buffers are queued for the decode thread, which owns pacing and conversion.
+     */
+    private final class AsyncDecodeCallback extends MediaCodec.Callback {
+        final MediaExtractor extractor;
+        final LinkedBlockingQueue<AsyncOutput> outputs = new LinkedBlockingQueue<>();
+        volatile boolean inputDone;
+        volatile MediaCodec.CodecException error;
+
+        AsyncDecodeCallback(MediaExtractor extractor) {
+            this.extractor = extractor;
+        }
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            if (stopDecode || inputDone) {
+                return;
+            }
+            long cpuStart = Debug.threadCpuTimeNanos();
+            try {
+                inputDone = queueSample(codec, extractor, index);
+            } catch (IllegalStateException e) {
+                // stop()/flush() 之后残留的回调
+                VLog.w("【decoder】停止后残留的输入回调：{}", e);
+            }
+            decodeStats.addCpuNanos(Debug.threadCpuTimeNanos() - cpuStart);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            outputs.offer(new AsyncOutput(index, info.presentationTimeUs, info.size, info.flags));
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            error = e;
+            outputs.offer(AsyncOutput.ERROR);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            if (VERBOSE) {
+                Log.d(TAG, "output format changed: " + format);
+            }
+        }
+    }
+
+    private void publishPreviewFrame(byte[] frame) {
+        // 换出来的帧没有读者在用，可以直接回池
+        byte[] displaced = HookMain.preview_exchange.publish(frame, presentWidth, presentHeight, frameOriginNs);
+        if (displaced == frame) {
+            metrics.onDropped(1);
+        }
+        framePool.release(displaced);
+    }
+
+    static int selectTrack(MediaExtractor extractor) {
         int numTracks = extractor.getTrackCount();
         for (int i = 0; i < numTracks; i++) {
             MediaFormat format = extractor.getTrackFormat(i);
@@ -278,7 +789,8 @@ public class VideoToFrames implements Runnable {
 
     private static final int COLOR_FormatYUV420888 = 0x21;
 
-    private static byte[] getDataFromImage(Image image, int colorFormat) {
+    private byte[] getDataFromImage(Image image, int colorFormat) {
+        FrameBufferPool pool = framePool;
         int imageFormat = image.getFormat();
         if (imageFormat == ImageFormat.YUV_420_888) {
             return getDataFromYUV420888(image);
@@ -294,8 +806,10 @@ public class VideoToFrames implements Runnable {
         int width = crop.width();
         int height = crop.height();
         Image.Plane[] planes = image.getPlanes();
-        byte[] data = new byte[width * height * ImageFormat.getBitsPerPixel(format) / 8];
-        byte[] rowData = new byte[planes[0].getRowStride()];
+        frameWidth = width;
+        frameHeight = height;
+        byte[] data = pool.acquire(width * height * ImageFormat.getBitsPerPixel(format) / 8);
+        byte[] rowData = pool.acquire(planes[0].getRowStride());
         if (VERBOSE) Log.v(TAG, "get data from " + planes.length + " planes");
         int channelOffset = 0;
         int outputStride = 1;
@@ -358,10 +872,38 @@ public class VideoToFrames implements Runnable {
             }
             if (VERBOSE) Log.v(TAG, "Finished reading data from plane " + i);
         }
+        pool.release(rowData);
         return data;
     }
 
+    private byte[] getDataFromYUV420888(Image image) {
+        Rect crop = image.getCropRect();
+        int width = crop.width();
+        int height = crop.height();
+        Image.Plane[] planes = image.getPlanes();
+
+        ByteBuffer yBuffer = planes[0].getBuffer();
+        ByteBuffer uBuffer = planes[1].getBuffer();
+        ByteBuffer vBuffer = planes[2].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        int uvRowStride = planes[1].getRowStride();
+        int uvPixelStride = planes[1].getPixelStride();
 
+        if (chromaLayout == Yuv420Converter.LAYOUT_UNKNOWN) {
+            chromaLayout = Yuv420Converter.detectChromaLayout(uBuffer, vBuffer, uvPixelStride);
+            VLog.i("【decoder】chroma layout {} pixelStride {}", chromaLayout, uvPixelStride);
+        }
+
+        frameWidth = width;
+        frameHeight = height;
+        byte[] nv21 = framePool.acquire(width * height * 3 / 2);
+        byte[] scratch = framePool.acquire(Math.max(yRowStride, uvRowStride));
+        Yuv420Converter.toNv21(yBuffer, yRowStride, planes[0].getPixelStride(),
+                uBuffer, vBuffer, uvRowStride, uvPixelStride,
+                crop.left, crop.top, width, height, chromaLayout, nv21, scratch);
+        framePool.release(scratch);
+        return nv21;
+    }
 }
 
 enum OutputImageFormat {
@@ -377,42 +919,4 @@ enum OutputImageFormat {
     public String toString() {
         return friendlyName;
     }
-
-    private static byte[] getDataFromYUV420888(Image image) {
-        Rect crop = image.getCropRect();
-        int width = crop.width();
-        int height = crop.height();
-        Image.Plane[] planes = image.getPlanes();
-        
-        byte[] nv21 = new byte[width * height * 3 / 2];
-        
-        ByteBuffer yBuffer = planes[0].getBuffer();
-        ByteBuffer uvBuffer = planes[1].getBuffer();
-        
-        int yRowStride = planes[0].getRowStride();
-        int uvRowStride = planes[1].getRowStride();
-        int uvPixelStride = planes[1].getPixelStride();
-        
-        int yIndex = 0;
-        int uvIndex = width * height;
-        
-        for (int row = 0; row < height; row++) {
-            int yBufferPos = yRowStride * (crop.top + row) + crop.left;
-            for (int col = 0; col < width; col++) {
-                nv21[yIndex++] = yBuffer.get(yBufferPos + col);
-            }
-        }
-        
-        for (int row = 0; row < height / 2; row++) {
-            int uvBufferPos = uvRowStride * (crop.top / 2 + row) + crop.left * uvPixelStride;
-            for (int col = 0; col < width / 2; col++) {
-                int vu = uvBuffer.get(uvBufferPos + col * uvPixelStride);
-                nv21[uvIndex++] = vu;
-                int cb = uvBuffer.get(uvBufferPos + col * uvPixelStride + 1);
-                nv21[uvIndex++] = cb;
-            }
-        }
-        
-        return nv21;
-    }
 }
@@ -0,0 +1,367 @@
+package com.w2016561536.vcam;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+/**
+ * Stride-aware YUV_420_888 to NV21 conversion working directly on the plane buffers.
+ * <p>
+ * Rows are moved with bulk {@code get(byte[], off, len)} calls. When the chroma planes are
+ * two overlapping views of one interleaved buffer (pixelStride 2, the usual decoder output)
+ * each chroma row is copied in one go from whichever view starts first, and only swapped
+ * in place when the memory order is UVUV rather than NV21's VUVU. Anything else goes
+ * through the per-pixel path, which is also kept as the reference implementation. Large
+ * frames are copied in row bands on {@link BandExecutor}.
+ */
+public final class Yuv420Converter {
+    /** Not probed yet, or the probe was inconclusive (e.g. flat grey chroma). */
+    public static final int LAYOUT_UNKNOWN = 0;
+    /** U and V are independent planes; each is read separately. */
+    public static final int LAYOUT_SEPARATE = 1;
+    /** V plane starts one byte before U: memory already is NV21 (VUVU...). */
+    public static final int LAYOUT_SEMI_PLANAR_VU = 2;
+    /** U plane starts one byte before V: memory is NV12 (UVUV...). */
+    public static final int LAYOUT_SEMI_PLANAR_UV = 3;
+
+    private static final int MAX_PROBE_BYTES = 64 * 1024;
+
+    // 每个调用线程一份带子参数，每个干活的线程一份缓冲区视图和 scratch，稳定后每帧不再分配
+    private static final ThreadLocal<Nv21Bands> bands = new ThreadLocal<Nv21Bands>() {
+        @Override
+        protected Nv21Bands initialValue() {
+            return new Nv21Bands();
+        }
+    };
+    private static final ThreadLocal<BandViews> views = new ThreadLocal<BandViews>() {
+        @Override
+        protected BandViews initialValue() {
+            return new BandViews();
+        }
+    };
+
+    private Yuv420Converter() {
+    }
+
+    /**
+     * Works out how the two chroma planes relate in memory. The result only depends on the
+     * producer, so callers should probe once and reuse any answer other than {@link #LAYOUT_UNKNOWN}.
+     */
+    public static int detectChromaLayout(ByteBuffer u, ByteBuffer v, int uvPixelStride) {
+        if (uvPixelStride != 2 || u.limit() < 2 || v.limit() < 2) {
+            return LAYOUT_SEPARATE;
+        }
+        if (!u.isReadOnly() && !v.isReadOnly()) {
+            try {
+                if (writeProbe(v, u)) {
+                    return LAYOUT_SEMI_PLANAR_VU;
+                }
+                if (writeProbe(u, v)) {
+                    return LAYOUT_SEMI_PLANAR_UV;
+                }
+                return LAYOUT_SEPARATE;
+            } catch (ReadOnlyBufferException ignored) {
+                // fall through to comparing contents
+            }
+        }
+        int n = Math.min(Math.min(u.limit(), v.limit()) - 1, MAX_PROBE_BYTES);
+        boolean vu = true;
+        boolean uv = true;
+        for (int k = 0; k < n && (vu || uv); k++) {
+            byte uk = u.get(k);
+            byte vk = v.get(k);
+            if (vu && uk != v.get(k + 1)) {
+                vu = false;
+            }
+            if (uv && vk != u.get(k + 1)) {
+                uv = false;
+            }
+        }
+        if (vu == uv) {
+            return vu ? LAYOUT_UNKNOWN : LAYOUT_SEPARATE;
+        }
+        return vu ? LAYOUT_SEMI_PLANAR_VU : LAYOUT_SEMI_PLANAR_UV;
+    }
+
+    // true if writing first[1] is visible as second[0], i.e. second starts one byte after first
+    private static boolean writeProbe(ByteBuffer first, ByteBuffer second) {
+        byte saved = first.get(1);
+        byte probe = (byte) ~second.get(0);
+        first.put(1, probe);
+        boolean overlaps = second.get(0) == probe;
+        first.put(1, saved);
+        return overlaps;
+    }
+
+    /**
+     * Converts the cropped region into {@code out} as NV21. {@code scratch} must hold at least
+     * {@code max(yRowStride, uvRowStride)} bytes. Buffer positions are modified.
+     */
+    public static void toNv21(ByteBuffer y, int yRowStride, int yPixelStride,
+                              ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+                              int cropLeft, int cropTop, int width, int height,
+                              int chromaLayout, byte[] out, byte[] scratch) {
+        toNv21(y, yRowStride, yPixelStride, u, v, uvRowStride, uvPixelStride, cropLeft, cropTop, width, height,
+                chromaLayout, out, scratch, BandExecutor.shared());
+    }
+
+    /**
+     * As above, copying bands of luma row pairs (with their chroma row) on {@code executor}.
+     * Bands other than the first read through duplicates of the buffers, so only the first
+     * band moves the callers' positions. Each thread keeps its duplicates and reuses them for
+     * as long as it is handed the same buffers.
+     */
+    public static void toNv21(ByteBuffer y, int yRowStride, int yPixelStride,
+                              ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+                              int cropLeft, int cropTop, int width, int height,
+                              int chromaLayout, byte[] out, byte[] scratch,
+                              BandExecutor executor) {
+        if (yPixelStride != 1) {
+            toNv21PerPixel(y, yRowStride, yPixelStride, u, v, uvRowStride, uvPixelStride,
+                    cropLeft, cropTop, width, height, out);
+            return;
+        }
+        int lumaSize = width * height;
+        Nv21Bands task = bands.get();
+        task.set(y, yRowStride, u, v, uvRowStride, uvPixelStride, cropLeft, cropTop, width, lumaSize,
+                chromaLayout, out, scratch);
+        try {
+            executor.run(height, 2, lumaSize + (long) lumaSize / 2, task);
+        } catch (IndexOutOfBoundsException | BufferUnderflowException | IllegalArgumentException e) {
+            toNv21PerPixel(y, yRowStride, yPixelStride, u, v, uvRowStride, uvPixelStride,
+                    cropLeft, cropTop, width, height, out);
+        } finally {
+            task.clear();
+        }
+    }
+
+    /** The arguments of one {@link #toNv21} call, reused by the calling thread. */
+    private static final class Nv21Bands implements BandExecutor.Band {
+        ByteBuffer y;
+        ByteBuffer u;
+        ByteBuffer v;
+        int yRowStride;
+        int uvRowStride;
+        int uvPixelStride;
+        int cropLeft;
+        int cropTop;
+        int width;
+        int lumaSize;
+        int chromaLayout;
+        byte[] out;
+        byte[] scratch;
+
+        void set(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+                 int cropLeft, int cropTop, int width, int lumaSize, int chromaLayout, byte[] out, byte[] scratch) {
+            this.y = y;
+            this.yRowStride = yRowStride;
+            this.u = u;
+            this.v = v;
+            this.uvRowStride = uvRowStride;
+            this.uvPixelStride = uvPixelStride;
+            this.cropLeft = cropLeft;
+            this.cropTop = cropTop;
+            this.width = width;
+            this.lumaSize = lumaSize;
+            this.chromaLayout = chromaLayout;
+            this.out = out;
+            this.scratch = scratch;
+        }
+
+        void clear() {
+            y = null;
+            u = null;
+            v = null;
+            out = null;
+            scratch = null;
+        }
+
+        @Override
+        public void run(int start, int end) {
+            boolean first = start == 0;
+            BandViews own = first ? null : views.get();
+            ByteBuffer by = first ? y : own.view(0, y);
+            ByteBuffer bu = first ? u : own.view(1, u);
+            ByteBuffer bv = first ? v : own.view(2, v);
+            copyLuma(by, yRowStride, cropLeft, cropTop, width, start, end, out);
+            switch (chromaLayout) {
+                case LAYOUT_SEMI_PLANAR_VU:
+                    copyInterleavedChroma(bv, bu, uvRowStride, cropLeft, cropTop, width, lumaSize,
+                            start / 2, end / 2, out, false);
+                    break;
+                case LAYOUT_SEMI_PLANAR_UV:
+                    copyInterleavedChroma(bu, bv, uvRowStride, cropLeft, cropTop, width, lumaSize,
+                            start / 2, end / 2, out, true);
+                    break;
+                default:
+                    copySeparateChroma(bu, bv, uvRowStride, uvPixelStride, cropLeft, cropTop, width,
+                            lumaSize, start / 2, end / 2, out, first ? scratch : own.scratch(scratch.length));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * A thread's duplicates of the plane buffers it last read, and its chroma scratch row.
+     * The duplicates are replaced when the caller moves on to other buffers.
+     */
+    private static final class BandViews {
+        final ByteBuffer[] sources = new ByteBuffer[3];
+        final ByteBuffer[] duplicates = new ByteBuffer[3];
+        byte[] scratch = new byte[0];
+
+        ByteBuffer view(int plane, ByteBuffer source) {
+            ByteBuffer duplicate = duplicates[plane];
+            if (sources[plane] != source) {
+                duplicate = source.duplicate();
+                sources[plane] = source;
+                duplicates[plane] = duplicate;
+            } else {
+                duplicate.limit(source.limit());
+            }
+            return duplicate;
+        }
+
+        byte[] scratch(int length) {
+            if (scratch.length < length) {
+                scratch = new byte[length];
+            }
+            return scratch;
+        }
+    }
+
+    private static void copyLuma(ByteBuffer y, int rowStride, int cropLeft, int cropTop,
+                                 int width, int rowStart, int rowEnd, byte[] out) {
+        int start = rowStride * cropTop + cropLeft;
+        if (rowStride == width) {
+            y.position(start + rowStart * width);
+            y.get(out, rowStart * width, width * (rowEnd - rowStart));
+            return;
+        }
+        for (int row = rowStart; row < rowEnd; row++) {
+            y.position(start + row * rowStride);
+            y.get(out, row * width, width);
+        }
+    }
+
+    // first is the view that starts lower in memory, so one of its rows is a whole interleaved
+    // chroma row; on the last row its limit may cut off the final byte, which belongs to second
+    private static void copyInterleavedChroma(ByteBuffer first, ByteBuffer second, int rowStride,
+                                              int cropLeft, int cropTop, int width, int lumaSize,
+                                              int rowStart, int rowEnd, byte[] out, boolean swap) {
+        int chromaWidth = width / 2;
+        int rowBytes = chromaWidth * 2;
+        int outIndex = lumaSize + rowStart * rowBytes;
+        for (int row = rowStart; row < rowEnd; row++) {
+            int rowOffset = rowStride * (cropTop / 2 + row) + (cropLeft / 2) * 2;
+            first.position(rowOffset);
+            int available = Math.min(rowBytes, first.remaining());
+            first.get(out, outIndex, available);
+            if (available < rowBytes) {
+                out[outIndex + rowBytes - 1] = second.get(rowOffset + rowBytes - 2);
+            }
+            outIndex += rowBytes;
+        }
+        if (swap) {
+            int end = lumaSize + rowEnd * rowBytes;
+            for (int i = lumaSize + rowStart * rowBytes; i < end; i += 2) {
+                byte t = out[i];
+                out[i] = out[i + 1];
+                out[i + 1] = t;
+            }
+        }
+    }
+
+    private static void copySeparateChroma(ByteBuffer u, ByteBuffer v, int rowStride, int pixelStride,
+                                           int cropLeft, int cropTop, int width, int lumaSize,
+                                           int rowStart, int rowEnd, byte[] out, byte[] scratch) {
+        int chromaWidth = width / 2;
+        int rowBytes = (chromaWidth - 1) * pixelStride + 1;
+        int outIndex = lumaSize + rowStart * chromaWidth * 2;
+        for (int row = rowStart; row < rowEnd; row++) {
+            int rowOffset = rowStride * (cropTop / 2 + row) + (cropLeft / 2) * pixelStride;
+            v.position(rowOffset);
+            v.get(scratch, 0, rowBytes);
+            for (int col = 0; col < chromaWidth; col++) {
+                out[outIndex + col * 2] = scratch[col * pixelStride];
+            }
+            u.position(rowOffset);
+            u.get(scratch, 0, rowBytes);
+            for (int col = 0; col < chromaWidth; col++) {
+                out[outIndex + col * 2 + 1] = scratch[col * pixelStride];
+            }
+            outIndex += chromaWidth * 2;
+        }
+    }
+
+    /**
+     * The inverse of {@link #toNv21}: lays an NV21 frame out into writable YUV_420_888 planes,
+     * e.g. an image dequeued from an ImageWriter. {@code scratch} must hold {@code width} bytes.
+     * Buffer positions are modified.
+     */
+    public static void fromNv21(byte[] src, int width, int height,
+                                ByteBuffer y, int yRowStride,
+                                ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+                                int chromaLayout, byte[] scratch) {
+        for (int row = 0; row < height; row++) {
+            y.position(row * yRowStride);
+            y.put(src, row * width, width);
+        }
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int rowBytes = chromaWidth * 2;
+        int srcIndex = width * height;
+        for (int row = 0; row < chromaHeight; row++) {
+            int rowStart = row * uvRowStride;
+            if (chromaLayout == LAYOUT_SEMI_PLANAR_VU) {
+                v.position(rowStart);
+                int room = Math.min(rowBytes, v.remaining());
+                v.put(src, srcIndex, room);
+                if (room < rowBytes) {
+                    u.put(rowStart + rowBytes - 2, src[srcIndex + rowBytes - 1]);
+                }
+            } else if (chromaLayout == LAYOUT_SEMI_PLANAR_UV) {
+                for (int i = 0; i < rowBytes; i += 2) {
+                    scratch[i] = src[srcIndex + i + 1];
+                    scratch[i + 1] = src[srcIndex + i];
+                }
+                u.position(rowStart);
+                int room = Math.min(rowBytes, u.remaining());
+                u.put(scratch, 0, room);
+                if (room < rowBytes) {
+                    v.put(rowStart + rowBytes - 2, scratch[rowBytes - 1]);
+                }
+            } else {
+                for (int col = 0; col < chromaWidth; col++) {
+                    v.put(rowStart + col * uvPixelStride, src[srcIndex + col * 2]);
+                    u.put(rowStart + col * uvPixelStride, src[srcIndex + col * 2 + 1]);
+                }
+            }
+            srcIndex += rowBytes;
+        }
+    }
+
+    /**
+     * Reference conversion with one absolute {@code get} per sample. Slow, but makes no
+     * assumption about strides or plane layout.
+     */
+    public static void toNv21PerPixel(ByteBuffer y, int yRowStride, int yPixelStride,
+                                      ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+                                      int cropLeft, int cropTop, int width, int height, byte[] out) {
+        int yIndex = 0;
+        for (int row = 0; row < height; row++) {
+            int pos = yRowStride * (cropTop + row) + cropLeft * yPixelStride;
+            for (int col = 0; col < width; col++) {
+                out[yIndex++] = y.get(pos + col * yPixelStride);
+            }
+        }
+        int uvIndex = width * height;
+        for (int row = 0; row < height / 2; row++) {
+            int pos = uvRowStride * (cropTop / 2 + row) + (cropLeft / 2) * uvPixelStride;
+            for (int col = 0; col < width / 2; col++) {
+                out[uvIndex++] = v.get(pos + col * uvPixelStride);
+                out[uvIndex++] = u.get(pos + col * uvPixelStride);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.w2016561536.vcam;
+
+/**
+ * 4:2:0 byte layouts passed between the pipeline stages. I420 and NV21 keep the values
+ * VideoToFrames has always used for COLOR_FormatI420 / COLOR_FormatNV21.
+ */
+public final class YuvFormat {
+    /** Y plane, then U plane, then V plane. */
+    public static final int I420 = 1;
+    /** Y plane, then interleaved V/U. Camera1 preview default. */
+    public static final int NV21 = 2;
+    /** Y plane, then interleaved U/V. */
+    public static final int NV12 = 3;
+
+    private YuvFormat() {
+    }
+
+    public static boolean isSupported(int format) {
+        return format == I420 || format == NV21 || format == NV12;
+    }
+
+    public static int frameSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    public static String name(int format) {
+        switch (format) {
+            case I420:
+                return "I420";
+            case NV21:
+                return "NV21";
+            case NV12:
+                return "NV12";
+            default:
+                return "format" + format;
+        }
+    }
+
+    /**
+     * Rearranges a frame between 4:2:0 layouts at the same size. {@code src} and {@code dst} must not overlap.
+     */
+    public static void repack(byte[] src, int srcFormat, byte[] dst, int dstFormat, int width, int height) {
+        int lumaSize = width * height;
+        int chromaSize = (width / 2) * (height / 2);
+        System.arraycopy(src, 0, dst, 0, lumaSize);
+        if (srcFormat == dstFormat) {
+            System.arraycopy(src, lumaSize, dst, lumaSize, chromaSize * 2);
+            return;
+        }
+        // 统一按 (源 U 下标, 源 V 下标, 步长) 读取，再按目标布局写出
+        int srcU;
+        int srcV;
+        int srcStep;
+        if (srcFormat == I420) {
+            srcU = lumaSize;
+            srcV = lumaSize + chromaSize;
+            srcStep = 1;
+        } else if (srcFormat == NV21) {
+            srcU = lumaSize + 1;
+            srcV = lumaSize;
+            srcStep = 2;
+        } else {
+            srcU = lumaSize;
+            srcV = lumaSize + 1;
+            srcStep = 2;
+        }
+        int dstU;
+        int dstV;
+        int dstStep;
+        if (dstFormat == I420) {
+            dstU = lumaSize;
+            dstV = lumaSize + chromaSize;
+            dstStep = 1;
+        } else if (dstFormat == NV21) {
+            dstU = lumaSize + 1;
+            dstV = lumaSize;
+            dstStep = 2;
+        } else {
+            dstU = lumaSize;
+            dstV = lumaSize + 1;
+            dstStep = 2;
+        }
+        for (int i = 0; i < chromaSize; i++) {
+            dst[dstU + i * dstStep] = src[srcU + i * srcStep];
+            dst[dstV + i * dstStep] = src[srcV + i * srcStep];
+        }
+    }
+}
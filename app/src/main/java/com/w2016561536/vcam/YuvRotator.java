@@ -0,0 +1,161 @@
+package com.w2016561536.vcam;
+
+/**
+ * Rotates 4:2:0 frames by a multiple of 90 degrees clockwise and optionally mirrors them
+ * (left-right, after the rotation), covering all eight orientations of a frame.
+ * <p>
+ * Every orientation is the same affine walk: source pixel (x, y) lands at
+ * {@code origin + x * stepX + y * stepY} of the destination plane, so one loop handles
+ * them all. The loop goes tile by tile so that a 90/270 degree turn, which writes down
+ * destination columns, keeps both the source rows and the destination columns of a tile
+ * in cache. Interleaved chroma moves as 2-byte pairs.
+ */
+public final class YuvRotator {
+    /** Source tile edge in samples; 32 rows of 32 columns stay well inside L1. */
+    static final int TILE = 32;
+
+    private YuvRotator() {
+    }
+
+    /** Normalises {@code degrees} to 0, 90, 180 or 270. */
+    public static int normalize(int degrees) {
+        return ((degrees % 360) + 360) % 360 / 90 * 90;
+    }
+
+    public static boolean isIdentity(int rotation, boolean mirror) {
+        return normalize(rotation) == 0 && !mirror;
+    }
+
+    /** Width of the output for a {@code width} x {@code height} frame. */
+    public static int outputWidth(int width, int height, int rotation) {
+        return normalize(rotation) % 180 == 0 ? width : height;
+    }
+
+    public static int outputHeight(int width, int height, int rotation) {
+        return normalize(rotation) % 180 == 0 ? height : width;
+    }
+
+    /**
+     * Clockwise rotation that turns an upright clip into what a camera with this sensor
+     * mounting would deliver, given the clip needs {@code sourceRotation} degrees clockwise
+     * to be upright (its track rotation metadata).
+     * <p>
+     * Apps turn back-camera frames by the sensor orientation and front-camera frames by its
+     * complement after mirroring them; the front camera therefore also needs
+     * {@code mirror = true} so the app ends up showing the clip as a player would.
+     */
+    public static int rotationForCamera(int sensorOrientation, boolean frontFacing, int sourceRotation) {
+        if (frontFacing) {
+            return normalize(sourceRotation + sensorOrientation);
+        }
+        return normalize(sourceRotation - sensorOrientation);
+    }
+
+    /**
+     * Writes {@code src} ({@code format}, width x height, both even) into {@code dst} rotated
+     * by {@code rotation} degrees clockwise and then mirrored if asked. {@code dst} is
+     * {@link #outputWidth} x {@link #outputHeight} in the same format and must not be {@code src}.
+     */
+    public static void transform(byte[] src, int format, int width, int height, byte[] dst, int rotation, boolean mirror) {
+        transform(src, format, width, height, dst, rotation, mirror, BandExecutor.shared());
+    }
+
+    /** As above, in bands of source row pairs on {@code executor}. */
+    public static void transform(final byte[] src, final int format, final int width, final int height,
+                                 final byte[] dst, int rotation, final boolean mirror, BandExecutor executor) {
+        final int r = normalize(rotation);
+        if (r == 0 && !mirror) {
+            System.arraycopy(src, 0, dst, 0, YuvFormat.frameSize(width, height));
+            return;
+        }
+        executor.run(height, 2, YuvFormat.frameSize(width, height), new BandExecutor.Band() {
+            @Override
+            public void run(int start, int end) {
+                transformRows(src, format, width, height, dst, r, mirror, start, end);
+            }
+        });
+    }
+
+    /** Source luma rows {@code [rowStart, rowEnd)} and their chroma rows; {@code rowStart} even. */
+    static void transformRows(byte[] src, int format, int width, int height, byte[] dst,
+                              int rotation, boolean mirror, int rowStart, int rowEnd) {
+        int lumaSize = width * height;
+        int cw = width / 2;
+        int ch = height / 2;
+        int chromaStart = rowStart / 2;
+        int chromaEnd = Math.min(ch, (rowEnd + 1) / 2);
+        plane(src, 0, width, height, 1, dst, 0, rotation, mirror, rowStart, rowEnd);
+        if (format == YuvFormat.I420) {
+            int chromaSize = cw * ch;
+            plane(src, lumaSize, cw, ch, 1, dst, lumaSize, rotation, mirror, chromaStart, chromaEnd);
+            plane(src, lumaSize + chromaSize, cw, ch, 1, dst, lumaSize + chromaSize, rotation, mirror, chromaStart, chromaEnd);
+        } else {
+            plane(src, lumaSize, cw, ch, 2, dst, lumaSize, rotation, mirror, chromaStart, chromaEnd);
+        }
+    }
+
+    /**
+     * Moves rows {@code [rowStart, rowEnd)} of a {@code w} x {@code h} plane of
+     * {@code pixelBytes}-byte samples.
+     */
+    private static void plane(byte[] src, int srcOffset, int w, int h, int pixelBytes, byte[] dst, int dstOffset,
+                              int rotation, boolean mirror, int rowStart, int rowEnd) {
+        int dw = rotation % 180 == 0 ? w : h;
+        int origin = index(0, 0, w, h, dw, rotation, mirror);
+        int stepX = index(1, 0, w, h, dw, rotation, mirror) - origin;
+        int stepY = index(0, 1, w, h, dw, rotation, mirror) - origin;
+        int rowBytes = w * pixelBytes;
+        for (int ty = rowStart; ty < rowEnd; ty += TILE) {
+            int tyEnd = Math.min(ty + TILE, rowEnd);
+            for (int tx = 0; tx < w; tx += TILE) {
+                int txEnd = Math.min(tx + TILE, w);
+                for (int y = ty; y < tyEnd; y++) {
+                    int s = srcOffset + y * rowBytes + tx * pixelBytes;
+                    int d = origin + tx * stepX + y * stepY;
+                    if (pixelBytes == 1) {
+                        for (int x = tx; x < txEnd; x++) {
+                            dst[dstOffset + d] = src[s++];
+                            d += stepX;
+                        }
+                    } else {
+                        for (int x = tx; x < txEnd; x++) {
+                            int p = dstOffset + d * 2;
+                            dst[p] = src[s];
+                            dst[p + 1] = src[s + 1];
+                            s += 2;
+                            d += stepX;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /** Destination sample index of source sample (x, y). */
+    private static int index(int x, int y, int w, int h, int dw, int rotation, boolean mirror) {
+        int dx;
+        int dy;
+        switch (rotation) {
+            case 90:
+                dx = h - 1 - y;
+                dy = x;
+                break;
+            case 180:
+                dx = w - 1 - x;
+                dy = h - 1 - y;
+                break;
+            case 270:
+                dx = y;
+                dy = w - 1 - x;
+                break;
+            default:
+                dx = x;
+                dy = y;
+                break;
+        }
+        if (mirror) {
+            dx = dw - 1 - dx;
+        }
+        return dy * dw + dx;
+    }
+}
@@ -0,0 +1,419 @@
+package com.w2016561536.vcam;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fixed-point scaler for 4:2:0 frames (see {@link YuvFormat}), with center crop.
+ * <p>
+ * When the aspect ratios differ, the largest centered source rectangle with the target's
+ * aspect ratio is used, so frames are cropped rather than stretched. Each plane is then
+ * resampled with one of three filters: {@link #MODE_NEAREST}, {@link #MODE_BILINEAR} (8-bit
+ * weights) or {@link #MODE_BOX} (area average, for downscaling by 2x or more). Source and
+ * target layouts may differ, so scaling and repacking happen in one pass.
+ * <p>
+ * Per-column and per-row source positions and weights only depend on the sizes and the mode.
+ * They are computed once per (source size, target size, mode) and cached, so the per-frame
+ * loops contain no divisions. Output goes to a caller-provided buffer; large frames are
+ * split into row bands on {@link BandExecutor}. Once warm a call allocates nothing: the band
+ * arguments are reused per calling thread and the box filter's column sums per working thread.
+ */
+public final class YuvScaler {
+    public static final int MODE_NEAREST = 0;
+    public static final int MODE_BILINEAR = 1;
+    public static final int MODE_BOX = 2;
+
+    private static final int MAX_CACHED_PLANS = 32;
+    private static final ConcurrentHashMap<PlanKey, Plan> plans = new ConcurrentHashMap<>();
+    // 连续的帧几乎总是同一组尺寸，先比上一次的，省得每帧 new 一个 PlanKey 去查表
+    private static volatile Plan lastPlan;
+    private static final ThreadLocal<ScaleBands> bands = new ThreadLocal<ScaleBands>() {
+        @Override
+        protected ScaleBands initialValue() {
+            return new ScaleBands();
+        }
+    };
+    private static final ThreadLocal<int[]> boxSums = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[0];
+        }
+    };
+
+    private YuvScaler() {
+    }
+
+    /** Resampling table for one axis of one plane. */
+    static final class Axis {
+        /** Nearest/bilinear: first source sample. Box: first source sample of the span. */
+        final int[] first;
+        /** Bilinear: second source sample (clamped). Box: end of the span, exclusive. */
+        final int[] second;
+        /** Bilinear: weight of {@link #second} in 1/256. Box: 65536 / span length. */
+        final int[] weight;
+        /** Box: span length if it is the same for every output sample, else 0. */
+        int uniformSpan;
+
+        Axis(int size) {
+            first = new int[size];
+            second = new int[size];
+            weight = new int[size];
+        }
+    }
+
+    /** Everything needed to scale one (source size, target size, mode) combination. */
+    static final class Plan {
+        final PlanKey key;
+        final int mode;
+        final int cropX;
+        final int cropY;
+        final int cropWidth;
+        final int cropHeight;
+        final Axis lumaX;
+        final Axis lumaY;
+        final Axis chromaX;
+        final Axis chromaY;
+
+        Plan(int srcWidth, int srcHeight, int dstWidth, int dstHeight, int mode) {
+            this.key = new PlanKey(srcWidth, srcHeight, dstWidth, dstHeight, mode);
+            this.mode = mode;
+            int[] crop = centerCrop(srcWidth, srcHeight, dstWidth, dstHeight);
+            cropX = crop[0];
+            cropY = crop[1];
+            cropWidth = crop[2];
+            cropHeight = crop[3];
+            lumaX = axis(mode, cropWidth, dstWidth);
+            lumaY = axis(mode, cropHeight, dstHeight);
+            chromaX = axis(mode, cropWidth / 2, dstWidth / 2);
+            chromaY = axis(mode, cropHeight / 2, dstHeight / 2);
+        }
+    }
+
+    private static final class PlanKey {
+        final int srcWidth;
+        final int srcHeight;
+        final int dstWidth;
+        final int dstHeight;
+        final int mode;
+
+        PlanKey(int srcWidth, int srcHeight, int dstWidth, int dstHeight, int mode) {
+            this.srcWidth = srcWidth;
+            this.srcHeight = srcHeight;
+            this.dstWidth = dstWidth;
+            this.dstHeight = dstHeight;
+            this.mode = mode;
+        }
+
+        boolean matches(int srcWidth, int srcHeight, int dstWidth, int dstHeight, int mode) {
+            return this.srcWidth == srcWidth && this.srcHeight == srcHeight && this.dstWidth == dstWidth
+                    && this.dstHeight == dstHeight && this.mode == mode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PlanKey)) {
+                return false;
+            }
+            PlanKey k = (PlanKey) o;
+            return matches(k.srcWidth, k.srcHeight, k.dstWidth, k.dstHeight, k.mode);
+        }
+
+        @Override
+        public int hashCode() {
+            return (((srcWidth * 31 + srcHeight) * 31 + dstWidth) * 31 + dstHeight) * 31 + mode;
+        }
+    }
+
+    /**
+     * Box when shrinking to half or less on both axes, bilinear otherwise.
+     */
+    public static int pickMode(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        return srcWidth >= dstWidth * 2 && srcHeight >= dstHeight * 2 ? MODE_BOX : MODE_BILINEAR;
+    }
+
+    /**
+     * Scales {@code src} ({@code srcFormat}, srcWidth x srcHeight) into {@code dst}
+     * ({@code dstFormat}, dstWidth x dstHeight), center-cropping any aspect ratio difference.
+     * All sizes must be even; {@code dst} must hold at least {@link YuvFormat#frameSize} bytes.
+     */
+    public static void scale(byte[] src, int srcFormat, int srcWidth, int srcHeight,
+                             byte[] dst, int dstFormat, int dstWidth, int dstHeight, int mode) {
+        scale(src, srcFormat, srcWidth, srcHeight, dst, dstFormat, dstWidth, dstHeight, mode, BandExecutor.shared());
+    }
+
+    /**
+     * As above, splitting the target into bands of luma row pairs on {@code executor}. Every
+     * output row only depends on the tables and the source, so the result is the same for any
+     * number of bands.
+     */
+    public static void scale(byte[] src, int srcFormat, int srcWidth, int srcHeight,
+                             byte[] dst, int dstFormat, int dstWidth, int dstHeight, int mode,
+                             BandExecutor executor) {
+        if (srcWidth == dstWidth && srcHeight == dstHeight) {
+            YuvFormat.repack(src, srcFormat, dst, dstFormat, dstWidth, dstHeight);
+            return;
+        }
+        Plan plan = plan(srcWidth, srcHeight, dstWidth, dstHeight, mode);
+
+        int srcLuma = srcWidth * srcHeight;
+        int dstLuma = dstWidth * dstHeight;
+        int srcChroma = (srcWidth / 2) * (srcHeight / 2);
+        int dstChroma = (dstWidth / 2) * (dstHeight / 2);
+        ScaleBands task = bands.get();
+        task.plan = plan;
+        task.src = src;
+        task.srcWidth = srcWidth;
+        task.dst = dst;
+        task.dstWidth = dstWidth;
+        task.srcStride = srcFormat == YuvFormat.I420 ? srcWidth / 2 : srcWidth;
+        task.srcStep = srcFormat == YuvFormat.I420 ? 1 : 2;
+        task.dstStride = dstFormat == YuvFormat.I420 ? dstWidth / 2 : dstWidth;
+        task.dstStep = dstFormat == YuvFormat.I420 ? 1 : 2;
+        task.srcU = uOffset(srcFormat, srcLuma, srcChroma);
+        task.srcV = vOffset(srcFormat, srcLuma, srcChroma);
+        task.dstU = uOffset(dstFormat, dstLuma, dstChroma);
+        task.dstV = vOffset(dstFormat, dstLuma, dstChroma);
+        try {
+            // 按亮度行对切带，每条带同时做对应的色度行
+            executor.run(dstHeight, 2, YuvFormat.frameSize(dstWidth, dstHeight), task);
+        } finally {
+            task.plan = null;
+            task.src = null;
+            task.dst = null;
+        }
+    }
+
+    /** The arguments of one {@link #scale} call, reused by the calling thread. */
+    private static final class ScaleBands implements BandExecutor.Band {
+        Plan plan;
+        byte[] src;
+        int srcWidth;
+        byte[] dst;
+        int dstWidth;
+        int srcStride;
+        int srcStep;
+        int dstStride;
+        int dstStep;
+        int srcU;
+        int srcV;
+        int dstU;
+        int dstV;
+
+        @Override
+        public void run(int start, int end) {
+            int cx = plan.cropX / 2;
+            int cy = plan.cropY / 2;
+            int cw = dstWidth / 2;
+            scalePlane(plan, plan.lumaX, plan.lumaY, src, 0, srcWidth, 1, plan.cropX, plan.cropY,
+                    dst, 0, dstWidth, 1, dstWidth, start, end);
+            scalePlane(plan, plan.chromaX, plan.chromaY, src, srcU, srcStride, srcStep,
+                    cx, cy, dst, dstU, dstStride, dstStep, cw, start / 2, end / 2);
+            scalePlane(plan, plan.chromaX, plan.chromaY, src, srcV, srcStride, srcStep,
+                    cx, cy, dst, dstV, dstStride, dstStep, cw, start / 2, end / 2);
+        }
+    }
+
+    /**
+     * The centered source rectangle {x, y, width, height} with the target's aspect ratio, on even coordinates.
+     */
+    public static int[] centerCrop(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        int cropWidth = srcWidth;
+        int cropHeight = srcHeight;
+        long a = (long) srcWidth * dstHeight;
+        long b = (long) srcHeight * dstWidth;
+        if (a > b) {
+            // 源更宽，裁左右
+            cropWidth = (int) (b / dstHeight) & ~1;
+        } else if (a < b) {
+            cropHeight = (int) (a / dstWidth) & ~1;
+        }
+        cropWidth = Math.max(cropWidth, 2);
+        cropHeight = Math.max(cropHeight, 2);
+        int x = ((srcWidth - cropWidth) / 2) & ~1;
+        int y = ((srcHeight - cropHeight) / 2) & ~1;
+        return new int[]{x, y, cropWidth, cropHeight};
+    }
+
+    static Plan plan(int srcWidth, int srcHeight, int dstWidth, int dstHeight, int mode) {
+        Plan plan = lastPlan;
+        if (plan != null && plan.key.matches(srcWidth, srcHeight, dstWidth, dstHeight, mode)) {
+            return plan;
+        }
+        PlanKey key = new PlanKey(srcWidth, srcHeight, dstWidth, dstHeight, mode);
+        plan = plans.get(key);
+        if (plan == null) {
+            if (plans.size() >= MAX_CACHED_PLANS) {
+                plans.clear();
+            }
+            plan = new Plan(srcWidth, srcHeight, dstWidth, dstHeight, mode);
+            plans.put(plan.key, plan);
+        }
+        lastPlan = plan;
+        return plan;
+    }
+
+    static Axis axis(int mode, int src, int dst) {
+        Axis axis = new Axis(dst);
+        for (int i = 0; i < dst; i++) {
+            if (mode == MODE_BOX) {
+                int start = (int) ((long) i * src / dst);
+                int end = (int) ((long) (i + 1) * src / dst);
+                if (end <= start) {
+                    end = Math.min(start + 1, src);
+                }
+                axis.first[i] = start;
+                axis.second[i] = end;
+                axis.weight[i] = (65536 + (end - start) / 2) / (end - start);
+                if (i == 0) {
+                    axis.uniformSpan = end - start;
+                } else if (axis.uniformSpan != end - start) {
+                    axis.uniformSpan = 0;
+                }
+            } else if (mode == MODE_NEAREST) {
+                int s = (int) ((2L * i + 1) * src / (2L * dst));
+                axis.first[i] = Math.min(s, src - 1);
+            } else {
+                // 像素中心对齐：s = (i + 0.5) * src / dst - 0.5，16.16 定点
+                long pos = ((2L * i + 1) * src << 16) / (2L * dst) - 32768;
+                if (pos < 0) {
+                    pos = 0;
+                }
+                int s = (int) (pos >> 16);
+                int w = (int) ((pos >> 8) & 0xff);
+                if (s >= src - 1) {
+                    s = src - 1;
+                    w = 0;
+                }
+                axis.first[i] = s;
+                axis.second[i] = Math.min(s + 1, src - 1);
+                axis.weight[i] = w;
+            }
+        }
+        return axis;
+    }
+
+    private static void scalePlane(Plan plan, Axis ax, Axis ay, byte[] src, int srcOffset, int srcRowStride,
+                                   int srcStep, int cropX, int cropY, byte[] dst, int dstOffset, int dstRowStride,
+                                   int dstStep, int width, int rowStart, int rowEnd) {
+        int base = srcOffset + cropY * srcRowStride + cropX * srcStep;
+        switch (plan.mode) {
+            case MODE_NEAREST:
+                nearest(ax, ay, src, base, srcRowStride, srcStep, dst, dstOffset, dstRowStride, dstStep, width,
+                        rowStart, rowEnd);
+                break;
+            case MODE_BOX:
+                box(ax, ay, src, base, srcRowStride, srcStep, dst, dstOffset, dstRowStride, dstStep, width,
+                        rowStart, rowEnd);
+                break;
+            default:
+                bilinear(ax, ay, src, base, srcRowStride, srcStep, dst, dstOffset, dstRowStride, dstStep, width,
+                        rowStart, rowEnd);
+                break;
+        }
+    }
+
+    private static void nearest(Axis ax, Axis ay, byte[] src, int base, int srcRowStride, int srcStep,
+                                byte[] dst, int dstOffset, int dstRowStride, int dstStep, int width,
+                                int rowStart, int rowEnd) {
+        int[] xs = ax.first;
+        for (int y = rowStart; y < rowEnd; y++) {
+            int row = base + ay.first[y] * srcRowStride;
+            int d = dstOffset + y * dstRowStride;
+            for (int x = 0; x < width; x++) {
+                dst[d] = src[row + xs[x] * srcStep];
+                d += dstStep;
+            }
+        }
+    }
+
+    private static void bilinear(Axis ax, Axis ay, byte[] src, int base, int srcRowStride, int srcStep,
+                                 byte[] dst, int dstOffset, int dstRowStride, int dstStep, int width,
+                                 int rowStart, int rowEnd) {
+        int[] x0 = ax.first;
+        int[] x1 = ax.second;
+        int[] wx = ax.weight;
+        for (int y = rowStart; y < rowEnd; y++) {
+            int row0 = base + ay.first[y] * srcRowStride;
+            int row1 = base + ay.second[y] * srcRowStride;
+            int wy = ay.weight[y];
+            int d = dstOffset + y * dstRowStride;
+            for (int x = 0; x < width; x++) {
+                int i0 = x0[x] * srcStep;
+                int i1 = x1[x] * srcStep;
+                int w = wx[x];
+                int a = src[row0 + i0] & 0xff;
+                int b = src[row0 + i1] & 0xff;
+                int c = src[row1 + i0] & 0xff;
+                int e = src[row1 + i1] & 0xff;
+                int top = (a << 8) + (b - a) * w;
+                int bottom = (c << 8) + (e - c) * w;
+                dst[d] = (byte) (((top << 8) + (bottom - top) * wy + 32768) >> 16);
+                d += dstStep;
+            }
+        }
+    }
+
+    private static void box(Axis ax, Axis ay, byte[] src, int base, int srcRowStride, int srcStep,
+                            byte[] dst, int dstOffset, int dstRowStride, int dstStep, int width,
+                            int rowStart, int rowEnd) {
+        int[] xStart = ax.first;
+        int[] xEnd = ax.second;
+        int[] xRecip = ax.weight;
+        int[] sums = boxSums.get();
+        if (sums.length < width) {
+            sums = new int[width];
+            boxSums.set(sums);
+        }
+        for (int y = rowStart; y < rowEnd; y++) {
+            java.util.Arrays.fill(sums, 0, width, 0);
+            // 逐行顺序读源，按列累加，避免跨行跳着读
+            for (int sy = ay.first[y]; sy < ay.second[y]; sy++) {
+                int row = base + sy * srcRowStride;
+                if (ax.uniformSpan == 2) {
+                    // 2:1 抽取最常见，单独展开
+                    int p = row + xStart[0] * srcStep;
+                    for (int x = 0; x < width; x++) {
+                        sums[x] += (src[p] & 0xff) + (src[p + srcStep] & 0xff);
+                        p += srcStep << 1;
+                    }
+                    continue;
+                }
+                for (int x = 0; x < width; x++) {
+                    int sum = 0;
+                    int end = row + xEnd[x] * srcStep;
+                    for (int i = row + xStart[x] * srcStep; i < end; i += srcStep) {
+                        sum += src[i] & 0xff;
+                    }
+                    sums[x] += sum;
+                }
+            }
+            long yRecip = ay.weight[y];
+            int d = dstOffset + y * dstRowStride;
+            for (int x = 0; x < width; x++) {
+                dst[d] = (byte) (((long) sums[x] * xRecip[x] * yRecip + (1L << 31)) >> 32);
+                d += dstStep;
+            }
+        }
+    }
+
+    private static int uOffset(int format, int lumaSize, int chromaSize) {
+        switch (format) {
+            case YuvFormat.I420:
+                return lumaSize;
+            case YuvFormat.NV21:
+                return lumaSize + 1;
+            default:
+                return lumaSize;
+        }
+    }
+
+    private static int vOffset(int format, int lumaSize, int chromaSize) {
+        switch (format) {
+            case YuvFormat.I420:
+                return lumaSize + chromaSize;
+            case YuvFormat.NV21:
+                return lumaSize;
+            default:
+                return lumaSize + 1;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BandExecutorTest {
+    // 1、2、4、8 个线程（含调用方）
+    private static final int[] WORKERS = {0, 1, 3, 7};
+
+    private static BandExecutor splitting(int workers) {
+        return new BandExecutor(workers, 1);
+    }
+
+    @Test
+    public void bandsCoverEveryRowOnceOnAlignedBoundaries() {
+        BandExecutor executor = splitting(3);
+        for (int rows : new int[]{2, 7, 100, 1081}) {
+            final List<int[]> bands = Collections.synchronizedList(new ArrayList<int[]>());
+            executor.run(rows, 2, rows * 1000L, (start, end) -> bands.add(new int[]{start, end}));
+            Collections.sort(bands, (a, b) -> a[0] - b[0]);
+            int expected = 0;
+            for (int[] band : bands) {
+                assertEquals(expected, band[0]);
+                assertEquals(0, band[0] % 2);
+                assertTrue(band[1] > band[0]);
+                expected = band[1];
+            }
+            assertEquals(rows, expected);
+            assertTrue(bands.size() <= executor.getParallelism() * 2);
+        }
+    }
+
+    @Test
+    public void smallWorkStaysOnTheCallingThread() {
+        BandExecutor executor = new BandExecutor(3, 1000);
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger calls = new AtomicInteger();
+        executor.run(100, 2, 999, (start, end) -> {
+            assertSame(caller, Thread.currentThread());
+            assertEquals(0, start);
+            assertEquals(100, end);
+            calls.incrementAndGet();
+        });
+        assertEquals(1, calls.get());
+        assertEquals(1, executor.bandCount(100, 2, 1999));
+        assertEquals(2, executor.bandCount(100, 2, 2000));
+        assertEquals(1, new BandExecutor(0, 1).bandCount(100, 2, 1 << 30));
+    }
+
+    @Test
+    public void failuresAreRethrownToTheCaller() {
+        BandExecutor executor = splitting(3);
+        try {
+            executor.run(64, 2, 1 << 20, (start, end) -> {
+                if (start > 0) {
+                    throw new IndexOutOfBoundsException("band " + start);
+                }
+            });
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+            assertTrue(expected.getMessage().startsWith("band "));
+        }
+    }
+
+    @Test
+    public void nestedCallsDoNotDeadlock() {
+        final BandExecutor executor = splitting(1);
+        final AtomicInteger rows = new AtomicInteger();
+        executor.run(8, 2, 1 << 20, (start, end) ->
+                executor.run(end - start, 1, 1 << 20, (s, e) -> rows.addAndGet(e - s)));
+        assertEquals(8, rows.get());
+    }
+
+    @Test
+    public void scalerOutputDoesNotDependOnThreadCount() {
+        byte[] src = YuvScalerTest.testImage(640, 360, 5);
+        int[][] targets = {{320, 240}, {200, 150}, {1280, 720}, {96, 54}};
+        for (int mode : new int[]{YuvScaler.MODE_NEAREST, YuvScaler.MODE_BILINEAR, YuvScaler.MODE_BOX}) {
+            for (int[] t : targets) {
+                byte[] expected = new byte[YuvFormat.frameSize(t[0], t[1])];
+                YuvScaler.scale(src, YuvFormat.NV21, 640, 360, expected, YuvFormat.I420, t[0], t[1], mode,
+                        new BandExecutor(0, 1));
+                for (int workers : WORKERS) {
+                    byte[] actual = new byte[expected.length];
+                    YuvScaler.scale(src, YuvFormat.NV21, 640, 360, actual, YuvFormat.I420, t[0], t[1], mode,
+                            splitting(workers));
+                    assertArrayEquals("mode " + mode + " " + t[0] + "x" + t[1] + " workers " + workers,
+                            expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void converterOutputDoesNotDependOnThreadCount() {
+        Yuv420ConverterTest.Planes[] inputs = {
+                Yuv420ConverterTest.semiPlanar(320, 240, 384, true, 11),
+                Yuv420ConverterTest.semiPlanar(320, 240, 320, false, 12),
+                Yuv420ConverterTest.planar(320, 240, 352, 13),
+        };
+        int[] layouts = {Yuv420Converter.LAYOUT_SEMI_PLANAR_VU, Yuv420Converter.LAYOUT_SEMI_PLANAR_UV,
+                Yuv420Converter.LAYOUT_SEPARATE};
+        for (int k = 0; k < inputs.length; k++) {
+            Yuv420ConverterTest.Planes p = inputs[k];
+            byte[] expected = Yuv420ConverterTest.reference(p, 4, 2, 300, 226);
+            for (int workers : WORKERS) {
+                byte[] actual = new byte[expected.length];
+                byte[] scratch = new byte[Math.max(p.yRowStride, p.uvRowStride)];
+                Yuv420Converter.toNv21(p.y, p.yRowStride, 1, p.u, p.v, p.uvRowStride, p.uvPixelStride,
+                        4, 2, 300, 226, layouts[k], actual, scratch, splitting(workers));
+                assertArrayEquals("layout " + layouts[k] + " workers " + workers, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void helpersThatDoNotFitTheQueueAreCounted() throws Exception {
+        BandExecutor executor = splitting(1);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        // 两条带子都卡住：调用方卡在一条，唯一的工作线程卡在另一条，后面排的帮手都出不了队
+        Thread blocked = new Thread(() -> executor.run(2, 1, 2, (start, end) -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        blocked.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        AtomicInteger rows = new AtomicInteger();
+        for (int i = 0; i < 6; i++) {
+            executor.run(2, 1, 2, (start, end) -> rows.addAndGet(end - start));
+        }
+        // 队列放得下 4 个，多出来的 2 个被丢弃，带子都由调用方做完
+        assertEquals(12, rows.get());
+        assertEquals(2, executor.getDroppedHelperCount());
+        release.countDown();
+        blocked.join(5000);
+        assertFalse(blocked.isAlive());
+    }
+
+    /**
+     * The banded conversions run once per frame on the decoder thread: after warming up, neither
+     * the caller nor the band workers may allocate per call.
+     */
+    @Test
+    public void bandedConversionAndScalingDoNotAllocate() {
+        BandExecutor executor = new BandExecutor(2, 1);
+        Yuv420ConverterTest.Planes p = Yuv420ConverterTest.semiPlanar(1920, 1080, 2048, true, 7);
+        int layout = Yuv420Converter.detectChromaLayout(p.u, p.v, p.uvPixelStride);
+        byte[] nv21 = new byte[1920 * 1080 * 3 / 2];
+        byte[] scratch = new byte[2048];
+        byte[] scaled = new byte[1280 * 720 * 3 / 2];
+        byte[] half = new byte[960 * 540 * 3 / 2];
+        Runnable frame = () -> {
+            Yuv420Converter.toNv21(p.y, p.yRowStride, 1, p.u, p.v, p.uvRowStride, p.uvPixelStride,
+                    0, 0, 1920, 1080, layout, nv21, scratch, executor);
+            Yuv420Converter.toNv21(p.y, p.yRowStride, 1, p.u, p.v, p.uvRowStride, p.uvPixelStride,
+                    0, 0, 1920, 1080, Yuv420Converter.LAYOUT_SEPARATE, nv21, scratch, executor);
+            YuvScaler.scale(nv21, YuvFormat.NV21, 1920, 1080, scaled, YuvFormat.NV21, 1280, 720,
+                    YuvScaler.MODE_BILINEAR, executor);
+            YuvScaler.scale(nv21, YuvFormat.NV21, 1920, 1080, half, YuvFormat.NV21, 960, 540,
+                    YuvScaler.MODE_BOX, executor);
+        };
+        for (int i = 0; i < 50; i++) {
+            frame.run();
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        long caller = Thread.currentThread().getId();
+        long[] workers = bandThreadIds();
+        long before = sunThreads.getThreadAllocatedBytes(caller) + sum(sunThreads.getThreadAllocatedBytes(workers));
+        int frames = 200;
+        for (int i = 0; i < frames; i++) {
+            frame.run();
+        }
+        long allocated = sunThreads.getThreadAllocatedBytes(caller) + sum(sunThreads.getThreadAllocatedBytes(workers)) - before;
+
+        assertTrue(workers.length > 0);
+        // 剩下的只有线程池队列的锁和等待节点（每次交接几十字节）；以前每帧要新建 job、
+        // 缓冲区视图、色度 scratch 和 box 的列和，合计几十 KB
+        assertTrue("allocated " + allocated + " bytes over " + frames + " frames", allocated < frames * 1024L);
+    }
+
+    private static long[] bandThreadIds() {
+        java.util.List<Long> ids = new java.util.ArrayList<>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("vcam-band-")) {
+                ids.add(t.getId());
+            }
+        }
+        long[] result = new long[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+    private static long sum(long[] values) {
+        long total = 0;
+        for (long v : values) {
+            total += Math.max(0, v);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,20 @@
+package com.w2016561536.vcam;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Switch for the timing benchmarks. Wall-clock numbers depend on the machine and on what else
+ * it is doing, so the benchmarks only print them and never assert on them, and they are
+ * skipped unless the {@code vcam.benchmark} system property is true:
+ * {@code ./gradlew testDebugUnitTest -Dvcam.benchmark=true --tests '*Benchmark'}.
+ */
+final class Benchmarks {
+    static final String PROPERTY = "vcam.benchmark";
+
+    private Benchmarks() {
+    }
+
+    static void assumeEnabled() {
+        assumeTrue("set -D" + PROPERTY + "=true to run", Boolean.getBoolean(PROPERTY));
+    }
+}
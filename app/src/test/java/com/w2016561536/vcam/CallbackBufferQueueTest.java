@@ -0,0 +1,58 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CallbackBufferQueueTest {
+    @Test
+    public void appBuffersComeBackInQueueOrderBehindOneDecoy() {
+        CallbackBufferQueue queue = new CallbackBufferQueue();
+        byte[] a = new byte[12];
+        byte[] b = new byte[12];
+        byte[] decoy = queue.enqueue(a);
+        assertSame(decoy, queue.enqueue(b));
+        assertNotSame(a, decoy);
+        assertTrue(queue.isDecoy(decoy));
+        assertFalse(queue.isDecoy(a));
+
+        assertSame(a, queue.take(decoy));
+        // 应用把用完的缓冲还回来，不会分配新的诱饵
+        assertSame(decoy, queue.enqueue(a));
+        assertSame(b, queue.take(decoy));
+        assertSame(a, queue.take(decoy));
+        assertEquals(3, queue.getDeliveredCount());
+        assertEquals(0, queue.getStarvationCount());
+    }
+
+    @Test
+    public void emptyQueueCountsStarvation() {
+        CallbackBufferQueue queue = new CallbackBufferQueue();
+        byte[] decoy = queue.enqueue(new byte[12]);
+        assertNotNull(queue.take(decoy));
+        assertNull(queue.take(decoy));
+        assertNull(queue.take(decoy));
+        assertEquals(2, queue.getStarvationCount());
+    }
+
+    @Test
+    public void bufferTooSmallForTheFrameIsDropped() {
+        CallbackBufferQueue queue = new CallbackBufferQueue();
+        queue.enqueue(new byte[6]);
+        byte[] big = new byte[12];
+        byte[] decoy = queue.enqueue(big);
+        assertNull(queue.take(decoy));
+        assertSame(big, queue.take(decoy));
+        assertEquals(1, queue.getStarvationCount());
+    }
+
+    @Test
+    public void clearDropsQueuedBuffers() {
+        CallbackBufferQueue queue = new CallbackBufferQueue();
+        byte[] decoy = queue.enqueue(new byte[12]);
+        queue.enqueue(new byte[12]);
+        queue.clear();
+        assertEquals(0, queue.getQueuedCount());
+        assertNull(queue.take(decoy));
+    }
+}
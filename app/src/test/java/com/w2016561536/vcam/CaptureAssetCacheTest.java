@@ -0,0 +1,145 @@
+package com.w2016561536.vcam;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CaptureAssetCacheTest {
+    private static final int JPEG = CaptureAssetCache.FORMAT_JPEG;
+    private static final int NV21 = CaptureAssetCache.FORMAT_NV21;
+
+    /** Payload is width * height / 100 bytes, filled with the file's first byte. */
+    private static final class FakeBuilder implements CaptureAssetCache.Builder {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile CountDownLatch gate;
+
+        @Override
+        public byte[] build(File file, int width, int height, int format) throws IOException {
+            calls.incrementAndGet();
+            CountDownLatch g = gate;
+            if (g != null) {
+                try {
+                    g.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            byte[] payload = new byte[width * height / 100];
+            java.util.Arrays.fill(payload, Files.readAllBytes(file.toPath())[0]);
+            return payload;
+        }
+    }
+
+    private static File image(int content) throws IOException {
+        File f = File.createTempFile("vcam-capture", ".bmp");
+        f.deleteOnExit();
+        write(f, content);
+        return f;
+    }
+
+    private static void write(File f, int content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(content);
+        }
+    }
+
+    @Test
+    public void payloadIsBuiltOncePerKeyAndCopiedOut() throws IOException {
+        FakeBuilder builder = new FakeBuilder();
+        CaptureAssetCache cache = new CaptureAssetCache(builder, 1 << 20);
+        File f = image(7);
+        byte[] first = cache.get(f, 640, 480, JPEG);
+        assertEquals(3072, first.length);
+        first[0] = 0;
+        byte[] second = cache.get(f, 640, 480, JPEG);
+        assertEquals(7, second[0]);
+        assertEquals(1, builder.calls.get());
+        cache.get(f, 640, 480, NV21);
+        cache.get(f, 320, 240, JPEG);
+        assertEquals(3, builder.calls.get());
+        assertNull(cache.get(new File(f.getPath() + ".missing"), 640, 480, JPEG));
+    }
+
+    @Test
+    public void changedFileReplacesTheOldPayload() throws IOException {
+        FakeBuilder builder = new FakeBuilder();
+        CaptureAssetCache cache = new CaptureAssetCache(builder, 1 << 20);
+        File f = image(1);
+        assertEquals(1, cache.get(f, 640, 480, JPEG)[0]);
+        write(f, 2);
+        assertTrue(f.setLastModified(f.lastModified() + 2000));
+        assertEquals(2, cache.get(f, 640, 480, JPEG)[0]);
+        assertEquals(2, builder.calls.get());
+        assertEquals(3072, cache.getCachedBytes());
+    }
+
+    @Test
+    public void shotWaitsForThePrefetchInsteadOfBuildingAgain() throws Exception {
+        FakeBuilder builder = new FakeBuilder();
+        builder.gate = new CountDownLatch(1);
+        final CaptureAssetCache cache = new CaptureAssetCache(builder, 1 << 20);
+        final File f = image(3);
+        cache.prefetch(f, 640, 480, JPEG);
+        cache.prefetch(f, 640, 480, JPEG);
+        final byte[][] result = new byte[1][];
+        Thread shot = new Thread(() -> result[0] = cache.get(f, 640, 480, JPEG));
+        shot.start();
+        Thread.sleep(50);
+        builder.gate.countDown();
+        shot.join(5000);
+        assertEquals(3, result[0][0]);
+        assertEquals(1, builder.calls.get());
+        assertEquals(1, cache.getBuildCount());
+    }
+
+    @Test
+    public void budgetEvictsLeastRecentlyUsed() throws IOException {
+        FakeBuilder builder = new FakeBuilder();
+        CaptureAssetCache cache = new CaptureAssetCache(builder, 7000);
+        File f = image(5);
+        cache.get(f, 640, 480, JPEG);
+        cache.get(f, 640, 480, NV21);
+        cache.get(f, 640, 480, JPEG);
+        // 超预算，最久没用的 NV21 被挤掉
+        cache.get(f, 400, 300, JPEG);
+        assertEquals(3072 + 1200, cache.getCachedBytes());
+        cache.get(f, 640, 480, JPEG);
+        assertEquals(3, builder.calls.get());
+        cache.get(f, 640, 480, NV21);
+        assertEquals(4, builder.calls.get());
+    }
+
+    @Test
+    public void memoryPressureDropsEverything() throws IOException {
+        FakeBuilder builder = new FakeBuilder();
+        CaptureAssetCache cache = new CaptureAssetCache(builder, 1 << 20);
+        File f = image(9);
+        cache.get(f, 640, 480, JPEG);
+        cache.asComponentCallbacks().onTrimMemory(5);
+        assertEquals(3072, cache.getCachedBytes());
+        cache.asComponentCallbacks().onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(0, cache.getCachedBytes());
+        cache.get(f, 640, 480, JPEG);
+        assertEquals(2, builder.calls.get());
+    }
+
+    @Test
+    public void sampleSizeStillCoversTheTarget() {
+        assertEquals(1, CaptureAssetCache.sampleSize(4000, 3000, 0, 0));
+        assertEquals(1, CaptureAssetCache.sampleSize(4000, 3000, 4000, 3000));
+        assertEquals(2, CaptureAssetCache.sampleSize(4000, 3000, 1920, 1080));
+        assertEquals(4, CaptureAssetCache.sampleSize(4000, 3000, 640, 480));
+        // 竖图配横向目标，按较紧的一边算
+        assertEquals(2, CaptureAssetCache.sampleSize(3000, 4000, 1280, 720));
+    }
+}
@@ -0,0 +1,176 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ConfigManagerTest {
+
+    private static String tempDir() throws IOException {
+        File dir = Files.createTempDirectory("vcam-config").toFile();
+        dir.deleteOnExit();
+        return dir.getAbsolutePath() + "/";
+    }
+
+    @Test
+    public void valuesSurviveReload() throws IOException {
+        String dir = tempDir();
+        ConfigManager config = new ConfigManager(dir, 60_000);
+        config.setFpsOverride(24);
+        config.setMuted(true);
+        config.setPerAppVideo("com.example.app", "/sdcard/a.mp4");
+        assertTrue(config.flush());
+
+        ConfigManager reloaded = new ConfigManager(dir, 60_000);
+        assertEquals(24, reloaded.getFpsOverride());
+        assertTrue(reloaded.isMuted());
+        assertEquals("/sdcard/a.mp4", reloaded.getPerAppVideo("com.example.app"));
+        assertFalse(new File(dir, "vcam_config.properties.tmp").exists());
+    }
+
+    @Test
+    public void perAppVideoCanBeCleared() throws IOException {
+        ConfigManager config = new ConfigManager(tempDir(), 60_000);
+        config.setPerAppVideo("com.example.app", "/sdcard/a.mp4");
+        assertTrue(config.hasPerAppVideo("com.example.app"));
+        config.setPerAppVideo("com.example.app", "");
+        assertFalse(config.hasPerAppVideo("com.example.app"));
+        assertNull(config.getSnapshot().get("app_video_com.example.app", null));
+    }
+
+    @Test
+    public void burstOfWritesIsCoalesced() throws Exception {
+        String dir = tempDir();
+        ConfigManager config = new ConfigManager(dir, 100);
+        long before = config.getSnapshot().version;
+        // 模拟拖动音量条
+        for (int volume = 0; volume <= 100; volume++) {
+            config.setAudioVolume(volume);
+        }
+        assertEquals(before + 101, config.getSnapshot().version);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (config.getSaveCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(300);
+        assertTrue(config.getSaveCount() >= 1 && config.getSaveCount() <= 2);
+        assertEquals(100, new ConfigManager(dir, 60_000).getIntProperty(ConfigManager.KEY_AUDIO_VOLUME, -1));
+    }
+
+    @Test
+    public void unchangedValueDoesNotBumpVersion() throws IOException {
+        ConfigManager config = new ConfigManager(tempDir(), 60_000);
+        config.setLoopDelay(500);
+        ConfigManager.Snapshot snapshot = config.getSnapshot();
+        config.setLoopDelay(500);
+        assertSame(snapshot, config.getSnapshot());
+    }
+
+    @Test
+    public void parallelReadersSeeConsistentSnapshots() throws Exception {
+        String dir = tempDir();
+        final ConfigManager config = new ConfigManager(dir, 5);
+        final int writers = 4;
+        final int writes = 2000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch writersDone = new CountDownLatch(writers);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int w = 0; w < writers; w++) {
+            final String key = "writer_" + w;
+            final String app = "com.example.app" + w;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 1; i <= writes; i++) {
+                        // 同一个快照里 key 和 app_video 必须一起出现
+                        config.setProperty(key, i);
+                        config.setPerAppVideo(app, "/sdcard/" + i + ".mp4");
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    writersDone.countDown();
+                }
+            }));
+        }
+        for (int r = 0; r < 4; r++) {
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    long lastVersion = -1;
+                    int[] last = new int[writers];
+                    while (writersDone.getCount() > 0) {
+                        ConfigManager.Snapshot snapshot = config.getSnapshot();
+                        assertTrue(snapshot.version >= lastVersion);
+                        lastVersion = snapshot.version;
+                        for (int w = 0; w < writers; w++) {
+                            int value = snapshot.getInt("writer_" + w, 0);
+                            assertTrue(value >= last[w]);
+                            last[w] = value;
+                            String video = snapshot.getPerAppVideo("com.example.app" + w);
+                            int videoIndex = video == null ? 0
+                                    : Integer.parseInt(video.substring("/sdcard/".length(), video.length() - 4));
+                            // 写入顺序是先 key 后视频，所以视频最多比 key 落后一次
+                            assertTrue(videoIndex == value || videoIndex == value - 1);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join(30_000);
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        assertEquals(writers * writes * 2L, config.getSnapshot().version);
+        assertTrue(config.flush());
+        ConfigManager reloaded = new ConfigManager(dir, 60_000);
+        for (int w = 0; w < writers; w++) {
+            assertEquals(writes, reloaded.getIntProperty("writer_" + w, 0));
+            assertEquals("/sdcard/" + writes + ".mp4", reloaded.getPerAppVideo("com.example.app" + w));
+        }
+    }
+
+    @Test
+    public void hookedProcessAppliesTheSharedConfig() throws IOException {
+        // 模块界面写，被注入的应用第一次开相机时读同一个目录
+        String dir = tempDir();
+        ConfigManager ui = new ConfigManager(dir, 60_000);
+        ui.setLoopDelay(250);
+        ui.setAutoOrientationEnabled(true);
+        assertTrue(ui.flush());
+
+        ConfigManager.resetInstance();
+        try {
+            HookSettings settings = new HookSettings();
+            assertEquals(0, settings.getLoopDelayMs());
+            assertTrue(settings.isBufferAwareCallbacksEnabled());
+            settings.load(dir);
+            assertEquals(dir, settings.getConfig().getConfigDir());
+            assertEquals(250, settings.getLoopDelayMs());
+            assertTrue(settings.isAutoOrientationEnabled());
+            // 只读一次，之后换目录也不重读
+            assertSame(settings.getConfig(), settings.load(tempDir()));
+        } finally {
+            ConfigManager.resetInstance();
+        }
+    }
+}
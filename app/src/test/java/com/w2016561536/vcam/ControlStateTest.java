@@ -0,0 +1,128 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class ControlStateTest {
+
+    private static File tempDir() throws IOException {
+        File dir = Files.createTempDirectory("vcam-control").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static File touch(File dir, String name) throws IOException {
+        File f = new File(dir, name);
+        assertTrue(f.createNewFile());
+        f.deleteOnExit();
+        return f;
+    }
+
+    @Test
+    public void initialSnapshotReflectsFiles() throws IOException {
+        File control = tempDir();
+        File video = tempDir();
+        touch(control, "disable.jpg");
+        touch(video, "virtual.mp4");
+        ControlState state = new ControlState(control, video, 60_000, false);
+        ControlState.Snapshot snapshot = state.snapshot();
+        assertTrue(snapshot.disabled);
+        assertTrue(snapshot.videoExists);
+        assertFalse(snapshot.noToast);
+        assertFalse(snapshot.forceShow);
+    }
+
+    @Test
+    public void snapshotIsOnlyReplacedOnChange() throws IOException {
+        File control = tempDir();
+        ControlState state = new ControlState(control, control, 60_000, false);
+        ControlState.Snapshot first = state.snapshot();
+        state.refresh();
+        assertSame(first, state.snapshot());
+        touch(control, "no_toast.jpg");
+        state.refresh();
+        assertTrue(state.snapshot().noToast);
+        assertEquals(first.version + 1, state.snapshot().version);
+    }
+
+    @Test
+    public void pollingPicksUpChangesWithinTheInterval() throws Exception {
+        File control = tempDir();
+        File video = tempDir();
+        ControlState state = new ControlState(control, video, 50, false);
+        state.start();
+        // 没有 FileObserver 时不退到长间隔的兜底轮询
+        assertEquals(50, state.currentPollIntervalMs());
+        try {
+            File disable = touch(control, "disable.jpg");
+            assertTrue(waitFor(state, true));
+            assertTrue(disable.delete());
+            assertTrue(waitFor(state, false));
+        } finally {
+            state.stop();
+        }
+    }
+
+    @Test
+    public void metricsAreDumpedEachTimeTheTriggerAppears() throws Exception {
+        File control = tempDir();
+        ControlState state = new ControlState(control, control, 60_000, false);
+        File out = new File(control, "vcam_metrics_unknown.txt");
+        out.deleteOnExit();
+        File trigger = touch(control, "dump_metrics.jpg");
+        state.refresh();
+        assertTrue(state.snapshot().dumpMetrics);
+        assertEquals(1, dumpCount(out));
+        // 文件还在就不重复写
+        state.refresh();
+        assertEquals(1, dumpCount(out));
+        assertTrue(trigger.delete());
+        state.refresh();
+        touch(control, "dump_metrics.jpg");
+        state.refresh();
+        assertEquals(2, dumpCount(out));
+    }
+
+    private static int dumpCount(File file) throws Exception {
+        String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        int count = 0;
+        for (int at = text.indexOf("# vcam pipeline metrics"); at >= 0; at = text.indexOf("# vcam pipeline metrics", at + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void videoDirCanMove() throws Exception {
+        File control = tempDir();
+        File privateDir = tempDir();
+        touch(privateDir, "virtual.mp4");
+        ControlState state = new ControlState(control, control, 60_000, false);
+        state.start();
+        try {
+            assertFalse(state.snapshot().videoExists);
+            state.setVideoDir(privateDir.getPath());
+            long deadline = System.currentTimeMillis() + 2000;
+            while (!state.snapshot().videoExists && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue(state.snapshot().videoExists);
+        } finally {
+            state.stop();
+        }
+    }
+
+    private static boolean waitFor(ControlState state, boolean disabled) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (state.snapshot().disabled != disabled && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return state.snapshot().disabled == disabled;
+    }
+}
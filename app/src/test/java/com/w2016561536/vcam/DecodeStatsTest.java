@@ -0,0 +1,40 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DecodeStatsTest {
+
+    @Test
+    public void cpuTimeIsSpreadOverFrames() {
+        DecodeStats stats = new DecodeStats("polling");
+        stats.addCpuNanos(3_000_000);
+        stats.addCpuNanos(-5);
+        for (int i = 0; i < 3; i++) {
+            stats.onFrameDelivered(0);
+        }
+        assertEquals(3_000_000, stats.getCpuNanos());
+        assertEquals(1_000_000, stats.getCpuNanosPerFrame());
+    }
+
+    @Test
+    public void jitterCountsEarlyAndLateAlike() {
+        DecodeStats stats = new DecodeStats("async");
+        stats.onFrameDelivered(2_000_000);
+        stats.onFrameDelivered(-1_000_000);
+        stats.onFrameDelivered(0);
+        assertEquals(3, stats.getFrames());
+        assertEquals(1000, stats.getMeanJitterUs());
+        assertEquals(2000, stats.getMaxJitterUs());
+        assertTrue(stats.toString().startsWith("async: 3 frames"));
+    }
+
+    @Test
+    public void emptyStatsReportZero() {
+        DecodeStats stats = new DecodeStats("polling");
+        assertEquals(0, stats.getCpuNanosPerFrame());
+        assertEquals(0, stats.getMeanJitterUs());
+        assertEquals(0, stats.getMaxJitterUs());
+    }
+}
@@ -0,0 +1,100 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.*;
+
+public class FrameBufferPoolTest {
+    private static final int FRAME_1080P = 1920 * 1080 * 3 / 2;
+
+    @Test
+    public void releasedBufferIsReused() {
+        FrameBufferPool pool = new FrameBufferPool(2, 1 << 20);
+        byte[] a = pool.acquire(1024);
+        pool.release(a);
+        assertSame(a, pool.acquire(1024));
+        assertEquals(1, pool.getAllocationCount());
+        assertEquals(1, pool.getHitCount());
+    }
+
+    @Test
+    public void buffersAreKeyedBySize() {
+        FrameBufferPool pool = new FrameBufferPool(2, 1 << 20);
+        byte[] small = pool.acquire(100);
+        pool.release(small);
+        byte[] big = pool.acquire(200);
+        assertEquals(200, big.length);
+        assertNotSame(small, big);
+        assertSame(small, pool.acquire(100));
+    }
+
+    @Test
+    public void poolIsBoundedPerSize() {
+        FrameBufferPool pool = new FrameBufferPool(2, 1 << 20);
+        byte[] a = pool.acquire(64);
+        byte[] b = pool.acquire(64);
+        byte[] c = pool.acquire(64);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertEquals(128, pool.getPooledBytes());
+        assertEquals(1, pool.getDropCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedSizeIsEvictedOverBudget() {
+        FrameBufferPool pool = new FrameBufferPool(4, 300);
+        byte[] old = pool.acquire(200);
+        byte[] current = pool.acquire(150);
+        pool.release(old);
+        pool.release(current);
+        assertTrue(pool.getPooledBytes() <= 300);
+        assertSame(current, pool.acquire(150));
+        assertNotSame(old, pool.acquire(200));
+    }
+
+    @Test
+    public void emptyAndNullBuffersAreIgnored() {
+        FrameBufferPool pool = new FrameBufferPool(2, 1 << 20);
+        pool.release(null);
+        pool.release(new byte[0]);
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    /**
+     * Mirrors the decode loop in {@link VideoToFrames}: a converted frame is taken from the pool,
+     * published through the preview {@link FrameExchange}, and the frame it displaces is recycled.
+     */
+    @Test
+    public void steadyStateDecodeLoopDoesNotAllocate() {
+        FrameBufferPool pool = new FrameBufferPool(4, 64L * 1024 * 1024);
+        FrameExchange exchange = new FrameExchange();
+        for (int frame = 0; frame < 10; frame++) {
+            byte[] scratch = pool.acquire(1920);
+            byte[] nv21 = pool.acquire(FRAME_1080P);
+            pool.release(scratch);
+            pool.release(exchange.publish(nv21, 1920, 1080));
+        }
+        long warmAllocations = pool.getAllocationCount();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean sunThreads = threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threads : null;
+        long threadId = Thread.currentThread().getId();
+        long bytesBefore = sunThreads != null ? sunThreads.getThreadAllocatedBytes(threadId) : 0;
+        for (int frame = 0; frame < 300; frame++) {
+            byte[] scratch = pool.acquire(1920);
+            byte[] nv21 = pool.acquire(FRAME_1080P);
+            pool.release(scratch);
+            pool.release(exchange.publish(nv21, 1920, 1080));
+        }
+        long bytesAfter = sunThreads != null ? sunThreads.getThreadAllocatedBytes(threadId) : 0;
+
+        assertEquals(warmAllocations, pool.getAllocationCount());
+        // 300 frames of 1080p would be ~900 MB without pooling; allow only measurement noise
+        assertTrue("allocated " + (bytesAfter - bytesBefore) + " bytes", bytesAfter - bytesBefore < FRAME_1080P);
+    }
+}
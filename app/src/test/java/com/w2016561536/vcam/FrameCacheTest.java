@@ -0,0 +1,84 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class FrameCacheTest {
+
+    private static byte[] frame(int size, int seed) {
+        byte[] f = new byte[size];
+        for (int i = 0; i < size; i++) {
+            f[i] = (byte) (i * 31 + seed);
+        }
+        return f;
+    }
+
+    @Test
+    public void heapOnlyCacheRoundTrips() {
+        FrameCache cache = new FrameCache(1000, 0, null);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(cache.add(frame(100, i), i * 33_333L));
+        }
+        assertTrue(cache.finish());
+        assertEquals(5, cache.getFrameCount());
+        byte[] dst = new byte[100];
+        for (int i = 0; i < 5; i++) {
+            cache.read(i, dst);
+            assertArrayEquals(frame(100, i), dst);
+            assertEquals(i * 33_333L, cache.getPresentationTimeUs(i));
+        }
+        cache.close();
+    }
+
+    @Test
+    public void cacheKeepsItsOwnCopy() {
+        FrameCache cache = new FrameCache(1000, 0, null);
+        byte[] pooled = frame(10, 1);
+        cache.add(pooled, 0);
+        pooled[0] = 99;
+        cache.finish();
+        byte[] dst = new byte[10];
+        cache.read(0, dst);
+        assertArrayEquals(frame(10, 1), dst);
+    }
+
+    @Test
+    public void framesBeyondHeapBudgetSpillToDisk() throws IOException {
+        File spill = File.createTempFile("vcam", ".cache");
+        FrameCache cache = new FrameCache(250, 20_000, spill);
+        for (int i = 0; i < 200; i++) {
+            assertTrue(cache.add(frame(100, i), i * 1000L));
+        }
+        assertTrue(cache.finish());
+        assertEquals(200, cache.getMemoryBytes());
+        assertEquals(19_800, cache.getSpillBytes());
+        byte[] dst = new byte[100];
+        for (int i = 0; i < 200; i++) {
+            cache.read(i, dst);
+            assertArrayEquals("frame " + i, frame(100, i), dst);
+        }
+        cache.close();
+        assertFalse(spill.exists());
+    }
+
+    @Test
+    public void clipOverBudgetIsRejected() {
+        FrameCache cache = new FrameCache(250, 0, null);
+        assertTrue(cache.add(frame(100, 0), 0));
+        assertTrue(cache.add(frame(100, 1), 1));
+        assertFalse(cache.add(frame(100, 2), 2));
+        assertTrue(cache.isOverBudget());
+        assertFalse(cache.finish());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void readBeforeFinishFails() {
+        FrameCache cache = new FrameCache(1000, 0, null);
+        cache.add(frame(10, 0), 0);
+        cache.read(0, new byte[10]);
+    }
+}
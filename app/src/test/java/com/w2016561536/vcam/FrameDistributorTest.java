@@ -0,0 +1,168 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FrameDistributorTest {
+
+    private static class FakeSink implements FrameDistributor.Sink {
+        final int width;
+        final int height;
+        final int format;
+        final long delayMs;
+        volatile byte[] last;
+        volatile long lastPts = -1;
+        volatile boolean closed;
+        final CountDownLatch firstFrame = new CountDownLatch(1);
+
+        FakeSink(int width, int height, int format, long delayMs) {
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            this.delayMs = delayMs;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getFormat() {
+            return format;
+        }
+
+        @Override
+        public void deliver(byte[] frame, long presentationTimeUs) throws Exception {
+            last = frame.clone();
+            lastPts = presentationTimeUs;
+            firstFrame.countDown();
+            if (delayMs > 0) {
+                Thread.sleep(delayMs);
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static byte[] nv21(int width, int height, int seed) {
+        byte[] f = new byte[YuvFormat.frameSize(width, height)];
+        for (int i = 0; i < f.length; i++) {
+            f[i] = (byte) (i * 7 + seed);
+        }
+        return f;
+    }
+
+    private static void awaitPts(FakeSink sink, long pts) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sink.lastPts != pts && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(pts, sink.lastPts);
+    }
+
+    @Test
+    public void convertsOncePerDistinctTarget() throws Exception {
+        FrameDistributor distributor = new FrameDistributor(new FrameBufferPool(4, 1 << 20), FrameDistributor.REPACK_CONVERTER);
+        FakeSink a = new FakeSink(8, 4, YuvFormat.NV21, 0);
+        FakeSink b = new FakeSink(8, 4, YuvFormat.NV21, 0);
+        FakeSink c = new FakeSink(8, 4, YuvFormat.I420, 0);
+        distributor.addSink(a);
+        distributor.addSink(b);
+        distributor.addSink(c);
+
+        byte[] src = nv21(8, 4, 3);
+        distributor.publish(src, 8, 4, 100);
+        assertEquals(2, distributor.getConversionCount());
+
+        awaitPts(a, 100);
+        awaitPts(b, 100);
+        awaitPts(c, 100);
+        assertArrayEquals(src, a.last);
+        assertArrayEquals(src, b.last);
+        byte[] i420 = new byte[src.length];
+        YuvFormat.repack(src, YuvFormat.NV21, i420, YuvFormat.I420, 8, 4);
+        assertArrayEquals(i420, c.last);
+        distributor.close();
+    }
+
+    @Test
+    public void slowSinkDropsWithoutStallingOthers() throws Exception {
+        FrameDistributor distributor = new FrameDistributor(new FrameBufferPool(4, 1 << 20), FrameDistributor.REPACK_CONVERTER);
+        FakeSink slow = new FakeSink(4, 4, YuvFormat.NV21, 500);
+        FakeSink fast = new FakeSink(4, 4, YuvFormat.NV12, 0);
+        distributor.addSink(slow);
+        distributor.addSink(fast);
+
+        byte[] src = nv21(4, 4, 0);
+        distributor.publish(src, 4, 4, 0);
+        assertTrue(slow.firstFrame.await(5, TimeUnit.SECONDS));
+        awaitPts(fast, 0);
+        for (int i = 1; i <= 20; i++) {
+            distributor.publish(src, 4, 4, i);
+            awaitPts(fast, i);
+        }
+        // 慢的渲染器还卡在第一帧上，快的已经全部收到
+        assertTrue(distributor.getDeliveredCount(slow) <= 1);
+        awaitPts(slow, 20);
+        assertTrue(distributor.getDroppedCount(slow) > 0);
+        assertEquals(0, distributor.getDroppedCount(fast));
+        distributor.close();
+    }
+
+    @Test
+    public void buffersReturnToPool() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(4, 1 << 20);
+        FrameDistributor distributor = new FrameDistributor(pool, FrameDistributor.REPACK_CONVERTER);
+        FakeSink a = new FakeSink(4, 4, YuvFormat.NV21, 0);
+        FakeSink b = new FakeSink(4, 4, YuvFormat.NV21, 0);
+        distributor.addSink(a);
+        distributor.addSink(b);
+
+        byte[] src = nv21(4, 4, 1);
+        for (int i = 0; i < 50; i++) {
+            distributor.publish(src, 4, 4, i);
+            awaitPts(a, i);
+            awaitPts(b, i);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pool.getPooledBytes() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+        // 每帧由两个渲染器共享同一块缓冲，全部用完后归还，分配次数不随帧数增长
+        assertEquals(1, pool.getAllocationCount());
+        distributor.close();
+    }
+
+    @Test
+    public void closeStopsSinks() throws Exception {
+        FrameDistributor distributor = new FrameDistributor(new FrameBufferPool(4, 1 << 20), FrameDistributor.REPACK_CONVERTER);
+        FakeSink a = new FakeSink(4, 4, YuvFormat.NV21, 0);
+        distributor.addSink(a);
+        distributor.close();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!a.closed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(a.closed);
+        assertEquals(0, distributor.getSinkCount());
+
+        FakeSink late = new FakeSink(4, 4, YuvFormat.NV21, 0);
+        distributor.addSink(late);
+        assertTrue(late.closed);
+        distributor.publish(nv21(4, 4, 0), 4, 4, 0);
+        assertEquals(0, distributor.getConversionCount());
+    }
+}
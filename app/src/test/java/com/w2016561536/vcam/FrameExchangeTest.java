@@ -0,0 +1,161 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FrameExchangeTest {
+    private static byte[] frame(int size, long seq) {
+        byte[] f = new byte[size];
+        java.util.Arrays.fill(f, (byte) seq);
+        return f;
+    }
+
+    @Test
+    public void readerGetsTheNewestFrameAndCountsRepeatsAndSkips() {
+        FrameExchange exchange = new FrameExchange();
+        FrameExchange.Cursor cursor = new FrameExchange.Cursor();
+        byte[] dst = new byte[4];
+        assertEquals(0, exchange.read(dst, cursor));
+
+        assertNull(exchange.publish(frame(4, 1), 2, 2));
+        assertEquals(1, exchange.read(dst, cursor));
+        assertEquals(1, exchange.read(dst, cursor));
+        assertEquals(1, cursor.getRepeatedCount());
+
+        exchange.publish(frame(4, 2), 2, 2);
+        exchange.publish(frame(4, 3), 2, 2);
+        exchange.publish(frame(4, 4), 2, 2);
+        assertEquals(4, exchange.read(dst, cursor));
+        assertArrayEquals(frame(4, 4), dst);
+        assertEquals(2, cursor.getSkippedCount());
+        assertEquals(2, exchange.getSkippedCount());
+        assertEquals(1, exchange.getRepeatedCount());
+        assertEquals(3, cursor.getReadCount());
+    }
+
+    @Test
+    public void displacedArraysAreRecycledWithoutGrowingTheRing() {
+        FrameExchange exchange = new FrameExchange(3);
+        Set<byte[]> seen = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+        byte[] spare = new byte[8];
+        byte[] next = new byte[8];
+        List<byte[]> free = new ArrayList<>();
+        free.add(spare);
+        for (int i = 0; i < 100; i++) {
+            seen.add(next);
+            byte[] back = exchange.publish(next, 4, 1);
+            if (back != null) {
+                free.add(back);
+            } else {
+                free.add(new byte[8]);
+            }
+            next = free.remove(0);
+        }
+        // 三个槽位 + 手里两块，之后再也不需要新数组
+        assertTrue("arrays used: " + seen.size(), seen.size() <= 5);
+        assertEquals(100, exchange.getSequence());
+    }
+
+    @Test
+    public void pinnedFramesAreNeverRewritten() {
+        FrameExchange exchange = new FrameExchange(3);
+        exchange.publish(frame(4, 1), 2, 2);
+        FrameExchange.Frame first = exchange.acquire(null);
+        exchange.publish(frame(4, 2), 2, 2);
+        FrameExchange.Frame second = exchange.acquire(null);
+        // 剩下的一个槽位是唯一能写的
+        exchange.publish(frame(4, 3), 2, 2);
+        byte[] dropped = frame(4, 4);
+        assertSame(dropped, exchange.publish(dropped, 2, 2));
+        assertEquals(1, exchange.getDroppedCount());
+        assertEquals(1, first.getSequence());
+        assertArrayEquals(frame(4, 1), first.getData());
+        assertEquals(2, second.getSequence());
+        exchange.release(first);
+        exchange.release(second);
+        assertNotSame(dropped, exchange.publish(frame(4, 5), 2, 2));
+        assertEquals(4, exchange.getSequence());
+    }
+
+    @Test
+    public void concurrentReadersNeverSeeTornFrames() throws Exception {
+        final int size = 64 * 1024;
+        final FrameExchange exchange = new FrameExchange();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final int frames = 20000;
+
+        Thread producer = new Thread(() -> {
+            List<byte[]> free = new ArrayList<>();
+            for (int i = 0; i < frames && failure.get() == null; i++) {
+                byte[] f = free.isEmpty() ? new byte[size] : free.remove(free.size() - 1);
+                // 整帧写它将拿到的序号，读者看到混合的值就是撕裂；被丢弃的帧不占序号
+                java.util.Arrays.fill(f, (byte) (exchange.getSequence() + 1));
+                byte[] back = exchange.publish(f, size, 1);
+                if (back != null) {
+                    free.add(back);
+                }
+            }
+            running.set(false);
+        });
+
+        List<Thread> readers = new ArrayList<>();
+        final List<FrameExchange.Cursor> cursors = Collections.synchronizedList(new ArrayList<FrameExchange.Cursor>());
+        for (int r = 0; r < 3; r++) {
+            Thread reader = new Thread(() -> {
+                FrameExchange.Cursor cursor = new FrameExchange.Cursor();
+                byte[] dst = new byte[size];
+                long last = 0;
+                try {
+                    while (running.get()) {
+                        long seq = exchange.read(dst, cursor);
+                        if (seq == 0) {
+                            continue;
+                        }
+                        assertTrue("sequence went back " + last + " -> " + seq, seq >= last);
+                        last = seq;
+                        byte expected = (byte) seq;
+                        for (int i = 0; i < size; i += 257) {
+                            if (dst[i] != expected) {
+                                fail("torn frame " + seq + " at " + i);
+                            }
+                        }
+                        assertEquals(expected, dst[size - 1]);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+                cursors.add(cursor);
+            });
+            readers.add(reader);
+            reader.start();
+        }
+        producer.start();
+        producer.join(60000);
+        for (Thread reader : readers) {
+            reader.join(60000);
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        long repeated = 0;
+        long skipped = 0;
+        for (FrameExchange.Cursor cursor : cursors) {
+            assertTrue(cursor.getReadCount() > 0);
+            repeated += cursor.getRepeatedCount();
+            skipped += cursor.getSkippedCount();
+        }
+        assertEquals(repeated, exchange.getRepeatedCount());
+        assertEquals(skipped, exchange.getSkippedCount());
+        assertEquals(frames - exchange.getDroppedCount(), exchange.getSequence());
+    }
+}
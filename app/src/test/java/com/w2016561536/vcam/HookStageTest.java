@@ -0,0 +1,66 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HookStageTest {
+    @Test
+    public void installsOnceAndLaterCallersWaitForIt() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicBoolean done = new AtomicBoolean();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final HookStage stage = new HookStage("stageTest", () -> {
+            runs.incrementAndGet();
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            done.set(true);
+        });
+        Thread first = new Thread(() -> stage.ensureInstalled("first"));
+        first.start();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        final AtomicBoolean sawInstalled = new AtomicBoolean();
+        Thread second = new Thread(() -> {
+            assertFalse(stage.ensureInstalled("second"));
+            // 第二个线程返回时钩子必须已经装完
+            sawInstalled.set(done.get());
+        });
+        second.start();
+        second.join(100);
+        assertTrue("second caller must wait for the installation", second.isAlive());
+        release.countDown();
+        first.join();
+        second.join();
+
+        assertTrue(sawInstalled.get());
+        assertEquals(1, runs.get());
+        assertFalse(stage.ensureInstalled("third"));
+        assertEquals("first", stage.getTrigger());
+        assertTrue(stage.getInstallNs() > 0);
+        assertTrue(new PipelineMetrics().report("test").contains("\nstageTest first "));
+    }
+
+    @Test
+    public void aFailedInstallIsNotRetried() {
+        final AtomicInteger runs = new AtomicInteger();
+        HookStage stage = new HookStage("failingStageTest", () -> {
+            runs.incrementAndGet();
+            throw new NoSuchMethodError("gone");
+        });
+        assertTrue(stage.ensureInstalled("open"));
+        assertFalse(stage.ensureInstalled("open"));
+        assertEquals(1, runs.get());
+        assertTrue(stage.isInstalled());
+    }
+}
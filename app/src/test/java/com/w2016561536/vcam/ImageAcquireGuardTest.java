@@ -0,0 +1,26 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ImageAcquireGuardTest {
+    @Test
+    public void onlyTheFormatMismatchIsSwallowed() {
+        assertTrue(ImageAcquireGuard.isFormatMismatch(new UnsupportedOperationException(
+                "The producer output buffer format 0x23 doesn't match the ImageReader's configured buffer format 0x1")));
+        assertFalse(ImageAcquireGuard.isFormatMismatch(new UnsupportedOperationException()));
+        assertFalse(ImageAcquireGuard.isFormatMismatch(new IllegalStateException("maxImages (2) has already been acquired")));
+        assertFalse(ImageAcquireGuard.isFormatMismatch(new IllegalStateException("format doesn't match")));
+    }
+
+    @Test
+    public void everyCallIsCountedAndListedInTheReport() {
+        ImageAcquireGuard guard = new ImageAcquireGuard("acquireGuardTest");
+        assertFalse(guard.swallow(null));
+        assertFalse(guard.swallow(new IllegalStateException()));
+        assertEquals(2, guard.getCounter().getInvocationCount());
+        assertTrue(HookCounter.getRegistered().contains(guard.getCounter()));
+        assertTrue(new PipelineMetrics().report("test").contains("\nImageReader.acquireGuardTest 2 "));
+    }
+}
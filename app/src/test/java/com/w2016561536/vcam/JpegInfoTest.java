@@ -0,0 +1,123 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class JpegInfoTest {
+
+    /** SOI, optional Exif APP1 with one IFD0 orientation entry, APP2 filler, SOF0, SOS, EOI. */
+    static byte[] jpeg(int width, int height, int orientation, boolean littleEndian) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xff);
+        out.write(0xd8);
+        if (orientation > 0) {
+            byte[] tiff = littleEndian
+                    ? new byte[]{'I', 'I', 0x2a, 0, 8, 0, 0, 0, 1, 0, 0x12, 0x01, 3, 0, 1, 0, 0, 0,
+                    (byte) orientation, 0, 0, 0, 0, 0, 0, 0}
+                    : new byte[]{'M', 'M', 0, 0x2a, 0, 0, 0, 8, 0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1,
+                    0, (byte) orientation, 0, 0, 0, 0, 0, 0};
+            segment(out, 0xe1, concat(new byte[]{'E', 'x', 'i', 'f', 0, 0}, tiff));
+        }
+        segment(out, 0xe2, new byte[40]);
+        segment(out, 0xc0, new byte[]{8, (byte) (height >> 8), (byte) height, (byte) (width >> 8), (byte) width,
+                1, 1, 0x11, 0});
+        segment(out, 0xda, new byte[]{1, 1, 0, 0, 0x3f, 0});
+        out.write(0x12);
+        out.write(0x34);
+        out.write(0xff);
+        out.write(0xd9);
+        return out.toByteArray();
+    }
+
+    private static void segment(ByteArrayOutputStream out, int marker, byte[] body) {
+        out.write(0xff);
+        out.write(marker);
+        out.write((body.length + 2) >> 8);
+        out.write(body.length + 2);
+        out.write(body, 0, body.length);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    @Test
+    public void readsFrameSizeAndOrientation() {
+        byte[] data = jpeg(4000, 3000, 6, true);
+        // 截断在帧头之前
+        assertNull(JpegInfo.parse(data, 40));
+        JpegInfo info = JpegInfo.parse(data, data.length);
+        assertEquals(4000, info.width);
+        assertEquals(3000, info.height);
+        assertEquals(6, info.orientation);
+
+        data = jpeg(1280, 720, 3, false);
+        info = JpegInfo.parse(data, data.length);
+        assertEquals(1280, info.width);
+        assertEquals(720, info.height);
+        assertEquals(3, info.orientation);
+
+        data = jpeg(640, 480, 0, false);
+        info = JpegInfo.parse(data, data.length);
+        assertEquals(640, info.width);
+        assertEquals(0, info.orientation);
+    }
+
+    @Test
+    public void rejectsOtherFormats() {
+        byte[] bmp = {'B', 'M', 0, 0, 0, 0, 0, 0};
+        assertFalse(JpegInfo.isJpeg(bmp, bmp.length));
+        assertNull(JpegInfo.parse(bmp, bmp.length));
+        byte[] truncated = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe1, 0x40, 0};
+        assertNull(JpegInfo.parse(truncated, truncated.length));
+    }
+
+    @Test
+    public void orientationIsRewrittenInPlace() {
+        for (boolean littleEndian : new boolean[]{true, false}) {
+            byte[] data = jpeg(640, 480, 1, littleEndian);
+            byte[] before = data.clone();
+            assertTrue(JpegInfo.setOrientation(data, JpegInfo.orientationForRotation(270)));
+            assertEquals(8, JpegInfo.parse(data, data.length).orientation);
+            int changed = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] != before[i]) {
+                    changed++;
+                }
+            }
+            assertEquals(1, changed);
+        }
+        byte[] plain = jpeg(640, 480, 0, true);
+        byte[] copy = plain.clone();
+        assertFalse(JpegInfo.setOrientation(plain, 6));
+        assertArrayEquals(copy, plain);
+        assertEquals(JpegInfo.ORIENTATION_NORMAL, JpegInfo.orientationForRotation(360));
+        assertEquals(JpegInfo.ORIENTATION_ROTATE_90, JpegInfo.orientationForRotation(-270));
+    }
+
+    @Test
+    public void matchingJpegAssetIsPassedThrough() throws IOException {
+        File f = File.createTempFile("vcam-1000", ".bmp");
+        f.deleteOnExit();
+        byte[] data = jpeg(1920, 1080, 1, true);
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(data);
+        }
+        assertArrayEquals(data, CaptureAssetCache.jpegPassthrough(f, 1920, 1080));
+        assertArrayEquals(data, CaptureAssetCache.jpegPassthrough(f, 0, 0));
+        assertNull(CaptureAssetCache.jpegPassthrough(f, 1280, 720));
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(new byte[]{'B', 'M', 1, 2, 3, 4});
+        }
+        assertNull(CaptureAssetCache.jpegPassthrough(f, 1920, 1080));
+    }
+}
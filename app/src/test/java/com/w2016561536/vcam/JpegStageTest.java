@@ -0,0 +1,162 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class JpegStageTest {
+    /** "JPEG" is {width, height, quality, first luma byte}. */
+    private static final class FakeEncoder implements JpegStage.Encoder {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile CountDownLatch gate;
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        @Override
+        public byte[] encode(byte[] nv21, int width, int height, int quality) {
+            calls.incrementAndGet();
+            entered.countDown();
+            CountDownLatch g = gate;
+            if (g != null) {
+                try {
+                    g.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return new byte[]{(byte) width, (byte) height, (byte) quality, nv21[0]};
+        }
+    }
+
+    private static final class FakeOutput implements JpegStage.Output {
+        final int width;
+        final int height;
+        final List<byte[]> written = new ArrayList<>();
+        boolean closed;
+
+        FakeOutput(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public synchronized void write(byte[] jpeg, long timestampNs) {
+            written.add(jpeg);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static byte[] frame(FrameBufferPool pool, int width, int height, int luma) {
+        byte[] f = pool.acquire(YuvFormat.frameSize(width, height));
+        java.util.Arrays.fill(f, 0, width * height, (byte) luma);
+        java.util.Arrays.fill(f, width * height, f.length, (byte) 128);
+        return f;
+    }
+
+    @Test
+    public void offeredFramesGoBackToThePoolWhenReplaced() {
+        FrameBufferPool pool = new FrameBufferPool(4, 1 << 20);
+        JpegStage stage = new JpegStage(pool, new FakeEncoder());
+        stage.offer(frame(pool, 8, 8, 1), 8, 8);
+        assertEquals(0, pool.getPooledBytes());
+        stage.offer(frame(pool, 8, 8, 2), 8, 8);
+        assertEquals(96, pool.getPooledBytes());
+        stage.close();
+        assertEquals(192, pool.getPooledBytes());
+    }
+
+    @Test
+    public void captureEncodesOnlyOnDemandAndReusesTheEncode() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(4, 1 << 20);
+        FakeEncoder encoder = new FakeEncoder();
+        JpegStage stage = new JpegStage(pool, encoder);
+        FakeOutput output = new FakeOutput(8, 8);
+        stage.addOutput("jpeg", output);
+        for (int i = 0; i < 10; i++) {
+            stage.offer(frame(pool, 8, 8, i), 8, 8);
+        }
+        assertEquals(0, encoder.calls.get());
+
+        stage.capture("jpeg", 90, 0).get(5, TimeUnit.SECONDS);
+        stage.capture("jpeg", 90, 0).get(5, TimeUnit.SECONDS);
+        assertEquals(1, encoder.calls.get());
+        assertEquals(2, output.written.size());
+        assertArrayEquals(new byte[]{8, 8, 90, 9}, output.written.get(1));
+
+        stage.capture("jpeg", 80, 0).get(5, TimeUnit.SECONDS);
+        stage.offer(frame(pool, 8, 8, 42), 8, 8);
+        stage.capture("jpeg", 80, 0).get(5, TimeUnit.SECONDS);
+        assertEquals(3, encoder.calls.get());
+        assertArrayEquals(new byte[]{8, 8, 80, 42}, output.written.get(3));
+
+        assertNull(stage.capture("unknown", 90, 0));
+        stage.close();
+        assertTrue(output.closed);
+    }
+
+    @Test
+    public void frameIsScaledToTheReaderSize() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(4, 1 << 20);
+        JpegStage stage = new JpegStage(pool, new FakeEncoder());
+        FakeOutput small = new FakeOutput(4, 2);
+        stage.addOutput("small", small);
+        stage.offer(frame(pool, 16, 8, 77), 16, 8);
+        stage.capture("small", 95, 0).get(5, TimeUnit.SECONDS);
+        assertArrayEquals(new byte[]{4, 2, 95, 77}, small.written.get(0));
+        stage.close();
+    }
+
+    @Test
+    public void frameBeingEncodedIsReleasedAfterTheEncode() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(4, 1 << 20);
+        FakeEncoder encoder = new FakeEncoder();
+        encoder.gate = new CountDownLatch(1);
+        JpegStage stage = new JpegStage(pool, encoder);
+        FakeOutput output = new FakeOutput(8, 8);
+        stage.addOutput("jpeg", output);
+        stage.offer(frame(pool, 8, 8, 5), 8, 8);
+
+        Future<?> capture = stage.capture("jpeg", 90, 0);
+        assertTrue(encoder.entered.await(5, TimeUnit.SECONDS));
+        // 编码期间被替换的帧不能回池
+        stage.offer(frame(pool, 8, 8, 6), 8, 8);
+        assertEquals(0, pool.getPooledBytes());
+
+        encoder.gate.countDown();
+        capture.get(5, TimeUnit.SECONDS);
+        assertEquals(96, pool.getPooledBytes());
+        assertArrayEquals(new byte[]{8, 8, 90, 5}, output.written.get(0));
+        stage.close();
+        assertEquals(192, pool.getPooledBytes());
+    }
+
+    @Test
+    public void captureBeforeTheFirstFrameWritesNothing() throws Exception {
+        JpegStage stage = new JpegStage(new FrameBufferPool(4, 1 << 20), new FakeEncoder());
+        FakeOutput output = new FakeOutput(8, 8);
+        stage.addOutput("jpeg", output);
+        stage.capture("jpeg", 90, 0).get(5, TimeUnit.SECONDS);
+        assertTrue(output.written.isEmpty());
+        stage.close();
+    }
+}
@@ -0,0 +1,74 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void bucketsAreContiguousAndAtMostAQuarterWide() {
+        long previous = -1;
+        for (int i = 0; i < LatencyHistogram.BUCKETS - 1; i++) {
+            long upper = LatencyHistogram.upperBound(i);
+            assertEquals(i, LatencyHistogram.bucketOf(previous + 1));
+            assertEquals(i, LatencyHistogram.bucketOf(upper));
+            if (i > 0) {
+                assertTrue("bucket " + i, upper - previous <= (previous + 1) / 4 + 1);
+            }
+            previous = upper;
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+    }
+
+    @Test
+    public void percentilesAreWithinTheBucketWidth() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Long> values = new ArrayList<>();
+        Random random = new Random(3);
+        for (int i = 0; i < 10000; i++) {
+            // 10 us .. ~100 ms，对数均匀
+            long v = (long) Math.pow(10, 4 + random.nextDouble() * 4);
+            values.add(v);
+            histogram.record(v);
+        }
+        java.util.Collections.sort(values);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10000, snapshot.count);
+        assertEquals(values.get(values.size() - 1).longValue(), snapshot.maxNs);
+        for (double p : new double[]{50, 90, 99}) {
+            long exact = values.get((int) Math.ceil(values.size() * p / 100) - 1);
+            long estimate = snapshot.getPercentileNs(p);
+            assertTrue(p + ": " + estimate + " vs " + exact, estimate >= exact && estimate <= exact * 1.25 + 1);
+        }
+        assertEquals(0, new LatencyHistogram().snapshot().getPercentileNs(50));
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 50000; i++) {
+                    histogram.record(random.nextInt(1 << 24));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(200000, snapshot.count);
+        assertEquals(200000, histogram.getCount());
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().count);
+    }
+}
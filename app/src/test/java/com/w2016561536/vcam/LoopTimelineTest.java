@@ -0,0 +1,72 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LoopTimelineTest {
+
+    // 4 帧 30fps，解码顺序里带一个 B 帧
+    private static final long[] DECODE_ORDER = {0, 66_666, 33_333, 100_000};
+
+    private static void feedPass(LoopTimeline timeline, long[] queued, int from) {
+        for (int i = 0; i < DECODE_ORDER.length; i++) {
+            queued[from + i] = timeline.onInputSample(DECODE_ORDER[i]);
+        }
+    }
+
+    @Test
+    public void durationIsLearnedFromFirstPass() {
+        LoopTimeline timeline = new LoopTimeline(0);
+        feedPass(timeline, new long[4], 0);
+        assertEquals(133_333, timeline.getLoopDurationUs());
+    }
+
+    @Test
+    public void timestampsKeepIncreasingAcrossLoops() {
+        LoopTimeline timeline = new LoopTimeline(0);
+        long[] queued = new long[12];
+        feedPass(timeline, queued, 0);
+        timeline.wrap();
+        feedPass(timeline, queued, 4);
+        timeline.wrap();
+        feedPass(timeline, queued, 8);
+        assertEquals(133_333, queued[4]);
+        assertEquals(266_666 + 100_000, queued[11]);
+        // 后面几轮不会改变学到的长度
+        assertEquals(133_333, timeline.getLoopDurationUs());
+    }
+
+    @Test
+    public void loopDelayOpensAGap() {
+        LoopTimeline timeline = new LoopTimeline(500);
+        feedPass(timeline, new long[4], 0);
+        assertEquals(133_333 + 500_000, timeline.wrap());
+        assertEquals(633_333, timeline.onInputSample(0));
+    }
+
+    @Test
+    public void firstFrameOfEachLoopIsDetected() {
+        LoopTimeline timeline = new LoopTimeline(0);
+        feedPass(timeline, new long[4], 0);
+        long offset = timeline.wrap();
+        assertFalse(timeline.onOutputFrame(100_000));
+        assertTrue(timeline.onOutputFrame(offset));
+        assertFalse(timeline.onOutputFrame(offset + 33_333));
+    }
+
+    @Test
+    public void boundaryLatencyIsTheStallBeyondTheIntendedGap() {
+        LoopTimeline timeline = new LoopTimeline(100);
+        feedPass(timeline, new long[4], 0);
+        timeline.onOutputFrame(100_000);
+        timeline.onPresented(100_000, 1_000_000_000L);
+        long offset = timeline.wrap();
+        assertTrue(timeline.onOutputFrame(offset));
+        // 应隔 33.333ms + 100ms，实际隔了 150ms
+        timeline.onPresented(offset, 1_000_000_000L + 150_000_000L);
+        assertEquals(1, timeline.getLoopCount());
+        assertEquals(150_000 - 133_333, timeline.getLastBoundaryLatencyUs());
+        assertEquals(16_667, timeline.getMaxBoundaryLatencyUs());
+    }
+}
@@ -0,0 +1,132 @@
+package com.w2016561536.vcam;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rough JVM timing of the bodies of the hooks that run on every frame: the ImageReader acquire
+ * guard on its normal path, the Camera1 buffer swap alone, and the whole {@code onPreviewFrame}
+ * body as the hook runs it ({@link PreviewFrameDelivery#takeAppBuffer}, the control state read,
+ * the exchange acquire and copy, the metrics, then the app's {@code addCallbackBuffer}). The
+ * timings are only printed; what is checked is that no body allocates per call, which does not
+ * depend on the machine.
+ */
+public class PerFrameHookBenchmark {
+    private static final int ROUNDS = 2_000_000;
+    // 每次都拷一整帧，轮数少一些
+    private static final int PREVIEW_ROUNDS = 50_000;
+    // 1080p NV21，长度超出 Integer 缓存，装箱会真的分配
+    private static final int FRAME_LENGTH = YuvFormat.frameSize(1920, 1080);
+
+    @Before
+    public void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void acquireGuardDoesNotAllocate() {
+        ImageAcquireGuard guard = new ImageAcquireGuard("benchmark");
+        Runnable call = () -> {
+            if (guard.swallow(null)) {
+                throw new AssertionError();
+            }
+        };
+        report("acquire guard", call, ROUNDS);
+        assertEquals(ROUNDS / 10 + (long) ROUNDS * 2, guard.getCounter().getInvocationCount());
+    }
+
+    @Test
+    public void callbackBufferSwapDoesNotAllocate() {
+        CallbackBufferQueue queue = new CallbackBufferQueue();
+        byte[][] app = {new byte[FRAME_LENGTH], new byte[FRAME_LENGTH], new byte[FRAME_LENGTH]};
+        byte[] decoy = null;
+        for (byte[] buffer : app) {
+            decoy = queue.enqueue(buffer);
+        }
+        final byte[] camera = decoy;
+        Runnable frame = () -> {
+            if (!queue.isDecoy(camera)) {
+                throw new AssertionError();
+            }
+            byte[] taken = queue.take(camera);
+            queue.enqueue(taken);
+        };
+        report("buffer swap", frame, ROUNDS);
+        assertEquals(0, queue.getStarvationCount());
+    }
+
+    @Test
+    public void previewFrameHookBodyDoesNotAllocate() throws IOException {
+        File dir = Files.createTempDirectory("vcam-benchmark").toFile();
+        File video = new File(dir, "virtual.mp4");
+        assertTrue(video.createNewFile());
+        ControlState control = new ControlState(dir, dir, 60_000, false);
+        PreviewFrameDelivery delivery = new PreviewFrameDelivery(new FrameExchange());
+        delivery.setPreviewSize(640, 480);
+        int length = YuvFormat.frameSize(640, 480);
+        delivery.getExchange().publish(new byte[length], 640, 480);
+        CallbackBufferQueue queue = new CallbackBufferQueue();
+        byte[] decoy = null;
+        for (int i = 0; i < 3; i++) {
+            decoy = queue.enqueue(new byte[length]);
+        }
+        final byte[] camera = decoy;
+        HookCounter counter = HookCounter.register("benchmark onPreviewFrame");
+        Runnable frame = () -> {
+            long startNs = System.nanoTime();
+            byte[] app = PreviewFrameDelivery.takeAppBuffer(queue, camera);
+            delivery.onPreviewFrame(camera, app, control, false);
+            counter.record(startNs);
+            // 应用处理完把缓冲还回来
+            queue.enqueue(app);
+        };
+        try {
+            report("onPreviewFrame 640x480", frame, PREVIEW_ROUNDS);
+            assertEquals(0, queue.getStarvationCount());
+        } finally {
+            assertTrue(video.delete());
+            assertTrue(dir.delete());
+        }
+    }
+
+    private static void report(String name, Runnable body, int rounds) {
+        for (int i = 0; i < rounds / 10; i++) {
+            body.run();
+        }
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            body.run();
+        }
+        long ns = (System.nanoTime() - start) / rounds;
+        long allocated = allocatedBytes() - allocatedBefore;
+        // 计时和分配分开量一次，确认计时那轮不是靠分配器撑着
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            body.run();
+        }
+        ns = Math.min(ns, (System.nanoTime() - start) / rounds);
+        System.out.println(name + ": " + ns + " ns/call, "
+                + (allocated < 0 ? "allocation not measurable" : allocated + " bytes allocated over " + rounds + " calls"));
+        // 每次调用都分配至少是十几字节；每几百帧一条的统计日志摊下来远不到一字节
+        if (allocated >= 0) {
+            assertTrue(name + " allocated " + allocated + " bytes", allocated < rounds);
+        }
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
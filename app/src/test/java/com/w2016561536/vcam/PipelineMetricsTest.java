@@ -0,0 +1,51 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class PipelineMetricsTest {
+    @Test
+    public void reportHasOneLinePerStageAndTheCounters() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        metrics.record(PipelineMetrics.DECODE, 8_000_000);
+        metrics.record(PipelineMetrics.DECODE, 12_000_000);
+        metrics.record(PipelineMetrics.COPY, 500_000);
+        metrics.onDelivered();
+        metrics.onDelivered();
+        metrics.onDropped(3);
+        metrics.onRepeated();
+
+        String report = metrics.report("test");
+        assertTrue(report, report.contains("delivered 2 dropped 3 repeated 1"));
+        assertTrue(report, report.contains("\nband_helpers_dropped "));
+        for (String stage : new String[]{"extract", "decode", "convert", "handoff", "copy", "frame_age"}) {
+            assertTrue(stage, report.contains("\n" + stage + " "));
+        }
+        // 均值 10 ms，最大 12 ms
+        assertTrue(report, report.contains("\ndecode 2 10000 "));
+        assertTrue(report, report.contains(" 12000\n"));
+        assertTrue(report, report.contains("\nextract 0 0 0 0 0 0\n"));
+
+        metrics.reset();
+        assertEquals(0, metrics.getDeliveredCount());
+        assertEquals(0, metrics.getStage(PipelineMetrics.DECODE).getCount());
+    }
+
+    @Test
+    public void dumpsAppendToTheFile() throws Exception {
+        PipelineMetrics metrics = new PipelineMetrics();
+        File file = File.createTempFile("vcam-metrics", ".txt");
+        file.deleteOnExit();
+        metrics.onDelivered();
+        metrics.dump(file, "first");
+        metrics.dump(file, "second");
+        String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertTrue(text.contains("# vcam pipeline metrics first"));
+        assertTrue(text.indexOf("# vcam pipeline metrics second") > text.indexOf("first"));
+    }
+}
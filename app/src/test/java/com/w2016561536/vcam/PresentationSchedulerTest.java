@@ -0,0 +1,157 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PresentationSchedulerTest {
+
+    private static class FakeClock implements PresentationScheduler.Clock {
+        long now = 5_000_000_000L;
+        long slept;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public void sleepNanos(long nanos) {
+            now += nanos;
+            slept += nanos;
+        }
+    }
+
+    /** Plays {@code frames} source frames at {@code sourceFps}; returns the wall time of every output slot. */
+    private static List<Long> play(PresentationScheduler scheduler, FakeClock clock, double sourceFps, int frames) {
+        List<Long> shown = new ArrayList<>();
+        for (int i = 0; i < frames; i++) {
+            long pts = Math.round(i * 1_000_000d / sourceFps);
+            int slots = scheduler.schedule(pts);
+            for (int j = 0; j < slots; j++) {
+                scheduler.awaitSlot(j);
+                shown.add(clock.now);
+            }
+        }
+        return shown;
+    }
+
+    @Test
+    public void framesArePacedAtTheirOwnTimestamps() {
+        FakeClock clock = new FakeClock();
+        long start = clock.now;
+        PresentationScheduler scheduler = new PresentationScheduler(clock, 0);
+        List<Long> shown = play(scheduler, clock, 30, 300);
+        assertEquals(300, shown.size());
+        for (int i = 0; i < shown.size(); i++) {
+            assertEquals(start + Math.round(i * 1_000_000d / 30) * 1000, (long) shown.get(i));
+        }
+        assertEquals(0, scheduler.getTotalDropped());
+        assertEquals(0, scheduler.getTotalDuplicated());
+    }
+
+    @Test
+    public void downConversionDropsFrames() {
+        FakeClock clock = new FakeClock();
+        PresentationScheduler scheduler = new PresentationScheduler(clock, 15);
+        List<Long> shown = play(scheduler, clock, 30, 300);
+        assertEquals(150, shown.size(), 1);
+        assertEquals(150, scheduler.getTotalDropped(), 1);
+        assertEquals(0, scheduler.getTotalDuplicated());
+        assertEvenlySpaced(shown, 15);
+    }
+
+    @Test
+    public void upConversionRepeatsFrames() {
+        FakeClock clock = new FakeClock();
+        PresentationScheduler scheduler = new PresentationScheduler(clock, 30);
+        List<Long> shown = play(scheduler, clock, 24, 240);
+        // 10 秒的片源在 30fps 下应出 300 帧，起步时帧间隔还没测出来，允许差一帧
+        assertEquals(300, shown.size(), 1);
+        assertEquals(60, scheduler.getTotalDuplicated(), 1);
+        assertEquals(0, scheduler.getTotalDropped());
+        assertEvenlySpaced(shown.subList(2, shown.size()), 30);
+    }
+
+    @Test
+    public void lateFramesAreSkippedNotSleptThrough() {
+        FakeClock clock = new FakeClock();
+        PresentationScheduler scheduler = new PresentationScheduler(clock, 30);
+        play(scheduler, clock, 30, 30);
+        long dueNext = clock.now + 33_333_333;
+        // 解码卡了 200ms
+        clock.now += 200_000_000;
+        long sleptBefore = clock.slept;
+        int dropped = 0;
+        long pts = 1_000_000;
+        while (true) {
+            int slots = scheduler.schedule(pts);
+            pts += 33_333;
+            if (slots > 0) {
+                scheduler.awaitSlot(0);
+                break;
+            }
+            dropped++;
+        }
+        assertTrue(dropped >= 5);
+        // 追上之后只等到下一个整点，不会把落下的帧再睡一遍
+        assertTrue(clock.slept - sleptBefore < 33_333_333);
+        assertTrue(clock.now >= dueNext);
+        assertEquals(dropped, scheduler.getTotalDropped());
+    }
+
+    @Test
+    public void longStallReanchorsInsteadOfDropping() {
+        FakeClock clock = new FakeClock();
+        PresentationScheduler scheduler = new PresentationScheduler(clock, 0);
+        play(scheduler, clock, 30, 30);
+        clock.now += PresentationScheduler.MAX_LAG_NS + 1_000_000_000L;
+        long resumed = clock.now;
+        assertEquals(1, scheduler.schedule(1_000_000));
+        scheduler.awaitSlot(0);
+        assertEquals(resumed, clock.now);
+        assertEquals(1, scheduler.schedule(1_033_333));
+        scheduler.awaitSlot(0);
+        assertEquals(resumed + 33_333_000, clock.now);
+        assertEquals(0, scheduler.getTotalDropped());
+    }
+
+    @Test
+    public void loopGapIsHonouredWithoutCountingAsDrops() {
+        FakeClock clock = new FakeClock();
+        PresentationScheduler scheduler = new PresentationScheduler(clock, 30);
+        play(scheduler, clock, 30, 30);
+        long before = clock.now;
+        // 下一轮从 1s + 500ms 的间隔之后开始
+        int slots = scheduler.schedule(1_500_000);
+        assertEquals(1, slots);
+        scheduler.awaitSlot(0);
+        assertNear(before + 533_333_333, clock.now, 1_000_000);
+        assertEquals(0, scheduler.getTotalDropped());
+    }
+
+    @Test
+    public void countersRollOverEverySecond() {
+        FakeClock clock = new FakeClock();
+        PresentationScheduler scheduler = new PresentationScheduler(clock, 15);
+        play(scheduler, clock, 30, 95);
+        assertEquals(15, scheduler.getDroppedPerSecond(), 1);
+        assertEquals(15, scheduler.getPresentedPerSecond(), 1);
+        assertEquals(0, scheduler.getDuplicatedPerSecond());
+    }
+
+    // 周期按调度器的算法取整，比较时用 long：assertEquals(long, long, int) 会落到 float 重载上
+    private static void assertEvenlySpaced(List<Long> shown, double fps) {
+        long periodNs = Math.round(1_000_000_000L / fps);
+        for (int i = 1; i < shown.size(); i++) {
+            assertNear(periodNs, shown.get(i) - shown.get(i - 1), 1);
+        }
+    }
+
+    private static void assertNear(long expected, long actual, long delta) {
+        assertTrue("expected " + expected + " +- " + delta + " but was " + actual, Math.abs(expected - actual) <= delta);
+    }
+}
@@ -0,0 +1,85 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PreviewFrameDeliveryTest {
+    private static ControlState.Snapshot state(boolean videoExists, boolean disabled) {
+        return new ControlState.Snapshot(videoExists, disabled, false, false, false, false, false, false, 1);
+    }
+
+    @Test
+    public void callbackBuffersAreOnlySwappedWhileReplacing() {
+        assertTrue(PreviewFrameDelivery.isReplacing(state(true, false)));
+        assertFalse(PreviewFrameDelivery.isReplacing(state(true, true)));
+        assertFalse(PreviewFrameDelivery.isReplacing(state(false, false)));
+    }
+
+    @Test
+    public void appBufferGetsTheRealFrameUnlessAVirtualOneWasWritten() {
+        byte[] camera = new byte[12];
+        Arrays.fill(camera, (byte) 7);
+        byte[] app = new byte[12];
+        PreviewFrameDelivery delivery = new PreviewFrameDelivery(new FrameExchange());
+
+        // 停用/没有视频：每一帧都拷真实画面，不只是第一帧
+        for (int i = 0; i < 3; i++) {
+            Arrays.fill(app, (byte) 0);
+            delivery.deliver(camera, app, false);
+            assertArrayEquals(camera, app);
+        }
+
+        // 解码器还没发布任何帧
+        assertEquals(0, delivery.getExchange().getSequence());
+        Arrays.fill(app, (byte) 0);
+        delivery.deliver(camera, app, true);
+        assertArrayEquals(camera, app);
+
+        byte[] virtual = new byte[12];
+        Arrays.fill(virtual, (byte) 9);
+        delivery.getExchange().publish(virtual, 4, 2);
+        delivery.deliver(camera, app, true);
+        assertArrayEquals(virtual, app);
+
+        // 相机直接写进应用缓冲（非缓冲回调）时什么都不用拷
+        delivery.deliver(camera, camera, false);
+        assertEquals(7, camera[0]);
+    }
+
+    @Test
+    public void hookBodyFollowsTheControlFiles() throws IOException {
+        File control = Files.createTempDirectory("vcam-preview").toFile();
+        File video = new File(control, "virtual.mp4");
+        assertTrue(video.createNewFile());
+        ControlState state = new ControlState(control, control, 60_000, false);
+        PreviewFrameDelivery delivery = new PreviewFrameDelivery(new FrameExchange());
+        byte[] virtual = new byte[12];
+        Arrays.fill(virtual, (byte) 9);
+        delivery.getExchange().publish(virtual, 4, 2);
+        byte[] camera = new byte[12];
+        Arrays.fill(camera, (byte) 7);
+        byte[] app = new byte[12];
+
+        delivery.onPreviewFrame(camera, app, state, false);
+        assertArrayEquals(virtual, app);
+        // 初始化时发现没有视频的回调一直送真实画面
+        delivery.onPreviewFrame(camera, app, state, true);
+        assertArrayEquals(camera, app);
+
+        File disable = new File(control, "disable.jpg");
+        assertTrue(disable.createNewFile());
+        state.refresh();
+        Arrays.fill(app, (byte) 0);
+        delivery.onPreviewFrame(camera, app, state, false);
+        assertArrayEquals(camera, app);
+        assertTrue(disable.delete());
+        assertTrue(video.delete());
+        assertTrue(control.delete());
+    }
+}
@@ -0,0 +1,120 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class RawFrameStoreTest {
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 4;
+    private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+
+    private static byte[] frame(int seed) {
+        byte[] f = new byte[FRAME_SIZE];
+        for (int i = 0; i < FRAME_SIZE; i++) {
+            f[i] = (byte) (seed * 17 + i);
+        }
+        return f;
+    }
+
+    private static File pack(int format, int frames, long intervalUs) throws IOException {
+        File file = File.createTempFile("vcam", RawFrameStore.FILE_EXTENSION);
+        file.deleteOnExit();
+        try (RawFrameStoreWriter writer = new RawFrameStoreWriter(file, WIDTH, HEIGHT, format)) {
+            for (int i = 0; i < frames; i++) {
+                writer.addFrame(frame(i), i * intervalUs);
+            }
+        }
+        return file;
+    }
+
+    @Test
+    public void nv21RoundTrip() throws IOException {
+        try (RawFrameStore store = RawFrameStore.open(pack(RawFrameStore.FORMAT_NV21, 10, 33_333))) {
+            assertEquals(WIDTH, store.getWidth());
+            assertEquals(HEIGHT, store.getHeight());
+            assertEquals(RawFrameStore.FORMAT_NV21, store.getFormat());
+            assertEquals(10, store.getFrameCount());
+            byte[] dst = new byte[FRAME_SIZE];
+            for (int i = 0; i < 10; i++) {
+                assertEquals(FRAME_SIZE, store.readAsNv21(i, dst));
+                assertArrayEquals(frame(i), dst);
+                assertEquals(i * 33_333L, store.getPresentationTimeUs(i));
+            }
+        }
+    }
+
+    @Test
+    public void i420IsInterleavedToNv21() throws IOException {
+        try (RawFrameStore store = RawFrameStore.open(pack(RawFrameStore.FORMAT_I420, 1, 0))) {
+            byte[] i420 = frame(0);
+            byte[] raw = new byte[FRAME_SIZE];
+            store.read(0, raw);
+            assertArrayEquals(i420, raw);
+
+            byte[] nv21 = new byte[FRAME_SIZE];
+            store.readAsNv21(0, nv21);
+            int luma = WIDTH * HEIGHT;
+            int chroma = luma / 4;
+            for (int i = 0; i < luma; i++) {
+                assertEquals(i420[i], nv21[i]);
+            }
+            for (int i = 0; i < chroma; i++) {
+                assertEquals(i420[luma + chroma + i], nv21[luma + 2 * i]);
+                assertEquals(i420[luma + i], nv21[luma + 2 * i + 1]);
+            }
+        }
+    }
+
+    @Test
+    public void shortDestinationGetsTruncatedCopy() throws IOException {
+        try (RawFrameStore store = RawFrameStore.open(pack(RawFrameStore.FORMAT_NV21, 1, 0))) {
+            byte[] dst = new byte[10];
+            assertEquals(10, store.readAsNv21(0, dst));
+        }
+    }
+
+    @Test
+    public void indexAtLoopsOverTimestamps() throws IOException {
+        try (RawFrameStore store = RawFrameStore.open(pack(RawFrameStore.FORMAT_NV21, 4, 100))) {
+            assertEquals(400, store.getDurationUs());
+            assertEquals(0, store.indexAt(0));
+            assertEquals(0, store.indexAt(99));
+            assertEquals(1, store.indexAt(100));
+            assertEquals(3, store.indexAt(399));
+            assertEquals(0, store.indexAt(400));
+            assertEquals(2, store.indexAt(1050));
+            assertEquals(0, store.indexAt(-5));
+        }
+    }
+
+    @Test
+    public void loopDelayHoldsLastFrame() throws IOException {
+        try (RawFrameStore store = RawFrameStore.open(pack(RawFrameStore.FORMAT_NV21, 4, 100))) {
+            assertEquals(3, store.indexAt(399, 200));
+            assertEquals(3, store.indexAt(599, 200));
+            assertEquals(0, store.indexAt(600, 200));
+            assertEquals(1, store.indexAt(700, 200));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void garbageIsRejected() throws IOException {
+        File file = File.createTempFile("vcam", RawFrameStore.FILE_EXTENSION);
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[64]);
+        }
+        RawFrameStore.open(file);
+    }
+
+    @Test
+    public void storeSitsNextToVideo() {
+        assertEquals("/sdcard/DCIM/Camera1/virtual.vcraw", RawFrameStore.pathFor("/sdcard/DCIM/Camera1/virtual.mp4"));
+        assertEquals("/a.b/clip.vcraw", RawFrameStore.pathFor("/a.b/clip"));
+    }
+}
@@ -0,0 +1,75 @@
+package com.w2016561536.vcam;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Rough JVM timing of the table-driven converter against the per-pixel routine HookMain used
+ * before, on a 12 MP image. See {@link Benchmarks} for how to run it.
+ */
+public class RgbToYuvBenchmark {
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+    private static final int WARMUP = 3;
+    private static final int ROUNDS = 8;
+
+    @Before
+    public void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void argbToNv21At12Mp() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        Random random = new Random(42);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        byte[] out = new byte[YuvFormat.frameSize(WIDTH, HEIGHT)];
+        RgbToYuv engine = RgbToYuv.get(RgbToYuv.MATRIX_BT601, false);
+
+        long legacy = time(() -> legacy(pixels, WIDTH, HEIGHT, out));
+        long single = time(() -> engine.convert(pixels, 0, WIDTH, WIDTH, HEIGHT, out, YuvFormat.NV21,
+                new BandExecutor(0, 1)));
+        long banded = time(() -> engine.convert(pixels, 0, WIDTH, WIDTH, HEIGHT, out, YuvFormat.NV21));
+
+        System.out.println("ARGB -> NV21 12MP, us/frame: old formula " + legacy / 1000 + ", tables " + single / 1000
+                + ", tables banded x" + BandExecutor.shared().getParallelism() + " " + banded / 1000);
+    }
+
+    /** The routine HookMain.rgb2YCbCr420 used, writing into {@code yuv} instead of allocating. */
+    private static void legacy(int[] pixels, int width, int height, byte[] yuv) {
+        int len = width * height;
+        int y, u, v;
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                int rgb = (pixels[i * width + j]) & 0x00FFFFFF;
+                int r = rgb & 0xFF;
+                int g = (rgb >> 8) & 0xFF;
+                int b = (rgb >> 16) & 0xFF;
+                y = ((66 * r + 129 * g + 25 * b + 128) >> 8) + 16;
+                u = ((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128;
+                v = ((112 * r - 94 * g - 18 * b + 128) >> 8) + 128;
+                y = y < 16 ? 16 : (Math.min(y, 255));
+                u = u < 0 ? 0 : (Math.min(u, 255));
+                v = v < 0 ? 0 : (Math.min(v, 255));
+                yuv[i * width + j] = (byte) y;
+                yuv[len + (i >> 1) * width + (j & ~1)] = (byte) u;
+                yuv[len + (i >> 1) * width + (j & ~1) + 1] = (byte) v;
+            }
+        }
+    }
+
+    private static long time(Runnable conversion) {
+        for (int i = 0; i < WARMUP; i++) {
+            conversion.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            conversion.run();
+        }
+        return (System.nanoTime() - start) / ROUNDS;
+    }
+}
@@ -0,0 +1,152 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RgbToYuvTest {
+
+    private static int argb(int r, int g, int b) {
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static int[] yuvOf(RgbToYuv engine, int color) {
+        int[] pixels = {color, color, color, color};
+        byte[] out = new byte[YuvFormat.frameSize(2, 2)];
+        engine.convert(pixels, 0, 2, 2, 2, out, YuvFormat.I420);
+        return new int[]{out[0] & 0xff, out[4] & 0xff, out[5] & 0xff};
+    }
+
+    /** Double-precision conversion of one RGB triple, clamped to 0..255. */
+    static int[] reference(int matrix, boolean fullRange, double r, double g, double b) {
+        double[] c = RgbToYuv.coefficients(matrix, fullRange);
+        double y = c[0] * r + c[1] * g + c[2] * b + (fullRange ? 0 : 16);
+        double u = c[3] * r + c[4] * g + c[5] * b + 128;
+        double v = c[6] * r + c[7] * g + c[8] * b + 128;
+        return new int[]{clamp(y), clamp(u), clamp(v)};
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.floor(value + 0.5)));
+    }
+
+    @Test
+    public void publishedReferenceValues() {
+        RgbToYuv bt601 = RgbToYuv.get(RgbToYuv.MATRIX_BT601, false);
+        assertArrayEquals(new int[]{16, 128, 128}, yuvOf(bt601, argb(0, 0, 0)));
+        assertArrayEquals(new int[]{235, 128, 128}, yuvOf(bt601, argb(255, 255, 255)));
+        assertArrayEquals(new int[]{81, 90, 240}, yuvOf(bt601, argb(255, 0, 0)));
+        assertArrayEquals(new int[]{145, 54, 34}, yuvOf(bt601, argb(0, 255, 0)));
+        assertArrayEquals(new int[]{41, 240, 110}, yuvOf(bt601, argb(0, 0, 255)));
+
+        RgbToYuv bt709 = RgbToYuv.get(RgbToYuv.MATRIX_BT709, false);
+        assertArrayEquals(new int[]{63, 102, 240}, yuvOf(bt709, argb(255, 0, 0)));
+        assertArrayEquals(new int[]{173, 42, 26}, yuvOf(bt709, argb(0, 255, 0)));
+        assertArrayEquals(new int[]{32, 240, 118}, yuvOf(bt709, argb(0, 0, 255)));
+
+        RgbToYuv jpeg = RgbToYuv.get(RgbToYuv.MATRIX_BT601, true);
+        assertArrayEquals(new int[]{0, 128, 128}, yuvOf(jpeg, argb(0, 0, 0)));
+        assertArrayEquals(new int[]{255, 128, 128}, yuvOf(jpeg, argb(255, 255, 255)));
+        assertArrayEquals(new int[]{76, 85, 255}, yuvOf(jpeg, argb(255, 0, 0)));
+        assertArrayEquals(new int[]{29, 255, 107}, yuvOf(jpeg, argb(0, 0, 255)));
+    }
+
+    @Test
+    public void tablesMatchFloatingPointForEveryCombination() {
+        Random random = new Random(3);
+        for (int matrix : new int[]{RgbToYuv.MATRIX_BT601, RgbToYuv.MATRIX_BT709}) {
+            for (boolean full : new boolean[]{false, true}) {
+                RgbToYuv engine = RgbToYuv.get(matrix, full);
+                for (int i = 0; i < 2000; i++) {
+                    int r = random.nextInt(256);
+                    int g = random.nextInt(256);
+                    int b = random.nextInt(256);
+                    int[] expected = reference(matrix, full, r, g, b);
+                    int[] actual = yuvOf(engine, argb(r, g, b));
+                    for (int k = 0; k < 3; k++) {
+                        // 定点表在 .5 附近可能差 1
+                        assertEquals(expected[k], actual[k], 1);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void chromaIsTheAverageOfEachBlock() {
+        RgbToYuv engine = RgbToYuv.get(RgbToYuv.MATRIX_BT601, false);
+        int[] pixels = {
+                argb(255, 0, 0), argb(0, 0, 255),
+                argb(0, 255, 0), argb(255, 255, 255),
+        };
+        byte[] out = new byte[YuvFormat.frameSize(2, 2)];
+        engine.convert(pixels, 0, 2, 2, 2, out, YuvFormat.NV21);
+        int[] expected = reference(RgbToYuv.MATRIX_BT601, false, 127.5, 127.5, 127.5);
+        assertEquals(expected[2], out[4] & 0xff);
+        assertEquals(expected[1], out[5] & 0xff);
+        assertEquals(81, out[0] & 0xff);
+        assertEquals(41, out[1] & 0xff);
+        assertEquals(145, out[2] & 0xff);
+        assertEquals(235, out[3] & 0xff);
+    }
+
+    @Test
+    public void outputLayoutsHoldTheSameSamples() {
+        int width = 38;
+        int height = 22;
+        int[] pixels = new int[width * height];
+        Random random = new Random(9);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        RgbToYuv engine = RgbToYuv.get(RgbToYuv.MATRIX_BT709, true);
+        byte[] nv21 = new byte[YuvFormat.frameSize(width, height)];
+        byte[] nv12 = new byte[nv21.length];
+        byte[] i420 = new byte[nv21.length];
+        byte[] repacked = new byte[nv21.length];
+        engine.convert(pixels, 0, width, width, height, nv21, YuvFormat.NV21);
+        engine.convert(pixels, 0, width, width, height, nv12, YuvFormat.NV12);
+        engine.convert(pixels, 0, width, width, height, i420, YuvFormat.I420);
+        YuvFormat.repack(nv21, YuvFormat.NV21, repacked, YuvFormat.NV12, width, height);
+        assertArrayEquals(repacked, nv12);
+        YuvFormat.repack(nv21, YuvFormat.NV21, repacked, YuvFormat.I420, width, height);
+        assertArrayEquals(repacked, i420);
+    }
+
+    @Test
+    public void stripsAndBandsGiveTheSameFrame() {
+        int width = 101;
+        int height = 75;
+        int stride = 128;
+        int[] pixels = new int[stride * height + 5];
+        Random random = new Random(4);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        RgbToYuv engine = RgbToYuv.get(RgbToYuv.MATRIX_BT601, false);
+        byte[] whole = new byte[YuvFormat.frameSize(width, height)];
+        engine.convert(pixels, 5, stride, width, height, whole, YuvFormat.NV21, new BandExecutor(0, 1));
+        byte[] banded = new byte[whole.length];
+        engine.convert(pixels, 5, stride, width, height, banded, YuvFormat.NV21, new BandExecutor(3, 1));
+        assertArrayEquals(whole, banded);
+
+        // 模拟 Bitmap 按条带取像素
+        byte[] strips = new byte[whole.length];
+        int[] strip = new int[width * 16];
+        for (int row = 0; row < height; row += 16) {
+            int rows = Math.min(16, height - row);
+            for (int r = 0; r < rows; r++) {
+                System.arraycopy(pixels, 5 + (row + r) * stride, strip, r * width, width);
+            }
+            engine.convertRows(strip, 0, width, width, height, row, row + rows, strips, YuvFormat.NV21);
+        }
+        assertArrayEquals(whole, strips);
+        // 奇数行列只有亮度
+        int[] ref = reference(RgbToYuv.MATRIX_BT601, false,
+                (pixels[5 + 74 * stride + 100] >> 16) & 0xff, (pixels[5 + 74 * stride + 100] >> 8) & 0xff,
+                pixels[5 + 74 * stride + 100] & 0xff);
+        assertEquals(ref[0], whole[74 * width + 100] & 0xff);
+    }
+}
@@ -0,0 +1,133 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SourceSelectorTest {
+    private static final int NV21 = 0x11;
+    private static final int JPEG = 0x100;
+
+    private static VideoLibrary.Entry video(String name, int width, int height) {
+        return new VideoLibrary.Entry(name, 1, 1, width, height, 30, 10_000_000, "video/avc", 0, 10);
+    }
+
+    /** Takes the size from names like {@code virtual_1280x720.mp4}; anything else is 1920x1080. */
+    private static final VideoLibrary.Prober NAME_PROBER = (file, size, lastModified) -> {
+        String name = file.getName();
+        int width = 1920;
+        int height = 1080;
+        int underscore = name.lastIndexOf('_');
+        if (underscore > 0) {
+            String[] dims = name.substring(underscore + 1, name.length() - 4).split("x");
+            width = Integer.parseInt(dims[0]);
+            height = Integer.parseInt(dims[1]);
+        }
+        return new VideoLibrary.Entry(name, size, lastModified, width, height, 30, 10_000_000, "video/avc", 0, 10);
+    };
+
+    private static File library(String... names) throws IOException {
+        File dir = Files.createTempDirectory("vcam-source").toFile();
+        dir.deleteOnExit();
+        new File(dir, VideoLibrary.INDEX_FILE).deleteOnExit();
+        for (String name : names) {
+            touch(dir, name);
+        }
+        return dir;
+    }
+
+    private static void touch(File dir, String name) throws IOException {
+        File f = new File(dir, name);
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(1);
+        }
+        f.deleteOnExit();
+    }
+
+    @Test
+    public void exactMatchWins() {
+        SourceSelector.Match match = SourceSelector.choose(Arrays.asList(
+                video("a.mp4", 1920, 1080), video("b.mp4", 1280, 720), video("c.mp4", 640, 480)), 1280, 720);
+        assertEquals("b.mp4", match.entry.name);
+        assertEquals(SourceSelector.KIND_EXACT, match.kind);
+    }
+
+    @Test
+    public void sameAspectPrefersSmallestDownscale() {
+        SourceSelector.Match match = SourceSelector.choose(Arrays.asList(
+                video("a.mp4", 1920, 1080), video("b.mp4", 1280, 720), video("c.mp4", 800, 600),
+                video("d.mp4", 320, 180)), 640, 360);
+        assertEquals("b.mp4", match.entry.name);
+        assertEquals(SourceSelector.KIND_SCALE, match.kind);
+        assertEquals(4.0, match.cost, 1e-9);
+    }
+
+    @Test
+    public void codecAlignmentCountsAsSameAspect() {
+        SourceSelector.Match match = SourceSelector.choose(Arrays.asList(
+                video("a.mp4", 1920, 1088), video("b.mp4", 1440, 1080)), 1280, 720);
+        assertEquals("a.mp4", match.entry.name);
+        assertEquals(SourceSelector.KIND_SCALE, match.kind);
+    }
+
+    @Test
+    public void otherwiseTheCheapestCropWins() {
+        SourceSelector.Match match = SourceSelector.choose(Arrays.asList(
+                video("portrait.mp4", 720, 1280), video("wide.mp4", 1280, 720), video("small.mp4", 320, 240)),
+                640, 480);
+        assertEquals("wide.mp4", match.entry.name);
+        assertEquals(SourceSelector.KIND_CROP, match.kind);
+        assertEquals(0.25, match.cost, 0.01);
+    }
+
+    @Test
+    public void upscaleIsTheLastResort() {
+        SourceSelector.Match match = SourceSelector.choose(Arrays.asList(
+                video("a.mp4", 320, 240), video("b.mp4", 640, 360)), 1280, 720);
+        assertEquals("b.mp4", match.entry.name);
+        assertEquals(SourceSelector.KIND_UPSCALE, match.kind);
+        assertNull(SourceSelector.choose(new ArrayList<VideoLibrary.Entry>(), 1280, 720));
+    }
+
+    @Test
+    public void onlyVariantsOfTheBaseVideoAreConsidered() {
+        assertTrue(SourceSelector.isVariant("virtual.mp4", "virtual.mp4"));
+        assertTrue(SourceSelector.isVariant("virtual.mp4", "virtual_640x480.mp4"));
+        assertFalse(SourceSelector.isVariant("virtual.mp4", "virtual2.mp4"));
+        assertFalse(SourceSelector.isVariant("virtual.mp4", "other_640x480.mp4"));
+    }
+
+    @Test
+    public void decisionsAreCachedUntilTheLibraryChanges() throws IOException {
+        File dir = library("virtual.mp4", "virtual_1280x720.mp4", "virtual_640x480.mp4", "other_320x240.mp4");
+        VideoLibrary library = new VideoLibrary(dir, NAME_PROBER, 60_000, false);
+        SourceSelector selector = new SourceSelector();
+        final List<String> decisions = new ArrayList<>();
+        selector.setListener((key, match) -> decisions.add(match.entry.name));
+
+        // 还没探测完时不做决定
+        assertNull(selector.select(library, "virtual.mp4", "com.example", 640, 480, NV21));
+        assertTrue(decisions.isEmpty());
+
+        library.refresh(true);
+        assertEquals("virtual_640x480.mp4", selector.select(library, "virtual.mp4", "com.example", 640, 480, NV21).entry.name);
+        assertEquals("virtual_640x480.mp4", selector.select(library, "virtual.mp4", "com.example", 640, 480, NV21).entry.name);
+        assertEquals(1, decisions.size());
+        // 格式不同算另一条流
+        selector.select(library, "virtual.mp4", "com.example", 640, 480, JPEG);
+        assertEquals(2, decisions.size());
+        assertEquals("virtual_1280x720.mp4", selector.select(library, "virtual.mp4", "com.example", 640, 360, NV21).entry.name);
+
+        touch(dir, "virtual_640x360.mp4");
+        library.refresh(true);
+        assertEquals("virtual_640x360.mp4", selector.select(library, "virtual.mp4", "com.example", 640, 360, NV21).entry.name);
+    }
+}
@@ -0,0 +1,149 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VLogTest {
+    private static final class Collect implements VLog.Sink {
+        final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void write(int level, String message) {
+            lines.add(level + " " + message);
+        }
+    }
+
+    @Test
+    public void placeholdersAreFilledOnDrainAndLeftoverThrowablesGetATrace() {
+        Collect sink = new Collect();
+        VLog log = new VLog(16, 100, sink, false);
+        StringBuilder mutable = new StringBuilder("before");
+        log.log(VLog.INFO, "size {}x{} of {}", 3, 1280, 720, mutable, null);
+        log.log(VLog.WARN, "failed: {}", 2, new IllegalStateException("boom"), new RuntimeException("trace me"), null, null);
+        log.log(VLog.ERROR, "many {} {} {} {}", 4, null, null, null, new Object[]{1, 2, 3, 4});
+        log.log(VLog.INFO, "no placeholders", 1, "extra", null, null, null);
+        // 参数在日志线程上才转成字符串
+        mutable.setLength(0);
+        mutable.append("after");
+        assertTrue(sink.lines.isEmpty());
+
+        assertEquals(4, log.drain());
+        assertEquals("1 size 1280x720 of after", sink.lines.get(0));
+        assertTrue(sink.lines.get(1), sink.lines.get(1).startsWith("2 failed: java.lang.IllegalStateException: boom\n"
+                + "java.lang.RuntimeException: trace me"));
+        assertEquals("3 many 1 2 3 4", sink.lines.get(2));
+        assertEquals("1 no placeholders extra", sink.lines.get(3));
+        assertEquals(0, log.drain());
+    }
+
+    @Test
+    public void levelsBelowTheMinimumAreDroppedAtTheCallSite() {
+        Collect sink = new Collect();
+        VLog log = new VLog(16, 100, sink, false);
+        log.log(VLog.DEBUG, "hidden", 0, null, null, null, null);
+        assertFalse(log.isEnabled(VLog.DEBUG));
+        log.setMinLevel(VLog.DEBUG);
+        log.log(VLog.DEBUG, "shown", 0, null, null, null, null);
+        log.drain();
+        assertEquals(Collections.singletonList("0 shown"), sink.lines);
+    }
+
+    @Test
+    public void eachCallSiteIsRateLimitedAndReportsWhatItSuppressed() {
+        Collect sink = new Collect();
+        VLog log = new VLog(64, 3, sink, false);
+        for (int i = 0; i < 10; i++) {
+            log.log(VLog.INFO, "hot {}", 1, i, null, null, null);
+        }
+        log.log(VLog.INFO, "other site", 0, null, null, null, null);
+        log.drain();
+        assertEquals(4, sink.lines.size());
+        assertEquals("1 hot 2", sink.lines.get(2));
+        assertEquals("1 other site", sink.lines.get(3));
+    }
+
+    @Test
+    public void templatesWithTheSameHashAreLimitedSeparately() {
+        Collect sink = new Collect();
+        VLog log = new VLog(64, 2, sink, false);
+        // "Aa" 和 "BB" 的 hashCode 相同
+        assertEquals("Aa {}".hashCode(), "BB {}".hashCode());
+        for (int i = 0; i < 5; i++) {
+            log.log(VLog.INFO, "Aa {}", 1, i, null, null, null);
+        }
+        log.log(VLog.INFO, "BB {}", 1, 0, null, null, null);
+        log.log(VLog.INFO, "BB {}", 1, 1, null, null, null);
+        log.drain();
+        assertEquals(4, sink.lines.size());
+        assertEquals("1 BB 0", sink.lines.get(2));
+        assertEquals("1 BB 1", sink.lines.get(3));
+    }
+
+    @Test
+    public void sleepingLogThreadIsWokenByTheNextLine() throws Exception {
+        Collect sink = new Collect();
+        VLog log = new VLog(16, 100, sink, true);
+        log.log(VLog.INFO, "first", 0, null, null, null, null);
+        awaitLines(sink, 1);
+        // 让日志线程空下来睡着
+        Thread.sleep(100);
+        log.log(VLog.INFO, "second", 0, null, null, null, null);
+        awaitLines(sink, 2);
+        assertEquals("1 second", sink.lines.get(1));
+    }
+
+    @Test
+    public void fullRingDropsInsteadOfBlocking() {
+        Collect sink = new Collect();
+        VLog log = new VLog(4, 100, sink, false);
+        for (int i = 0; i < 10; i++) {
+            log.log(VLog.INFO, "line {}", 1, i, null, null, null);
+        }
+        assertEquals(6, log.getDroppedCount());
+        assertEquals(4, log.drain());
+        assertEquals(5, sink.lines.size());
+        assertTrue(sink.lines.get(4), sink.lines.get(4).contains("6"));
+        log.log(VLog.INFO, "again", 0, null, null, null, null);
+        log.drain();
+        assertEquals("1 again", sink.lines.get(5));
+    }
+
+    @Test
+    public void concurrentProducersLoseNothingWhileThereIsRoom() throws Exception {
+        final Collect sink = new Collect();
+        final VLog log = new VLog(1 << 14, Integer.MAX_VALUE, sink, true);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    log.log(VLog.INFO, "t{} {}", 2, id, i, null, null);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sink.lines.size() < 8000 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, log.getDroppedCount());
+        assertEquals(8000, sink.lines.size());
+        assertTrue(sink.lines.contains("1 t3 1999"));
+    }
+
+    private static void awaitLines(Collect sink, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sink.lines.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, sink.lines.size());
+    }
+}
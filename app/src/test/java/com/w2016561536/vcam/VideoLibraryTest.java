@@ -0,0 +1,137 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VideoLibraryTest {
+
+    /** Pretends every file is a 1280x720 30fps clip whose duration is its size in ms. */
+    private static class FakeProber implements VideoLibrary.Prober {
+        final List<String> probed = new ArrayList<>();
+
+        @Override
+        public VideoLibrary.Entry probe(File file, long size, long lastModified) {
+            probed.add(file.getName());
+            return new VideoLibrary.Entry(file.getName(), size, lastModified, 1280, 720, 30, size * 1000,
+                    "video/avc", 90, 3);
+        }
+    }
+
+    private static File tempDir() throws IOException {
+        File dir = Files.createTempDirectory("vcam-library").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static File write(File dir, String name, int bytes) throws IOException {
+        File f = new File(dir, name);
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(new byte[bytes]);
+        }
+        f.deleteOnExit();
+        return f;
+    }
+
+    @Test
+    public void listsVideosWithoutProbingUntilRefreshed() throws IOException {
+        File dir = tempDir();
+        write(dir, "b.mp4", 10);
+        write(dir, "a.MP4", 20);
+        write(dir, "notes.txt", 5);
+        write(dir, ".hidden.mp4", 5);
+        FakeProber prober = new FakeProber();
+        VideoLibrary library = new VideoLibrary(dir, prober, 60_000, false);
+
+        assertArrayEquals(new String[]{"a.MP4", "b.mp4"}, library.getNames());
+        assertFalse(library.get(0).probed);
+        assertTrue(prober.probed.isEmpty());
+
+        library.refresh(true);
+        assertEquals(2, prober.probed.size());
+        VideoLibrary.Entry a = library.find("a.MP4");
+        assertTrue(a.isValid());
+        assertEquals(720, a.getDisplayWidth());
+        assertEquals(1280, a.getDisplayHeight());
+        assertSame(a, library.get(0));
+        assertNull(library.get(2));
+        assertNull(library.get(-1));
+    }
+
+    @Test
+    public void onlyNewOrChangedFilesAreProbed() throws IOException {
+        File dir = tempDir();
+        write(dir, "a.mp4", 10);
+        File b = write(dir, "b.mp4", 10);
+        FakeProber prober = new FakeProber();
+        VideoLibrary library = new VideoLibrary(dir, prober, 60_000, false);
+        library.refresh(true);
+        library.refresh(true);
+        assertEquals(2, prober.probed.size());
+
+        write(dir, "b.mp4", 30);
+        write(dir, "c.mp4", 10);
+        library.refresh(true);
+        assertEquals(4, prober.probed.size());
+        assertTrue(prober.probed.subList(2, 4).contains("b.mp4"));
+        assertTrue(prober.probed.subList(2, 4).contains("c.mp4"));
+        assertEquals(30_000, library.find("b.mp4").durationUs);
+
+        assertTrue(b.delete());
+        library.refresh(true);
+        assertArrayEquals(new String[]{"a.mp4", "c.mp4"}, library.getNames());
+        assertEquals(4, prober.probed.size());
+    }
+
+    @Test
+    public void indexIsReusedByTheNextInstance() throws IOException {
+        File dir = tempDir();
+        write(dir, "a.mp4", 10);
+        new VideoLibrary(dir, new FakeProber(), 60_000, false).refresh(true);
+        new File(dir, VideoLibrary.INDEX_FILE).deleteOnExit();
+
+        VideoLibrary.Prober failing = (file, size, lastModified) -> {
+            throw new AssertionError("probed " + file);
+        };
+        VideoLibrary library = new VideoLibrary(dir, failing, 60_000, false);
+        library.refresh(true);
+        VideoLibrary.Entry a = library.find("a.mp4");
+        assertTrue(a.isValid());
+        assertEquals(1280, a.width);
+        assertEquals(30f, a.frameRate, 0);
+        assertEquals("video/avc", a.mime);
+        assertEquals(90, a.rotation);
+        assertEquals(3, a.syncSamples);
+    }
+
+    @Test
+    public void failedProbeIsNotRetriedForTheSameFile() throws IOException {
+        File dir = tempDir();
+        write(dir, "broken.mp4", 10);
+        final int[] calls = new int[1];
+        VideoLibrary library = new VideoLibrary(dir, (file, size, lastModified) -> {
+            calls[0]++;
+            throw new IOException("no video track");
+        }, 60_000, false);
+        library.refresh(true);
+        library.refresh(true);
+        assertEquals(1, calls[0]);
+        assertTrue(library.find("broken.mp4").probed);
+        assertFalse(library.find("broken.mp4").isValid());
+        new File(dir, VideoLibrary.INDEX_FILE).deleteOnExit();
+    }
+
+    @Test
+    public void describeIsShortAndReadable() {
+        VideoLibrary.Entry entry = new VideoLibrary.Entry("a.mp4", 1, 1, 1920, 1080, 29.97f, 83_000_000L,
+                "video/hevc", 0, 10);
+        assertEquals("1920x1080 30fps 1:23 hevc", entry.describe());
+    }
+}
@@ -0,0 +1,50 @@
+package com.w2016561536.vcam;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Rough JVM timing of the bulk-row converter against the per-pixel path on synthetic
+ * 1080p planes; skipped by default, see {@link Benchmarks}.
+ */
+public class Yuv420ConverterBenchmark {
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final int ROW_STRIDE = 2048;
+    private static final int WARMUP = 20;
+    private static final int ROUNDS = 60;
+
+    @Before
+    public void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void yuv420ToNv21At1080p() {
+        Yuv420ConverterTest.Planes p = Yuv420ConverterTest.semiPlanar(WIDTH, HEIGHT, ROW_STRIDE, false, 42);
+        int layout = Yuv420Converter.detectChromaLayout(p.u, p.v, p.uvPixelStride);
+        byte[] out = new byte[WIDTH * HEIGHT * 3 / 2];
+        byte[] scratch = new byte[ROW_STRIDE];
+
+        long perPixel = time(() -> Yuv420Converter.toNv21PerPixel(p.y, p.yRowStride, 1, p.u, p.v,
+                p.uvRowStride, p.uvPixelStride, 0, 0, WIDTH, HEIGHT, out));
+        long separate = time(() -> Yuv420Converter.toNv21(p.y, p.yRowStride, 1, p.u, p.v,
+                p.uvRowStride, p.uvPixelStride, 0, 0, WIDTH, HEIGHT, Yuv420Converter.LAYOUT_SEPARATE, out, scratch));
+        long interleaved = time(() -> Yuv420Converter.toNv21(p.y, p.yRowStride, 1, p.u, p.v,
+                p.uvRowStride, p.uvPixelStride, 0, 0, WIDTH, HEIGHT, layout, out, scratch));
+
+        System.out.println("YUV_420_888 -> NV21 1080p, us/frame: per-pixel " + perPixel / 1000
+                + ", bulk rows " + separate / 1000 + ", interleaved rows " + interleaved / 1000);
+    }
+
+    private static long time(Runnable conversion) {
+        for (int i = 0; i < WARMUP; i++) {
+            conversion.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            conversion.run();
+        }
+        return (System.nanoTime() - start) / ROUNDS;
+    }
+}
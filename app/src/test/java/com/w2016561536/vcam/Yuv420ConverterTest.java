@@ -0,0 +1,172 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Yuv420ConverterTest {
+
+    /** Synthetic YUV_420_888 planes as a decoder would hand them out. */
+    static final class Planes {
+        ByteBuffer y;
+        ByteBuffer u;
+        ByteBuffer v;
+        int yRowStride;
+        int uvRowStride;
+        int uvPixelStride;
+        int width;
+        int height;
+
+        Planes readOnly() {
+            Planes p = new Planes();
+            p.y = y.asReadOnlyBuffer();
+            p.u = u.asReadOnlyBuffer();
+            p.v = v.asReadOnlyBuffer();
+            p.yRowStride = yRowStride;
+            p.uvRowStride = uvRowStride;
+            p.uvPixelStride = uvPixelStride;
+            p.width = width;
+            p.height = height;
+            return p;
+        }
+    }
+
+    static Planes semiPlanar(int width, int height, int rowStride, boolean vFirst, long seed) {
+        Random random = new Random(seed);
+        Planes p = new Planes();
+        p.width = width;
+        p.height = height;
+        p.yRowStride = rowStride;
+        p.uvRowStride = rowStride;
+        p.uvPixelStride = 2;
+        byte[] luma = new byte[rowStride * height];
+        random.nextBytes(luma);
+        p.y = ByteBuffer.allocateDirect(luma.length);
+        p.y.put(luma).clear();
+
+        int chromaHeight = height / 2;
+        byte[] chroma = new byte[rowStride * chromaHeight];
+        random.nextBytes(chroma);
+        ByteBuffer mem = ByteBuffer.allocateDirect(chroma.length);
+        mem.put(chroma).clear();
+        int planeLength = (chromaHeight - 1) * rowStride + width - 1;
+        ByteBuffer first = view(mem, 0, planeLength);
+        ByteBuffer second = view(mem, 1, planeLength);
+        p.u = vFirst ? second : first;
+        p.v = vFirst ? first : second;
+        return p;
+    }
+
+    static Planes planar(int width, int height, int rowStride, long seed) {
+        Random random = new Random(seed);
+        Planes p = new Planes();
+        p.width = width;
+        p.height = height;
+        p.yRowStride = rowStride;
+        p.uvRowStride = rowStride / 2;
+        p.uvPixelStride = 1;
+        p.y = randomDirect(random, rowStride * height);
+        p.u = randomDirect(random, p.uvRowStride * height / 2);
+        p.v = randomDirect(random, p.uvRowStride * height / 2);
+        return p;
+    }
+
+    private static ByteBuffer randomDirect(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        buffer.put(data).clear();
+        return buffer;
+    }
+
+    private static ByteBuffer view(ByteBuffer mem, int offset, int length) {
+        ByteBuffer dup = mem.duplicate();
+        dup.position(offset);
+        ByteBuffer slice = dup.slice();
+        slice.limit(length);
+        return slice;
+    }
+
+    static byte[] reference(Planes p, int cropLeft, int cropTop, int width, int height) {
+        byte[] out = new byte[width * height * 3 / 2];
+        Yuv420Converter.toNv21PerPixel(p.y, p.yRowStride, 1, p.u, p.v, p.uvRowStride, p.uvPixelStride,
+                cropLeft, cropTop, width, height, out);
+        return out;
+    }
+
+    static byte[] fast(Planes p, int layout, int cropLeft, int cropTop, int width, int height) {
+        byte[] out = new byte[width * height * 3 / 2];
+        byte[] scratch = new byte[Math.max(p.yRowStride, p.uvRowStride)];
+        Yuv420Converter.toNv21(p.y, p.yRowStride, 1, p.u, p.v, p.uvRowStride, p.uvPixelStride,
+                cropLeft, cropTop, width, height, layout, out, scratch);
+        return out;
+    }
+
+    @Test
+    public void detectsInterleavedLayouts() {
+        Planes nv12 = semiPlanar(64, 32, 80, false, 1);
+        Planes nv21 = semiPlanar(64, 32, 80, true, 2);
+        assertEquals(Yuv420Converter.LAYOUT_SEMI_PLANAR_UV, Yuv420Converter.detectChromaLayout(nv12.u, nv12.v, 2));
+        assertEquals(Yuv420Converter.LAYOUT_SEMI_PLANAR_VU, Yuv420Converter.detectChromaLayout(nv21.u, nv21.v, 2));
+        Planes ro = nv12.readOnly();
+        assertEquals(Yuv420Converter.LAYOUT_SEMI_PLANAR_UV, Yuv420Converter.detectChromaLayout(ro.u, ro.v, 2));
+        ro = nv21.readOnly();
+        assertEquals(Yuv420Converter.LAYOUT_SEMI_PLANAR_VU, Yuv420Converter.detectChromaLayout(ro.u, ro.v, 2));
+    }
+
+    @Test
+    public void planarAndFlatChromaAreNotTreatedAsInterleaved() {
+        Planes i420 = planar(64, 32, 64, 3);
+        assertEquals(Yuv420Converter.LAYOUT_SEPARATE, Yuv420Converter.detectChromaLayout(i420.u, i420.v, 1));
+
+        ByteBuffer grey = ByteBuffer.allocate(200);
+        for (int i = 0; i < 200; i++) {
+            grey.put(i, (byte) 128);
+        }
+        ByteBuffer roGrey = grey.asReadOnlyBuffer();
+        assertEquals(Yuv420Converter.LAYOUT_UNKNOWN, Yuv420Converter.detectChromaLayout(roGrey, roGrey.duplicate(), 2));
+    }
+
+    @Test
+    public void semiPlanarMatchesReference() {
+        for (boolean vFirst : new boolean[]{false, true}) {
+            Planes p = semiPlanar(96, 48, 128, vFirst, 4);
+            int layout = Yuv420Converter.detectChromaLayout(p.u, p.v, p.uvPixelStride);
+            assertArrayEquals(reference(p, 0, 0, 96, 48), fast(p, layout, 0, 0, 96, 48));
+            assertArrayEquals(reference(p, 0, 0, 96, 48), fast(p, Yuv420Converter.LAYOUT_SEPARATE, 0, 0, 96, 48));
+        }
+    }
+
+    @Test
+    public void tightStrideMatchesReference() {
+        Planes p = semiPlanar(64, 32, 64, false, 5);
+        int layout = Yuv420Converter.detectChromaLayout(p.u, p.v, p.uvPixelStride);
+        assertArrayEquals(reference(p, 0, 0, 64, 32), fast(p, layout, 0, 0, 64, 32));
+    }
+
+    @Test
+    public void cropMatchesReference() {
+        Planes p = semiPlanar(96, 64, 128, true, 6);
+        int layout = Yuv420Converter.detectChromaLayout(p.u, p.v, p.uvPixelStride);
+        assertArrayEquals(reference(p, 8, 4, 80, 56), fast(p, layout, 8, 4, 80, 56));
+    }
+
+    @Test
+    public void planarMatchesReference() {
+        Planes p = planar(96, 48, 128, 7);
+        assertArrayEquals(reference(p, 0, 0, 96, 48), fast(p, Yuv420Converter.LAYOUT_SEPARATE, 0, 0, 96, 48));
+    }
+
+    @Test
+    public void referenceWritesNv21Order() {
+        ByteBuffer y = ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+        ByteBuffer u = ByteBuffer.wrap(new byte[]{10});
+        ByteBuffer v = ByteBuffer.wrap(new byte[]{20});
+        byte[] out = new byte[6];
+        Yuv420Converter.toNv21PerPixel(y, 2, 1, u, v, 1, 1, 0, 0, 2, 2, out);
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 20, 10}, out);
+    }
+}
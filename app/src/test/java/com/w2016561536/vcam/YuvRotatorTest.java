@@ -0,0 +1,132 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class YuvRotatorTest {
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /** Per-sample reference: output (X, Y) reads the source sample it came from. */
+    private static void referencePlane(byte[] src, int srcOffset, int w, int h, int pixelBytes,
+                                       byte[] dst, int dstOffset, int rotation, boolean mirror) {
+        int dw = rotation % 180 == 0 ? w : h;
+        int dh = rotation % 180 == 0 ? h : w;
+        for (int y = 0; y < dh; y++) {
+            for (int x = 0; x < dw; x++) {
+                int ux = mirror ? dw - 1 - x : x;
+                int sx;
+                int sy;
+                switch (rotation) {
+                    case 90:
+                        sx = y;
+                        sy = h - 1 - ux;
+                        break;
+                    case 180:
+                        sx = w - 1 - ux;
+                        sy = h - 1 - y;
+                        break;
+                    case 270:
+                        sx = w - 1 - y;
+                        sy = ux;
+                        break;
+                    default:
+                        sx = ux;
+                        sy = y;
+                        break;
+                }
+                for (int b = 0; b < pixelBytes; b++) {
+                    dst[dstOffset + (y * dw + x) * pixelBytes + b] = src[srcOffset + (sy * w + sx) * pixelBytes + b];
+                }
+            }
+        }
+    }
+
+    private static byte[] reference(byte[] src, int format, int w, int h, int rotation, boolean mirror) {
+        byte[] dst = new byte[YuvFormat.frameSize(w, h)];
+        int luma = w * h;
+        referencePlane(src, 0, w, h, 1, dst, 0, rotation, mirror);
+        if (format == YuvFormat.I420) {
+            int chroma = (w / 2) * (h / 2);
+            referencePlane(src, luma, w / 2, h / 2, 1, dst, luma, rotation, mirror);
+            referencePlane(src, luma + chroma, w / 2, h / 2, 1, dst, luma + chroma, rotation, mirror);
+        } else {
+            referencePlane(src, luma, w / 2, h / 2, 2, dst, luma, rotation, mirror);
+        }
+        return dst;
+    }
+
+    @Test
+    public void allEightOrientationsMatchTheReference() {
+        int[][] sizes = {{6, 4}, {2, 2}, {70, 38}, {96, 64}};
+        BandExecutor executor = new BandExecutor(3, 1);
+        for (int format : new int[]{YuvFormat.NV21, YuvFormat.I420, YuvFormat.NV12}) {
+            for (int[] size : sizes) {
+                int w = size[0];
+                int h = size[1];
+                byte[] src = random(YuvFormat.frameSize(w, h), w * 31 + h);
+                for (int rotation : ROTATIONS) {
+                    for (boolean mirror : new boolean[]{false, true}) {
+                        String what = YuvFormat.name(format) + " " + w + "x" + h + " r" + rotation + (mirror ? " mirror" : "");
+                        byte[] expected = reference(src, format, w, h, rotation, mirror);
+                        byte[] inline = new byte[expected.length];
+                        YuvRotator.transform(src, format, w, h, inline, rotation, mirror, new BandExecutor(0, 1));
+                        assertArrayEquals(what, expected, inline);
+                        byte[] banded = new byte[expected.length];
+                        YuvRotator.transform(src, format, w, h, banded, rotation, mirror, executor);
+                        assertArrayEquals(what + " banded", expected, banded);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fourQuarterTurnsAreTheIdentity() {
+        int w = 40;
+        int h = 24;
+        byte[] src = random(YuvFormat.frameSize(w, h), 7);
+        byte[] a = src.clone();
+        int cw = w;
+        int ch = h;
+        for (int i = 0; i < 4; i++) {
+            byte[] b = new byte[a.length];
+            YuvRotator.transform(a, YuvFormat.NV21, cw, ch, b, 90, false);
+            int t = cw;
+            cw = ch;
+            ch = t;
+            a = b;
+        }
+        assertArrayEquals(src, a);
+    }
+
+    @Test
+    public void outputSizeSwapsOnQuarterTurns() {
+        assertEquals(640, YuvRotator.outputWidth(640, 480, -360));
+        assertEquals(480, YuvRotator.outputWidth(640, 480, 90));
+        assertEquals(640, YuvRotator.outputHeight(640, 480, 270));
+        assertEquals(480, YuvRotator.outputHeight(640, 480, 180));
+        assertTrue(YuvRotator.isIdentity(360, false));
+        assertFalse(YuvRotator.isIdentity(0, true));
+    }
+
+    @Test
+    public void cameraRotationCompensatesSensorMounting() {
+        // 后置 90°：竖拍手机录像（元数据 90）本来就是传感器方向
+        assertEquals(0, YuvRotator.rotationForCamera(90, false, 90));
+        // 后置 90°：直立的竖屏片源要逆时针转回传感器方向
+        assertEquals(270, YuvRotator.rotationForCamera(90, false, 0));
+        // 前置 270°：应用先镜像再转 90°
+        assertEquals(270, YuvRotator.rotationForCamera(270, true, 0));
+        assertEquals(0, YuvRotator.rotationForCamera(0, false, 0));
+        assertEquals(180, YuvRotator.rotationForCamera(270, false, 90));
+    }
+}
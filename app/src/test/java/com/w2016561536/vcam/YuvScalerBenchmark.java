@@ -0,0 +1,67 @@
+package com.w2016561536.vcam;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Rough JVM timing of the table-driven scaler for the two common cases, against a
+ * straightforward floating-point bilinear. Only runs when {@link Benchmarks} is switched on.
+ */
+public class YuvScalerBenchmark {
+    private static final int WARMUP = 10;
+    private static final int ROUNDS = 30;
+
+    @Before
+    public void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void scale1080pTo720p() {
+        byte[] src = YuvScalerTest.testImage(1920, 1080, 42);
+        byte[] dst = new byte[YuvFormat.frameSize(1280, 720)];
+
+        long nearest = time(() -> YuvScaler.scale(src, YuvFormat.NV21, 1920, 1080, dst, YuvFormat.NV21, 1280, 720,
+                YuvScaler.MODE_NEAREST));
+        long bilinear = time(() -> YuvScaler.scale(src, YuvFormat.NV21, 1920, 1080, dst, YuvFormat.NV21, 1280, 720,
+                YuvScaler.MODE_BILINEAR));
+        long box = time(() -> YuvScaler.scale(src, YuvFormat.NV21, 1920, 1080, dst, YuvFormat.NV21, 1280, 720,
+                YuvScaler.MODE_BOX));
+        long reference = time(() -> referenceLuma(src, 1920, 1080, dst, 1280, 720));
+
+        System.out.println("NV21 1080p -> 720p, us/frame: nearest " + nearest / 1000 + ", bilinear " + bilinear / 1000
+                + ", box " + box / 1000 + ", float bilinear (luma only) " + reference / 1000);
+    }
+
+    @Test
+    public void scale4kTo1080p() {
+        byte[] src = YuvScalerTest.testImage(3840, 2160, 42);
+        byte[] dst = new byte[YuvFormat.frameSize(1920, 1080)];
+
+        long bilinear = time(() -> YuvScaler.scale(src, YuvFormat.NV21, 3840, 2160, dst, YuvFormat.NV21, 1920, 1080,
+                YuvScaler.MODE_BILINEAR));
+        long box = time(() -> YuvScaler.scale(src, YuvFormat.NV21, 3840, 2160, dst, YuvFormat.NV21, 1920, 1080,
+                YuvScaler.MODE_BOX));
+
+        System.out.println("NV21 4K -> 1080p, us/frame: bilinear " + bilinear / 1000 + ", box " + box / 1000);
+    }
+
+    private static void referenceLuma(byte[] src, int srcW, int srcH, byte[] dst, int dstW, int dstH) {
+        for (int y = 0; y < dstH; y++) {
+            for (int x = 0; x < dstW; x++) {
+                dst[y * dstW + x] = (byte) YuvScalerTest.referenceBilinear(src, 0, srcW, 1, srcW, srcH, dstW, dstH, x, y);
+            }
+        }
+    }
+
+    private static long time(Runnable scaling) {
+        for (int i = 0; i < WARMUP; i++) {
+            scaling.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            scaling.run();
+        }
+        return (System.nanoTime() - start) / ROUNDS;
+    }
+}
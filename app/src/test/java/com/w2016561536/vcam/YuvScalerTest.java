@@ -0,0 +1,180 @@
+package com.w2016561536.vcam;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class YuvScalerTest {
+    // 参考输出的 CRC，改动滤波或取整方式时需要确认画面后再更新
+    private static final long GOLDEN_NEAREST = 3725299943L;
+    private static final long GOLDEN_BILINEAR = 527122932L;
+    private static final long GOLDEN_BOX = 1294613774L;
+
+    /** Smooth gradients plus noise, so every filter has something to do. */
+    static byte[] testImage(int width, int height, int seed) {
+        Random random = new Random(seed);
+        byte[] frame = new byte[YuvFormat.frameSize(width, height)];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                frame[y * width + x] = (byte) ((x * 255 / width + y * 64 / height + random.nextInt(16)) & 0xff);
+            }
+        }
+        for (int i = width * height; i < frame.length; i++) {
+            frame[i] = (byte) (96 + random.nextInt(64));
+        }
+        return frame;
+    }
+
+    /** Plain double-precision bilinear with the same pixel-center mapping, for one plane. */
+    static int referenceBilinear(byte[] plane, int offset, int stride, int step, int srcW, int srcH,
+                                 int dstW, int dstH, int x, int y) {
+        double sx = Math.max(0, (x + 0.5) * srcW / dstW - 0.5);
+        double sy = Math.max(0, (y + 0.5) * srcH / dstH - 0.5);
+        int x0 = Math.min((int) sx, srcW - 1);
+        int y0 = Math.min((int) sy, srcH - 1);
+        int x1 = Math.min(x0 + 1, srcW - 1);
+        int y1 = Math.min(y0 + 1, srcH - 1);
+        double fx = sx - x0;
+        double fy = sy - y0;
+        double top = at(plane, offset, stride, step, x0, y0) * (1 - fx) + at(plane, offset, stride, step, x1, y0) * fx;
+        double bottom = at(plane, offset, stride, step, x0, y1) * (1 - fx) + at(plane, offset, stride, step, x1, y1) * fx;
+        return (int) Math.round(top * (1 - fy) + bottom * fy);
+    }
+
+    private static int at(byte[] plane, int offset, int stride, int step, int x, int y) {
+        return plane[offset + y * stride + x * step] & 0xff;
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    @Test
+    public void boxAveragesEachBlock() {
+        byte[] src = new byte[YuvFormat.frameSize(4, 4)];
+        for (int i = 0; i < 16; i++) {
+            src[i] = (byte) (i * 4);
+        }
+        // I420: U = 10, 20, 30, 40; V = 50, 60, 70, 80
+        for (int i = 0; i < 4; i++) {
+            src[16 + i] = (byte) (10 * (i + 1));
+            src[20 + i] = (byte) (10 * (i + 5));
+        }
+        byte[] dst = new byte[YuvFormat.frameSize(2, 2)];
+        YuvScaler.scale(src, YuvFormat.I420, 4, 4, dst, YuvFormat.NV21, 2, 2, YuvScaler.MODE_BOX);
+        assertArrayEquals(new byte[]{10, 18, 42, 50, 65, 25}, dst);
+    }
+
+    @Test
+    public void bilinearUpscaleInterpolatesBetweenCenters() {
+        byte[] src = {0, 100, (byte) 200, 100, 50, 60};
+        byte[] dst = new byte[YuvFormat.frameSize(4, 4)];
+        YuvScaler.scale(src, YuvFormat.NV12, 2, 2, dst, YuvFormat.NV12, 4, 4, YuvScaler.MODE_BILINEAR);
+        int[] firstRow = new int[4];
+        int[] lastRow = new int[4];
+        for (int x = 0; x < 4; x++) {
+            firstRow[x] = dst[x] & 0xff;
+            lastRow[x] = dst[12 + x] & 0xff;
+        }
+        assertArrayEquals(new int[]{0, 25, 75, 100}, firstRow);
+        assertArrayEquals(new int[]{200, 175, 125, 100}, lastRow);
+        for (int i = 16; i < 24; i += 2) {
+            assertEquals(50, dst[i]);
+            assertEquals(60, dst[i + 1]);
+        }
+    }
+
+    @Test
+    public void nearestPicksTheCoveringSample() {
+        byte[] src = testImage(8, 8, 1);
+        byte[] dst = new byte[YuvFormat.frameSize(4, 4)];
+        YuvScaler.scale(src, YuvFormat.NV21, 8, 8, dst, YuvFormat.NV21, 4, 4, YuvScaler.MODE_NEAREST);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                assertEquals(src[(2 * y + 1) * 8 + 2 * x + 1], dst[y * 4 + x]);
+            }
+        }
+    }
+
+    @Test
+    public void centerCropKeepsTheTargetAspectRatio() {
+        assertArrayEquals(new int[]{240, 0, 1440, 1080}, YuvScaler.centerCrop(1920, 1080, 640, 480));
+        assertArrayEquals(new int[]{0, 656, 1080, 606}, YuvScaler.centerCrop(1080, 1920, 1280, 720));
+        assertArrayEquals(new int[]{0, 0, 1280, 720}, YuvScaler.centerCrop(1280, 720, 640, 360));
+    }
+
+    @Test
+    public void croppedScaleOnlySamplesTheCenter() {
+        // 左右各 2 列是 0，中间是 200；4:3 -> 1:1 应该只看到中间
+        int w = 8;
+        int h = 4;
+        byte[] src = new byte[YuvFormat.frameSize(w, h)];
+        for (int y = 0; y < h; y++) {
+            for (int x = 2; x < 6; x++) {
+                src[y * w + x] = (byte) 200;
+            }
+        }
+        byte[] dst = new byte[YuvFormat.frameSize(2, 2)];
+        YuvScaler.scale(src, YuvFormat.NV21, w, h, dst, YuvFormat.NV21, 2, 2, YuvScaler.MODE_BOX);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(200, dst[i] & 0xff);
+        }
+    }
+
+    @Test
+    public void bilinearMatchesFloatingPointReference() {
+        int srcW = 96;
+        int srcH = 54;
+        int dstW = 64;
+        int dstH = 36;
+        byte[] src = testImage(srcW, srcH, 7);
+        byte[] dst = new byte[YuvFormat.frameSize(dstW, dstH)];
+        YuvScaler.scale(src, YuvFormat.NV21, srcW, srcH, dst, YuvFormat.NV21, dstW, dstH, YuvScaler.MODE_BILINEAR);
+        for (int y = 0; y < dstH; y++) {
+            for (int x = 0; x < dstW; x++) {
+                int expected = referenceBilinear(src, 0, srcW, 1, srcW, srcH, dstW, dstH, x, y);
+                assertEquals(expected, dst[y * dstW + x] & 0xff, 1);
+            }
+        }
+        int srcLuma = srcW * srcH;
+        int dstLuma = dstW * dstH;
+        for (int y = 0; y < dstH / 2; y++) {
+            for (int x = 0; x < dstW / 2; x++) {
+                int expectedV = referenceBilinear(src, srcLuma, srcW, 2, srcW / 2, srcH / 2, dstW / 2, dstH / 2, x, y);
+                int expectedU = referenceBilinear(src, srcLuma + 1, srcW, 2, srcW / 2, srcH / 2, dstW / 2, dstH / 2, x, y);
+                assertEquals(expectedV, dst[dstLuma + y * dstW + 2 * x] & 0xff, 1);
+                assertEquals(expectedU, dst[dstLuma + y * dstW + 2 * x + 1] & 0xff, 1);
+            }
+        }
+    }
+
+    @Test
+    public void outputLayoutDoesNotChangeThePixels() {
+        byte[] src = testImage(64, 48, 3);
+        byte[] nv21 = new byte[YuvFormat.frameSize(40, 30)];
+        byte[] i420 = new byte[nv21.length];
+        byte[] repacked = new byte[nv21.length];
+        YuvScaler.scale(src, YuvFormat.NV21, 64, 48, nv21, YuvFormat.NV21, 40, 30, YuvScaler.MODE_BILINEAR);
+        YuvScaler.scale(src, YuvFormat.NV21, 64, 48, i420, YuvFormat.I420, 40, 30, YuvScaler.MODE_BILINEAR);
+        YuvFormat.repack(nv21, YuvFormat.NV21, repacked, YuvFormat.I420, 40, 30);
+        assertArrayEquals(repacked, i420);
+    }
+
+    @Test
+    public void goldenChecksums() {
+        byte[] src = testImage(320, 240, 42);
+        byte[] dst = new byte[YuvFormat.frameSize(200, 150)];
+        YuvScaler.scale(src, YuvFormat.NV21, 320, 240, dst, YuvFormat.NV21, 200, 150, YuvScaler.MODE_NEAREST);
+        assertEquals(GOLDEN_NEAREST, crc(dst));
+        YuvScaler.scale(src, YuvFormat.NV21, 320, 240, dst, YuvFormat.NV21, 200, 150, YuvScaler.MODE_BILINEAR);
+        assertEquals(GOLDEN_BILINEAR, crc(dst));
+        byte[] small = new byte[YuvFormat.frameSize(96, 54)];
+        YuvScaler.scale(src, YuvFormat.NV21, 320, 240, small, YuvFormat.I420, 96, 54, YuvScaler.MODE_BOX);
+        assertEquals(GOLDEN_BOX, crc(small));
+    }
+}